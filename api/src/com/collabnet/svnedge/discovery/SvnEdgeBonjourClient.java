@@ -24,19 +24,34 @@ import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import javax.jmdns.JmDNS;
 import javax.jmdns.ServiceEvent;
 import javax.jmdns.ServiceInfo;
 import javax.jmdns.ServiceListener;
+import javax.jmdns.impl.DNSEntry;
+import javax.jmdns.impl.DNSRecord;
+import javax.jmdns.impl.JmDNSImpl;
+import javax.jmdns.impl.constants.DNSRecordClass;
+import javax.jmdns.impl.constants.DNSRecordType;
 
 import org.apache.log4j.Logger;
 
@@ -47,6 +62,11 @@ import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceType;
  * The SvnEdge Bounjour Client is a general client to be used by any clients.
  * The mDNS service type is is described as "csvn" that is listened on a local
  * TCP network ("_csvn._tcp.local.").
+ * A single client can observe any set of the {@link SvnEdgeServiceType}s using
+ * the same jmDNS instance, subscribing and unsubscribing them at runtime. The
+ * events are routed to the listeners registered for their service type.
+ * Reactive consumers can subscribe to the {@link SvnEdgeServersPublisher}s of
+ * the client instead, which only deliver the events they request.
  * 
  * @author Marcello de Sales (mdesales@collab.net)
  * 
@@ -54,42 +74,198 @@ import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceType;
 public class SvnEdgeBonjourClient implements ServiceListener {
 
     private static final Logger log = Logger.getLogger(SvnEdgeBonjourClient.class);
+    /**
+     * The maximum time in milliseconds {@link #stop()} waits for the running
+     * tasks before interrupting them.
+     */
+    private static final long STOP_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+    /**
+     * The prefix of the name of the threads running the submitted tasks.
+     */
+    private static final String TASK_THREAD_NAME_PREFIX = "SvnEdge-Task-";
+    /**
+     * The maximum number of concurrent hostname lookups in the
+     * {@link SvnEdgeExecutionMode#VIRTUAL_THREADS} mode, where each lookup
+     * has its own thread.
+     */
+    private static final int VIRTUAL_LOOKUP_CONCURRENCY = 16;
     /**
      * The jMDNS client instance
      */
     private JmDNS jmdns;
     /**
-     * The list of service listeners that are interested when a new service has
-     * been added to the mDNS proxy.
+     * The type of the mDNS engine of this client.
+     */
+    private final SvnEdgeMdnsEngineType engineType;
+    /**
+     * The registry of the service listeners that are interested when a new
+     * service has been added to the mDNS proxy.
+     */
+    private final SvnEdgeListenerRegistry observers;
+    /**
+     * The subscriptions of the subscribers of the publishers of this client.
+     */
+    private final Queue<SvnEdgeServersSubscription> subscriptions =
+            new ConcurrentLinkedQueue<SvnEdgeServersSubscription>();
+    /**
+     * The dispatcher delivering the events to the observers outside of the
+     * jmDNS threads.
+     */
+    private final SvnEdgeEventDispatcher dispatcher;
+    /**
+     * The service types currently observed by the jmDNS instance.
+     */
+    private final Set<SvnEdgeServiceType> subscribedTypes;
+    /**
+     * The servers currently running, as seen by this client.
+     */
+    private final SvnEdgeServersRegistry registry;
+    /**
+     * The lock serializing the changes of the registry with their dispatch,
+     * so that the listeners see the changes in the order of the registry.
+     */
+    private final Object publishLock = new Object();
+    /**
+     * The resolver of the hostnames of the servers.
+     */
+    private volatile SvnEdgeHostnameResolver hostnameResolver =
+            SvnEdgeHostnameResolver.getDefault();
+    /**
+     * The scheduler of the resolution queries of the announced services.
+     */
+    private final SvnEdgeResolutionScheduler resolutionScheduler;
+    /**
+     * The damper of the servers that flap, or <code>null</code> if the
+     * events are reported as they are captured.
+     */
+    private volatile SvnEdgeFlapDamper flapDamper;
+    /**
+     * The on-disk cache of the servers, or <code>null</code> if the servers
+     * are not kept between runs.
+     */
+    private volatile SvnEdgeServersCache serversCache;
+    /**
+     * The sweeper of the servers that leave without goodbye packets.
+     */
+    private final SvnEdgeExpirySweeper expirySweeper;
+    /**
+     * The prober of the web consoles of the servers, or <code>null</code> if
+     * the consoles are not probed.
+     */
+    private volatile SvnEdgeHealthProber healthProber;
+    /**
+     * The threads running the callbacks, the lookups and the submitted tasks.
+     */
+    private volatile SvnEdgeExecutionMode executionMode =
+            SvnEdgeExecutionMode.PLATFORM_THREADS;
+    /**
+     * The pool of daemon threads running the submitted tasks in the platform
+     * threads mode, created on the first task.
+     */
+    private ExecutorService platformTaskExecutor;
+    /**
+     * The executor running each listener delivery and each submitted task on
+     * its own virtual thread, created when the mode is first selected.
+     */
+    private ExecutorService virtualTaskExecutor;
+    /**
+     * The resolver running each lookup on its own virtual thread, created
+     * when the mode is first selected.
      */
-    private Queue<SvnEdgeServersListener> observers;
+    private SvnEdgeHostnameResolver virtualHostnameResolver;
+    /**
+     * The time spent in each phase of the startup of this client.
+     */
+    private final SvnEdgeStartupTimings startupTimings;
 
     /**
      * Constructs a new instance with the given ipAddress, hostname and type.
      * @param address is the ip address to be assigned to the jmDNS service.
      * @param hostname is the hostname to identify the service.
      * @param type is the type of the service to probe.
+     * @param engineType is the type of the mDNS engine.
+     * @param domain is the domain of the unicast engine, or
+     * <code>null</code>.
+     * @param timings records the phases of the startup.
      * @throws IOException if there is no Internet connectivity.
      */
     private SvnEdgeBonjourClient(InetAddress address, String hostname,
-            SvnEdgeServiceType type)  throws IOException {
-        if (address != null) {
-            if (hostname != null && !hostname.equals("")) {
-                jmdns = JmDNS.create(address, hostname);
-                log.debug("Initializing Discovery Client with address " + 
-                        address + "and hostname " + hostname);
+            SvnEdgeServiceType type, SvnEdgeMdnsEngineType engineType,
+            SvnEdgeWideAreaDomain domain, SvnEdgeStartupTimings timings)
+                    throws IOException {
+        this.startupTimings = timings;
+        this.engineType = engineType;
+        this.dispatcher = new SvnEdgeEventDispatcher();
+        this.observers = new SvnEdgeListenerRegistry(this.dispatcher);
+        this.subscribedTypes = new CopyOnWriteArraySet<SvnEdgeServiceType>();
+        this.registry = new SvnEdgeServersRegistry();
+        this.resolutionScheduler = new SvnEdgeResolutionScheduler(
+                new SvnEdgeResolutionScheduler.Requester() {
+            public void requestServiceInfo(String type, String name) {
+                JmDNS current = jmdns;
+                if (current != null) {
+                    // the scheduler retries the resolution after its own
+                    // timeout, so jmDNS waits for the answer as little as
+                    // it can instead of 6 seconds.
+                    final boolean persistent = false;
+                    current.requestServiceInfo(type, name, persistent, 0);
+                }
+            }
+        });
+        this.expirySweeper = new SvnEdgeExpirySweeper();
+        this.expirySweeper.attach(new SvnEdgeExpirySweeper.Probe() {
+            public long getTtl(SvnEdgeServerInfo serverInfo) {
+                DNSRecord record = getServiceRecord(serverInfo);
+                return record != null ?
+                        TimeUnit.SECONDS.toMillis(record.getTTL()) : -1;
+            }
 
-            } else {
-                log.debug("Initializing Discovery Client with address " + 
-                        address);
-                jmdns = JmDNS.create(address);
+            public SvnEdgeExpirySweeper.RecordState getRecordState(
+                    SvnEdgeServerInfo serverInfo) {
+                return SvnEdgeBonjourClient.this.getRecordState(serverInfo);
+            }
+
+            public void refresh(SvnEdgeServerInfo serverInfo) {
+                JmDNS current = jmdns;
+                if (current != null) {
+                    // the stale records are still cached, so this does not
+                    // wait for the answers.
+                    final boolean persistent = false;
+                    current.requestServiceInfo(
+                            serverInfo.getServiceType().getType(),
+                            serverInfo.getServiceName(), persistent, 0);
+                }
+            }
+        }, new SvnEdgeExpirySweeper.Sink() {
+            public void expired(SvnEdgeServerInfo serverInfo) {
+                expire(serverInfo);
             }
+        });
+        timings.record(SvnEdgeStartupPhase.SETUP);
+        if (address != null) {
+            log.debug("Initializing Discovery Client with address " + 
+                    address + (hostname != null && !hostname.equals("") ?
+                            " and hostname " + hostname : ""));
         } else {
             log.debug("Initializing Discovery Client");
-            jmdns = JmDNS.create();
         }
-        jmdns.addServiceListener(type.toString(), this);
-        this.observers = new ConcurrentLinkedQueue<SvnEdgeServersListener>();
+        try {
+            // the registers and the clients of the same interface share the
+            // mDNS engine.
+            jmdns = SvnEdgeMdnsEngines.acquire(engineType, address, hostname,
+                    domain);
+
+        } catch (IOException e) {
+            // the threads started by the setup would otherwise leak.
+            this.resolutionScheduler.shutdown();
+            this.expirySweeper.shutdown();
+            this.dispatcher.shutdown();
+            throw e;
+        }
+        timings.record(SvnEdgeStartupPhase.JMDNS);
+        subscribe(type);
+        timings.record(SvnEdgeStartupPhase.SUBSCRIBE);
+        log.debug("Discovery Client started: " + timings);
     }
 
     /**
@@ -101,7 +277,9 @@ public class SvnEdgeBonjourClient implements ServiceListener {
     public static SvnEdgeBonjourClient makeInstance(SvnEdgeServiceType type) 
         throws IOException {
 
-        return new SvnEdgeBonjourClient(null, null, type);
+        return new SvnEdgeBonjourClient(null, null, type,
+                SvnEdgeMdnsEngineType.JMDNS, null,
+                new SvnEdgeStartupTimings());
     }
 
     /**
@@ -115,7 +293,9 @@ public class SvnEdgeBonjourClient implements ServiceListener {
     public static SvnEdgeBonjourClient makeInstance(InetAddress ipAddress,
           SvnEdgeServiceType type) throws IOException {
 
-        return new SvnEdgeBonjourClient(ipAddress, null, type);
+        return new SvnEdgeBonjourClient(ipAddress, null, type,
+                SvnEdgeMdnsEngineType.JMDNS, null,
+                new SvnEdgeStartupTimings());
     }
 
     /**
@@ -131,29 +311,886 @@ public class SvnEdgeBonjourClient implements ServiceListener {
     public static SvnEdgeBonjourClient makeInstance(InetAddress ipAddress,
           String hostname, SvnEdgeServiceType type) throws IOException {
 
-        return new SvnEdgeBonjourClient(ipAddress, hostname, type);
+        return new SvnEdgeBonjourClient(ipAddress, hostname, type,
+                SvnEdgeMdnsEngineType.JMDNS, null,
+                new SvnEdgeStartupTimings());
+    }
+
+    /**
+     * Creates a new client using the given ip address and the given mDNS
+     * engine that will reply to the given type.
+     * @param ipAddress is the ip address to publish the service, or
+     * <code>null</code> for the default one.
+     * @param type is the service type. See getServiceTypes().
+     * @param engineType is the type of the mDNS engine.
+     * @return an instance of the SvnEdgeBonjourClient.
+     * @throws IOException if any problem trying to start the service occurs.
+     */
+    public static SvnEdgeBonjourClient makeInstance(InetAddress ipAddress,
+          SvnEdgeServiceType type, SvnEdgeMdnsEngineType engineType)
+                  throws IOException {
+
+        return new SvnEdgeBonjourClient(ipAddress, null, type, engineType,
+                null, new SvnEdgeStartupTimings());
+    }
+
+    /**
+     * Creates a new client browsing the given type in the given wide-area
+     * domain with unicast DNS-SD, across the networks that multicast does
+     * not reach.
+     * @param ipAddress is the ip address of the host, or <code>null</code>
+     * for the default one.
+     * @param type is the service type. See getServiceTypes().
+     * @param domain is the domain browsed and its DNS server.
+     * @return an instance of the SvnEdgeBonjourClient.
+     * @throws IOException if any problem trying to start the service occurs.
+     */
+    public static SvnEdgeBonjourClient makeInstance(InetAddress ipAddress,
+          SvnEdgeServiceType type, SvnEdgeWideAreaDomain domain)
+                  throws IOException {
+
+        return new SvnEdgeBonjourClient(ipAddress, null, type,
+                SvnEdgeMdnsEngineType.UNICAST, domain,
+                new SvnEdgeStartupTimings());
+    }
+
+    /**
+     * Creates a new client to probe for the given type in the background, so
+     * that the caller, such as a GUI, is not blocked while the jmDNS instance
+     * comes up.
+     * @param type is the service type. See getServiceTypes().
+     * @return the future client, completed exceptionally with the
+     * IOException of the startup.
+     */
+    public static CompletableFuture<SvnEdgeBonjourClient> makeInstanceAsync(
+            SvnEdgeServiceType type) {
+        return makeInstanceAsync(null, null, type);
+    }
+
+    /**
+     * Creates a new client using the given ip address in the background.
+     * @param ipAddress is the ip address to publish the service.
+     * @param type is the service type. See getServiceTypes().
+     * @return the future client, completed exceptionally with the
+     * IOException of the startup.
+     */
+    public static CompletableFuture<SvnEdgeBonjourClient> makeInstanceAsync(
+            InetAddress ipAddress, SvnEdgeServiceType type) {
+        return makeInstanceAsync(ipAddress, null, type);
+    }
+
+    /**
+     * Creates a new client using the given ip address and hostname in the
+     * background.
+     * @param ipAddress is the ip address to publish the service.
+     * @param hostname is hostname chosen by the client, mostly used for 
+     * debugging.
+     * @param type is the service type. See getServiceTypes().
+     * @return the future client, completed exceptionally with the
+     * IOException of the startup.
+     */
+    public static CompletableFuture<SvnEdgeBonjourClient> makeInstanceAsync(
+            InetAddress ipAddress, String hostname, SvnEdgeServiceType type) {
+        return makeInstanceAsync(ipAddress, hostname, type,
+                SvnEdgeMdnsEngineType.JMDNS, null);
+    }
+
+    /**
+     * Creates a new client using the given ip address and the given mDNS
+     * engine in the background.
+     * @param ipAddress is the ip address to publish the service, or
+     * <code>null</code> for the default one.
+     * @param type is the service type. See getServiceTypes().
+     * @param engineType is the type of the mDNS engine.
+     * @return the future client, completed exceptionally with the
+     * IOException of the startup.
+     */
+    public static CompletableFuture<SvnEdgeBonjourClient> makeInstanceAsync(
+            InetAddress ipAddress, SvnEdgeServiceType type,
+            SvnEdgeMdnsEngineType engineType) {
+        return makeInstanceAsync(ipAddress, null, type, engineType, null);
+    }
+
+    /**
+     * Creates a new client browsing the given type in the given wide-area
+     * domain with unicast DNS-SD in the background.
+     * @param ipAddress is the ip address of the host, or <code>null</code>
+     * for the default one.
+     * @param type is the service type. See getServiceTypes().
+     * @param domain is the domain browsed and its DNS server.
+     * @return the future client, completed exceptionally with the
+     * IOException of the startup.
+     */
+    public static CompletableFuture<SvnEdgeBonjourClient> makeInstanceAsync(
+            InetAddress ipAddress, SvnEdgeServiceType type,
+            SvnEdgeWideAreaDomain domain) {
+        return makeInstanceAsync(ipAddress, null, type,
+                SvnEdgeMdnsEngineType.UNICAST, domain);
+    }
+
+    private static CompletableFuture<SvnEdgeBonjourClient> makeInstanceAsync(
+            final InetAddress ipAddress, final String hostname,
+            final SvnEdgeServiceType type,
+            final SvnEdgeMdnsEngineType engineType,
+            final SvnEdgeWideAreaDomain domain) {
+        return SvnEdgeStartup.startAsync(
+                new SvnEdgeStartup.Task<SvnEdgeBonjourClient>() {
+            public SvnEdgeBonjourClient start(SvnEdgeStartupTimings timings)
+                    throws IOException {
+                return new SvnEdgeBonjourClient(ipAddress, hostname, type,
+                        engineType, domain, timings);
+            }
+        });
+    }
+
+    /**
+     * Creates one client for each of the given ip addresses in parallel, in
+     * the background, so that the startup takes as long as the slowest
+     * interface instead of the sum of all of them.
+     * @param ipAddresses are the ip addresses of the interfaces to observe.
+     * @param type is the service type. See getServiceTypes().
+     * @return the future clients, in the order of the given addresses. In
+     * case any of them fails to start, the others are stopped and the
+     * future is completed exceptionally with the failure.
+     */
+    public static CompletableFuture<List<SvnEdgeBonjourClient>>
+            makeInstancesAsync(List<InetAddress> ipAddresses,
+                    SvnEdgeServiceType type) {
+        List<CompletableFuture<SvnEdgeBonjourClient>> futures =
+            new ArrayList<CompletableFuture<SvnEdgeBonjourClient>>();
+        for (InetAddress ipAddress : ipAddresses) {
+            futures.add(makeInstanceAsync(ipAddress, null, type));
+        }
+        return SvnEdgeStartup.allOf(futures,
+                new SvnEdgeStartup.Closer<SvnEdgeBonjourClient>() {
+            public void close(SvnEdgeBonjourClient client) throws IOException {
+                client.stop();
+            }
+        });
+    }
+
+    /**
+     * @return the time spent in each phase of the startup of this client.
+     */
+    public SvnEdgeStartupTimings getStartupTimings() {
+        return this.startupTimings;
+    }
+
+    /**
+     * Starts observing the servers of the given service type, sharing the
+     * jmDNS instance of this client with the other subscribed types.
+     * @param type is the service type. See getServiceTypes().
+     * @return <code>false</code> if the type was already subscribed.
+     * @throws IllegalStateException if the client has been stopped.
+     */
+    public synchronized boolean subscribe(SvnEdgeServiceType type) {
+        if (jmdns == null) {
+            throw new IllegalStateException("The client has been stopped");
+        }
+        if (!this.subscribedTypes.add(type)) {
+            return false;
+        }
+        log.debug("Subscribing to the service type " + type);
+        jmdns.addServiceListener(type.toString(), this);
+        return true;
+    }
+
+    /**
+     * Stops observing the servers of the given service type. The listeners
+     * registered for the type are kept, but receive no more events until the
+     * type is subscribed again.
+     * @param type is the service type. See getServiceTypes().
+     * @return <code>false</code> if the type was not subscribed.
+     */
+    public synchronized boolean unsubscribe(SvnEdgeServiceType type) {
+        if (!this.subscribedTypes.remove(type)) {
+            return false;
+        }
+        log.debug("Unsubscribing from the service type " + type);
+        if (jmdns != null) {
+            jmdns.removeServiceListener(type.toString(), this);
+        }
+        synchronized (publishLock) {
+            SvnEdgeHealthProber prober = this.healthProber;
+            if (prober != null) {
+                prober.untrackAll(type);
+            }
+            for (SvnEdgeServerInfo removed : registry.removeAll(type)) {
+                this.expirySweeper.untrack(removed);
+                this.observers.dispatch(removed);
+                for (SvnEdgeServersSubscription subscription : subscriptions) {
+                    subscription.offer(removed);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the service types currently observed by this client.
+     */
+    public Set<SvnEdgeServiceType> getSubscribedTypes() {
+        return Collections.unmodifiableSet(this.subscribedTypes);
+    }
+
+    /**
+     * Sets the resolver looking up the hostnames of the servers. By default,
+     * the resolver shared by all the clients is used.
+     * @param resolver is the hostname resolver.
+     */
+    public void setHostnameResolver(SvnEdgeHostnameResolver resolver) {
+        this.hostnameResolver = resolver;
+    }
+
+    /**
+     * Sets the damper of the servers that flap. By default, the events are
+     * reported as soon as they are captured. The registry and the listeners
+     * only see the damped events.
+     * @param damper is the flap damper, used by this client only, or
+     * <code>null</code> to disable the damping.
+     */
+    public synchronized void setFlapDamper(SvnEdgeFlapDamper damper) {
+        if (damper != null) {
+            damper.attach(new SvnEdgeFlapDamper.Sink() {
+                public void publish(SvnEdgeServerInfo serverInfo) {
+                    SvnEdgeBonjourClient.this.publish(serverInfo);
+                }
+            });
+        }
+        SvnEdgeFlapDamper previous = this.flapDamper;
+        this.flapDamper = damper;
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
+    /**
+     * Sets the on-disk cache of the servers. The servers of the cache are
+     * reported running right away, unverified, and their resolution is
+     * requested: they become verified when mDNS confirms them, or are
+     * reported stopped when the verification timeout of the cache expires.
+     * Add the listeners before setting the cache to receive the loaded
+     * servers, or catch up with the registry.
+     * @param cache is the servers cache, used by this client only.
+     */
+    public synchronized void setServersCache(SvnEdgeServersCache cache) {
+        SvnEdgeServersCache previous = this.serversCache;
+        this.serversCache = null;
+        if (previous != null) {
+            previous.close();
+        }
+        if (cache == null) {
+            return;
+        }
+        List<SvnEdgeServerInfo> loaded = cache.load(
+                new SvnEdgeServersCache.Sink() {
+            public void expired(SvnEdgeServerInfo serverInfo) {
+                expireUnverified(serverInfo);
+            }
+        });
+        List<SvnEdgeServerInfo> unverified = new ArrayList<SvnEdgeServerInfo>();
+        synchronized (publishLock) {
+            for (SvnEdgeServerInfo serverInfo : loaded) {
+                // the servers already announced are more recent.
+                if (subscribedTypes.contains(serverInfo.getServiceType()) &&
+                        registry.getServer(serverInfo.getServiceType(),
+                                serverInfo.getServiceName()) == null) {
+                    publish(serverInfo);
+                    unverified.add(serverInfo);
+                }
+            }
+            this.serversCache = cache;
+        }
+        for (SvnEdgeServerInfo serverInfo : unverified) {
+            this.resolutionScheduler.request(
+                    serverInfo.getServiceType().getType(),
+                    serverInfo.getServiceName());
+        }
+    }
+
+    /**
+     * Reports stopped the given server loaded from the cache, unless mDNS has
+     * confirmed it in the meantime.
+     * @param serverInfo is a server loaded from the cache.
+     */
+    private void expireUnverified(SvnEdgeServerInfo serverInfo) {
+        synchronized (publishLock) {
+            SvnEdgeServerInfo current = registry.getServer(
+                    serverInfo.getServiceType(), serverInfo.getServiceName());
+            if (current != null && !current.isVerified()) {
+                log.debug("The cached server was not confirmed " + current);
+                publish(current.withEvent(SvnEdgeServerEvent.SERVER_SHUTDOWN));
+            }
+        }
+    }
+
+    /**
+     * @param serverInfo is a server announced through mDNS.
+     * @return the SRV record of the given server in the jmDNS cache, or
+     * <code>null</code> if it is not cached or the cache cannot be inspected.
+     */
+    private DNSRecord getServiceRecord(SvnEdgeServerInfo serverInfo) {
+        JmDNS current = jmdns;
+        if (!(current instanceof JmDNSImpl)) {
+            return null;
+        }
+        try {
+            DNSEntry entry = ((JmDNSImpl) current).getCache().getDNSEntry(
+                    serverInfo.getServerKey(), DNSRecordType.TYPE_SRV,
+                    DNSRecordClass.CLASS_ANY);
+            return entry instanceof DNSRecord ? (DNSRecord) entry : null;
+
+        } catch (RuntimeException e) {
+            log.debug("Failed to inspect the jmDNS cache", e);
+            return null;
+        }
+    }
+
+    /**
+     * @param serverInfo is a server announced through mDNS.
+     * @return the state of the SRV record of the given server.
+     */
+    private SvnEdgeExpirySweeper.RecordState getRecordState(
+            SvnEdgeServerInfo serverInfo) {
+        if (!(jmdns instanceof JmDNSImpl)) {
+            return SvnEdgeExpirySweeper.RecordState.UNKNOWN;
+        }
+        DNSRecord record = getServiceRecord(serverInfo);
+        long now = System.currentTimeMillis();
+        if (record == null || record.isExpired(now)) {
+            return SvnEdgeExpirySweeper.RecordState.EXPIRED;
+        }
+        return record.isStale(now) ? SvnEdgeExpirySweeper.RecordState.STALE :
+            SvnEdgeExpirySweeper.RecordState.FRESH;
+    }
+
+    /**
+     * Reports stopped the given server whose records expired, unless it has
+     * been reported stopped in the meantime. Its next announcement is
+     * resolved again.
+     * @param serverInfo is a server tracked by the expiry sweeper.
+     */
+    private void expire(SvnEdgeServerInfo serverInfo) {
+        this.resolutionScheduler.removed(serverInfo.getServiceType().getType(),
+                serverInfo.getServiceName());
+        synchronized (publishLock) {
+            SvnEdgeServerInfo current = registry.getServer(
+                    serverInfo.getServiceType(), serverInfo.getServiceName());
+            if (current != null && current.isVerified()) {
+                publish(current.withEvent(SvnEdgeServerEvent.SERVER_SHUTDOWN));
+            }
+        }
+    }
+
+    /**
+     * @return the sweeper of the servers that leave the network without
+     * goodbye packets, providing its counters.
+     */
+    public SvnEdgeExpirySweeper getExpirySweeper() {
+        return this.expirySweeper;
+    }
+
+    /**
+     * Sets the prober of the web consoles of the servers. By default, the
+     * consoles are not probed. The servers currently running are probed
+     * right away.
+     * @param prober is the health prober, used by this client only, or
+     * <code>null</code> to stop probing.
+     */
+    public synchronized void setHealthProber(SvnEdgeHealthProber prober) {
+        SvnEdgeHealthProber previous = this.healthProber;
+        synchronized (publishLock) {
+            this.healthProber = prober;
+            if (prober != null) {
+                for (SvnEdgeServerInfo serverInfo :
+                        registry.getSnapshot().getServers()) {
+                    prober.track(serverInfo);
+                }
+            }
+        }
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
+    /**
+     * @return the prober of the web consoles of the servers, providing their
+     * health, or <code>null</code> if the consoles are not probed.
+     */
+    public SvnEdgeHealthProber getHealthProber() {
+        return this.healthProber;
+    }
+
+    /**
+     * @return the on-disk cache of the servers, or <code>null</code> if the
+     * servers are not kept between runs.
+     */
+    public SvnEdgeServersCache getServersCache() {
+        return this.serversCache;
+    }
+
+    /**
+     * @return the damper of the servers that flap, providing their damping
+     * state, or <code>null</code> if the damping is disabled.
+     */
+    public SvnEdgeFlapDamper getFlapDamper() {
+        return this.flapDamper;
+    }
+
+    /**
+     * @return the scheduler of the resolution queries, providing its
+     * counters.
+     */
+    public SvnEdgeResolutionScheduler getResolutionScheduler() {
+        return this.resolutionScheduler;
+    }
+
+    /**
+     * @return the registry of the servers currently running, as seen by this
+     * client. Listeners registered late catch up with
+     * {@link #addServersListener(SvnEdgeServiceType, SvnEdgeServersListener,
+     * boolean)}.
+     */
+    public SvnEdgeServersRegistry getRegistry() {
+        return this.registry;
     }
 
     /**
      * The stop method forces the client to completely stop the jmDNS service.
+     * The tasks still running get a chance to complete without holding the
+     * lock of the client, so that the listeners handing over their follow-ups
+     * meanwhile are rejected right away.
      * @throws IOException in case the close operation fails.
      */
     public void stop() throws IOException {
+        ExecutorService virtualTasks;
+        ExecutorService platformTasks;
+        SvnEdgeHostnameResolver resolver;
+        synchronized (this) {
+            virtualTasks = this.virtualTaskExecutor;
+            platformTasks = this.platformTaskExecutor;
+            resolver = this.virtualHostnameResolver;
+            shutdownServices();
+        }
+        // the tasks of this client end with it: the running ones get a
+        // chance to complete, then they are interrupted.
+        long deadline = System.currentTimeMillis() + STOP_TIMEOUT;
+        awaitTermination(virtualTasks, deadline);
+        awaitTermination(platformTasks, deadline);
+        if (resolver != null) {
+            resolver.shutdown();
+        }
+    }
+
+    /**
+     * Releases the jmDNS instance and shuts down the services and the
+     * executors of this client. Must be called holding the lock.
+     */
+    private void shutdownServices() throws IOException {
     	log.debug("Stopping the jmDSN client instance.");
         if (jmdns != null) {
-            jmdns.close();
+            // the jmDNS instance may still be used by the other clients and
+            // registers of the same interface.
+            for (SvnEdgeServiceType type : this.subscribedTypes) {
+                jmdns.removeServiceListener(type.toString(), this);
+            }
+            JmDNS released = jmdns;
             jmdns = null;
+            SvnEdgeMdnsEngines.release(released);
+        }
+        this.subscribedTypes.clear();
+        this.resolutionScheduler.shutdown();
+        this.expirySweeper.shutdown();
+        if (this.healthProber != null) {
+            this.healthProber.shutdown();
+        }
+        if (this.flapDamper != null) {
+            this.flapDamper.shutdown();
+        }
+        if (this.serversCache != null) {
+            this.serversCache.close();
+        }
+        this.observers.clear();
+        synchronized (publishLock) {
+            for (SvnEdgeServersSubscription subscription : subscriptions) {
+                subscription.complete();
+            }
+        }
+        dispatcher.shutdown();
+        if (this.virtualTaskExecutor != null) {
+            this.virtualTaskExecutor.shutdown();
+        }
+        if (this.platformTaskExecutor != null) {
+            this.platformTaskExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Waits for the tasks of the given executor, shut down, interrupting
+     * them in case they don't complete before the given deadline.
+     * @param executor is an executor of this client, or <code>null</code>.
+     * @param deadline is the time the tasks must complete by.
+     */
+    private static void awaitTermination(ExecutorService executor,
+            long deadline) {
+        if (executor == null) {
+            return;
+        }
+        try {
+            long timeout = Math.max(0, deadline - System.currentTimeMillis());
+            if (!executor.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+                log.warn("Interrupting the tasks still running after " +
+                        STOP_TIMEOUT + "ms");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Selects the threads running the listener callbacks, the hostname
+     * lookups and the submitted tasks. In the
+     * {@link SvnEdgeExecutionMode#VIRTUAL_THREADS} mode, each of them runs on
+     * its own virtual thread, replacing the event executor and the hostname
+     * resolver of this client, with at most
+     * {@value #VIRTUAL_LOOKUP_CONCURRENCY} lookups at the same time. The
+     * events captured afterwards take their hostnames from the cache of
+     * that resolver. Going back to the
+     * {@link SvnEdgeExecutionMode#PLATFORM_THREADS} mode restores the pool of
+     * the client and the shared resolver. The tasks already started complete
+     * on their threads, which are stopped by {@link #stop()}.
+     * @param mode is the execution mode.
+     */
+    public synchronized void setExecutionMode(SvnEdgeExecutionMode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("The execution mode must be " +
+                    "provided");
         }
+        if (mode == this.executionMode) {
+            return;
+        }
+        if (mode == SvnEdgeExecutionMode.VIRTUAL_THREADS) {
+            if (this.virtualTaskExecutor == null) {
+                if (!SvnEdgeVirtualThreads.isAvailable()) {
+                    log.info("Virtual threads are not available, using " +
+                            "a growing pool of daemon threads instead.");
+                }
+                this.virtualTaskExecutor = SvnEdgeVirtualThreads
+                        .newTaskExecutor(TASK_THREAD_NAME_PREFIX);
+                this.virtualHostnameResolver = new SvnEdgeHostnameResolver(
+                        SvnEdgeHostnameResolver.DEFAULT_TTL,
+                        SvnEdgeHostnameResolver.DEFAULT_NEGATIVE_TTL,
+                        SvnEdgeHostnameResolver.DEFAULT_TIMEOUT,
+                        SvnEdgeVirtualThreads.newTaskExecutor(
+                                "SvnEdge-Hostname-Resolver-"),
+                        VIRTUAL_LOOKUP_CONCURRENCY);
+            }
+            this.dispatcher.setExecutor(this.virtualTaskExecutor);
+            this.hostnameResolver = this.virtualHostnameResolver;
+
+        } else {
+            this.dispatcher.resetExecutor();
+            this.hostnameResolver = SvnEdgeHostnameResolver.getDefault();
+        }
+        this.executionMode = mode;
+    }
+
+    /**
+     * @return the threads running the listener callbacks, the hostname
+     * lookups and the submitted tasks.
+     */
+    public SvnEdgeExecutionMode getExecutionMode() {
+        return this.executionMode;
+    }
+
+    /**
+     * @return the type of the mDNS engine of this client.
+     */
+    public SvnEdgeMdnsEngineType getEngineType() {
+        return this.engineType;
+    }
+
+    /**
+     * @return the counters of the traffic of the NIO or unicast engine of
+     * this client, shared with the registers of its interface, or
+     * <code>null</code> if the client is stopped or uses jmDNS, whose
+     * traffic is not counted.
+     */
+    public SvnEdgeMdnsCounters getMdnsCounters() {
+        JmDNS current = jmdns;
+        if (current instanceof SvnEdgeUnicastDnsSd) {
+            return ((SvnEdgeUnicastDnsSd) current).getCounters();
+        }
+        return current instanceof SvnEdgeNioMdns ?
+                ((SvnEdgeNioMdns) current).getCounters() : null;
+    }
+
+    /**
+     * @return whether the JVM runs the
+     * {@link SvnEdgeExecutionMode#VIRTUAL_THREADS} mode on virtual threads.
+     */
+    public static boolean isVirtualThreadsAvailable() {
+        return SvnEdgeVirtualThreads.isAvailable();
+    }
+
+    /**
+     * Runs the given task in the threads of the current execution mode, so
+     * that listeners can hand over the blocking follow-ups of the events,
+     * such as fetching the console of a server, without delaying the other
+     * events. The tasks still running when this client stops are
+     * interrupted.
+     * @param task is the task to be run.
+     * @return the future result of the task.
+     * @throws RejectedExecutionException in case this client has been
+     * stopped.
+     */
+    public synchronized <T> Future<T> submitTask(Callable<T> task) {
+        if (this.jmdns == null) {
+            throw new RejectedExecutionException("The client has been " +
+                    "stopped");
+        }
+        if (this.executionMode == SvnEdgeExecutionMode.VIRTUAL_THREADS) {
+            return this.virtualTaskExecutor.submit(task);
+        }
+        if (this.platformTaskExecutor == null) {
+            this.platformTaskExecutor = SvnEdgeVirtualThreads
+                    .newPlatformTaskExecutor(TASK_THREAD_NAME_PREFIX);
+        }
+        return this.platformTaskExecutor.submit(task);
     }
 
     /**
-     * Adds a new observer/listener to the service.
+     * Sets the executor used to deliver the events to the observers. By
+     * default, the events are delivered by a pool of daemon threads owned by
+     * this client. Events of the same server are always delivered in order.
+     * 
+     * @param executor is the executor that runs the observers. It is not
+     * shut down when this client stops. It is replaced when the
+     * {@link SvnEdgeExecutionMode} changes.
+     */
+    public void setEventExecutor(Executor executor) {
+        this.dispatcher.setExecutor(executor);
+    }
+
+    /**
+     * Adds a new observer/listener to the service. The observer receives the
+     * events through a queue of {@link SvnEdgeListenerQueue#DEFAULT_CAPACITY}
+     * events, keeping the latest event of each server when the observer
+     * falls behind. See {@link SvnEdgeOverflowPolicy} for the other policies.
      * 
      * @param newLis is new observer interested in the events of any Subversion
      * Edge server in the local network.
      */
-    public synchronized void addServersListener(SvnEdgeServersListener newLis) {
-        this.observers.add(newLis);
+    public void addServersListener(SvnEdgeServersListener newLis) {
+        addServersListener(null, newLis, SvnEdgeListenerQueue.DEFAULT_CAPACITY,
+                SvnEdgeOverflowPolicy.COALESCE_LATEST);
+    }
+
+    /**
+     * Adds a new observer/listener to the service, only receiving the events
+     * of the servers of the given service type, with the default queue. See
+     * {@link #addServersListener(SvnEdgeServersListener)}.
+     * 
+     * @param type is the service type of the events, or <code>null</code> for
+     * the events of all the subscribed service types.
+     * @param newLis is new observer interested in the events of the Subversion
+     * Edge servers of the given type in the local network.
+     */
+    public void addServersListener(SvnEdgeServiceType type,
+            SvnEdgeServersListener newLis) {
+        addServersListener(type, newLis, SvnEdgeListenerQueue.DEFAULT_CAPACITY,
+                SvnEdgeOverflowPolicy.COALESCE_LATEST);
+    }
+
+    /**
+     * Adds a new observer/listener to the service, only receiving the events
+     * of the servers of the given service type, and first the servers
+     * already running if replayed. The replay and the registration are
+     * atomic: the listener receives each running server before any later
+     * event of it, so that a late listener never shows a stopped server.
+     * The queue of the listener has room for all the servers replayed, and
+     * keeps the latest event of each server when the listener falls behind.
+     * 
+     * @param type is the service type of the events, or <code>null</code> for
+     * the events of all the subscribed service types.
+     * @param newLis is new observer interested in the events of the Subversion
+     * Edge servers of the given type in the local network.
+     * @param replay whether the servers already running are delivered first,
+     * as {@link SvnEdgeServerEvent#SERVER_RUNNING} events.
+     */
+    public void addServersListener(SvnEdgeServiceType type,
+            SvnEdgeServersListener newLis, boolean replay) {
+        synchronized (publishLock) {
+            SvnEdgeListenerQueue queue = this.observers.add(newLis, type,
+                    Math.max(SvnEdgeListenerQueue.DEFAULT_CAPACITY,
+                            registry.size()),
+                    SvnEdgeOverflowPolicy.COALESCE_LATEST, false);
+            if (replay) {
+                // the changes are dispatched holding the same lock.
+                for (SvnEdgeServerInfo serverInfo :
+                        registry.getSnapshot().getServers()) {
+                    if (queue.accepts(serverInfo)) {
+                        queue.offer(serverInfo);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a new observer/listener to the service, receiving the events
+     * through its own bounded queue.
+     * 
+     * @param newLis is new observer interested in the events of any Subversion
+     * Edge server in the local network.
+     * @param capacity is the maximum number of events pending delivery to the
+     * observer.
+     * @param policy is what happens to the new events when the queue is full.
+     * @return the queue of the observer, providing its counters.
+     */
+    public SvnEdgeListenerQueue addServersListener(
+            SvnEdgeServersListener newLis, int capacity,
+            SvnEdgeOverflowPolicy policy) {
+        return addServersListener(null, newLis, capacity, policy);
+    }
+
+    /**
+     * Adds a new observer/listener to the service, only receiving the events
+     * of the servers of the given service type through its own bounded queue.
+     * 
+     * @param type is the service type of the events, or <code>null</code> for
+     * the events of all the subscribed service types.
+     * @param newLis is new observer interested in the events of the Subversion
+     * Edge servers of the given type in the local network.
+     * @param capacity is the maximum number of events pending delivery to the
+     * observer.
+     * @param policy is what happens to the new events when the queue is full.
+     * @return the queue of the observer, providing its counters.
+     */
+    public SvnEdgeListenerQueue addServersListener(
+            SvnEdgeServiceType type, SvnEdgeServersListener newLis,
+            int capacity, SvnEdgeOverflowPolicy policy) {
+        return this.observers.add(newLis, type, capacity, policy, false);
+    }
+
+    /**
+     * Adds a new observer/listener to the service that is only weakly
+     * referenced by this client: once the observer is no longer used by the
+     * application and garbage collected, it is removed without calling
+     * {@link #removeServersListener(SvnEdgeServersListener)}. The caller
+     * must keep a reference to the observer, such as a view listening while
+     * it is shown.
+     * 
+     * @param newLis is new observer interested in the events of any Subversion
+     * Edge server in the local network.
+     */
+    public void addWeakServersListener(SvnEdgeServersListener newLis) {
+        addWeakServersListener(null, newLis,
+                SvnEdgeListenerQueue.DEFAULT_CAPACITY,
+                SvnEdgeOverflowPolicy.COALESCE_LATEST);
+    }
+
+    /**
+     * Adds a new weakly-referenced observer/listener to the service, only
+     * receiving the events of the servers of the given service type through
+     * its own bounded queue.
+     * 
+     * @param type is the service type of the events, or <code>null</code> for
+     * the events of all the subscribed service types.
+     * @param newLis is new observer interested in the events of the Subversion
+     * Edge servers of the given type in the local network.
+     * @param capacity is the maximum number of events pending delivery to the
+     * observer.
+     * @param policy is what happens to the new events when the queue is full.
+     * @return the queue of the observer, providing its counters.
+     * @see #addWeakServersListener(SvnEdgeServersListener)
+     */
+    public SvnEdgeListenerQueue addWeakServersListener(
+            SvnEdgeServiceType type, SvnEdgeServersListener newLis,
+            int capacity, SvnEdgeOverflowPolicy policy) {
+        return this.observers.add(newLis, type, capacity, policy, true);
+    }
+
+    /**
+     * Removes all the registrations of the given observer/listener. The
+     * events pending delivery to it are discarded, although a delivery
+     * already running completes.
+     * 
+     * @param oldLis is a registered observer.
+     * @return whether the observer was registered.
+     */
+    public boolean removeServersListener(SvnEdgeServersListener oldLis) {
+        return this.observers.remove(oldLis);
+    }
+
+    /**
+     * @return the number of observers currently registered, including the
+     * weakly-referenced ones not removed yet.
+     */
+    public int getServersListenerCount() {
+        this.observers.expunge();
+        return this.observers.size();
+    }
+
+    /**
+     * @return the publisher of the events of the servers of all the
+     * subscribed service types, replaying the running servers on subscribe.
+     * Its operators select and conflate the events before they are
+     * delivered.
+     */
+    public SvnEdgeServersPublisher getServersPublisher() {
+        return new SvnEdgeServersPublisher(this, null);
+    }
+
+    /**
+     * @param type is the service type of the events.
+     * @return the publisher of the events of the servers of the given
+     * service type, replaying the running servers on subscribe.
+     */
+    public SvnEdgeServersPublisher getServersPublisher(
+            SvnEdgeServiceType type) {
+        return new SvnEdgeServersPublisher(this, type);
+    }
+
+    /**
+     * Starts delivering the changes of the registry to the given
+     * subscription, after the running servers if replayed. The subscription
+     * is completed right away if the client has been stopped.
+     * @param subscription is a new subscription.
+     * @param replay whether the running servers are delivered first.
+     */
+    void attach(SvnEdgeServersSubscription subscription, boolean replay) {
+        synchronized (publishLock) {
+            if (jmdns == null) {
+                subscription.complete();
+                return;
+            }
+            if (replay) {
+                for (SvnEdgeServerInfo serverInfo :
+                        registry.getSnapshot().getServers()) {
+                    subscription.replay(serverInfo);
+                }
+            }
+            subscriptions.add(subscription);
+        }
+    }
+
+    /**
+     * Stops delivering the changes to the given subscription.
+     * @param subscription is a cancelled or completed subscription.
+     */
+    void detach(SvnEdgeServersSubscription subscription) {
+        subscriptions.remove(subscription);
+    }
+
+    /**
+     * Runs the given delivery in the event executor of this client.
+     * @param delivery is the delivery of the events of a subscription.
+     */
+    void execute(Runnable delivery) {
+        dispatcher.execute(delivery);
     }
 
     /**
@@ -232,47 +1269,152 @@ public class SvnEdgeBonjourClient implements ServiceListener {
         log.debug(builder.toString());
     }
 
+    /**
+     * @param event is an event captured by jmDNS.
+     * @return whether the service type of the event is still subscribed, as
+     * jmDNS may deliver events while a type is being unsubscribed.
+     */
+    private boolean isSubscribed(ServiceEvent event) {
+        SvnEdgeServiceType type = SvnEdgeServiceType.retrieveByType(
+                event.getType());
+        return type != null && this.subscribedTypes.contains(type);
+    }
+
     /* (non-Javadoc)
      * @see javax.jmdns.ServiceListener#serviceAdded(javax.jmdns.ServiceEvent)
      */
     public void serviceAdded(ServiceEvent addedEvent) {
-        synchronized (this) {
-            // when any bonjour client is added to the jmDNS client. Do nothing.
-            debug("SvnEdge Server in cache running...", addedEvent.getInfo());
-            // update the client cache
-            final boolean persistent = false;
-            this.jmdns.getServiceInfo(addedEvent.getInfo().getTypeWithSubtype(),
-                    addedEvent.getInfo().getName(), persistent);
+        if (!isSubscribed(addedEvent)) {
+            return;
         }
+        // when any bonjour client is added to the jmDNS client, its
+        // resolution is scheduled, unless it is already being resolved.
+        debug("SvnEdge Server in cache running...", addedEvent.getInfo());
+        this.resolutionScheduler.request(
+                addedEvent.getInfo().getTypeWithSubtype(),
+                addedEvent.getInfo().getName());
     }
 
     /* (non-Javadoc)
      * @see javax.jmdns.ServiceListener#serviceRemoved(javax.jmdns.ServiceEvent)
      */
     public void serviceRemoved(ServiceEvent removedEvent) {
-        synchronized (this) {
-            debug("SvnEdge Server stopped...", removedEvent.getInfo());
-            SvnEdgeServerInfo serverInfo = SvnEdgeServerInfo.makeNew(
-                    removedEvent.getInfo(), SvnEdgeServerEvent.SERVER_SHUTDOWN);
-               log.debug("Informing " + this.observers.size() + " observer(s)");
-               for (SvnEdgeServersListener observer : this.observers) {
-                   observer.csvnServerStopped(serverInfo);
-               }
+        if (!isSubscribed(removedEvent)) {
+            return;
         }
+        debug("SvnEdge Server stopped...", removedEvent.getInfo());
+        this.resolutionScheduler.removed(
+                removedEvent.getInfo().getTypeWithSubtype(),
+                removedEvent.getInfo().getName());
+        SvnEdgeServerInfo serverInfo = SvnEdgeServerInfo.makeNew(
+                removedEvent.getInfo(), SvnEdgeServerEvent.SERVER_SHUTDOWN,
+                this.hostnameResolver);
+        submit(serverInfo);
     }
 
     /* (non-Javadoc)
      * @see javax.jmdns.ServiceListener#serviceResolved(javax.jmdns.ServiceEvent)
      */
     public void serviceResolved(ServiceEvent resolvedEvent) {
-        synchronized(this) {
-            debug("SvnEdge Server running...", resolvedEvent.getInfo());
-            SvnEdgeServerInfo serverInfo = SvnEdgeServerInfo.makeNew(
-                    resolvedEvent.getInfo(), SvnEdgeServerEvent.SERVER_RUNNING);
+        if (!isSubscribed(resolvedEvent)) {
+            return;
+        }
+        debug("SvnEdge Server running...", resolvedEvent.getInfo());
+        this.resolutionScheduler.resolved(
+                resolvedEvent.getInfo().getTypeWithSubtype(),
+                resolvedEvent.getInfo().getName());
+        SvnEdgeServerInfo serverInfo = SvnEdgeServerInfo.makeNew(
+                resolvedEvent.getInfo(), SvnEdgeServerEvent.SERVER_RUNNING,
+                this.hostnameResolver);
+        submit(serverInfo);
+        if (!serverInfo.isHostnameResolved()) {
+            resolveHostname(serverInfo);
+        }
+    }
 
-            log.debug("Informing " + this.observers.size() + " observer(s)...");
-            for (SvnEdgeServersListener observer : this.observers) {
-                observer.csvnServerIsRunning(serverInfo);
+    /**
+     * Looks up the hostname of the given server in the background. Once the
+     * lookup completes, the server is published again with the url using its
+     * hostname, in case it is still running at the same address.
+     * @param serverInfo is a server whose url uses its IP address.
+     */
+    private void resolveHostname(final SvnEdgeServerInfo serverInfo) {
+        this.hostnameResolver.resolve(serverInfo.getInetAddress(),
+                new SvnEdgeHostnameResolver.Callback() {
+            public void hostnameResolved(InetAddress address, String hostname) {
+                if (hostname == null) {
+                    return;
+                }
+                observers.awaitCapacity();
+                synchronized (publishLock) {
+                    SvnEdgeServerInfo current = registry.getServer(
+                            serverInfo.getServiceType(),
+                            serverInfo.getServiceName());
+                    if (current != null && !current.isHostnameResolved() &&
+                            address.equals(current.getInetAddress())) {
+                        publish(current.withDomainName(hostname));
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Submits the given event captured by jmDNS to the flap damper, if any,
+     * or publishes it right away.
+     * @param serverInfo is the event of a server.
+     */
+    private void submit(SvnEdgeServerInfo serverInfo) {
+        // before the locks of the client and of the damper.
+        this.observers.awaitCapacity();
+        SvnEdgeFlapDamper damper = this.flapDamper;
+        if (damper != null) {
+            damper.submit(serverInfo);
+        } else {
+            publish(serverInfo);
+        }
+    }
+
+    /**
+     * Applies the given event to the registry and, in case the registry
+     * changes, dispatches the change to the observers. Never waits for the
+     * observers: the threads of mDNS wait for room in the
+     * {@link SvnEdgeOverflowPolicy#BLOCK} queues beforehand, and the full
+     * ones reject the change.
+     * @param serverInfo is the event of a server.
+     */
+    private void publish(SvnEdgeServerInfo serverInfo) {
+        synchronized (publishLock) {
+            SvnEdgeServerInfo change = this.registry.apply(serverInfo);
+            if (change == null) {
+                log.debug("Ignoring the event without changes " + serverInfo);
+                return;
+            }
+            SvnEdgeServersCache cache = this.serversCache;
+            if (cache != null) {
+                cache.record(change);
+            }
+            SvnEdgeHealthProber prober = this.healthProber;
+            if (change.getEvent() == SvnEdgeServerEvent.SERVER_SHUTDOWN) {
+                this.expirySweeper.untrack(change);
+                if (prober != null) {
+                    prober.untrack(change);
+                }
+            } else {
+                if (change.isVerified()) {
+                    this.expirySweeper.track(change);
+                }
+                if (prober != null) {
+                    prober.track(change);
+                }
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Informing " + this.observers.size() +
+                        " observer(s)...");
+            }
+            this.observers.dispatch(change);
+            for (SvnEdgeServersSubscription subscription : subscriptions) {
+                subscription.offer(change);
             }
         }
     }
@@ -342,11 +1484,13 @@ public class SvnEdgeBonjourClient implements ServiceListener {
 
         String selected = null;
         SvnEdgeServiceType selectedType = null;
+        boolean allTypes = false;
         do {
             for (Integer index : services.keySet()) {
                 System.out.println("%% [" + (index) + "]: " +
                                    services.get(index));
             }
+            System.out.println("%% [A]: ALL ");
             System.out.print("Which service you wanna observe? ");
             InputStreamReader converter = new InputStreamReader(System.in);
             BufferedReader input = new BufferedReader(converter);
@@ -355,6 +1499,11 @@ public class SvnEdgeBonjourClient implements ServiceListener {
                 System.out.println("Thanks for using the SvnEdge API Client");
                 System.exit(0);
             }
+            if (selected.equalsIgnoreCase("a")) {
+                allTypes = true;
+                selectedType = services.get(1);
+                break;
+            }
             try {
                 int indexSelected = Integer.parseInt(selected);
                 if (indexSelected > i || indexSelected < 1) {
@@ -373,20 +1522,41 @@ public class SvnEdgeBonjourClient implements ServiceListener {
         // creating the client with the selected service type.
         SvnEdgeBonjourClient client = SvnEdgeBonjourClient.makeInstance(
                 selectedIp, selectedType);
+        if (allTypes) {
+            // the other service types share the same jmDNS instance.
+            for (SvnEdgeServiceType serviceType : services.values()) {
+                client.subscribe(serviceType);
+            }
+        }
 
         final BlockingQueue<SvnEdgeServerInfo> receivedEvents = 
-            new LinkedBlockingQueue<SvnEdgeServerInfo>();
+            new ArrayBlockingQueue<SvnEdgeServerInfo>(16);
 
-        // adding an observer for the selected service type.
-        client.addServersListener(new SvnEdgeServersListener() {
+        // adding an observer for the selected service type. The observer
+        // blocks while the console is behind, and the client keeps only the
+        // latest state of each server in the meantime.
+        client.addServersListener(new SvnEdgeServerUpdatesListener() {
             public void csvnServerStopped(SvnEdgeServerInfo serverInfo) {
-                receivedEvents.offer(serverInfo);
+                enqueue(serverInfo);
             }
 
             public void csvnServerIsRunning(SvnEdgeServerInfo serverInfo) {
-                receivedEvents.offer(serverInfo);
+                enqueue(serverInfo);
             }
-        });
+
+            public void csvnServerUpdated(SvnEdgeServerInfo serverInfo) {
+                enqueue(serverInfo);
+            }
+
+            private void enqueue(SvnEdgeServerInfo serverInfo) {
+                try {
+                    receivedEvents.put(serverInfo);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, SvnEdgeListenerQueue.DEFAULT_CAPACITY,
+                SvnEdgeOverflowPolicy.COALESCE_LATEST);
 
         // just wait for the packets
         while (true) {
@@ -404,6 +1574,11 @@ public class SvnEdgeBonjourClient implements ServiceListener {
                     System.out.println("#### Server stopped ####");
                     System.out.println(svnedgeServerInfo);
                     break;
+                case SERVER_UPDATED:
+                    System.out.println("#### Server updated " +
+                            svnedgeServerInfo.getChangedFields() + " ####");
+                    System.out.println(svnedgeServerInfo);
+                    break;
                 }
 
             } catch (InterruptedException packetWasReceived) {
@@ -24,11 +24,14 @@ import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.jmdns.JmDNS;
 import javax.jmdns.ServiceInfo;
@@ -59,19 +62,33 @@ public final class SvnEdgeBonjourRegister {
      */
     private JmDNS jmdns;
     /**
-     * The jmDNS service info acquired during the registration. This is needed
-     * to be used to handle the unregistration process.
+     * The jmDNS service infos acquired during the registrations, indexed by
+     * service name and service type. This is needed to be used to handle the
+     * unregistration process.
      */
-    private ServiceInfo serverRegistrationInfo;
+    private final Map<String, ServiceInfo> registeredServices =
+            new ConcurrentHashMap<String, ServiceInfo>();
+    /**
+     * The time spent in each phase of the startup of this instance.
+     */
+    private final SvnEdgeStartupTimings startupTimings;
 
     /**
      * Singleton Constructor.
      * @throws IOException 
      */
-    private SvnEdgeBonjourRegister(InetAddress ipAddress) throws IOException {
+    private SvnEdgeBonjourRegister(InetAddress ipAddress,
+            SvnEdgeMdnsEngineType engineType, SvnEdgeWideAreaDomain domain,
+            SvnEdgeStartupTimings timings) throws IOException {
         log.debug("Registering the SvnEdge server at " + 
                 ipAddress.getHostAddress());
-        this.jmdns = JmDNS.create(ipAddress);
+        this.startupTimings = timings;
+        // the registers and the clients of the same interface share the
+        // mDNS engine.
+        this.jmdns = SvnEdgeMdnsEngines.acquire(engineType, ipAddress, null,
+                domain);
+        timings.record(SvnEdgeStartupPhase.JMDNS);
+        log.debug("Register started: " + timings);
     }
 
     /**
@@ -82,7 +99,119 @@ public final class SvnEdgeBonjourRegister {
      */
     public static SvnEdgeBonjourRegister getInstance(InetAddress ipAddress) 
             throws IOException {
-        return new SvnEdgeBonjourRegister(ipAddress);
+        return getInstance(ipAddress, SvnEdgeMdnsEngineType.JMDNS);
+    }
+
+    /**
+     * @param ipAddress is the given ipAddress with to publish the services.
+     * @param engineType is the type of the mDNS engine publishing them.
+     * @return the instance publishing services with the given engine.
+     * @throws IOException in case the engine can't be started.
+     */
+    public static SvnEdgeBonjourRegister getInstance(InetAddress ipAddress,
+            SvnEdgeMdnsEngineType engineType) throws IOException {
+        return new SvnEdgeBonjourRegister(ipAddress, engineType, null,
+                new SvnEdgeStartupTimings());
+    }
+
+    /**
+     * @param ipAddress is the given ipAddress with to publish the services.
+     * @param domain is the wide-area domain where the services are published
+     * with dynamic updates to its DNS server.
+     * @return the instance publishing services in the given domain.
+     * @throws IOException in case the engine can't be started.
+     */
+    public static SvnEdgeBonjourRegister getInstance(InetAddress ipAddress,
+            SvnEdgeWideAreaDomain domain) throws IOException {
+        return new SvnEdgeBonjourRegister(ipAddress,
+                SvnEdgeMdnsEngineType.UNICAST, domain,
+                new SvnEdgeStartupTimings());
+    }
+
+    /**
+     * Creates the instance publishing services in the background, so that
+     * the caller is not blocked while the jmDNS instance comes up.
+     * @param ipAddress is the given ipAddress with to publish the jmDNS
+     * services.
+     * @return the future instance, completed exceptionally with the
+     * IOException of the startup.
+     */
+    public static CompletableFuture<SvnEdgeBonjourRegister> getInstanceAsync(
+            InetAddress ipAddress) {
+        return getInstanceAsync(ipAddress, SvnEdgeMdnsEngineType.JMDNS);
+    }
+
+    /**
+     * Creates the instance publishing services with the given engine in the
+     * background.
+     * @param ipAddress is the given ipAddress with to publish the services.
+     * @param engineType is the type of the mDNS engine publishing them.
+     * @return the future instance, completed exceptionally with the
+     * IOException of the startup.
+     */
+    public static CompletableFuture<SvnEdgeBonjourRegister> getInstanceAsync(
+            InetAddress ipAddress, SvnEdgeMdnsEngineType engineType) {
+        return getInstanceAsync(ipAddress, engineType, null);
+    }
+
+    /**
+     * Creates the instance publishing services in the given wide-area domain
+     * in the background.
+     * @param ipAddress is the given ipAddress with to publish the services.
+     * @param domain is the wide-area domain where the services are published
+     * with dynamic updates to its DNS server.
+     * @return the future instance, completed exceptionally with the
+     * IOException of the startup.
+     */
+    public static CompletableFuture<SvnEdgeBonjourRegister> getInstanceAsync(
+            InetAddress ipAddress, SvnEdgeWideAreaDomain domain) {
+        return getInstanceAsync(ipAddress, SvnEdgeMdnsEngineType.UNICAST,
+                domain);
+    }
+
+    private static CompletableFuture<SvnEdgeBonjourRegister> getInstanceAsync(
+            final InetAddress ipAddress,
+            final SvnEdgeMdnsEngineType engineType,
+            final SvnEdgeWideAreaDomain domain) {
+        return SvnEdgeStartup.startAsync(
+                new SvnEdgeStartup.Task<SvnEdgeBonjourRegister>() {
+            public SvnEdgeBonjourRegister start(SvnEdgeStartupTimings timings)
+                    throws IOException {
+                return new SvnEdgeBonjourRegister(ipAddress, engineType,
+                        domain, timings);
+            }
+        });
+    }
+
+    /**
+     * Creates one instance for each of the given ip addresses in parallel,
+     * in the background, to publish the services on several interfaces.
+     * @param ipAddresses are the ip addresses of the interfaces.
+     * @return the future instances, in the order of the given addresses. In
+     * case any of them fails to start, the others are closed and the future
+     * is completed exceptionally with the failure.
+     */
+    public static CompletableFuture<List<SvnEdgeBonjourRegister>>
+            getInstancesAsync(List<InetAddress> ipAddresses) {
+        List<CompletableFuture<SvnEdgeBonjourRegister>> futures =
+            new ArrayList<CompletableFuture<SvnEdgeBonjourRegister>>();
+        for (InetAddress ipAddress : ipAddresses) {
+            futures.add(getInstanceAsync(ipAddress));
+        }
+        return SvnEdgeStartup.allOf(futures,
+                new SvnEdgeStartup.Closer<SvnEdgeBonjourRegister>() {
+            public void close(SvnEdgeBonjourRegister register)
+                    throws IOException {
+                register.close();
+            }
+        });
+    }
+
+    /**
+     * @return the time spent in each phase of the startup of this instance.
+     */
+    public SvnEdgeStartupTimings getStartupTimings() {
+        return this.startupTimings;
     }
 
     /**
@@ -92,9 +221,7 @@ public final class SvnEdgeBonjourRegister {
      * with the given number of parameters.
      * Once the method returns, jmDNS will be broadcasting multicast packets
      * with the service described above.
-     * @param ipAddress is the ipAddress selected.
      * @param port is the given port number of the service.
-     * @param serviceName is the name of the service.
      * @param type is the service type.
      * @param params is the map of keys and values for the service.
      * @throws IllegalArgumentException in case the given params do not contain
@@ -107,27 +234,74 @@ public final class SvnEdgeBonjourRegister {
                 Map<SvnEdgeServiceKey, String> params) throws 
                         IllegalArgumentException, IOException {
 
+        registerService(SERVICE_NAME, port, type, params);
+    }
+
+    /**
+     * Non-blocking method call to publish the given service type with the
+     * given service name, so that the same instance can publish several
+     * servers, as the simulated servers of the load generator of the tests.
+     * @param serviceName is the name of the service.
+     * @param port is the given port number of the service.
+     * @param type is the service type.
+     * @param params is the map of keys and values for the service.
+     * @throws IllegalArgumentException in case the given params do not contain
+     * a required key for the given service type.
+     * @throws IOException in case any failure to start the service occurs
+     * with the jmDSN service.
+     */
+    public void registerService(String serviceName, int port,
+                SvnEdgeServiceType type, Map<SvnEdgeServiceKey, String> params)
+                        throws IllegalArgumentException, IOException {
+
         Map<String, String> serviceParams = getValidParams(type, params);
 
         final String serviceType = type.toString();
+        ServiceInfo registrationInfo = null;
 
         log.debug("Registering service type " + type);
         if (type.equals(SvnEdgeServiceType.CSVN)) {
             // register _csvn._tcp.local, with priority = weight = 0
-            serverRegistrationInfo = ServiceInfo.create(serviceType, SERVICE_NAME,
+            registrationInfo = ServiceInfo.create(serviceType, serviceName,
                     port, 0, 0, serviceParams);
 
         } else if (type.equals(SvnEdgeServiceType.HTTP)) {
             //register _http._tcp.local
             String serviceVal = SvnEdgeHttpServiceKey.PATH.toString() + "=" + 
                 serviceParams.get(SvnEdgeHttpServiceKey.PATH.toString());
-            serverRegistrationInfo = ServiceInfo.create(serviceType, SERVICE_NAME, 
+            registrationInfo = ServiceInfo.create(serviceType, serviceName,
                     port, serviceVal);
         }
+        registeredServices.put(serviceName + "." + serviceType,
+                registrationInfo);
 
         //register _csvn._tcp.local
-        jmdns.registerService(serverRegistrationInfo);
-        log.debug("Registered the server: " + serverRegistrationInfo);
+        jmdns.registerService(registrationInfo);
+        log.debug("Registered the server: " + registrationInfo);
+    }
+
+    /**
+     * Unregisters the given service published by this instance. Goodbye
+     * packets are sent for the service.
+     * @param serviceName is the name of the service.
+     * @param type is the service type.
+     * @return <code>false</code> if the service was not registered by this
+     * instance.
+     */
+    public boolean unregisterService(String serviceName,
+            SvnEdgeServiceType type) {
+        ServiceInfo registrationInfo = registeredServices.remove(serviceName +
+                "." + type.toString());
+        if (registrationInfo == null) {
+            return false;
+        }
+        log.debug("Unregistering the server: " + registrationInfo);
+        jmdns.unregisterService(registrationInfo);
+        if (SvnEdgeMdnsEngines.getReferenceCount(jmdns) > 1) {
+            SvnEdgeMdnsEngines.removeGoodbyes(jmdns,
+                    Collections.singletonList(registrationInfo));
+        }
+        return true;
     }
 
     /**
@@ -137,7 +311,7 @@ public final class SvnEdgeBonjourRegister {
      * @throws IllegalArgumentException in case at least one required key
      * for the given service type is not provided.
      */
-    private Map<String, String> getValidParams(SvnEdgeServiceType type,
+    static Map<String, String> getValidParams(SvnEdgeServiceType type,
                            Map<SvnEdgeServiceKey, String> params) 
         throws IllegalArgumentException {
 
@@ -155,7 +329,9 @@ public final class SvnEdgeBonjourRegister {
     }
 
     /**
-     * Closing the connection with the mDNS service.
+     * Closing the connection with the mDNS service. The jmDNS instance is
+     * only closed once the other registers and clients of the same interface
+     * are done with it.
      * @throws IOException in case the close operation fails.
      * 
      * @see javax.jmdns.JmDNS#close()
@@ -163,19 +339,31 @@ public final class SvnEdgeBonjourRegister {
     public void close() throws IOException {
         log.debug("Unregistering this server...");
         if (jmdns != null) {
-            jmdns.unregisterService(serverRegistrationInfo);
-            jmdns.close();
+            unregisterServices();
+            JmDNS released = jmdns;
             jmdns = null;
+            SvnEdgeMdnsEngines.release(released);
         }
     }
 
     /**
-     * Unregister all the services CSVN and HTTP
+     * Unregister all the services CSVN and HTTP published by this instance.
+     * Only the services of this instance are cancelled: a register sharing
+     * the jmDNS instance may acquire it and register its services at any
+     * time.
      * 
-     * @see javax.jmdns.JmDNS#unregisterAllServices()
+     * @see javax.jmdns.JmDNS#unregisterService(ServiceInfo)
      */
     public void unregisterServices() {
-        jmdns.unregisterAllServices();
+        List<ServiceInfo> services = new ArrayList<ServiceInfo>(
+                registeredServices.values());
+        registeredServices.clear();
+        for (ServiceInfo registrationInfo : services) {
+            jmdns.unregisterService(registrationInfo);
+        }
+        if (SvnEdgeMdnsEngines.getReferenceCount(jmdns) > 1) {
+            SvnEdgeMdnsEngines.removeGoodbyes(jmdns, services);
+        }
     }
 
     public static void main(String[] args) throws IOException {
@@ -0,0 +1,828 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceType;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The SvnEdge Discovery Gateway serves the {@link SvnEdgeServersRegistry} of
+ * a single {@link SvnEdgeBonjourClient} as JSON over HTTP, so that many
+ * lightweight web clients share one discovery engine instead of each
+ * opening its own multicast socket:
+ * <ul>
+ * <li><code>GET /servers[?type=csvn]</code> returns the version of the
+ * registry and its running servers, with the version as a weak ETag. A
+ * request whose If-None-Match has the current ETag is answered with 304 Not
+ * Modified.</li>
+ * <li><code>GET /changes?since=N[&amp;type=csvn]</code> returns the
+ * {@link SvnEdgeServersDelta} since the version N.</li>
+ * <li>With <code>wait=SECS</code>, the requests of clients already up to
+ * date, given by <code>after=N</code> or the If-None-Match of
+ * <code>/servers</code> and by <code>since=N</code> of
+ * <code>/changes</code>, are held until the version of the registry is
+ * greater than N, or for at most the given time.</li>
+ * <li><code>GET /events[?type=csvn]</code> streams the changes as
+ * Server-Sent Events, resumed from the Last-Event-ID of a reconnecting
+ * browser. See {@link SvnEdgeServersEventStreams}.</li>
+ * </ul>
+ * The responses are compressed with gzip when the clients accept it. The
+ * body of <code>/servers</code> is rendered once per version, and the held
+ * requests wait without a thread, so that thousands of clients polling for
+ * the next version cost a single list of pending exchanges. The held
+ * requests are answered by their own pool of threads, apart from the
+ * threads of the new requests, so that a wave of answers after a change
+ * never delays a plain <code>/servers</code>. Each event stream is written
+ * by its own virtual thread, when the JVM has them, so that a slow stream
+ * only holds back itself.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public final class SvnEdgeDiscoveryGateway {
+
+    private static final Logger log = Logger.getLogger(
+            SvnEdgeDiscoveryGateway.class);
+    /**
+     * The default port of the gateway.
+     */
+    public static final int DEFAULT_PORT = 8765;
+    /**
+     * The longest time a request is held, in seconds.
+     */
+    public static final int MAX_WAIT = 60;
+    /**
+     * The default maximum number of requests held at once, and of event
+     * streams open at once. The requests beyond it are answered with 503
+     * Service Unavailable.
+     */
+    public static final int DEFAULT_MAX_WAITING = 10000;
+    /**
+     * The smallest body compressed.
+     */
+    private static final int GZIP_THRESHOLD = 512;
+    /**
+     * The number of threads handling the new requests.
+     */
+    private static final int THREADS = 4;
+    /**
+     * The number of threads answering the held requests, so that a burst of
+     * them never delays the new requests.
+     */
+    private static final int ANSWER_THREADS = 4;
+    private static final String ALL_TYPES = "*";
+    private static final String JSON = "application/json; charset=UTF-8";
+
+    /**
+     * A request held until the registry changes or its deadline.
+     */
+    private final class Waiter implements Runnable {
+        private final HttpExchange exchange;
+        /**
+         * The version the client is up to date with.
+         */
+        private final long knownVersion;
+        private ScheduledFuture<?> timeout;
+
+        private Waiter(HttpExchange exchange, long knownVersion) {
+            this.exchange = exchange;
+            this.knownVersion = knownVersion;
+        }
+
+        /**
+         * Answers the request at its deadline, out of the timer.
+         */
+        public void run() {
+            if (!release(this)) {
+                return;
+            }
+            timedOut.incrementAndGet();
+            answerLater(exchange, false);
+        }
+    }
+
+    /**
+     * The body of <code>/servers</code> at a version, rendered once.
+     */
+    private static final class Rendered {
+        private final long version;
+        private final byte[] json;
+        private volatile byte[] gzipped;
+
+        private Rendered(long version, byte[] json) {
+            this.version = version;
+            this.json = json;
+        }
+    }
+
+    private final SvnEdgeBonjourClient client;
+    private final SvnEdgeServersRegistry registry;
+    private final InetSocketAddress requestedAddress;
+    private final int maxWaiting;
+    /**
+     * The held requests. Guarded by itself.
+     */
+    private final List<Waiter> waiters = new ArrayList<Waiter>();
+    /**
+     * The last body of <code>/servers</code> of each type.
+     */
+    private final ConcurrentMap<String, Rendered> rendered =
+            new ConcurrentHashMap<String, Rendered>();
+    /**
+     * Wakes the held requests up when the registry changes.
+     */
+    private final SvnEdgeServerUpdatesListener listener =
+            new SvnEdgeServerUpdatesListener() {
+        public void csvnServerIsRunning(SvnEdgeServerInfo serverInfo) {
+            changed();
+        }
+
+        public void csvnServerStopped(SvnEdgeServerInfo serverInfo) {
+            changed();
+        }
+
+        public void csvnServerUpdated(SvnEdgeServerInfo serverInfo) {
+            changed();
+        }
+    };
+    private HttpServer server;
+    private ExecutorService executor;
+    /**
+     * Answers the held requests.
+     */
+    private ExecutorService answerExecutor;
+    /**
+     * Writes the event streams, each on its own thread.
+     */
+    private ExecutorService streamExecutor;
+    private ScheduledExecutorService timer;
+    private SvnEdgeServersEventStreams streams;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong compressed = new AtomicLong();
+
+    /**
+     * Creates a new gateway of the given client, holding at most
+     * {@link #DEFAULT_MAX_WAITING} requests.
+     * @param client is the client whose servers are served.
+     * @param address is the address the gateway listens to.
+     */
+    public SvnEdgeDiscoveryGateway(SvnEdgeBonjourClient client,
+            InetSocketAddress address) {
+        this(client, address, DEFAULT_MAX_WAITING);
+    }
+
+    /**
+     * Creates a new gateway of the given client.
+     * @param client is the client whose servers are served.
+     * @param address is the address the gateway listens to.
+     * @param maxWaiting is the maximum number of requests held at once, and
+     * of event streams open at once.
+     */
+    public SvnEdgeDiscoveryGateway(SvnEdgeBonjourClient client,
+            InetSocketAddress address, int maxWaiting) {
+        if (client == null) {
+            throw new IllegalArgumentException("The client must be provided");
+        }
+        if (maxWaiting < 0) {
+            throw new IllegalArgumentException("The maximum number of " +
+                    "requests held must not be negative");
+        }
+        this.client = client;
+        this.registry = client.getRegistry();
+        this.requestedAddress = address;
+        this.maxWaiting = maxWaiting;
+    }
+
+    /**
+     * Starts serving the requests.
+     * @throws IOException if the address can't be bound.
+     */
+    public synchronized void start() throws IOException {
+        if (server != null) {
+            throw new IllegalStateException("The gateway is already started");
+        }
+        HttpServer newServer = HttpServer.create(requestedAddress, 0);
+        executor = Executors.newFixedThreadPool(THREADS,
+                new SvnEdgeThreadFactory("SvnEdge-Gateway-"));
+        answerExecutor = Executors.newFixedThreadPool(ANSWER_THREADS,
+                new SvnEdgeThreadFactory("SvnEdge-Gateway-Answer-"));
+        streamExecutor = SvnEdgeVirtualThreads.newTaskExecutor(
+                "SvnEdge-Gateway-Stream-");
+        timer = Executors.newSingleThreadScheduledExecutor(
+                new SvnEdgeThreadFactory("SvnEdge-Gateway-Timer-"));
+        streams = new SvnEdgeServersEventStreams(registry, streamExecutor,
+                timer, maxWaiting);
+        newServer.setExecutor(executor);
+        newServer.createContext("/servers", new HttpHandler() {
+            public void handle(HttpExchange exchange) {
+                serve(exchange, false);
+            }
+        });
+        newServer.createContext("/changes", new HttpHandler() {
+            public void handle(HttpExchange exchange) {
+                serve(exchange, true);
+            }
+        });
+        newServer.createContext("/events", new HttpHandler() {
+            public void handle(HttpExchange exchange) {
+                stream(exchange);
+            }
+        });
+        client.addServersListener(listener);
+        newServer.start();
+        server = newServer;
+        log.info("The discovery gateway listens to " + getAddress());
+    }
+
+    /**
+     * Stops serving the requests, answering the held ones first.
+     */
+    public synchronized void stop() {
+        if (server == null) {
+            return;
+        }
+        client.removeServersListener(listener);
+        List<Waiter> held;
+        synchronized (waiters) {
+            held = new ArrayList<Waiter>(waiters);
+            waiters.clear();
+        }
+        for (Waiter waiter : held) {
+            waiter.timeout.cancel(false);
+            answer(waiter.exchange, false);
+        }
+        streams.close();
+        server.stop(0);
+        timer.shutdownNow();
+        streamExecutor.shutdownNow();
+        answerExecutor.shutdownNow();
+        executor.shutdownNow();
+        server = null;
+        log.info("The discovery gateway stopped: " + this);
+    }
+
+    /**
+     * @return the address the gateway listens to, with its port once
+     * started.
+     */
+    public synchronized InetSocketAddress getAddress() {
+        return server != null ? server.getAddress() : requestedAddress;
+    }
+
+    /**
+     * @return the number of requests received.
+     */
+    public long getRequestCount() {
+        return this.requests.get();
+    }
+
+    /**
+     * @return the number of requests answered with 304 Not Modified.
+     */
+    public long getNotModifiedCount() {
+        return this.notModified.get();
+    }
+
+    /**
+     * @return the number of held requests answered at their deadline,
+     * without change.
+     */
+    public long getTimedOutCount() {
+        return this.timedOut.get();
+    }
+
+    /**
+     * @return the number of responses compressed with gzip.
+     */
+    public long getCompressedCount() {
+        return this.compressed.get();
+    }
+
+    /**
+     * @return the number of requests currently held.
+     */
+    public int getWaitingCount() {
+        synchronized (waiters) {
+            return waiters.size();
+        }
+    }
+
+    /**
+     * @return the number of event streams currently open.
+     */
+    public synchronized int getStreamCount() {
+        return streams != null ? streams.getStreamCount() : 0;
+    }
+
+    /**
+     * @return the number of frames of changes sent to the event streams.
+     */
+    public synchronized long getEventCount() {
+        return streams != null ? streams.getFramesSent() : 0;
+    }
+
+    /**
+     * @return the number of event streams resumed with a Last-Event-ID.
+     */
+    public synchronized long getResumedStreamCount() {
+        return streams != null ? streams.getResumedCount() : 0;
+    }
+
+    /**
+     * Handles a new request, holding it if the client is up to date and
+     * asked to wait.
+     * @param changes whether the request is for the changes.
+     */
+    private void serve(HttpExchange exchange, boolean changes) {
+        requests.incrementAndGet();
+        try {
+            String method = exchange.getRequestMethod();
+            if (!method.equals("GET") && !method.equals("HEAD")) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                sendError(exchange, 405, "Method not allowed");
+                return;
+            }
+            Map<String, String> query = parseQuery(exchange);
+            parseType(query);
+            long wait = parseLong(query, "wait", 0);
+            if (wait < 0) {
+                throw new IllegalArgumentException("wait must not be " +
+                        "negative");
+            }
+            long known = knownVersion(exchange, query, changes);
+            if (wait > 0 && known >= registry.getVersion() &&
+                    hold(exchange, known, Math.min(wait, MAX_WAIT))) {
+                return;
+            }
+            answer(exchange, false);
+
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+        }
+    }
+
+    /**
+     * Opens an event stream of the changes of the registry.
+     */
+    private void stream(HttpExchange exchange) {
+        requests.incrementAndGet();
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.getResponseHeaders().set("Allow", "GET");
+                sendError(exchange, 405, "Method not allowed");
+                return;
+            }
+            Map<String, String> query = parseQuery(exchange);
+            SvnEdgeServiceType type = parseType(query);
+            // the browsers resend the id of the last frame when they
+            // reconnect, the other clients may give it in the query.
+            String lastEventId = exchange.getRequestHeaders().getFirst(
+                    "Last-Event-ID");
+            long known = lastEventId != null ? parseLastEventId(lastEventId) :
+                    parseLong(query, "lastEventId", -1);
+            if (!streams.open(exchange, type, known)) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                sendError(exchange, 503, "Too many event streams");
+            }
+
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+        } catch (IOException e) {
+            log.debug("Failed to open the event stream of " +
+                    exchange.getRemoteAddress() + ": " + e.getMessage());
+            exchange.close();
+        }
+    }
+
+    /**
+     * @return the version of the given Last-Event-ID, or -1 if it is not one
+     * of the versions sent, so that the stream starts over.
+     */
+    private static long parseLastEventId(String lastEventId) {
+        try {
+            return Long.parseLong(lastEventId.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the version the client is up to date with, or -1.
+     */
+    private long knownVersion(HttpExchange exchange, Map<String, String> query,
+            boolean changes) {
+        if (changes) {
+            if (!query.containsKey("since")) {
+                throw new IllegalArgumentException("since is missing");
+            }
+            return parseLong(query, "since", -1);
+        }
+        if (query.containsKey("after")) {
+            return parseLong(query, "after", -1);
+        }
+        long current = registry.getVersion();
+        return matches(exchange, etagOf(current)) ? current : -1;
+    }
+
+    /**
+     * Holds the given request until the registry changes after the given
+     * version, or for the given time.
+     * @return whether the request is held, or must be answered right away
+     * as too many are held or the registry changed in the meantime.
+     */
+    private boolean hold(HttpExchange exchange, long known, long seconds) {
+        Waiter waiter = new Waiter(exchange, known);
+        synchronized (waiters) {
+            if (registry.getVersion() > known) {
+                return false;
+            }
+            if (waiters.size() < maxWaiting) {
+                waiters.add(waiter);
+                // the timer can't fire before the waiter is complete.
+                waiter.timeout = timer.schedule(waiter, seconds,
+                        TimeUnit.SECONDS);
+                return true;
+            }
+        }
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        sendError(exchange, 503, "Too many requests waiting");
+        return true;
+    }
+
+    /**
+     * @return whether the given waiter was still held, and is now released
+     * by the caller.
+     */
+    private boolean release(Waiter waiter) {
+        synchronized (waiters) {
+            return waiters.remove(waiter);
+        }
+    }
+
+    /**
+     * Answers the requests held for a version older than the current one.
+     */
+    private void changed() {
+        streams.changed();
+        long version = registry.getVersion();
+        List<Waiter> ready = new ArrayList<Waiter>();
+        synchronized (waiters) {
+            Iterator<Waiter> iterator = waiters.iterator();
+            while (iterator.hasNext()) {
+                Waiter waiter = iterator.next();
+                if (waiter.knownVersion < version) {
+                    iterator.remove();
+                    waiter.timeout.cancel(false);
+                    ready.add(waiter);
+                }
+            }
+        }
+        // the listeners must not block.
+        for (Waiter waiter : ready) {
+            answerLater(waiter.exchange, true);
+        }
+    }
+
+    /**
+     * Answers the given held request in the threads of the held requests,
+     * each request in its own task, so that a slow client only holds back
+     * one thread.
+     * @param changed whether the client must get the body, as it waited
+     * for a change.
+     */
+    private void answerLater(final HttpExchange exchange,
+            final boolean changed) {
+        try {
+            answerExecutor.execute(new Runnable() {
+                public void run() {
+                    answer(exchange, changed);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // stopping: the exchange is closed with the server.
+            log.debug("Dropped a held request");
+        }
+    }
+
+    /**
+     * Answers the given request with the current servers or changes.
+     * @param changed whether the client must get the body, even if its
+     * If-None-Match has the current ETag, as it waited for a change.
+     */
+    private void answer(HttpExchange exchange, boolean changed) {
+        try {
+            Map<String, String> query = parseQuery(exchange);
+            SvnEdgeServiceType type = parseType(query);
+            if (exchange.getHttpContext().getPath().equals("/changes")) {
+                answerChanges(exchange, type, parseLong(query, "since", -1));
+            } else {
+                answerServers(exchange, type, query, changed);
+            }
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+        }
+    }
+
+    private void answerServers(HttpExchange exchange,
+            SvnEdgeServiceType type, Map<String, String> query,
+            boolean changed) {
+        Rendered body = render(type);
+        String etag = etagOf(body.version);
+        long after = parseLong(query, "after", -1);
+        if (!changed && (matches(exchange, etag) || after >= body.version)) {
+            notModified.incrementAndGet();
+            exchange.getResponseHeaders().set("ETag", etag);
+            send(exchange, 304, null, null);
+            return;
+        }
+        exchange.getResponseHeaders().set("ETag", etag);
+        send(exchange, 200, body.json, body);
+    }
+
+    private void answerChanges(HttpExchange exchange, SvnEdgeServiceType type,
+            long since) {
+        StringBuilder out = new StringBuilder(256);
+        SvnEdgeServersJson.appendDelta(out, registry.changesSince(since),
+                type);
+        send(exchange, 200, toBytes(out), null);
+    }
+
+    /**
+     * @return the body of <code>/servers</code> at the current version,
+     * rendered if it was not yet.
+     */
+    private Rendered render(SvnEdgeServiceType type) {
+        String key = type == null ? ALL_TYPES : type.name();
+        SvnEdgeServersSnapshot snapshot = registry.getSnapshot();
+        Rendered current = rendered.get(key);
+        if (current != null && current.version == snapshot.getVersion()) {
+            return current;
+        }
+        StringBuilder out = new StringBuilder(256 + 256 * snapshot.size());
+        out.append("{\"version\":").append(snapshot.getVersion())
+                .append(",\"servers\":");
+        SvnEdgeServersJson.appendServers(out, type == null ?
+                snapshot.getServers() : snapshot.getServers(type));
+        out.append('}');
+        Rendered next = new Rendered(snapshot.getVersion(), toBytes(out));
+        // a concurrent request may have rendered a newer version.
+        if (current == null ? rendered.putIfAbsent(key, next) != null :
+                !rendered.replace(key, current, next)) {
+            Rendered other = rendered.get(key);
+            if (other != null && other.version >= next.version) {
+                return other;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Sends the given JSON body, compressed if the client accepts it.
+     * @param status is the status of the response.
+     * @param json is the body, or <code>null</code> for none.
+     * @param cache keeps the compressed body of a rendered version, or
+     * <code>null</code>.
+     */
+    private void send(HttpExchange exchange, int status, byte[] json,
+            Rendered cache) {
+        try {
+            Headers headers = exchange.getResponseHeaders();
+            headers.set("Cache-Control", "no-cache");
+            headers.set("Vary", "Accept-Encoding");
+            if (json == null) {
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            byte[] body = json;
+            headers.set("Content-Type", JSON);
+            if (json.length >= GZIP_THRESHOLD && acceptsGzip(exchange)) {
+                body = cache != null ? cache.gzipped : null;
+                if (body == null) {
+                    body = gzip(json);
+                    if (cache != null) {
+                        cache.gzipped = body;
+                    }
+                }
+                headers.set("Content-Encoding", "gzip");
+                compressed.incrementAndGet();
+            }
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(status, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+
+        } catch (IOException e) {
+            log.debug("Failed to answer " + exchange.getRequestURI() + ": " +
+                    e.getMessage());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void sendError(HttpExchange exchange, int status, String message) {
+        StringBuilder out = new StringBuilder("{\"error\":");
+        SvnEdgeServersJson.appendString(out, message);
+        out.append('}');
+        send(exchange, status, toBytes(out), null);
+    }
+
+    /**
+     * @return the weak ETag of the given version of the registry.
+     */
+    private static String etagOf(long version) {
+        return "W/\"" + version + "\"";
+    }
+
+    /**
+     * @return whether the If-None-Match of the request has the given ETag,
+     * compared weakly.
+     */
+    private static boolean matches(HttpExchange exchange, String etag) {
+        List<String> headers = exchange.getRequestHeaders().get(
+                "If-None-Match");
+        if (headers == null) {
+            return false;
+        }
+        String tag = etag.substring(2);
+        for (String header : headers) {
+            for (String candidate : header.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2);
+                }
+                if (candidate.equals(tag) || candidate.equals("*")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the Accept-Encoding of the request has gzip with a
+     * weight over 0, such as "gzip" or "gzip;q=0.5" but not "gzip;q=0.0".
+     */
+    private static boolean acceptsGzip(HttpExchange exchange) {
+        List<String> accepted = exchange.getRequestHeaders().get(
+                "Accept-Encoding");
+        if (accepted == null) {
+            return false;
+        }
+        for (String header : accepted) {
+            for (String coding : header.split(",")) {
+                String[] parts = coding.split(";");
+                if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                    return weightOf(parts) > 0;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the weight of the given parts of a coding, 1 by default or 0
+     * if it is not a number.
+     */
+    private static double weightOf(String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            String parameter = parts[i].replace(" ", "");
+            if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    private static byte[] gzip(byte[] json) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                json.length / 4 + 64);
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(json);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] toBytes(StringBuilder json) {
+        try {
+            return json.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the parameters of the query of the request.
+     */
+    private static Map<String, String> parseQuery(HttpExchange exchange) {
+        Map<String, String> query = new HashMap<String, String>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if (raw == null) {
+            return query;
+        }
+        for (String parameter : raw.split("&")) {
+            int equals = parameter.indexOf('=');
+            try {
+                String name = URLDecoder.decode(equals < 0 ? parameter :
+                    parameter.substring(0, equals), "UTF-8");
+                String value = equals < 0 ? "" : URLDecoder.decode(
+                        parameter.substring(equals + 1), "UTF-8");
+                query.put(name, value);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return query;
+    }
+
+    /**
+     * @return the service type of the parameter "type", given by name such
+     * as "csvn" or by mDNS type, or <code>null</code> for all the types.
+     */
+    private static SvnEdgeServiceType parseType(Map<String, String> query) {
+        String value = query.get("type");
+        if (value == null || value.equals("")) {
+            return null;
+        }
+        for (SvnEdgeServiceType type : SvnEdgeServiceType.values()) {
+            if (type.name().equalsIgnoreCase(value) ||
+                    type.getType().equalsIgnoreCase(value)) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown service type " + value);
+    }
+
+    private static long parseLong(Map<String, String> query, String name,
+            long defaultValue) {
+        String value = query.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a number: " +
+                    value);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SvnEdgeDiscoveryGateway: requests=" + requests + ", 304=" +
+                notModified + ", timed out=" + timedOut + ", gzip=" +
+                compressed + ", waiting=" + getWaitingCount() +
+                ", streams=" + getStreamCount();
+    }
+}
@@ -0,0 +1,571 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Reads the DNS messages received by the {@link SvnEdgeNioMdns} and
+ * {@link SvnEdgeUnicastDnsSd} engines in place, as a flyweight positioned on
+ * one question or record at a time.
+ * The names are compared, hashed and skipped on the wire format, following
+ * the compression pointers, so that the records of the types that are not
+ * observed are discarded without allocating anything. Only the records kept
+ * are decoded into strings and {@link SvnEdgeDnsRecord}s. The same reader is
+ * reset for each packet. Not thread-safe.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+final class SvnEdgeDnsReader {
+
+    /**
+     * The flag of the responses.
+     */
+    static final int FLAG_RESPONSE = 0x8000;
+    /**
+     * The flag of the authoritative answers, set in all the mDNS responses.
+     */
+    static final int FLAG_AUTHORITATIVE = 0x0400;
+    /**
+     * The flag of the queries whose known answers continue in the next
+     * packets.
+     */
+    static final int FLAG_TRUNCATED = 0x0200;
+    /**
+     * The flag of the unicast queries asking a recursive resolver to
+     * forward them.
+     */
+    static final int FLAG_RECURSION_DESIRED = 0x0100;
+    /**
+     * The position of the operation code in the flags.
+     */
+    static final int OPCODE_SHIFT = 11;
+    static final int OPCODE_QUERY = 0;
+    static final int OPCODE_UPDATE = 5;
+    /**
+     * The response codes used by the unicast DNS-SD.
+     */
+    static final int RCODE_NO_ERROR = 0;
+    static final int RCODE_FORMAT_ERROR = 1;
+    static final int RCODE_SERVER_FAILURE = 2;
+    static final int RCODE_NAME_ERROR = 3;
+    static final int RCODE_NOT_IMPLEMENTED = 4;
+    static final int RCODE_REFUSED = 5;
+    static final int RCODE_NAME_EXISTS = 6;
+    static final int RCODE_NOT_ZONE = 10;
+    private static final int HEADER_SIZE = 12;
+    /**
+     * The maximum number of compression pointers followed in a name.
+     */
+    private static final int MAX_POINTERS = 32;
+    /**
+     * The maximum length of a name, in bytes of its dotted form.
+     */
+    private static final int MAX_NAME_LENGTH = 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * A question of a query.
+     */
+    static final class Question {
+        private final String name;
+        private final int type;
+        private final boolean unicast;
+
+        Question(String name, int type, boolean unicast) {
+            this.name = name;
+            this.type = type;
+            this.unicast = unicast;
+        }
+
+        String getName() {
+            return this.name;
+        }
+
+        int getType() {
+            return this.type;
+        }
+
+        /**
+         * @return whether the question asks for a unicast response.
+         */
+        boolean isUnicast() {
+            return this.unicast;
+        }
+    }
+
+    private ByteBuffer buffer;
+    /**
+     * The position of the header, which the compression pointers are
+     * relative to.
+     */
+    private int start;
+    private int limit;
+    private int id;
+    private int flags;
+    private final int[] counts = new int[4];
+    /**
+     * The section of the current entry, -1 before the first one.
+     */
+    private int section;
+    /**
+     * The entries of the section left after the current one.
+     */
+    private int remaining;
+    /**
+     * The position of the next entry.
+     */
+    private int position;
+    // the current entry.
+    private int nameOffset;
+    /**
+     * The length of the dotted name of the current entry.
+     */
+    private int entryNameLength;
+    private int type;
+    private int clazz;
+    private int ttl;
+    private int dataOffset;
+    private int dataLength;
+    // the cursor of the labels of a name.
+    private int cursor;
+    private int pointers;
+    private int nameLength;
+    private int nameEnd;
+    private int labelLength;
+    /**
+     * The buffer decoding the names kept.
+     */
+    private final byte[] scratch = new byte[MAX_NAME_LENGTH];
+
+    /**
+     * Positions the reader before the first question of the message between
+     * the position and the limit of the given buffer, which are not changed.
+     * @param packet holds a received packet.
+     * @throws IllegalArgumentException if the packet has no header.
+     */
+    void reset(ByteBuffer packet) {
+        this.buffer = packet;
+        this.start = packet.position();
+        this.limit = packet.limit();
+        if (limit - start < HEADER_SIZE) {
+            throw new IllegalArgumentException("Truncated DNS header");
+        }
+        this.id = readShort(start);
+        this.flags = readShort(start + 2);
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = readShort(start + 4 + 2 * i);
+        }
+        this.section = -1;
+        this.remaining = 0;
+        this.position = start + HEADER_SIZE;
+    }
+
+    int getId() {
+        return this.id;
+    }
+
+    int getFlags() {
+        return this.flags;
+    }
+
+    /**
+     * @return the operation of the message, a query or an update.
+     */
+    int getOpcode() {
+        return (this.flags >> OPCODE_SHIFT) & 0xF;
+    }
+
+    /**
+     * @return the response code of a unicast response.
+     */
+    int getResponseCode() {
+        return this.flags & 0xF;
+    }
+
+    /**
+     * @return whether the message is a response, as opposed to a query.
+     */
+    boolean isResponse() {
+        return (this.flags & FLAG_RESPONSE) != 0;
+    }
+
+    /**
+     * @param entrySection is one of the sections of {@link SvnEdgeDnsWriter}.
+     * @return the number of entries of the section announced by the header.
+     */
+    int getCount(int entrySection) {
+        return this.counts[entrySection];
+    }
+
+    /**
+     * Moves to the next question or record, in the order of the sections.
+     * @return whether there is one.
+     * @throws IllegalArgumentException if the entry is malformed.
+     */
+    boolean next() {
+        while (remaining == 0) {
+            if (section == SvnEdgeDnsWriter.ADDITIONAL) {
+                return false;
+            }
+            remaining = counts[++section];
+        }
+        remaining--;
+        nameOffset = position;
+        position = skipName(position);
+        entryNameLength = nameLength;
+        require(position, 4);
+        type = readShort(position);
+        clazz = readShort(position + 2);
+        position += 4;
+        if (section == SvnEdgeDnsWriter.QUESTION) {
+            ttl = 0;
+            dataOffset = position;
+            dataLength = 0;
+            return true;
+        }
+        require(position, 6);
+        long rawTtl = buffer.getInt(position) & 0xFFFFFFFFL;
+        ttl = (int) Math.min(rawTtl, Integer.MAX_VALUE);
+        dataLength = readShort(position + 4);
+        dataOffset = position + 6;
+        require(dataOffset, dataLength);
+        position = dataOffset + dataLength;
+        return true;
+    }
+
+    /**
+     * @return the section of the current entry.
+     */
+    int getSection() {
+        return this.section;
+    }
+
+    int getType() {
+        return this.type;
+    }
+
+    /**
+     * @return whether the current record replaces the cached records of its
+     * name and type or, for a question, whether it asks for a unicast
+     * response.
+     */
+    boolean isUnique() {
+        return (this.clazz & SvnEdgeDnsRecord.CLASS_UNIQUE) != 0;
+    }
+
+    /**
+     * @return the class of the current entry without its top bit, such as
+     * the class of a dynamic update or the payload size of an EDNS0 record.
+     */
+    int getRecordClass() {
+        return this.clazz & ~SvnEdgeDnsRecord.CLASS_UNIQUE;
+    }
+
+    /**
+     * @return the time to live of the current record, in seconds.
+     */
+    int getTtl() {
+        return this.ttl;
+    }
+
+    /**
+     * @return the name of the current entry, decoded.
+     */
+    String getName() {
+        return readName(nameOffset);
+    }
+
+    /**
+     * @param key is a lower case dotted name encoded by {@link #keyOf(String)}.
+     * @return whether the name of the current entry is the given one,
+     * ignoring the case.
+     */
+    boolean nameEquals(byte[] key) {
+        return matches(key, false);
+    }
+
+    /**
+     * @param key is a lower case dotted name encoded by {@link #keyOf(String)}.
+     * @return whether the name of the current entry has at least one more
+     * label before the given name, ignoring the case, as the name of an
+     * instance of a type.
+     */
+    boolean nameEndsWith(byte[] key) {
+        return matches(key, true);
+    }
+
+    /**
+     * @return the hash of the name of the current entry, equal to
+     * {@link #hashOf(byte[])} of its key.
+     */
+    int getNameHash() {
+        int hash = 0;
+        startName(nameOffset);
+        for (int label = nextLabel(); label >= 0; label = nextLabel()) {
+            for (int i = 0; i < labelLength; i++) {
+                hash = 31 * hash + lower(buffer.get(label + i));
+            }
+            hash = 31 * hash + '.';
+        }
+        return hash;
+    }
+
+    /**
+     * @return the instance of a pointer, or the host of a service record.
+     * @throws IllegalArgumentException if the record is malformed.
+     */
+    String getTarget() {
+        int target = type == SvnEdgeDnsRecord.TYPE_SRV ? dataOffset + 6 :
+            dataOffset;
+        if (skipName(target) > dataOffset + dataLength) {
+            throw new IllegalArgumentException("Invalid DNS record data");
+        }
+        return readName(target);
+    }
+
+    int getPriority() {
+        requireData(6);
+        return readShort(dataOffset);
+    }
+
+    int getWeight() {
+        requireData(6);
+        return readShort(dataOffset + 2);
+    }
+
+    int getPort() {
+        requireData(6);
+        return readShort(dataOffset + 4);
+    }
+
+    /**
+     * @return a copy of the data of a text record.
+     */
+    byte[] getText() {
+        byte[] text = new byte[dataLength];
+        for (int i = 0; i < dataLength; i++) {
+            text[i] = buffer.get(dataOffset + i);
+        }
+        return text;
+    }
+
+    /**
+     * @return the address of an address record.
+     * @throws IllegalArgumentException if the record is malformed.
+     */
+    InetAddress getAddress() {
+        if (dataLength != 4 && dataLength != 16) {
+            throw new IllegalArgumentException("Invalid DNS address length " +
+                    dataLength);
+        }
+        try {
+            return InetAddress.getByAddress(getText());
+        } catch (UnknownHostException e) {
+            // not possible with 4 or 16 bytes.
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * @return the current question, decoded.
+     */
+    Question toQuestion() {
+        return new Question(getName(), type, isUnique());
+    }
+
+    /**
+     * @return the current record, decoded, or <code>null</code> if its type
+     * is not used by DNS-SD.
+     * @throws IllegalArgumentException if the record is malformed.
+     */
+    SvnEdgeDnsRecord toRecord() {
+        SvnEdgeDnsRecord record;
+        switch (type) {
+        case SvnEdgeDnsRecord.TYPE_PTR:
+            record = SvnEdgeDnsRecord.pointer(getName(), ttl, getTarget());
+            break;
+        case SvnEdgeDnsRecord.TYPE_SRV:
+            record = SvnEdgeDnsRecord.service(getName(), ttl, getPriority(),
+                    getWeight(), getPort(), getTarget());
+            break;
+        case SvnEdgeDnsRecord.TYPE_TXT:
+            record = SvnEdgeDnsRecord.text(getName(), ttl, getText());
+            break;
+        case SvnEdgeDnsRecord.TYPE_A:
+        case SvnEdgeDnsRecord.TYPE_AAAA:
+            record = SvnEdgeDnsRecord.address(getName(), ttl, getAddress());
+            break;
+        default:
+            return null;
+        }
+        return record.withUnique(isUnique());
+    }
+
+    /**
+     * @param name is a dotted name.
+     * @return the key of the name, matched by {@link #nameEquals(byte[])}
+     * and {@link #nameEndsWith(byte[])}.
+     */
+    static byte[] keyOf(String name) {
+        String dotted = name.endsWith(".") ? name : name + ".";
+        return dotted.toLowerCase().getBytes(UTF8);
+    }
+
+    /**
+     * @param key is a key returned by {@link #keyOf(String)}.
+     * @return the hash of the key, equal to {@link #getNameHash()} of the
+     * entries of the same name.
+     */
+    static int hashOf(byte[] key) {
+        int hash = 0;
+        for (byte b : key) {
+            hash = 31 * hash + (b & 0xFF);
+        }
+        return hash;
+    }
+
+    private static int lower(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b & 0xFF;
+    }
+
+    private void require(int offset, int length) {
+        if (offset + length > limit) {
+            throw new IllegalArgumentException("Truncated DNS message");
+        }
+    }
+
+    private void requireData(int length) {
+        if (dataLength < length) {
+            throw new IllegalArgumentException("Invalid DNS record data");
+        }
+    }
+
+    private int readShort(int offset) {
+        require(offset, 2);
+        return buffer.getShort(offset) & 0xFFFF;
+    }
+
+    private void startName(int offset) {
+        cursor = offset;
+        pointers = 0;
+        nameLength = 0;
+        nameEnd = -1;
+    }
+
+    /**
+     * @return the offset of the next label of the name, with its length in
+     * labelLength, or -1 at the end of the name.
+     * @throws IllegalArgumentException if the name is malformed.
+     */
+    private int nextLabel() {
+        while (true) {
+            require(cursor, 1);
+            int length = buffer.get(cursor) & 0xFF;
+            if ((length & 0xC0) == 0xC0) {
+                require(cursor, 2);
+                int target = start + (((length & 0x3F) << 8) |
+                        (buffer.get(cursor + 1) & 0xFF));
+                // the pointers only point backwards, so that they can't loop.
+                if (++pointers > MAX_POINTERS || target >= cursor) {
+                    throw new IllegalArgumentException(
+                            "Invalid DNS compression pointer");
+                }
+                if (nameEnd < 0) {
+                    nameEnd = cursor + 2;
+                }
+                cursor = target;
+                continue;
+            }
+            if ((length & 0xC0) != 0) {
+                throw new IllegalArgumentException("Invalid DNS label");
+            }
+            if (length == 0) {
+                if (nameEnd < 0) {
+                    nameEnd = cursor + 1;
+                }
+                return -1;
+            }
+            int label = cursor + 1;
+            require(label, length);
+            nameLength += length + 1;
+            if (nameLength > MAX_NAME_LENGTH) {
+                throw new IllegalArgumentException("DNS name too long");
+            }
+            labelLength = length;
+            cursor = label + length;
+            return label;
+        }
+    }
+
+    /**
+     * Validates the name at the given offset.
+     * @return the offset following the name.
+     */
+    private int skipName(int offset) {
+        startName(offset);
+        while (nextLabel() >= 0) {
+            // validates each label.
+        }
+        return nameEnd;
+    }
+
+    /**
+     * @param suffix whether the name may have more labels before the key.
+     */
+    private boolean matches(byte[] key, boolean suffix) {
+        int from = entryNameLength - key.length;
+        if (suffix ? from < 2 : from != 0) {
+            return false;
+        }
+        int index = 0;
+        startName(nameOffset);
+        for (int label = nextLabel(); label >= 0; label = nextLabel()) {
+            for (int i = 0; i <= labelLength; i++, index++) {
+                // the dot follows the bytes of each label.
+                int b = i < labelLength ? lower(buffer.get(label + i)) : '.';
+                if (index == from - 1 && b != '.') {
+                    return false;
+                }
+                if (index >= from && b != (key[index - from] & 0xFF)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the dotted name at the given offset, "." for the root.
+     */
+    private String readName(int offset) {
+        int length = 0;
+        startName(offset);
+        for (int label = nextLabel(); label >= 0; label = nextLabel()) {
+            for (int i = 0; i < labelLength; i++) {
+                scratch[length++] = buffer.get(label + i);
+            }
+            scratch[length++] = '.';
+        }
+        return length == 0 ? "." : new String(scratch, 0, length, UTF8);
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+
+/**
+ * A resource record of the subset of DNS used by DNS-SD: the pointer of a
+ * service type to a service instance, the service record with the host and
+ * port of the instance, its text record with the properties, and the
+ * addresses of the host. Immutable.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+final class SvnEdgeDnsRecord {
+
+    static final int TYPE_A = 1;
+    static final int TYPE_SOA = 6;
+    static final int TYPE_PTR = 12;
+    static final int TYPE_TXT = 16;
+    static final int TYPE_AAAA = 28;
+    static final int TYPE_SRV = 33;
+    /**
+     * The pseudo record of the EDNS0 options, such as the lease of the
+     * dynamic updates.
+     */
+    static final int TYPE_OPT = 41;
+    static final int TYPE_ANY = 255;
+    static final int CLASS_IN = 1;
+    /**
+     * The classes of the dynamic updates deleting a record, and deleting a
+     * whole set of records or checking that a name is in use.
+     */
+    static final int CLASS_NONE = 254;
+    static final int CLASS_ANY = 255;
+    /**
+     * The top bit of the class of a record, telling the receivers that the
+     * record replaces the cached records of the same name and type. In a
+     * question, the same bit asks for a unicast response.
+     */
+    static final int CLASS_UNIQUE = 0x8000;
+
+    /**
+     * The name of the record.
+     */
+    private final String name;
+    private final int type;
+    /**
+     * Whether the record replaces the cached records of its name and type.
+     */
+    private final boolean unique;
+    /**
+     * The time to live of the record in seconds, 0 for a goodbye.
+     */
+    private final int ttl;
+    /**
+     * The instance of a pointer, or the host of a service record.
+     */
+    private final String target;
+    private final int priority;
+    private final int weight;
+    private final int port;
+    /**
+     * The raw properties of a text record.
+     */
+    private final byte[] text;
+    /**
+     * The address of an address record.
+     */
+    private final InetAddress address;
+
+    private SvnEdgeDnsRecord(String name, int type, boolean unique, int ttl,
+            String target, int priority, int weight, int port, byte[] text,
+            InetAddress address) {
+        this.name = name;
+        this.type = type;
+        this.unique = unique;
+        this.ttl = ttl;
+        this.target = target;
+        this.priority = priority;
+        this.weight = weight;
+        this.port = port;
+        this.text = text;
+        this.address = address;
+    }
+
+    /**
+     * @param type is a service type, such as "_csvn._tcp.local.".
+     * @param ttl is the time to live in seconds.
+     * @param instance is the qualified name of an instance of the type.
+     * @return a new pointer record.
+     */
+    static SvnEdgeDnsRecord pointer(String type, int ttl, String instance) {
+        return new SvnEdgeDnsRecord(type, TYPE_PTR, false, ttl, instance, 0, 0,
+                0, null, null);
+    }
+
+    /**
+     * @param instance is the qualified name of a service instance.
+     * @param ttl is the time to live in seconds.
+     * @param priority is the priority of the instance.
+     * @param weight is the weight of the instance.
+     * @param port is the port of the instance.
+     * @param host is the qualified name of the host of the instance.
+     * @return a new service record.
+     */
+    static SvnEdgeDnsRecord service(String instance, int ttl, int priority,
+            int weight, int port, String host) {
+        return new SvnEdgeDnsRecord(instance, TYPE_SRV, true, ttl, host,
+                priority, weight, port, null, null);
+    }
+
+    /**
+     * @param instance is the qualified name of a service instance.
+     * @param ttl is the time to live in seconds.
+     * @param text is the encoded properties of the instance.
+     * @return a new text record.
+     */
+    static SvnEdgeDnsRecord text(String instance, int ttl, byte[] text) {
+        return new SvnEdgeDnsRecord(instance, TYPE_TXT, true, ttl, null, 0, 0,
+                0, text, null);
+    }
+
+    /**
+     * @param host is the qualified name of a host.
+     * @param ttl is the time to live in seconds.
+     * @param address is an IPv4 or IPv6 address of the host.
+     * @return a new address record, A or AAAA.
+     */
+    static SvnEdgeDnsRecord address(String host, int ttl,
+            InetAddress address) {
+        int type = address.getAddress().length == 4 ? TYPE_A : TYPE_AAAA;
+        return new SvnEdgeDnsRecord(host, type, true, ttl, null, 0, 0, 0,
+                null, address);
+    }
+
+    /**
+     * @param newTtl is the time to live of the copy, 0 for a goodbye.
+     * @return a copy of this record with the given time to live.
+     */
+    SvnEdgeDnsRecord withTtl(int newTtl) {
+        return new SvnEdgeDnsRecord(name, type, unique, newTtl, target,
+                priority, weight, port, text, address);
+    }
+
+    /**
+     * @param newUnique whether the copy replaces the cached records.
+     * @return a copy of this record with the given cache flush bit.
+     */
+    SvnEdgeDnsRecord withUnique(boolean newUnique) {
+        return new SvnEdgeDnsRecord(name, type, newUnique, ttl, target,
+                priority, weight, port, text, address);
+    }
+
+    String getName() {
+        return this.name;
+    }
+
+    int getType() {
+        return this.type;
+    }
+
+    boolean isUnique() {
+        return this.unique;
+    }
+
+    int getTtl() {
+        return this.ttl;
+    }
+
+    /**
+     * @return the instance of a pointer, or the host of a service record.
+     */
+    String getTarget() {
+        return this.target;
+    }
+
+    int getPriority() {
+        return this.priority;
+    }
+
+    int getWeight() {
+        return this.weight;
+    }
+
+    int getPort() {
+        return this.port;
+    }
+
+    byte[] getText() {
+        return this.text;
+    }
+
+    InetAddress getAddress() {
+        return this.address;
+    }
+
+    /**
+     * @return the key of this record among the records of a message: its
+     * type, its name and, for a pointer, its instance, ignoring the case.
+     */
+    String getKey() {
+        String key = type + " " + name.toLowerCase();
+        return type == TYPE_PTR ? key + " " + target.toLowerCase() : key;
+    }
+
+    /**
+     * @param other is a record.
+     * @return whether the given record has the same key and data as this
+     * one, whatever their times to live.
+     */
+    boolean hasSameData(SvnEdgeDnsRecord other) {
+        if (!getKey().equals(other.getKey())) {
+            return false;
+        }
+        switch (type) {
+        case TYPE_SRV:
+            return port == other.port && priority == other.priority &&
+                    weight == other.weight &&
+                    target.equalsIgnoreCase(other.target);
+        case TYPE_TXT:
+            return Arrays.equals(text, other.text);
+        case TYPE_A:
+        case TYPE_AAAA:
+            return address.equals(other.address);
+        default:
+            return true;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(name).append(" ttl=").append(ttl);
+        switch (type) {
+        case TYPE_PTR:
+            builder.append(" PTR ").append(target);
+            break;
+        case TYPE_SRV:
+            builder.append(" SRV ").append(target).append(':').append(port);
+            break;
+        case TYPE_TXT:
+            builder.append(" TXT ").append(text.length).append(" bytes");
+            break;
+        default:
+            builder.append(type == TYPE_A ? " A " : " AAAA ").append(
+                    address.getHostAddress());
+        }
+        return builder.toString();
+    }
+}
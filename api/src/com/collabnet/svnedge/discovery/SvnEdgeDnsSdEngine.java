@@ -0,0 +1,602 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import javax.jmdns.JmDNS;
+import javax.jmdns.ServiceEvent;
+import javax.jmdns.ServiceInfo;
+import javax.jmdns.ServiceListener;
+import javax.jmdns.ServiceTypeListener;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The base of the DNS-SD engines of the discovery, {@link SvnEdgeNioMdns}
+ * and {@link SvnEdgeUnicastDnsSd}, run by a single selector thread instead
+ * of the timer threads of jmDNS. The selector thread owns the channels of
+ * the engine, a timer wheel and the state of the browsed types and of the
+ * registered services. The calls of the API are handed to that thread, and
+ * the listeners are called by it, so they must not block.
+ *
+ * This class implements the loop of the selector thread and the parts of
+ * the jmDNS API common to the engines. The engines implement the packets
+ * they exchange, the browsing, the resolution and the registration of the
+ * services.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+abstract class SvnEdgeDnsSdEngine extends JmDNS {
+
+    private static final Logger log = Logger.getLogger(
+            SvnEdgeDnsSdEngine.class);
+    /**
+     * The precision of the timers, in milliseconds.
+     */
+    static final long TICK = 50;
+    /**
+     * The default time the blocking lookups wait, in milliseconds.
+     */
+    private static final long LOOKUP_TIMEOUT = 6000;
+    static final InetAddress[] NO_ADDRESSES = new InetAddress[0];
+
+    /**
+     * A timer of the selector thread.
+     */
+    abstract static class Task {
+        SvnEdgeTimerWheel.Timeout<Task> timeout;
+        long deadline;
+
+        abstract void run(long now);
+    }
+
+    /**
+     * The name of the engine in the logs, such as "NIO mDNS".
+     */
+    private final String kind;
+    /**
+     * The address of the host.
+     */
+    final InetAddress address;
+    /**
+     * The qualified name of the host, such as "myhost.local.".
+     */
+    final String hostName;
+    final Selector selector;
+    final SvnEdgeTimerWheel<Task> wheel;
+    /**
+     * The selector thread, started by {@link #startLoop()}.
+     */
+    final Thread thread;
+    final SvnEdgeMdnsCounters counters = new SvnEdgeMdnsCounters();
+    /**
+     * The calls of the API, run by the selector thread.
+     */
+    private final Queue<Runnable> commands =
+            new ConcurrentLinkedQueue<Runnable>();
+    private volatile boolean running = true;
+    private volatile Delegate delegate;
+
+    /**
+     * Creates a new engine, whose selector thread is started by the
+     * subclass once its channels are registered, with
+     * {@link #startLoop()}.
+     * @param kind is the name of the engine in the logs.
+     * @param address is the address of the host, or <code>null</code> for
+     * the address of the local host.
+     * @param hostname is the name of the host, or <code>null</code> for the
+     * name of the address.
+     * @param domain is the domain of the name of the host, such as
+     * "local.".
+     * @param threads creates the selector thread.
+     * @throws IOException if the selector can't be opened.
+     */
+    SvnEdgeDnsSdEngine(String kind, InetAddress address, String hostname,
+            String domain, SvnEdgeThreadFactory threads) throws IOException {
+        this.kind = kind;
+        this.address = address != null ? address : InetAddress.getLocalHost();
+        this.hostName = toHostLabel(hostname != null && !hostname.equals("") ?
+                hostname : this.address.getHostName()) + "." + domain;
+        this.selector = Selector.open();
+        this.wheel = new SvnEdgeTimerWheel<Task>(TICK,
+                System.currentTimeMillis());
+        this.thread = threads.newThread(new Runnable() {
+            public void run() {
+                loop();
+            }
+        });
+    }
+
+    /**
+     * @param name is the name of a host, or an IP address.
+     * @return the first label of the name of the host, or the address with
+     * dashes.
+     */
+    static String toHostLabel(String name) {
+        if (name.indexOf(':') >= 0 || name.matches("[0-9.]+")) {
+            return name.replace('.', '-').replace(':', '-');
+        }
+        int dot = name.indexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    /**
+     * Starts the selector thread.
+     */
+    void startLoop() {
+        this.thread.start();
+    }
+
+    /**
+     * Runs the given command in the selector thread.
+     */
+    void execute(Runnable command) {
+        if (Thread.currentThread() == thread) {
+            command.run();
+            return;
+        }
+        commands.add(command);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the given call in the selector thread and waits for its result.
+     * @return the result, or <code>null</code> if the engine is closed or
+     * the current thread is interrupted.
+     */
+    <T> T call(Callable<T> callable) {
+        FutureTask<T> task = new FutureTask<T>(callable);
+        if (!running) {
+            return null;
+        }
+        execute(task);
+        try {
+            return task.get();
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+
+        } catch (CancellationException e) {
+            return null;
+
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Runs the engine until it is closed.
+     */
+    private void loop() {
+        List<Task> expired = new ArrayList<Task>();
+        try {
+            while (running) {
+                Runnable command;
+                while ((command = commands.poll()) != null) {
+                    runSafely(command);
+                }
+                long now = System.currentTimeMillis();
+                wheel.advance(now, expired);
+                for (Task task : expired) {
+                    task.timeout = null;
+                    try {
+                        task.run(now);
+                    } catch (RuntimeException e) {
+                        log.error("The " + kind + " timer " + task +
+                                " failed", e);
+                    }
+                }
+                expired.clear();
+                selector.select(TICK);
+                if (!selector.selectedKeys().isEmpty()) {
+                    selected(selector.selectedKeys());
+                    selector.selectedKeys().clear();
+                }
+            }
+        } catch (IOException e) {
+            log.error("The " + kind + " engine of " + hostName + " stopped",
+                    e);
+            Delegate current = delegate;
+            if (current != null) {
+                current.cannotRecoverFromIOError(this, Collections
+                        .<ServiceInfo>emptyList());
+            }
+
+        } finally {
+            running = false;
+            Runnable command;
+            while ((command = commands.poll()) != null) {
+                if (command instanceof Future) {
+                    ((Future<?>) command).cancel(false);
+                }
+            }
+            try {
+                closeChannels();
+                selector.close();
+            } catch (IOException e) {
+                log.debug("Failed to close the channels of the " + kind +
+                        " engine", e);
+            }
+        }
+    }
+
+    private void runSafely(Runnable command) {
+        try {
+            command.run();
+        } catch (RuntimeException e) {
+            log.error("The " + kind + " command " + command + " failed", e);
+        }
+    }
+
+    void schedule(Task task, long time) {
+        if (task.timeout != null) {
+            wheel.cancel(task.timeout);
+        }
+        task.deadline = time;
+        task.timeout = wheel.schedule(task, time);
+    }
+
+    void unschedule(Task task) {
+        if (task.timeout != null) {
+            wheel.cancel(task.timeout);
+            task.timeout = null;
+        }
+    }
+
+    /**
+     * Handles the channels of the engine selected, in the selector thread.
+     * @param keys are the selected keys, cleared once they are handled.
+     * @throws IOException if the engine can't recover, which stops it.
+     */
+    abstract void selected(Set<SelectionKey> keys) throws IOException;
+
+    /**
+     * Closes the channels of the engine, in the selector thread once it
+     * stops.
+     */
+    abstract void closeChannels() throws IOException;
+
+    /**
+     * Adds the given listener of the given type, browsing the type if it
+     * was not, in the selector thread.
+     */
+    abstract void addListener(String type, ServiceListener listener);
+
+    /**
+     * Removes the given listener of the given type, no longer browsing the
+     * type once it has no listener, in the selector thread.
+     */
+    abstract void removeListener(String type, ServiceListener listener);
+
+    /**
+     * @return whether the given type is browsed, in the selector thread.
+     */
+    abstract boolean isBrowsed(String type);
+
+    /**
+     * Reports the given instance of a browsed type resolved to the
+     * listeners of its type if it is, or resolves it, in the selector
+     * thread.
+     */
+    abstract void resolveInstance(String type, String name);
+
+    /**
+     * @return the given instance of a browsed type if it is resolved, or
+     * <code>null</code>, in the selector thread.
+     */
+    abstract ServiceInfo getResolved(String type, String name);
+
+    /**
+     * @return the resolved instances of the given browsed type, in the
+     * selector thread.
+     */
+    abstract List<ServiceInfo> listResolved(String type);
+
+    // ----------------------------------------------------------------
+    // the jmDNS API
+    // ----------------------------------------------------------------
+
+    @Override
+    public String getName() {
+        return hostName.substring(0, hostName.indexOf('.'));
+    }
+
+    @Override
+    public String getHostName() {
+        return this.hostName;
+    }
+
+    @Override
+    public InetAddress getInterface() {
+        return this.address;
+    }
+
+    @Override
+    public void addServiceListener(final String type,
+            final ServiceListener listener) {
+        execute(new Runnable() {
+            public void run() {
+                addListener(type, listener);
+            }
+        });
+    }
+
+    @Override
+    public void removeServiceListener(final String type,
+            final ServiceListener listener) {
+        execute(new Runnable() {
+            public void run() {
+                removeListener(type, listener);
+            }
+        });
+    }
+
+    @Override
+    public void requestServiceInfo(String type, String name) {
+        requestServiceInfo(type, name, false, LOOKUP_TIMEOUT);
+    }
+
+    @Override
+    public void requestServiceInfo(String type, String name,
+            boolean persistent) {
+        requestServiceInfo(type, name, persistent, LOOKUP_TIMEOUT);
+    }
+
+    @Override
+    public void requestServiceInfo(String type, String name, long timeout) {
+        requestServiceInfo(type, name, false, timeout);
+    }
+
+    /**
+     * Reports the instance of a browsed type resolved to the listeners of
+     * its type right away if it is, or resolves it. Never blocks.
+     */
+    @Override
+    public void requestServiceInfo(final String type, final String name,
+            boolean persistent, long timeout) {
+        execute(new Runnable() {
+            public void run() {
+                resolveInstance(type, name);
+            }
+        });
+    }
+
+    @Override
+    public ServiceInfo getServiceInfo(String type, String name) {
+        return getServiceInfo(type, name, false, LOOKUP_TIMEOUT);
+    }
+
+    @Override
+    public ServiceInfo getServiceInfo(String type, String name,
+            long timeout) {
+        return getServiceInfo(type, name, false, timeout);
+    }
+
+    @Override
+    public ServiceInfo getServiceInfo(String type, String name,
+            boolean persistent) {
+        return getServiceInfo(type, name, persistent, LOOKUP_TIMEOUT);
+    }
+
+    /**
+     * Waits until the given instance of a browsed type is resolved.
+     */
+    @Override
+    public ServiceInfo getServiceInfo(final String type, final String name,
+            boolean persistent, long timeout) {
+        Callable<ServiceInfo> lookup = new Callable<ServiceInfo>() {
+            public ServiceInfo call() {
+                return getResolved(type, name);
+            }
+        };
+        long deadline = System.currentTimeMillis() + timeout;
+        requestServiceInfo(type, name, persistent, timeout);
+        ServiceInfo info = call(lookup);
+        while (info == null && running && Thread.currentThread() != thread &&
+                System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(TICK);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            info = call(lookup);
+        }
+        return info;
+    }
+
+    /**
+     * Not supported: the clients of the engines browse the service types
+     * they are given, and never enumerate the types of the network. Use the
+     * {@link SvnEdgeMdnsEngineType#JMDNS} engine to enumerate them.
+     * @throws UnsupportedOperationException always.
+     */
+    @Override
+    public void addServiceTypeListener(ServiceTypeListener listener) {
+        throw new UnsupportedOperationException("The service types are not " +
+                "enumerated by the " + kind + " engine");
+    }
+
+    @Override
+    public void removeServiceTypeListener(ServiceTypeListener listener) {
+        // never added.
+    }
+
+    /**
+     * The types are not announced by the engines.
+     * @return <code>false</code> always.
+     */
+    @Override
+    public boolean registerServiceType(String type) {
+        return false;
+    }
+
+    /**
+     * Logs the state of this engine.
+     * @deprecated as in jmDNS, use {@link #toString()}.
+     */
+    @Deprecated
+    @Override
+    public void printServices() {
+        log.info(toString());
+    }
+
+    @Override
+    public ServiceInfo[] list(String type) {
+        return list(type, LOOKUP_TIMEOUT);
+    }
+
+    /**
+     * @return the resolved instances of the given type. In case the type is
+     * not browsed yet, it is browsed for the given time only, collecting its
+     * instances.
+     */
+    @Override
+    public ServiceInfo[] list(final String type, long timeout) {
+        final ServiceListener collector = new ServiceListener() {
+            public void serviceAdded(ServiceEvent event) {
+            }
+
+            public void serviceRemoved(ServiceEvent event) {
+            }
+
+            public void serviceResolved(ServiceEvent event) {
+            }
+        };
+        Boolean added = call(new Callable<Boolean>() {
+            public Boolean call() {
+                if (isBrowsed(type)) {
+                    return false;
+                }
+                addListener(type, collector);
+                return true;
+            }
+        });
+        final boolean browsed = Boolean.TRUE.equals(added);
+        List<ServiceInfo> resolved;
+        try {
+            if (browsed) {
+                try {
+                    Thread.sleep(timeout);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            resolved = call(new Callable<List<ServiceInfo>>() {
+                public List<ServiceInfo> call() {
+                    return listResolved(type);
+                }
+            });
+        } finally {
+            if (browsed) {
+                // the type is no longer browsed, unless other listeners are.
+                removeServiceListener(type, collector);
+            }
+        }
+        return resolved == null ? new ServiceInfo[0] :
+            resolved.toArray(new ServiceInfo[resolved.size()]);
+    }
+
+    @Override
+    public Map<String, ServiceInfo[]> listBySubtype(String type) {
+        return listBySubtype(type, LOOKUP_TIMEOUT);
+    }
+
+    /**
+     * @return the resolved instances of the given type, under the empty
+     * subtype, as the subtypes are not browsed by the engines.
+     */
+    @Override
+    public Map<String, ServiceInfo[]> listBySubtype(String type,
+            long timeout) {
+        Map<String, ServiceInfo[]> bySubtype =
+            new HashMap<String, ServiceInfo[]>();
+        bySubtype.put("", list(type, timeout));
+        return bySubtype;
+    }
+
+    @Override
+    public Delegate getDelegate() {
+        return this.delegate;
+    }
+
+    @Override
+    public Delegate setDelegate(Delegate newDelegate) {
+        Delegate previous = this.delegate;
+        this.delegate = newDelegate;
+        return previous;
+    }
+
+    /**
+     * Unregisters the services and stops the selector thread.
+     */
+    public void close() throws IOException {
+        if (!running) {
+            return;
+        }
+        unregisterAllServices();
+        running = false;
+        selector.wakeup();
+        if (Thread.currentThread() != thread) {
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        log.debug("Closed the " + kind + " engine of " + hostName);
+    }
+
+    /**
+     * @return whether the engine is closed.
+     */
+    boolean isClosed() {
+        return !running;
+    }
+
+    /**
+     * @return the counters of the traffic of the engine.
+     */
+    SvnEdgeMdnsCounters getCounters() {
+        return this.counters;
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the DNS messages sent by the {@link SvnEdgeNioMdns} and
+ * {@link SvnEdgeUnicastDnsSd} engines, such as the queries and the dynamic
+ * updates, into a reused direct buffer of the size of a packet, compressing
+ * the repeated names. A question or a record that does not fit is left out, so that the
+ * caller can send the packet and write the rest in the next one. Not
+ * thread-safe.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+final class SvnEdgeDnsWriter {
+
+    static final int QUESTION = 0;
+    static final int ANSWER = 1;
+    static final int AUTHORITY = 2;
+    static final int ADDITIONAL = 3;
+    /**
+     * The size of the header, followed by the questions.
+     */
+    private static final int HEADER_SIZE = 12;
+    /**
+     * The maximum offset of a compression pointer.
+     */
+    private static final int MAX_POINTER = 0x3FFF;
+    private static final int MAX_LABEL_LENGTH = 63;
+    /**
+     * The EDNS0 option of the lease of the records of a dynamic update.
+     */
+    static final int OPTION_UPDATE_LEASE = 2;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer buffer;
+    /**
+     * The offsets of the names written, by lower case name, to be pointed
+     * to by the following names.
+     */
+    private final Map<String, Integer> offsets = new HashMap<String, Integer>();
+    /**
+     * The names added to the offsets by the entry being written, removed in
+     * case it does not fit.
+     */
+    private final List<String> added = new ArrayList<String>();
+    private final int[] counts = new int[4];
+    /**
+     * The section being written: the entries are written in the order of
+     * the sections.
+     */
+    private int section;
+
+    /**
+     * @param packetSize is the maximum size of the packets written.
+     */
+    SvnEdgeDnsWriter(int packetSize) {
+        this.buffer = ByteBuffer.allocateDirect(packetSize);
+    }
+
+    /**
+     * Starts a new message.
+     * @param id is the id of the message, 0 for multicast.
+     * @param flags are the flags of the message.
+     */
+    void reset(int id, int flags) {
+        buffer.clear();
+        offsets.clear();
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+        }
+        section = QUESTION;
+        buffer.putShort((short) id);
+        buffer.putShort((short) flags);
+        buffer.put(new byte[HEADER_SIZE - 4]);
+    }
+
+    /**
+     * @param flags replace the flags of the message being written.
+     */
+    void setFlags(int flags) {
+        buffer.putShort(2, (short) flags);
+    }
+
+    /**
+     * @param name is the name asked.
+     * @param type is the type of the records asked.
+     * @param unicast whether a unicast response is asked.
+     * @return whether the question fits in the packet.
+     */
+    boolean addQuestion(String name, int type, boolean unicast) {
+        checkSection(QUESTION);
+        int mark = buffer.position();
+        added.clear();
+        try {
+            writeName(name);
+            buffer.putShort((short) type);
+            buffer.putShort((short) (SvnEdgeDnsRecord.CLASS_IN |
+                    (unicast ? SvnEdgeDnsRecord.CLASS_UNIQUE : 0)));
+
+        } catch (BufferOverflowException e) {
+            rollback(mark);
+            return false;
+        }
+        counts[QUESTION]++;
+        return true;
+    }
+
+    /**
+     * @param recordSection is the section of the record, not before the
+     * section of the last entry.
+     * @param record is the record.
+     * @return whether the record fits in the packet.
+     */
+    boolean addRecord(int recordSection, SvnEdgeDnsRecord record) {
+        return addRecord(recordSection, record, SvnEdgeDnsRecord.CLASS_IN |
+                (record.isUnique() ? SvnEdgeDnsRecord.CLASS_UNIQUE : 0),
+                record.getTtl());
+    }
+
+    /**
+     * @param record is a record to delete from its set by a dynamic update.
+     * @return whether the deletion fits in the packet.
+     */
+    boolean addDeletion(SvnEdgeDnsRecord record) {
+        return addRecord(AUTHORITY, record, SvnEdgeDnsRecord.CLASS_NONE, 0);
+    }
+
+    /**
+     * @param name is the name whose records of the given type are deleted by
+     * a dynamic update.
+     * @param type is the type of the records, or
+     * {@link SvnEdgeDnsRecord#TYPE_ANY} for all of them.
+     * @return whether the deletion fits in the packet.
+     */
+    boolean addSetDeletion(String name, int type) {
+        return addEmptyRecord(AUTHORITY, name, type,
+                SvnEdgeDnsRecord.CLASS_ANY, 0);
+    }
+
+    /**
+     * @param name is a name that must not be in use for a dynamic update to
+     * be applied.
+     * @return whether the prerequisite fits in the packet.
+     */
+    boolean addNameNotInUse(String name) {
+        return addEmptyRecord(ANSWER, name, SvnEdgeDnsRecord.TYPE_ANY,
+                SvnEdgeDnsRecord.CLASS_NONE, 0);
+    }
+
+    /**
+     * Adds the EDNS0 record telling the largest response accepted.
+     * @param payloadSize is the size of the largest response accepted.
+     * @param lease is the lease of the records of a dynamic update in
+     * seconds, after which the server removes them, or 0 for none.
+     * @return whether the record fits in the packet.
+     */
+    boolean addEdns(int payloadSize, int lease) {
+        checkSection(ADDITIONAL);
+        int mark = buffer.position();
+        added.clear();
+        try {
+            buffer.put((byte) 0);
+            buffer.putShort((short) SvnEdgeDnsRecord.TYPE_OPT);
+            buffer.putShort((short) payloadSize);
+            buffer.putInt(0);
+            if (lease > 0) {
+                buffer.putShort((short) 8);
+                buffer.putShort((short) OPTION_UPDATE_LEASE);
+                buffer.putShort((short) 4);
+                buffer.putInt(lease);
+            } else {
+                buffer.putShort((short) 0);
+            }
+        } catch (BufferOverflowException e) {
+            rollback(mark);
+            return false;
+        }
+        counts[ADDITIONAL]++;
+        return true;
+    }
+
+    private boolean addEmptyRecord(int recordSection, String name, int type,
+            int recordClass, int ttl) {
+        checkSection(recordSection);
+        int mark = buffer.position();
+        added.clear();
+        try {
+            writeName(name);
+            buffer.putShort((short) type);
+            buffer.putShort((short) recordClass);
+            buffer.putInt(ttl);
+            buffer.putShort((short) 0);
+
+        } catch (BufferOverflowException e) {
+            rollback(mark);
+            return false;
+        }
+        counts[recordSection]++;
+        return true;
+    }
+
+    private boolean addRecord(int recordSection, SvnEdgeDnsRecord record,
+            int recordClass, int ttl) {
+        checkSection(recordSection);
+        int mark = buffer.position();
+        added.clear();
+        try {
+            writeName(record.getName());
+            buffer.putShort((short) record.getType());
+            buffer.putShort((short) recordClass);
+            buffer.putInt(ttl);
+            int lengthPosition = buffer.position();
+            buffer.putShort((short) 0);
+            switch (record.getType()) {
+            case SvnEdgeDnsRecord.TYPE_PTR:
+                writeName(record.getTarget());
+                break;
+            case SvnEdgeDnsRecord.TYPE_SRV:
+                buffer.putShort((short) record.getPriority());
+                buffer.putShort((short) record.getWeight());
+                buffer.putShort((short) record.getPort());
+                writeName(record.getTarget());
+                break;
+            case SvnEdgeDnsRecord.TYPE_TXT:
+                buffer.put(record.getText());
+                break;
+            default:
+                buffer.put(record.getAddress().getAddress());
+            }
+            buffer.putShort(lengthPosition, (short) (buffer.position() -
+                    lengthPosition - 2));
+
+        } catch (BufferOverflowException e) {
+            rollback(mark);
+            return false;
+        }
+        counts[recordSection]++;
+        return true;
+    }
+
+    private void checkSection(int entrySection) {
+        if (entrySection < section) {
+            throw new IllegalStateException("The section " + entrySection +
+                    " is written after the section " + section);
+        }
+        section = entrySection;
+    }
+
+    /**
+     * Removes the entry that did not fit.
+     */
+    private void rollback(int mark) {
+        buffer.position(mark);
+        for (String name : added) {
+            offsets.remove(name);
+        }
+    }
+
+    /**
+     * Writes the given name, pointing to the longest suffix already
+     * written.
+     */
+    private void writeName(String name) {
+        List<String> labels = labelsOf(name);
+        for (int i = 0; i < labels.size(); i++) {
+            StringBuilder suffix = new StringBuilder();
+            for (int j = i; j < labels.size(); j++) {
+                suffix.append(labels.get(j)).append('.');
+            }
+            String key = suffix.toString().toLowerCase();
+            Integer offset = offsets.get(key);
+            if (offset != null) {
+                buffer.putShort((short) (0xC000 | offset));
+                return;
+            }
+            if (buffer.position() <= MAX_POINTER) {
+                offsets.put(key, buffer.position());
+                added.add(key);
+            }
+            byte[] label = labels.get(i).getBytes(UTF8);
+            if (label.length > MAX_LABEL_LENGTH) {
+                throw new IllegalArgumentException("The label " +
+                        labels.get(i) + " is longer than " +
+                        MAX_LABEL_LENGTH + " bytes");
+            }
+            buffer.put((byte) label.length);
+            buffer.put(label);
+        }
+        buffer.put((byte) 0);
+    }
+
+    /**
+     * @param name is a dotted name.
+     * @return the labels of the name. The name of a service instance, such
+     * as "My Server (2)._csvn._tcp.local.", keeps the dots of its first
+     * label.
+     */
+    static List<String> labelsOf(String name) {
+        List<String> labels = new ArrayList<String>();
+        String rest = name.endsWith(".") ? name.substring(0,
+                name.length() - 1) : name;
+        int protocol = Math.max(rest.lastIndexOf("._tcp."),
+                rest.lastIndexOf("._udp."));
+        if (protocol > 0) {
+            int application = rest.lastIndexOf("._", protocol - 1);
+            if (application > 0) {
+                labels.add(rest.substring(0, application));
+                rest = rest.substring(application + 1);
+            }
+        }
+        for (String label : rest.split("\\.")) {
+            if (label.length() > 0) {
+                labels.add(label);
+            }
+        }
+        return labels;
+    }
+
+    /**
+     * @param entrySection is a section.
+     * @return the number of entries written in the given section.
+     */
+    int getCount(int entrySection) {
+        return this.counts[entrySection];
+    }
+
+    /**
+     * @return whether no entries were written since the reset.
+     */
+    boolean isEmpty() {
+        return counts[QUESTION] + counts[ANSWER] + counts[AUTHORITY] +
+                counts[ADDITIONAL] == 0;
+    }
+
+    /**
+     * Completes the message with the counts of the sections.
+     * @return the buffer, ready to be sent.
+     */
+    ByteBuffer finish() {
+        for (int i = 0; i < counts.length; i++) {
+            buffer.putShort(4 + 2 * i, (short) counts[i]);
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
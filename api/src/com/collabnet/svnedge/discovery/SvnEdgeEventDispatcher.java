@@ -0,0 +1,211 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.log4j.Logger;
+
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceType;
+
+/**
+ * The SvnEdge Event Dispatcher hands the {@link SvnEdgeServerInfo} events
+ * captured by jmDNS to the {@link SvnEdgeServersListener}s using an
+ * {@link Executor}, so that the jmDNS threads are never blocked by the
+ * observers. Each listener has its own bounded {@link SvnEdgeListenerQueue}
+ * delivered serially, so that the events of the same server are received in
+ * order, while different listeners are called concurrently.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public final class SvnEdgeEventDispatcher {
+
+    private static final Logger log = Logger.getLogger(
+            SvnEdgeEventDispatcher.class);
+    /**
+     * The prefix of the name of the threads created by the default executor.
+     */
+    private static final String THREAD_NAME_PREFIX = "SvnEdge-Dispatcher-";
+    /**
+     * The number of threads of the default executor.
+     */
+    private static final int DEFAULT_POOL_SIZE = Math.max(2,
+            Runtime.getRuntime().availableProcessors());
+    /**
+     * The executor running the delivery of the events.
+     */
+    private volatile Executor executor;
+    /**
+     * Whether the executor was created by this dispatcher and must be shut
+     * down by it.
+     */
+    private volatile boolean ownsExecutor;
+
+    /**
+     * Creates a new dispatcher with its own pool of daemon threads.
+     */
+    public SvnEdgeEventDispatcher() {
+        this.executor = newDefaultExecutor();
+        this.ownsExecutor = true;
+    }
+
+    /**
+     * Creates a new dispatcher that delivers the events using the given
+     * executor. The executor is not shut down by {@link #shutdown()}.
+     * @param executor is the executor used to run the observers.
+     */
+    public SvnEdgeEventDispatcher(Executor executor) {
+        setExecutor(executor);
+    }
+
+    /**
+     * Replaces the executor delivering the events. In case the previous
+     * executor was created by this dispatcher, it is shut down after
+     * delivering the events already scheduled on it.
+     * @param executor is the executor used to run the observers. It is not
+     * shut down by {@link #shutdown()}.
+     */
+    public void setExecutor(Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("The executor must be provided");
+        }
+        replaceExecutor(executor, false);
+    }
+
+    /**
+     * Goes back to a pool of daemon threads of this dispatcher, in case the
+     * executor was replaced.
+     */
+    void resetExecutor() {
+        if (!ownsExecutor) {
+            replaceExecutor(newDefaultExecutor(), true);
+        }
+    }
+
+    /**
+     * Replaces the executor, shutting down the previous one in case it was
+     * created by this dispatcher.
+     * @param executor is the new executor.
+     * @param owned whether the new executor is shut down by this dispatcher.
+     */
+    private void replaceExecutor(Executor executor, boolean owned) {
+        Executor previous = this.executor;
+        boolean ownedPrevious = this.ownsExecutor;
+        this.executor = executor;
+        this.ownsExecutor = owned;
+        if (ownedPrevious) {
+            ((ExecutorService) previous).shutdown();
+        }
+    }
+
+    /**
+     * @return a new pool of daemon threads delivering the events.
+     */
+    private static ExecutorService newDefaultExecutor() {
+        return Executors.newFixedThreadPool(DEFAULT_POOL_SIZE,
+                new SvnEdgeThreadFactory(THREAD_NAME_PREFIX));
+    }
+
+    /**
+     * Creates the queue of events of the given listener.
+     * @param listener is the listener receiving the events.
+     * @param serviceType is the service type of the events of the listener,
+     * or <code>null</code> for the events of all the service types.
+     * @param capacity is the maximum number of events pending delivery.
+     * @param policy is the policy when the queue is full.
+     * @return the new queue for the listener.
+     */
+    public SvnEdgeListenerQueue newQueue(SvnEdgeServersListener listener,
+            SvnEdgeServiceType serviceType, int capacity,
+            SvnEdgeOverflowPolicy policy) {
+        return new SvnEdgeListenerQueue(listener, serviceType, capacity,
+                policy, this);
+    }
+
+    /**
+     * Dispatches the given server information to each of the given queues
+     * interested in its service type, without allocating an iterator.
+     * This method never runs any of the observers in the caller's thread.
+     * The queues whose policy is {@link SvnEdgeOverflowPolicy#BLOCK} are
+     * waited for beforehand by {@link SvnEdgeListenerRegistry#awaitCapacity()},
+     * so that the event is rejected only if another thread filled the queue
+     * in the meantime.
+     * @param serverInfo is the server information to be delivered.
+     * @param queues are the queues of the observers interested in the event.
+     */
+    void dispatch(SvnEdgeServerInfo serverInfo,
+            SvnEdgeListenerQueue[] queues) {
+        for (int i = 0; i < queues.length; i++) {
+            if (queues[i].accepts(serverInfo)) {
+                queues[i].offer(serverInfo);
+            }
+        }
+    }
+
+    /**
+     * Runs the given delivery in the current executor.
+     * @param delivery is the delivery of the pending events of a queue.
+     */
+    void execute(Runnable delivery) {
+        executor.execute(delivery);
+    }
+
+    /**
+     * Calls the observer with the given event, making sure that any failure
+     * does not affect the other observers.
+     * @param observer is the observer.
+     * @param serverInfo is the server information.
+     */
+    static void deliver(SvnEdgeServersListener observer,
+            SvnEdgeServerInfo serverInfo) {
+        try {
+            switch (serverInfo.getEvent()) {
+            case SERVER_RUNNING:
+                observer.csvnServerIsRunning(serverInfo);
+                break;
+            case SERVER_SHUTDOWN:
+                observer.csvnServerStopped(serverInfo);
+                break;
+            case SERVER_UPDATED:
+                if (observer instanceof SvnEdgeServerUpdatesListener) {
+                    ((SvnEdgeServerUpdatesListener) observer)
+                            .csvnServerUpdated(serverInfo);
+                } else {
+                    observer.csvnServerIsRunning(serverInfo);
+                }
+                break;
+            }
+        } catch (RuntimeException e) {
+            log.error("The observer " + observer + " failed to handle " +
+                    serverInfo, e);
+        }
+    }
+
+    /**
+     * Shuts down the executor in case it was created by this dispatcher. Any
+     * event dispatched afterwards is discarded.
+     */
+    public void shutdown() {
+        if (ownsExecutor) {
+            ((ExecutorService) executor).shutdown();
+        }
+    }
+}
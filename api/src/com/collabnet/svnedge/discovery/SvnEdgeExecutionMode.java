@@ -0,0 +1,43 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+/**
+ * Defines the threads running the listener callbacks, the hostname lookups
+ * and the tasks submitted to an {@link SvnEdgeBonjourClient}.
+ * 
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public enum SvnEdgeExecutionMode {
+
+    /**
+     * The callbacks run on a fixed pool of daemon threads, and the lookups
+     * on the pool shared by all the clients. Listeners doing blocking I/O
+     * should hand it to their own threads or to
+     * {@link SvnEdgeBonjourClient#submitTask(java.util.concurrent.Callable)}.
+     */
+    PLATFORM_THREADS,
+    /**
+     * Each delivery of events to a listener, each hostname lookup and each
+     * submitted task runs on its own virtual thread, so that listeners can
+     * block without holding a platform thread. On JVMs without virtual
+     * threads, a growing pool of daemon threads is used instead.
+     */
+    VIRTUAL_THREADS
+}
@@ -0,0 +1,329 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The SvnEdge Expiry Sweeper expires the servers that leave the network
+ * without sending goodbye packets, whose removal jmDNS may never report.
+ * Each server reported running is tracked with the TTL of its records and
+ * checked once 80% of the TTL may have elapsed since it was last seen:
+ * <ul>
+ * <li>A server whose records were refreshed in the last half of the TTL is
+ * checked again 30% of the TTL later.</li>
+ * <li>A server whose records are stale is queried, as RFC 6762 requires
+ * before a record expires, and checked again 10% of the TTL later.</li>
+ * <li>A server whose records expired or left the jmDNS cache is reported
+ * stopped.</li>
+ * </ul>
+ * The checks are kept in a hierarchical timer wheel advanced by a single
+ * thread, so that tracking a server costs O(1) whatever the number of
+ * servers.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public final class SvnEdgeExpirySweeper {
+
+    private static final Logger log = Logger.getLogger(
+            SvnEdgeExpirySweeper.class);
+    /**
+     * The TTL used when the TTL of the records of a server is unknown, which
+     * is the TTL of the records published by jmDNS, in milliseconds.
+     */
+    public static final long DEFAULT_TTL = TimeUnit.HOURS.toMillis(1);
+    /**
+     * The default precision of the checks, in milliseconds.
+     */
+    public static final long DEFAULT_TICK = TimeUnit.SECONDS.toMillis(1);
+    /**
+     * The minimum delay between the checks of a server, in milliseconds.
+     */
+    private static final long MIN_RECHECK = TimeUnit.SECONDS.toMillis(1);
+
+    /**
+     * The state of the records of a server in the jmDNS cache.
+     */
+    enum RecordState {
+        /**
+         * Received in the last half of their TTL.
+         */
+        FRESH,
+        /**
+         * Received more than half of their TTL ago.
+         */
+        STALE,
+        /**
+         * Expired or no longer in the cache.
+         */
+        EXPIRED,
+        /**
+         * The cache cannot be inspected.
+         */
+        UNKNOWN
+    }
+
+    /**
+     * Inspects and refreshes the records of the servers.
+     */
+    interface Probe {
+        /**
+         * @param serverInfo is a tracked server.
+         * @return the TTL of the records of the server in milliseconds, or
+         * a negative value if unknown.
+         */
+        long getTtl(SvnEdgeServerInfo serverInfo);
+
+        /**
+         * @param serverInfo is a tracked server.
+         * @return the state of the records of the server.
+         */
+        RecordState getRecordState(SvnEdgeServerInfo serverInfo);
+
+        /**
+         * Queries the records of the given server, without waiting for the
+         * answers.
+         * @param serverInfo is a tracked server.
+         */
+        void refresh(SvnEdgeServerInfo serverInfo);
+    }
+
+    /**
+     * Receives the expired servers.
+     */
+    interface Sink {
+        /**
+         * @param serverInfo is the last state of the expired server.
+         */
+        void expired(SvnEdgeServerInfo serverInfo);
+    }
+
+    /**
+     * A tracked server.
+     */
+    private static final class Entry {
+        private final String key;
+        private SvnEdgeServerInfo serverInfo;
+        private long ttl;
+        private SvnEdgeTimerWheel.Timeout<Entry> timeout;
+
+        private Entry(String key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * The precision of the checks in milliseconds.
+     */
+    private final long tick;
+    /**
+     * The tracked servers by server key.
+     */
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    /**
+     * The checks of the tracked servers.
+     */
+    private SvnEdgeTimerWheel<Entry> wheel;
+    private Probe probe;
+    private Sink sink;
+    /**
+     * The thread advancing the wheel.
+     */
+    private ScheduledExecutorService timer;
+    private long refreshedCount;
+    private long expiredCount;
+
+    /**
+     * Creates a new sweeper checking the servers with the default precision.
+     */
+    public SvnEdgeExpirySweeper() {
+        this(DEFAULT_TICK);
+    }
+
+    /**
+     * Creates a new sweeper.
+     * @param tick is the precision of the checks in milliseconds.
+     */
+    public SvnEdgeExpirySweeper(long tick) {
+        if (tick <= 0) {
+            throw new IllegalArgumentException("The tick must be positive");
+        }
+        this.tick = tick;
+    }
+
+    /**
+     * Attaches this sweeper to the client of the servers.
+     * @param newProbe inspects the records of the servers.
+     * @param newSink receives the expired servers.
+     */
+    synchronized void attach(Probe newProbe, Sink newSink) {
+        if (this.sink != null) {
+            throw new IllegalStateException("The expiry sweeper is already " +
+                    "used by another client");
+        }
+        this.probe = newProbe;
+        this.sink = newSink;
+        this.wheel = new SvnEdgeTimerWheel<Entry>(tick,
+                System.currentTimeMillis());
+        this.timer = Executors.newSingleThreadScheduledExecutor(
+                new SvnEdgeThreadFactory("SvnEdge-Expiry-Sweeper-"));
+        this.timer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    sweep();
+                } catch (RuntimeException e) {
+                    log.error("Failed to sweep the expired servers", e);
+                }
+            }
+        }, tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the thread of this sweeper and forgets the tracked servers.
+     */
+    synchronized void shutdown() {
+        if (this.timer != null) {
+            this.timer.shutdownNow();
+        }
+        this.entries.clear();
+        if (this.wheel != null) {
+            this.wheel = new SvnEdgeTimerWheel<Entry>(tick,
+                    System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Tracks the given server, which has just been seen running.
+     * @param serverInfo is the running server.
+     */
+    void track(SvnEdgeServerInfo serverInfo) {
+        long ttl = probe.getTtl(serverInfo);
+        synchronized (this) {
+            if (wheel == null) {
+                return;
+            }
+            Entry entry = entries.get(serverInfo.getServerKey());
+            if (entry == null) {
+                entry = new Entry(serverInfo.getServerKey());
+                entries.put(entry.key, entry);
+            } else {
+                wheel.cancel(entry.timeout);
+            }
+            entry.serverInfo = serverInfo;
+            entry.ttl = ttl > 0 ? ttl : DEFAULT_TTL;
+            schedule(entry, entry.ttl * 4 / 5);
+        }
+    }
+
+    /**
+     * Stops tracking the given server, which has been reported stopped.
+     * @param serverInfo is the stopped server.
+     */
+    synchronized void untrack(SvnEdgeServerInfo serverInfo) {
+        Entry entry = entries.remove(serverInfo.getServerKey());
+        if (entry != null) {
+            wheel.cancel(entry.timeout);
+        }
+    }
+
+    private void schedule(Entry entry, long delay) {
+        entry.timeout = wheel.schedule(entry, System.currentTimeMillis() +
+                Math.max(delay, MIN_RECHECK));
+    }
+
+    /**
+     * Checks the servers whose TTL may have elapsed. The probe and the sink
+     * are called outside of the lock of this sweeper, as the client calls
+     * it while publishing.
+     */
+    private void sweep() {
+        List<Entry> due = new ArrayList<Entry>();
+        synchronized (this) {
+            wheel.advance(System.currentTimeMillis(), due);
+        }
+        for (Entry entry : due) {
+            SvnEdgeServerInfo serverInfo;
+            synchronized (this) {
+                if (entries.get(entry.key) != entry) {
+                    continue;
+                }
+                serverInfo = entry.serverInfo;
+            }
+            RecordState state = probe.getRecordState(serverInfo);
+            if (state == RecordState.STALE) {
+                probe.refresh(serverInfo);
+            }
+            synchronized (this) {
+                // tracked again or stopped while being checked.
+                if (entries.get(entry.key) != entry ||
+                        entry.timeout.isScheduled()) {
+                    continue;
+                }
+                switch (state) {
+                case FRESH:
+                    schedule(entry, entry.ttl * 3 / 10);
+                    continue;
+                case STALE:
+                    refreshedCount++;
+                    schedule(entry, entry.ttl / 10);
+                    continue;
+                case UNKNOWN:
+                    schedule(entry, entry.ttl);
+                    continue;
+                case EXPIRED:
+                    entries.remove(entry.key);
+                    expiredCount++;
+                    break;
+                }
+            }
+            log.debug("The server expired without goodbye " + serverInfo);
+            sink.expired(serverInfo);
+        }
+    }
+
+    /**
+     * @return the number of servers currently tracked.
+     */
+    public synchronized int getTrackedCount() {
+        return this.entries.size();
+    }
+
+    /**
+     * @return the number of times stale records were queried.
+     */
+    public synchronized long getRefreshedCount() {
+        return this.refreshedCount;
+    }
+
+    /**
+     * @return the number of servers reported stopped because their records
+     * expired.
+     */
+    public synchronized long getExpiredCount() {
+        return this.expiredCount;
+    }
+}
@@ -0,0 +1,435 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServerEvent;
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceType;
+
+/**
+ * The SvnEdge Flap Damper sits between the jmDNS events and the listeners of
+ * an {@link SvnEdgeBonjourClient}, so that servers that restart or briefly
+ * leave the network do not make the listeners churn.
+ * <ul>
+ * <li>A shutdown is held down for a window: in case the server is running
+ * again before the window ends, neither event is reported.</li>
+ * <li>Each transition between running and stopped adds a penalty to the
+ * server, which decays exponentially with the given half-life. A server
+ * whose penalty reaches the suppress threshold is damped: its transitions
+ * are not reported until the penalty decays below the reuse threshold, when
+ * its latest state is reported.</li>
+ * </ul>
+ * The events are decided holding the monitor of the damper, and reported to
+ * the sink in the same order after releasing it, so that the events of the
+ * other servers do not wait for the sink.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public final class SvnEdgeFlapDamper {
+
+    private static final Logger log = Logger.getLogger(
+            SvnEdgeFlapDamper.class);
+    /**
+     * The default hold-down window of a shutdown, in milliseconds.
+     */
+    public static final long DEFAULT_HOLD_DOWN = TimeUnit.SECONDS.toMillis(5);
+    /**
+     * The default half-life of the penalty, in milliseconds.
+     */
+    public static final long DEFAULT_HALF_LIFE = TimeUnit.MINUTES.toMillis(1);
+    /**
+     * The penalty added by each transition.
+     */
+    public static final double PENALTY_PER_FLAP = 1000;
+    /**
+     * The default penalty at which a server is damped.
+     */
+    public static final double DEFAULT_SUPPRESS_THRESHOLD = 3000;
+    /**
+     * The default penalty under which a damped server is reported again.
+     */
+    public static final double DEFAULT_REUSE_THRESHOLD = 750;
+
+    /**
+     * Receives the damped events.
+     */
+    interface Sink {
+        /**
+         * @param serverInfo is the event to be reported.
+         */
+        void publish(SvnEdgeServerInfo serverInfo);
+    }
+
+    /**
+     * The damping state of a server.
+     */
+    private static final class State {
+        private double penalty;
+        private long penaltyUpdatedAt;
+        private boolean suppressed;
+        private SvnEdgeServerInfo latest;
+        private SvnEdgeServerInfo reported;
+        private ScheduledFuture<?> pending;
+    }
+
+    private final long holdDown;
+    private final long halfLife;
+    private final double suppressThreshold;
+    private final double reuseThreshold;
+    /**
+     * The states by server key.
+     */
+    private final Map<String, State> states = new HashMap<String, State>();
+    /**
+     * The receiver of the damped events.
+     */
+    private Sink sink;
+    /**
+     * The thread reporting the held down and damped events.
+     */
+    private ScheduledExecutorService timer;
+    /**
+     * The number of events that were not reported.
+     */
+    private long suppressedEvents;
+    /**
+     * The events decided, to be reported to the sink in order.
+     */
+    private final ArrayDeque<SvnEdgeServerInfo> reports =
+            new ArrayDeque<SvnEdgeServerInfo>();
+    /**
+     * Whether a thread is reporting the decided events.
+     */
+    private boolean reporting;
+
+    /**
+     * Creates a new damper with the default windows and thresholds.
+     */
+    public SvnEdgeFlapDamper() {
+        this(DEFAULT_HOLD_DOWN, DEFAULT_HALF_LIFE, DEFAULT_SUPPRESS_THRESHOLD,
+                DEFAULT_REUSE_THRESHOLD);
+    }
+
+    /**
+     * Creates a new damper.
+     * @param holdDown is the time a shutdown is held in milliseconds. 0 reports
+     * the shutdowns immediately.
+     * @param halfLife is the half-life of the penalty in milliseconds.
+     * @param suppressThreshold is the penalty at which a server is damped. Each
+     * transition adds {@link #PENALTY_PER_FLAP}.
+     * @param reuseThreshold is the penalty under which a damped server is
+     * reported again.
+     */
+    public SvnEdgeFlapDamper(long holdDown, long halfLife,
+            double suppressThreshold, double reuseThreshold) {
+        if (reuseThreshold >= suppressThreshold) {
+            throw new IllegalArgumentException("The reuse threshold must be " +
+                    "lower than the suppress threshold");
+        }
+        this.holdDown = holdDown;
+        this.halfLife = halfLife;
+        this.suppressThreshold = suppressThreshold;
+        this.reuseThreshold = reuseThreshold;
+    }
+
+    /**
+     * Attaches this damper to the receiver of its events.
+     * @param newSink is the receiver of the damped events.
+     */
+    synchronized void attach(Sink newSink) {
+        if (this.sink != null) {
+            throw new IllegalStateException("The flap damper is already used" +
+                    " by another client");
+        }
+        this.sink = newSink;
+        this.timer = Executors.newSingleThreadScheduledExecutor(
+                new SvnEdgeThreadFactory("SvnEdge-Flap-Damper-"));
+    }
+
+    /**
+     * Stops the timer of this damper. The held events are discarded.
+     */
+    synchronized void shutdown() {
+        if (this.timer != null) {
+            this.timer.shutdownNow();
+        }
+        this.states.clear();
+        this.reports.clear();
+    }
+
+    /**
+     * Submits an event captured for a server. The event is reported to the
+     * sink after releasing the monitor of the damper.
+     * @param serverInfo is the event.
+     */
+    void submit(SvnEdgeServerInfo serverInfo) {
+        synchronized (this) {
+            decide(serverInfo);
+        }
+        flush();
+    }
+
+    /**
+     * Decides whether the given event is reported now, held down or damped.
+     * Must be called holding the monitor of the damper.
+     */
+    private void decide(SvnEdgeServerInfo serverInfo) {
+        String key = serverInfo.getServerKey();
+        State state = states.get(key);
+        if (state == null) {
+            state = new State();
+            states.put(key, state);
+        }
+        long now = System.currentTimeMillis();
+        decay(state, now);
+        boolean running = serverInfo.getEvent() ==
+            SvnEdgeServerEvent.SERVER_RUNNING;
+        if (state.latest != null && state.latest.getEvent() !=
+                serverInfo.getEvent()) {
+            state.penalty += PENALTY_PER_FLAP;
+        }
+        state.latest = serverInfo;
+        boolean wasSuppressed = state.suppressed;
+        if (!state.suppressed && state.penalty >= suppressThreshold) {
+            log.debug("Damping the flapping server " + key +
+                    " with penalty " + state.penalty);
+            state.suppressed = true;
+        }
+        if (cancelPending(state) && !wasSuppressed) {
+            // the held down shutdown is never reported.
+            suppressedEvents++;
+        }
+        if (state.suppressed) {
+            suppressedEvents++;
+            scheduleReuse(key, state);
+
+        } else if (!running && holdDown > 0) {
+            scheduleHoldDown(key, state);
+
+        } else {
+            report(state, serverInfo);
+        }
+    }
+
+    /**
+     * Decays the penalty of the given state up to the given time.
+     */
+    private void decay(State state, long now) {
+        if (state.penalty > 0) {
+            long elapsed = now - state.penaltyUpdatedAt;
+            state.penalty *= Math.pow(0.5, (double) elapsed / halfLife);
+        }
+        state.penaltyUpdatedAt = now;
+    }
+
+    /**
+     * @return whether a pending report was cancelled.
+     */
+    private boolean cancelPending(State state) {
+        if (state.pending == null) {
+            return false;
+        }
+        state.pending.cancel(false);
+        state.pending = null;
+        return true;
+    }
+
+    /**
+     * Queues the given event to be reported, unless it is the shutdown of a
+     * server that was never reported running. Must be called holding the
+     * monitor of the damper.
+     */
+    private void report(State state, SvnEdgeServerInfo serverInfo) {
+        boolean running = serverInfo.getEvent() ==
+            SvnEdgeServerEvent.SERVER_RUNNING;
+        if (!running && (state.reported == null || state.reported.getEvent()
+                != SvnEdgeServerEvent.SERVER_RUNNING)) {
+            suppressedEvents++;
+            return;
+        }
+        state.reported = serverInfo;
+        reports.add(serverInfo);
+    }
+
+    /**
+     * Reports the decided events to the sink, without holding the monitor of
+     * the damper. Only one thread reports at a time, so that the sink
+     * receives the events in the order they were decided: the events queued
+     * meanwhile by other threads are reported by the thread already
+     * reporting.
+     */
+    private void flush() {
+        Sink target;
+        synchronized (this) {
+            if (reporting || reports.isEmpty()) {
+                return;
+            }
+            reporting = true;
+            target = sink;
+        }
+        try {
+            while (true) {
+                SvnEdgeServerInfo serverInfo;
+                synchronized (this) {
+                    serverInfo = reports.poll();
+                    if (serverInfo == null) {
+                        reporting = false;
+                        return;
+                    }
+                }
+                target.publish(serverInfo);
+            }
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                // the next event reports the others.
+                reporting = false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Reports the latest state of the server after the hold-down window, in
+     * case it is still stopped. A running event cancels it.
+     */
+    private void scheduleHoldDown(final String key, final State state) {
+        state.pending = schedule(new Runnable() {
+            public void run() {
+                synchronized (SvnEdgeFlapDamper.this) {
+                    if (states.get(key) != state) {
+                        return;
+                    }
+                    state.pending = null;
+                    report(state, state.latest);
+                    forgetIfIdle(key, state);
+                }
+                flush();
+            }
+        }, holdDown);
+    }
+
+    /**
+     * Reports the latest state of a damped server once its penalty decays
+     * below the reuse threshold.
+     */
+    private void scheduleReuse(final String key, final State state) {
+        double halvings = Math.log(state.penalty / reuseThreshold) /
+            Math.log(2);
+        long delay = Math.max(0, (long) Math.ceil(halvings * halfLife));
+        state.pending = schedule(new Runnable() {
+            public void run() {
+                synchronized (SvnEdgeFlapDamper.this) {
+                    if (states.get(key) != state) {
+                        return;
+                    }
+                    state.pending = null;
+                    decay(state, System.currentTimeMillis());
+                    if (state.penalty >= reuseThreshold) {
+                        scheduleReuse(key, state);
+                        return;
+                    }
+                    log.debug("The server " + key + " is no longer damped.");
+                    state.suppressed = false;
+                    report(state, state.latest);
+                    forgetIfIdle(key, state);
+                }
+                flush();
+            }
+        }, delay);
+    }
+
+    /**
+     * Forgets a stopped server without penalty, so that the states do not
+     * grow with the servers that left the network.
+     */
+    private void forgetIfIdle(String key, State state) {
+        if (!state.suppressed && state.pending == null &&
+                state.latest.getEvent() == SvnEdgeServerEvent.SERVER_SHUTDOWN &&
+                state.penalty < PENALTY_PER_FLAP / 100) {
+            states.remove(key);
+        }
+    }
+
+    private ScheduledFuture<?> schedule(Runnable task, long delay) {
+        try {
+            return timer.schedule(task, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            log.debug("The flap damper has been shut down.");
+            return null;
+        }
+    }
+
+    /**
+     * @param type is the service type of the server.
+     * @param serviceName is the service name of the server.
+     * @return whether the transitions of the server are currently not
+     * reported because it is flapping.
+     */
+    public synchronized boolean isDamped(SvnEdgeServiceType type,
+            String serviceName) {
+        State state = states.get(serviceName + "." + type.getType());
+        return state != null && state.suppressed;
+    }
+
+    /**
+     * @param type is the service type of the server.
+     * @param serviceName is the service name of the server.
+     * @return the current penalty of the server.
+     */
+    public synchronized double getPenalty(SvnEdgeServiceType type,
+            String serviceName) {
+        State state = states.get(serviceName + "." + type.getType());
+        if (state == null) {
+            return 0;
+        }
+        decay(state, System.currentTimeMillis());
+        return state.penalty;
+    }
+
+    /**
+     * @return the number of servers currently damped.
+     */
+    public synchronized int getDampedCount() {
+        int damped = 0;
+        for (State state : states.values()) {
+            if (state.suppressed) {
+                damped++;
+            }
+        }
+        return damped;
+    }
+
+    /**
+     * @return the number of events that were held down or damped instead of
+     * being reported.
+     */
+    public synchronized long getSuppressedEventCount() {
+        return this.suppressedEvents;
+    }
+}
@@ -0,0 +1,654 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceType;
+
+/**
+ * The SvnEdge Health Prober checks that the web consoles of the discovered
+ * servers answer, so that the users are not handed urls of consoles that are
+ * down. Each tracked server is probed with an HTTP GET of its url at a
+ * jittered interval, and the latency up to the status line of the response
+ * feeds an exponentially weighted moving average. A console answering with a
+ * status lower than 500 is healthy; one failing the unhealthy threshold of
+ * probes in a row is unhealthy.
+ * 
+ * All the probes are non-blocking exchanges run by a single selector
+ * thread, with a bounded number of probes in flight and a timeout for each
+ * one. Urls other than http are only connected to.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public final class SvnEdgeHealthProber {
+
+    private static final Logger log = Logger.getLogger(
+            SvnEdgeHealthProber.class);
+    /**
+     * The default interval between the probes of a server, in milliseconds.
+     */
+    public static final long DEFAULT_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+    /**
+     * The default maximum time of a probe, in milliseconds.
+     */
+    public static final long DEFAULT_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+    /**
+     * The default maximum number of probes in flight.
+     */
+    public static final int DEFAULT_CONCURRENCY = 8;
+    /**
+     * The default number of failed probes in a row making a server
+     * unhealthy.
+     */
+    public static final int DEFAULT_UNHEALTHY_THRESHOLD = 3;
+    /**
+     * The fraction of the interval randomly added or removed, so that the
+     * servers discovered together are not probed together.
+     */
+    private static final double JITTER = 0.2;
+    /**
+     * The weight of the latest latency in the moving average.
+     */
+    private static final double EWMA_ALPHA = 0.3;
+    /**
+     * The precision of the schedule, in milliseconds.
+     */
+    private static final long TICK = 100;
+    /**
+     * The maximum size of the status line read.
+     */
+    private static final int STATUS_LINE_SIZE = 256;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * The probing state of a server.
+     */
+    private static final class Target {
+        private final String key;
+        private SvnEdgeServerInfo serverInfo;
+        private SvnEdgeTimerWheel.Timeout<Target> timeout;
+        private boolean inFlight;
+        /**
+         * Whether the server is due, waiting for a probe slot. Only used by
+         * the selector thread.
+         */
+        private boolean queued;
+        private boolean removed;
+        private SvnEdgeHealthState state = SvnEdgeHealthState.UNKNOWN;
+        private double averageLatency = -1;
+        private long lastLatency = -1;
+        private int lastStatusCode = -1;
+        private long lastProbedAt;
+        private int consecutiveFailures;
+        private long probes;
+        private long failures;
+
+        private Target(String key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * A probe in flight.
+     */
+    private static final class Exchange {
+        private final Target target;
+        private final SvnEdgeServerInfo serverInfo;
+        private final SocketChannel channel;
+        private final long startedAt;
+        private final long deadline;
+        /**
+         * The request, or <code>null</code> if the console is only connected
+         * to.
+         */
+        private final ByteBuffer request;
+        private final ByteBuffer response =
+                ByteBuffer.allocate(STATUS_LINE_SIZE);
+
+        private Exchange(Target target, SvnEdgeServerInfo serverInfo,
+                SocketChannel channel, long startedAt, long deadline,
+                ByteBuffer request) {
+            this.target = target;
+            this.serverInfo = serverInfo;
+            this.channel = channel;
+            this.startedAt = startedAt;
+            this.deadline = deadline;
+            this.request = request;
+        }
+    }
+
+    private final long interval;
+    private final long timeout;
+    private final int concurrency;
+    private final int unhealthyThreshold;
+    private final Random random = new Random();
+    /**
+     * The probed servers by server key, guarded by this prober.
+     */
+    private final Map<String, Target> targets = new HashMap<String, Target>();
+    /**
+     * The servers tracked or updated, to be scheduled by the selector
+     * thread.
+     */
+    private final Queue<Target> scheduling =
+            new ConcurrentLinkedQueue<Target>();
+    /**
+     * The schedule of the next probes, only used by the selector thread.
+     */
+    private final SvnEdgeTimerWheel<Target> wheel;
+    /**
+     * The servers due, waiting for a probe slot.
+     */
+    private final Queue<Target> due = new LinkedList<Target>();
+    /**
+     * The probes in flight.
+     */
+    private final List<Exchange> exchanges = new ArrayList<Exchange>();
+    private final Selector selector;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private long sentCount;
+    private long failedCount;
+    private long timedOutCount;
+
+    /**
+     * Creates a new prober with the default interval, timeout and
+     * concurrency.
+     * @throws IOException if the selector cannot be opened.
+     */
+    public SvnEdgeHealthProber() throws IOException {
+        this(DEFAULT_INTERVAL, DEFAULT_TIMEOUT, DEFAULT_CONCURRENCY,
+                DEFAULT_UNHEALTHY_THRESHOLD);
+    }
+
+    /**
+     * Creates a new prober.
+     * @param interval is the average interval between the probes of a
+     * server in milliseconds.
+     * @param timeout is the maximum time of a probe in milliseconds.
+     * @param concurrency is the maximum number of probes in flight.
+     * @param unhealthyThreshold is the number of failed probes in a row
+     * making a server unhealthy.
+     * @throws IOException if the selector cannot be opened.
+     */
+    public SvnEdgeHealthProber(long interval, long timeout, int concurrency,
+            int unhealthyThreshold) throws IOException {
+        if (interval <= 0 || timeout <= 0 || concurrency <= 0 ||
+                unhealthyThreshold <= 0) {
+            throw new IllegalArgumentException("The interval, the timeout, " +
+                    "the concurrency and the threshold must be positive");
+        }
+        this.interval = interval;
+        this.timeout = timeout;
+        this.concurrency = concurrency;
+        this.unhealthyThreshold = unhealthyThreshold;
+        this.wheel = new SvnEdgeTimerWheel<Target>(TICK,
+                System.currentTimeMillis());
+        this.selector = Selector.open();
+        this.thread = new SvnEdgeThreadFactory("SvnEdge-Health-Prober-")
+                .newThread(new Runnable() {
+            public void run() {
+                loop();
+            }
+        });
+        this.thread.start();
+    }
+
+    /**
+     * Starts probing the given running server, or updates the url probed.
+     * The first probe is sent within a second.
+     * @param serverInfo is a running server.
+     */
+    void track(SvnEdgeServerInfo serverInfo) {
+        synchronized (this) {
+            Target target = targets.get(serverInfo.getServerKey());
+            if (target == null) {
+                target = new Target(serverInfo.getServerKey());
+                targets.put(target.key, target);
+            } else {
+                String previousUrl = target.serverInfo.getUrl();
+                target.serverInfo = serverInfo;
+                if (previousUrl == null ? serverInfo.getUrl() == null :
+                        previousUrl.equals(serverInfo.getUrl())) {
+                    return;
+                }
+                // another console, measured from scratch.
+                target.state = SvnEdgeHealthState.UNKNOWN;
+                target.averageLatency = -1;
+                target.consecutiveFailures = 0;
+            }
+            target.serverInfo = serverInfo;
+            scheduling.add(target);
+        }
+        selector.wakeup();
+    }
+
+    /**
+     * Stops probing the given server.
+     * @param serverInfo is a stopped server.
+     */
+    synchronized void untrack(SvnEdgeServerInfo serverInfo) {
+        Target target = targets.remove(serverInfo.getServerKey());
+        if (target != null) {
+            target.removed = true;
+        }
+    }
+
+    /**
+     * Stops probing all the servers of the given service type.
+     * @param type is a service type no longer observed.
+     */
+    synchronized void untrackAll(SvnEdgeServiceType type) {
+        Iterator<Target> iterator = targets.values().iterator();
+        while (iterator.hasNext()) {
+            Target target = iterator.next();
+            if (target.serverInfo.getServiceType() == type) {
+                target.removed = true;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Stops the selector thread and forgets the probed servers.
+     */
+    public void shutdown() {
+        this.running = false;
+        this.selector.wakeup();
+        synchronized (this) {
+            this.targets.clear();
+        }
+    }
+
+    /**
+     * Runs the probes until the prober is shut down.
+     */
+    private void loop() {
+        List<Target> expired = new ArrayList<Target>();
+        try {
+            while (running) {
+                long now = System.currentTimeMillis();
+                scheduleTracked(now);
+                wheel.advance(now, expired);
+                for (Target target : expired) {
+                    target.timeout = null;
+                    target.queued = true;
+                    due.add(target);
+                }
+                expired.clear();
+                while (exchanges.size() < concurrency && !due.isEmpty()) {
+                    start(due.poll(), now);
+                }
+                expireExchanges(now);
+                selector.select(TICK);
+                Iterator<SelectionKey> keys =
+                        selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+            }
+        } catch (IOException e) {
+            log.error("The health prober stopped", e);
+
+        } finally {
+            for (Exchange exchange : exchanges) {
+                close(exchange.channel);
+            }
+            exchanges.clear();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                log.debug("Failed to close the selector", e);
+            }
+        }
+    }
+
+    /**
+     * Schedules the first probe of the servers tracked or updated, spread
+     * over the next second. The servers probed or due already are probed
+     * with their latest url by the probe under way.
+     */
+    private void scheduleTracked(long now) {
+        Target target;
+        while ((target = scheduling.poll()) != null) {
+            if (target.inFlight || target.queued) {
+                continue;
+            }
+            if (target.timeout != null) {
+                wheel.cancel(target.timeout);
+            }
+            target.timeout = wheel.schedule(target,
+                    now + random.nextInt(1000));
+        }
+    }
+
+    /**
+     * Schedules the next probe of the given server at a jittered interval.
+     */
+    private void scheduleNext(Target target, long now) {
+        double jitter = 1 + JITTER * (2 * random.nextDouble() - 1);
+        target.timeout = wheel.schedule(target,
+                now + (long) (interval * jitter));
+    }
+
+    /**
+     * Starts the probe of the given server.
+     */
+    private void start(Target target, long now) {
+        target.queued = false;
+        SvnEdgeServerInfo serverInfo;
+        synchronized (this) {
+            if (target.removed) {
+                return;
+            }
+            serverInfo = target.serverInfo;
+            target.inFlight = true;
+            sentCount++;
+        }
+        SocketChannel channel = null;
+        try {
+            URL url = new URL(serverInfo.getUrl());
+            int port = url.getPort() != -1 ? url.getPort() :
+                serverInfo.getPort();
+            ByteBuffer request = null;
+            if ("http".equalsIgnoreCase(url.getProtocol())) {
+                String path = url.getFile().length() == 0 ? "/" :
+                    url.getFile();
+                request = ASCII.encode("GET " + path + " HTTP/1.1\r\n" +
+                        "Host: " + url.getHost() + ":" + port + "\r\n" +
+                        "User-Agent: SvnEdge-Discovery\r\n" +
+                        "Connection: close\r\n\r\n");
+            }
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            // the address announced, as the hostname lookup would block.
+            boolean connected = channel.connect(new InetSocketAddress(
+                    serverInfo.getInetAddress(), port));
+            if (connected && request == null) {
+                // connected right away, as it happens on the loopback.
+                close(channel);
+                long end = System.currentTimeMillis();
+                complete(target, serverInfo, 0, end - now, end);
+                return;
+            }
+            Exchange exchange = new Exchange(target, serverInfo, channel, now,
+                    now + timeout, request);
+            channel.register(selector, connected ? SelectionKey.OP_WRITE :
+                SelectionKey.OP_CONNECT, exchange);
+            exchanges.add(exchange);
+
+        } catch (MalformedURLException e) {
+            log.debug("Cannot probe the url " + serverInfo.getUrl());
+            close(channel);
+            complete(target, serverInfo, -1, -1, now);
+
+        } catch (IOException e) {
+            close(channel);
+            complete(target, serverInfo, -1, -1, now);
+        }
+    }
+
+    /**
+     * Advances the exchange of the given key.
+     */
+    private void handle(SelectionKey key) {
+        Exchange exchange = (Exchange) key.attachment();
+        if (!key.isValid()) {
+            return;
+        }
+        try {
+            if (key.isConnectable()) {
+                if (!exchange.channel.finishConnect()) {
+                    return;
+                }
+                if (exchange.request == null) {
+                    finish(exchange, 0);
+                    return;
+                }
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+            if (key.isValid() && key.isWritable()) {
+                exchange.channel.write(exchange.request);
+                if (!exchange.request.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+                return;
+            }
+            if (key.isValid() && key.isReadable()) {
+                int read = exchange.channel.read(exchange.response);
+                int statusCode = parseStatusCode(exchange.response);
+                if (statusCode != 0) {
+                    finish(exchange, statusCode);
+
+                } else if (read < 0 || !exchange.response.hasRemaining()) {
+                    // closed or answered without a status line.
+                    finish(exchange, -1);
+                }
+            }
+        } catch (IOException e) {
+            finish(exchange, -1);
+        }
+    }
+
+    /**
+     * @param response is the beginning of the response.
+     * @return the status code of the status line, 0 if the status line is
+     * incomplete, or -1 if it is not an HTTP status line.
+     */
+    static int parseStatusCode(ByteBuffer response) {
+        int end = -1;
+        for (int i = 0; i < response.position(); i++) {
+            if (response.get(i) == '\n') {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            return 0;
+        }
+        // HTTP/1.1 200 OK
+        String line = new String(response.array(), 0, end, ASCII).trim();
+        String[] parts = line.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+            return -1;
+        }
+        try {
+            int statusCode = Integer.parseInt(parts[1]);
+            return statusCode >= 100 && statusCode < 600 ? statusCode : -1;
+
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Fails the probes exceeding the timeout.
+     */
+    private void expireExchanges(long now) {
+        for (Exchange exchange : new ArrayList<Exchange>(exchanges)) {
+            if (now >= exchange.deadline) {
+                synchronized (this) {
+                    timedOutCount++;
+                }
+                finish(exchange, -1);
+            }
+        }
+    }
+
+    /**
+     * Ends the given exchange with the given status code.
+     */
+    private void finish(Exchange exchange, int statusCode) {
+        exchanges.remove(exchange);
+        close(exchange.channel);
+        long now = System.currentTimeMillis();
+        complete(exchange.target, exchange.serverInfo, statusCode,
+                now - exchange.startedAt, now);
+    }
+
+    /**
+     * Records the result of a probe and schedules the next one.
+     * @param statusCode is the status code of the response, 0 for a
+     * connection without request, or -1 if the probe failed.
+     */
+    private void complete(Target target, SvnEdgeServerInfo serverInfo,
+            int statusCode, long latency, long now) {
+        synchronized (this) {
+            target.inFlight = false;
+            if (target.removed) {
+                return;
+            }
+            if (target.serverInfo != serverInfo) {
+                // the url changed during the probe.
+                target.timeout = wheel.schedule(target, now);
+                return;
+            }
+            target.probes++;
+            target.lastProbedAt = now;
+            target.lastStatusCode = statusCode;
+            if (statusCode >= 0 && statusCode < 500) {
+                target.lastLatency = latency;
+                target.averageLatency = target.averageLatency < 0 ? latency :
+                    EWMA_ALPHA * latency +
+                        (1 - EWMA_ALPHA) * target.averageLatency;
+                target.consecutiveFailures = 0;
+                target.state = SvnEdgeHealthState.HEALTHY;
+            } else {
+                failedCount++;
+                target.failures++;
+                target.consecutiveFailures++;
+                target.state = target.consecutiveFailures >= unhealthyThreshold
+                    ? SvnEdgeHealthState.UNHEALTHY :
+                        SvnEdgeHealthState.DEGRADED;
+                log.debug("The console of " + serverInfo.getServiceName() +
+                        " failed the probe " + target.consecutiveFailures +
+                        " in a row, with status " + statusCode);
+            }
+            scheduleNext(target, now);
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("Failed to close the probe connection", e);
+            }
+        }
+    }
+
+    private static SvnEdgeServerHealth toHealth(Target target) {
+        return new SvnEdgeServerHealth(target.serverInfo, target.state,
+                target.averageLatency, target.lastLatency,
+                target.lastStatusCode, target.lastProbedAt,
+                target.consecutiveFailures, target.probes, target.failures);
+    }
+
+    /**
+     * @param type is the service type of the server.
+     * @param serviceName is the service name of the server.
+     * @return the health of the console of the server, or <code>null</code>
+     * if the server is not probed.
+     */
+    public synchronized SvnEdgeServerHealth getHealth(SvnEdgeServiceType type,
+            String serviceName) {
+        Target target = targets.get(serviceName + "." + type.getType());
+        return target == null ? null : toHealth(target);
+    }
+
+    /**
+     * @param serverInfo is a running server.
+     * @return the health of the console of the server, or <code>null</code>
+     * if the server is not probed.
+     */
+    public SvnEdgeServerHealth getHealth(SvnEdgeServerInfo serverInfo) {
+        return getHealth(serverInfo.getServiceType(),
+                serverInfo.getServiceName());
+    }
+
+    /**
+     * @return the health of all the probed servers, sorted by
+     * responsiveness: the healthy servers first, the fastest first. See
+     * {@link SvnEdgeServerHealth#BY_RESPONSIVENESS}.
+     */
+    public List<SvnEdgeServerHealth> getServersByResponsiveness() {
+        List<SvnEdgeServerHealth> healths;
+        synchronized (this) {
+            healths = new ArrayList<SvnEdgeServerHealth>(targets.size());
+            for (Target target : targets.values()) {
+                healths.add(toHealth(target));
+            }
+        }
+        Collections.sort(healths, SvnEdgeServerHealth.BY_RESPONSIVENESS);
+        return Collections.unmodifiableList(healths);
+    }
+
+    /**
+     * @return the number of servers probed.
+     */
+    public synchronized int getTrackedCount() {
+        return this.targets.size();
+    }
+
+    /**
+     * @return the number of probes sent.
+     */
+    public synchronized long getSentCount() {
+        return this.sentCount;
+    }
+
+    /**
+     * @return the number of probes failed, including the timeouts.
+     */
+    public synchronized long getFailedCount() {
+        return this.failedCount;
+    }
+
+    /**
+     * @return the number of probes that exceeded the timeout.
+     */
+    public synchronized long getTimedOutCount() {
+        return this.timedOutCount;
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+/**
+ * The health of the web console of a server, as probed by the
+ * {@link SvnEdgeHealthProber}.
+ * 
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public enum SvnEdgeHealthState {
+
+    /**
+     * The console has not been probed yet.
+     */
+    UNKNOWN,
+    /**
+     * The console answered the last probe.
+     */
+    HEALTHY,
+    /**
+     * The console failed the last probes, but fewer times in a row than
+     * the unhealthy threshold of the prober.
+     */
+    DEGRADED,
+    /**
+     * The console failed the last probes at least as many times in a row as
+     * the unhealthy threshold of the prober.
+     */
+    UNHEALTHY
+}
@@ -0,0 +1,363 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The SvnEdge Hostname Resolver performs the reverse DNS lookups of the
+ * addresses of the discovered servers in the background. The canonical
+ * hostnames are cached for a time-to-live, and failed lookups are cached as
+ * well for a shorter time, so that an unresolvable address is not looked up
+ * for every event. A bounded number of threads run the lookups, and the
+ * lookups taking longer than the timeout are reported as failures.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public final class SvnEdgeHostnameResolver {
+
+    private static final Logger log = Logger.getLogger(
+            SvnEdgeHostnameResolver.class);
+    /**
+     * The default time-to-live of a resolved hostname, in milliseconds.
+     */
+    public static final long DEFAULT_TTL = TimeUnit.MINUTES.toMillis(10);
+    /**
+     * The default time-to-live of a failed lookup, in milliseconds.
+     */
+    public static final long DEFAULT_NEGATIVE_TTL = TimeUnit.SECONDS.toMillis(
+            30);
+    /**
+     * The default maximum time of a lookup, in milliseconds.
+     */
+    public static final long DEFAULT_TIMEOUT = TimeUnit.SECONDS.toMillis(2);
+    /**
+     * The default maximum number of concurrent lookups.
+     */
+    public static final int DEFAULT_CONCURRENCY = 4;
+    /**
+     * The number of cached results above which the expired ones are purged.
+     */
+    private static final int PURGE_THRESHOLD = 4096;
+
+    /**
+     * Receives the result of a lookup.
+     */
+    public interface Callback {
+        /**
+         * @param address is the address looked up.
+         * @param hostname is the canonical hostname of the address, or
+         * <code>null</code> if the lookup failed or timed out.
+         */
+        void hostnameResolved(InetAddress address, String hostname);
+    }
+
+    /**
+     * The shared instance.
+     */
+    private static SvnEdgeHostnameResolver defaultInstance;
+
+    /**
+     * The cached results by address.
+     */
+    private final ConcurrentMap<InetAddress, Entry> cache =
+            new ConcurrentHashMap<InetAddress, Entry>();
+    /**
+     * The lookups in progress by address.
+     */
+    private final ConcurrentMap<InetAddress, Lookup> lookups =
+            new ConcurrentHashMap<InetAddress, Lookup>();
+    /**
+     * The threads running the lookups.
+     */
+    private final ExecutorService lookupExecutor;
+    /**
+     * The thread expiring the lookups exceeding the timeout.
+     */
+    private final ScheduledExecutorService timeoutExecutor;
+    /**
+     * The permits of the concurrent lookups, so that an executor starting a
+     * thread per lookup does not flood the DNS server.
+     */
+    private final Semaphore lookupPermits;
+    private final long ttl;
+    private final long negativeTtl;
+    private final long timeout;
+
+    /**
+     * Creates a new resolver.
+     * @param ttl is the time-to-live of a resolved hostname in milliseconds.
+     * @param negativeTtl is the time-to-live of a failed lookup in
+     * milliseconds.
+     * @param timeout is the maximum time of a lookup in milliseconds.
+     * @param concurrency is the maximum number of concurrent lookups.
+     */
+    public SvnEdgeHostnameResolver(long ttl, long negativeTtl, long timeout,
+            int concurrency) {
+        this(ttl, negativeTtl, timeout, newLookupExecutor(concurrency),
+                concurrency);
+    }
+
+    /**
+     * Creates a new resolver running the lookups with the given executor.
+     * @param ttl is the time-to-live of a resolved hostname in milliseconds.
+     * @param negativeTtl is the time-to-live of a failed lookup in
+     * milliseconds.
+     * @param timeout is the maximum time of a lookup in milliseconds.
+     * @param lookupExecutor runs the lookups. It is shut down by
+     * {@link #shutdown()}.
+     * @param concurrency is the maximum number of concurrent lookups, even
+     * if the executor runs more tasks at the same time.
+     */
+    SvnEdgeHostnameResolver(long ttl, long negativeTtl, long timeout,
+            ExecutorService lookupExecutor, int concurrency) {
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("The concurrency must be " +
+                    "positive");
+        }
+        this.lookupPermits = new Semaphore(concurrency);
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        this.timeout = timeout;
+        this.lookupExecutor = lookupExecutor;
+        this.timeoutExecutor = Executors.newSingleThreadScheduledExecutor(
+                new SvnEdgeThreadFactory("SvnEdge-Hostname-Timeout-"));
+    }
+
+    /**
+     * @param concurrency is the maximum number of concurrent lookups.
+     * @return the pool of threads running the lookups.
+     */
+    private static ExecutorService newLookupExecutor(int concurrency) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(concurrency,
+                concurrency, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new SvnEdgeThreadFactory("SvnEdge-Hostname-Resolver-"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * @return the resolver shared by all the clients of the JVM.
+     */
+    public static synchronized SvnEdgeHostnameResolver getDefault() {
+        if (defaultInstance == null) {
+            defaultInstance = new SvnEdgeHostnameResolver(DEFAULT_TTL,
+                    DEFAULT_NEGATIVE_TTL, DEFAULT_TIMEOUT, DEFAULT_CONCURRENCY);
+        }
+        return defaultInstance;
+    }
+
+    /**
+     * Never blocks.
+     * @param address is an address.
+     * @return the cached canonical hostname of the address, or
+     * <code>null</code> if it is not known yet or can't be resolved.
+     */
+    public String getCachedHostname(InetAddress address) {
+        Entry entry = cache.get(address);
+        if (entry == null || entry.isExpired(System.currentTimeMillis())) {
+            return null;
+        }
+        return entry.hostname;
+    }
+
+    /**
+     * Looks up the canonical hostname of the given address in the background.
+     * In case the result is cached, the callback is called in the caller's
+     * thread. Concurrent requests for the same address share the same lookup.
+     * @param address is the address to look up.
+     * @param callback receives the result of the lookup.
+     */
+    public void resolve(final InetAddress address, Callback callback) {
+        Entry entry = cache.get(address);
+        if (entry != null && !entry.isExpired(System.currentTimeMillis())) {
+            callback.hostnameResolved(address, entry.hostname);
+            return;
+        }
+        Lookup lookup = new Lookup(address);
+        Lookup running = lookups.putIfAbsent(address, lookup);
+        if (running != null && running.addCallback(callback)) {
+            return;
+        }
+        if (running != null) {
+            // the running lookup has just completed, its result is cached.
+            resolve(address, callback);
+            return;
+        }
+        lookup.addCallback(callback);
+        lookupExecutor.execute(lookup);
+        final Lookup started = lookup;
+        timeoutExecutor.schedule(new Runnable() {
+            public void run() {
+                if (started.complete(null)) {
+                    log.debug("The lookup of " + address + " timed out.");
+                }
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Removes the expired results from the cache.
+     * @param now is the current time.
+     */
+    private void purgeExpired(long now) {
+        for (InetAddress address : cache.keySet()) {
+            Entry entry = cache.get(address);
+            if (entry != null && entry.isExpired(now)) {
+                cache.remove(address, entry);
+            }
+        }
+    }
+
+    /**
+     * Discards the cached results.
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    /**
+     * Stops the threads of this resolver. Only used by resolvers that are not
+     * the shared one.
+     */
+    public void shutdown() {
+        lookupExecutor.shutdownNow();
+        timeoutExecutor.shutdownNow();
+    }
+
+    /**
+     * A cached result.
+     */
+    private static final class Entry {
+
+        private final String hostname;
+        private final long expiresAt;
+
+        private Entry(String hostname, long expiresAt) {
+            this.hostname = hostname;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+    }
+
+    /**
+     * A lookup in progress, with the callbacks waiting for its result.
+     */
+    private final class Lookup implements Runnable {
+
+        private final InetAddress address;
+        private List<Callback> callbacks = new ArrayList<Callback>(1);
+
+        private Lookup(InetAddress address) {
+            this.address = address;
+        }
+
+        /**
+         * @return <code>false</code> if the lookup has already completed.
+         */
+        private synchronized boolean addCallback(Callback callback) {
+            if (callbacks == null) {
+                return false;
+            }
+            callbacks.add(callback);
+            return true;
+        }
+
+        private synchronized boolean isCompleted() {
+            return callbacks == null;
+        }
+
+        public void run() {
+            try {
+                lookupPermits.acquire();
+            } catch (InterruptedException e) {
+                // the resolver was shut down.
+                complete(null);
+                return;
+            }
+            String hostname;
+            try {
+                if (isCompleted()) {
+                    // timed out while waiting for a permit.
+                    return;
+                }
+                hostname = address.getCanonicalHostName();
+            } finally {
+                lookupPermits.release();
+            }
+            if (hostname.equals(address.getHostAddress())) {
+                // getCanonicalHostName returns the address when it fails.
+                hostname = null;
+            }
+            if (!complete(hostname) && hostname != null) {
+                // the lookup timed out, but the result is still useful.
+                cache.put(address, new Entry(hostname,
+                        System.currentTimeMillis() + ttl));
+            }
+        }
+
+        /**
+         * Caches the result and calls the callbacks, only once.
+         * @return <code>false</code> if the lookup had already completed.
+         */
+        private boolean complete(String hostname) {
+            List<Callback> waiting;
+            long now = System.currentTimeMillis();
+            synchronized (this) {
+                if (callbacks == null) {
+                    return false;
+                }
+                // caching first, so that a completed lookup is always cached.
+                cache.put(address, new Entry(hostname, now +
+                        (hostname != null ? ttl : negativeTtl)));
+                waiting = callbacks;
+                callbacks = null;
+            }
+            lookups.remove(address, this);
+            if (cache.size() > PURGE_THRESHOLD) {
+                purgeExpired(now);
+            }
+            for (Callback callback : waiting) {
+                try {
+                    callback.hostnameResolved(address, hostname);
+                } catch (RuntimeException e) {
+                    log.error("Failed to handle the hostname of " + address, e);
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,405 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.log4j.Logger;
+
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceType;
+
+/**
+ * The SvnEdge Listener Queue is the bounded ring buffer of events pending to
+ * be delivered to one {@link SvnEdgeServersListener}. The events are
+ * delivered serially by the dispatcher's executor, so that the events of the
+ * same server are received in order. When the buffer is full, the
+ * {@link SvnEdgeOverflowPolicy} decides what happens to the new event, and
+ * the event dropped is counted. The buffer never holds more events than its
+ * capacity. The offers never wait, as they are made holding the locks of
+ * the client: the threads publishing to a
+ * {@link SvnEdgeOverflowPolicy#BLOCK} queue wait for room in
+ * {@link #awaitCapacity()} before they take the locks, and the events
+ * offered to a full one anyway are rejected.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public final class SvnEdgeListenerQueue implements Runnable {
+
+    private static final Logger log = Logger.getLogger(
+            SvnEdgeListenerQueue.class);
+    /**
+     * The default capacity of the queue of a listener.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+    /**
+     * The listener receiving the events, or <code>null</code> if it is
+     * weakly referenced.
+     */
+    private final SvnEdgeServersListener listener;
+    /**
+     * The weakly-referenced listener receiving the events, or
+     * <code>null</code> if it is strongly referenced.
+     */
+    private final WeakReference<SvnEdgeServersListener> weakListener;
+    /**
+     * The service type of the events of the listener, or <code>null</code>
+     * for the events of all the service types.
+     */
+    private final SvnEdgeServiceType serviceType;
+    /**
+     * The policy applied when the ring buffer is full.
+     */
+    private final SvnEdgeOverflowPolicy policy;
+    /**
+     * The ring buffer with the pending events, of the capacity of the queue.
+     */
+    private final SvnEdgeServerInfo[] buffer;
+    /**
+     * The sequence number of the next event to be delivered. The slot of an
+     * event in the ring buffer is its sequence number modulo the capacity.
+     */
+    private long head;
+    /**
+     * The number of pending events.
+     */
+    private int size;
+    /**
+     * The sequence number of the pending event of each server, used by
+     * {@link SvnEdgeOverflowPolicy#COALESCE_LATEST}.
+     */
+    private final Map<String, Long> pendingByServer;
+    /**
+     * Whether the delivery of the pending events is scheduled.
+     */
+    private boolean scheduled;
+    /**
+     * Whether the queue has been closed and discards new events.
+     */
+    private boolean closed;
+    /**
+     * The dispatcher running the delivery.
+     */
+    private final SvnEdgeEventDispatcher dispatcher;
+    /**
+     * The counters of this queue.
+     */
+    private long offered;
+    private long delivered;
+    private long dropped;
+    private long coalesced;
+
+    /**
+     * Creates a new queue for the given listener.
+     * @param listener is the listener receiving the events.
+     * @param serviceType is the service type of the events of the listener,
+     * or <code>null</code> for the events of all the service types.
+     * @param capacity is the maximum number of pending events.
+     * @param policy is the policy applied when the queue is full.
+     * @param dispatcher is the dispatcher delivering the events.
+     */
+    SvnEdgeListenerQueue(SvnEdgeServersListener listener,
+            SvnEdgeServiceType serviceType, int capacity,
+            SvnEdgeOverflowPolicy policy, SvnEdgeEventDispatcher dispatcher) {
+        this(listener, serviceType, capacity, policy, dispatcher, null);
+    }
+
+    /**
+     * Creates a new queue for the given listener.
+     * @param listener is the listener receiving the events.
+     * @param serviceType is the service type of the events of the listener,
+     * or <code>null</code> for the events of all the service types.
+     * @param capacity is the maximum number of pending events.
+     * @param policy is the policy applied when the queue is full.
+     * @param dispatcher is the dispatcher delivering the events.
+     * @param collected receives the reference of the listener once it is
+     * garbage collected, or <code>null</code> if the listener is strongly
+     * referenced.
+     */
+    SvnEdgeListenerQueue(SvnEdgeServersListener listener,
+            SvnEdgeServiceType serviceType, int capacity,
+            SvnEdgeOverflowPolicy policy, SvnEdgeEventDispatcher dispatcher,
+            ReferenceQueue<SvnEdgeServersListener> collected) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity must be " +
+                    "greater than 0");
+        }
+        if (collected != null) {
+            this.listener = null;
+            this.weakListener = new WeakReference<SvnEdgeServersListener>(
+                    listener, collected);
+        } else {
+            this.listener = listener;
+            this.weakListener = null;
+        }
+        this.serviceType = serviceType;
+        this.policy = policy;
+        this.buffer = new SvnEdgeServerInfo[capacity];
+        this.dispatcher = dispatcher;
+        this.pendingByServer = policy == SvnEdgeOverflowPolicy.COALESCE_LATEST
+                ? new HashMap<String, Long>() : null;
+    }
+
+    /**
+     * @param serverInfo is an event.
+     * @return whether the listener is interested in the given event.
+     */
+    boolean accepts(SvnEdgeServerInfo serverInfo) {
+        return this.serviceType == null ||
+            this.serviceType == serverInfo.getServiceType();
+    }
+
+    /**
+     * Queues the given event to be delivered to the listener, without
+     * waiting, so that it can be called while holding the locks of the
+     * client. A {@link SvnEdgeOverflowPolicy#BLOCK} queue that is full
+     * rejects the event, see {@link #awaitCapacity()}.
+     * @param serverInfo is the event.
+     */
+    void offer(SvnEdgeServerInfo serverInfo) {
+        boolean schedule = false;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            offered++;
+            if (pendingByServer != null) {
+                Long pending = pendingByServer.get(
+                        serverInfo.getServerKey());
+                if (pending != null) {
+                    int slot = slot(pending);
+                    buffer[slot] = SvnEdgeServerInfo.coalesce(buffer[slot],
+                            serverInfo);
+                    coalesced++;
+                    return;
+                }
+            }
+            if (size == buffer.length) {
+                dropped++;
+                if (policy == SvnEdgeOverflowPolicy.BLOCK) {
+                    log.debug("Rejecting " + serverInfo + ": the queue of " +
+                            getListener() + " is full.");
+                    return;
+                }
+                poll();
+            }
+            long sequence = head + size;
+            buffer[slot(sequence)] = serverInfo;
+            size++;
+            if (pendingByServer != null) {
+                pendingByServer.put(serverInfo.getServerKey(), sequence);
+            }
+            if (!scheduled) {
+                scheduled = schedule = true;
+            }
+        }
+        if (schedule) {
+            try {
+                dispatcher.execute(this);
+            } catch (RejectedExecutionException e) {
+                log.debug("Discarding the events of " + getListener() +
+                        ": the dispatcher has been shut down.");
+                close();
+            }
+        }
+    }
+
+    /**
+     * Removes the next pending event. Must be called holding the lock.
+     * @return the next pending event, or <code>null</code> if there is none.
+     */
+    private SvnEdgeServerInfo poll() {
+        if (size == 0) {
+            return null;
+        }
+        int slot = slot(head);
+        SvnEdgeServerInfo next = buffer[slot];
+        buffer[slot] = null;
+        if (pendingByServer != null) {
+            Long pending = pendingByServer.get(next.getServerKey());
+            if (pending != null && pending.longValue() == head) {
+                pendingByServer.remove(next.getServerKey());
+            }
+        }
+        head++;
+        size--;
+        notifyAll();
+        return next;
+    }
+
+    /**
+     * Waits until the queue has room for a new event, in case its policy is
+     * {@link SvnEdgeOverflowPolicy#BLOCK}. Called by the threads capturing
+     * the events before they take any lock, so that a slow listener only
+     * holds back the thread that captures the next event.
+     */
+    void awaitCapacity() {
+        if (policy != SvnEdgeOverflowPolicy.BLOCK) {
+            return;
+        }
+        synchronized (this) {
+            while (size >= buffer.length && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private int slot(long sequence) {
+        return (int) (sequence % buffer.length);
+    }
+
+    /**
+     * Delivers the pending events to the listener. Only one thread runs this
+     * method at any time.
+     */
+    public void run() {
+        while (true) {
+            SvnEdgeServerInfo next;
+            synchronized (this) {
+                next = poll();
+                if (next == null) {
+                    scheduled = false;
+                    return;
+                }
+            }
+            SvnEdgeServersListener current = getListener();
+            if (current == null) {
+                // the registry removes the queue on the next event.
+                close();
+                return;
+            }
+            SvnEdgeEventDispatcher.deliver(current, next);
+            synchronized (this) {
+                delivered++;
+            }
+        }
+    }
+
+    /**
+     * Closes this queue, discarding the pending events and releasing any
+     * thread blocked offering an event.
+     */
+    synchronized void close() {
+        closed = true;
+        dropped += size;
+        while (poll() != null) {
+            // discarding the pending events.
+        }
+        scheduled = false;
+        notifyAll();
+    }
+
+    /**
+     * @return the listener receiving the events of this queue, or
+     * <code>null</code> if it was weakly referenced and garbage collected.
+     */
+    public SvnEdgeServersListener getListener() {
+        return this.weakListener != null ? this.weakListener.get() :
+            this.listener;
+    }
+
+    /**
+     * @return whether the listener is only weakly referenced by this queue.
+     */
+    public boolean isWeak() {
+        return this.weakListener != null;
+    }
+
+    /**
+     * @return whether the listener was weakly referenced and garbage
+     * collected.
+     */
+    boolean isCollected() {
+        return this.weakListener != null && this.weakListener.get() == null;
+    }
+
+    /**
+     * @return the service type of the events of the listener, or
+     * <code>null</code> for the events of all the service types.
+     */
+    public SvnEdgeServiceType getServiceType() {
+        return this.serviceType;
+    }
+
+    /**
+     * @return the policy applied when the queue is full.
+     */
+    public SvnEdgeOverflowPolicy getPolicy() {
+        return this.policy;
+    }
+
+    /**
+     * @return the maximum number of pending events.
+     */
+    public int getCapacity() {
+        return this.buffer.length;
+    }
+
+    /**
+     * @return the number of events pending to be delivered.
+     */
+    public synchronized int getPendingCount() {
+        return this.size;
+    }
+
+    /**
+     * @return the number of events offered to this queue.
+     */
+    public synchronized long getOfferedCount() {
+        return this.offered;
+    }
+
+    /**
+     * @return the number of events delivered to the listener.
+     */
+    public synchronized long getDeliveredCount() {
+        return this.delivered;
+    }
+
+    /**
+     * @return the number of events discarded or rejected because the queue
+     * was full or closed.
+     */
+    public synchronized long getDroppedCount() {
+        return this.dropped;
+    }
+
+    /**
+     * @return the number of events replaced by a newer event of the same
+     * server before being delivered.
+     */
+    public synchronized long getCoalescedCount() {
+        return this.coalesced;
+    }
+
+    @Override
+    public String toString() {
+        return "SvnEdgeListenerQueue: listener=" + getListener() + ", type=" +
+                serviceType + ", policy=" +
+                policy + ", capacity=" + buffer.length;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.lang.ref.ReferenceQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceType;
+
+/**
+ * The copy-on-write registry of the queues of the listeners of a client. The
+ * queues are kept in an array replaced on each registration or removal, so
+ * that the events are dispatched without locks nor allocations, while the
+ * listeners come and go. The queues of the weakly-referenced listeners are
+ * removed once their listeners are garbage collected.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+final class SvnEdgeListenerRegistry {
+
+    private static final Logger log = Logger.getLogger(
+            SvnEdgeListenerRegistry.class);
+
+    private static final SvnEdgeListenerQueue[] EMPTY =
+            new SvnEdgeListenerQueue[0];
+    /**
+     * The current queues. The arrays are never modified once published.
+     */
+    private final AtomicReference<SvnEdgeListenerQueue[]> queues =
+            new AtomicReference<SvnEdgeListenerQueue[]>(EMPTY);
+    /**
+     * The references of the weakly-referenced listeners garbage collected.
+     */
+    private final ReferenceQueue<SvnEdgeServersListener> collected =
+            new ReferenceQueue<SvnEdgeServersListener>();
+    /**
+     * The dispatcher delivering the events of the queues.
+     */
+    private final SvnEdgeEventDispatcher dispatcher;
+
+    /**
+     * @param dispatcher is the dispatcher delivering the events of the
+     * queues.
+     */
+    SvnEdgeListenerRegistry(SvnEdgeEventDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Registers the given listener.
+     * @param listener is the listener receiving the events.
+     * @param serviceType is the service type of the events of the listener,
+     * or <code>null</code> for the events of all the service types.
+     * @param capacity is the maximum number of events pending delivery.
+     * @param policy is the policy when the queue is full.
+     * @param weak whether the listener is only weakly referenced, so that
+     * it is removed once garbage collected.
+     * @return the queue of the listener.
+     */
+    SvnEdgeListenerQueue add(SvnEdgeServersListener listener,
+            SvnEdgeServiceType serviceType, int capacity,
+            SvnEdgeOverflowPolicy policy, boolean weak) {
+        if (listener == null) {
+            throw new IllegalArgumentException("The listener must be " +
+                    "provided");
+        }
+        expunge();
+        SvnEdgeListenerQueue queue = new SvnEdgeListenerQueue(listener,
+                serviceType, capacity, policy, dispatcher,
+                weak ? collected : null);
+        while (true) {
+            SvnEdgeListenerQueue[] current = queues.get();
+            SvnEdgeListenerQueue[] updated =
+                    new SvnEdgeListenerQueue[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[current.length] = queue;
+            if (queues.compareAndSet(current, updated)) {
+                return queue;
+            }
+        }
+    }
+
+    /**
+     * Removes the registrations of the given listener, discarding their
+     * pending events.
+     * @param listener is a registered listener.
+     * @return whether the listener was registered.
+     */
+    boolean remove(SvnEdgeServersListener listener) {
+        boolean removed = false;
+        for (SvnEdgeListenerQueue queue : queues.get()) {
+            if (queue.getListener() == listener && remove(queue)) {
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Removes the given queue, discarding its pending events.
+     * @param queue is a queue of this registry.
+     * @return whether the queue was registered.
+     */
+    private boolean remove(SvnEdgeListenerQueue queue) {
+        while (true) {
+            SvnEdgeListenerQueue[] current = queues.get();
+            int index = indexOf(current, queue);
+            if (index < 0) {
+                return false;
+            }
+            SvnEdgeListenerQueue[] updated = current.length == 1 ? EMPTY :
+                new SvnEdgeListenerQueue[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index,
+                    current.length - index - 1);
+            if (queues.compareAndSet(current, updated)) {
+                queue.close();
+                return true;
+            }
+        }
+    }
+
+    private static int indexOf(SvnEdgeListenerQueue[] array,
+            SvnEdgeListenerQueue queue) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] == queue) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Removes the queues of the weakly-referenced listeners garbage
+     * collected. Only allocates when a listener has been collected.
+     */
+    void expunge() {
+        if (collected.poll() == null) {
+            return;
+        }
+        while (collected.poll() != null) {
+            // a single pass removes all the collected listeners.
+        }
+        for (SvnEdgeListenerQueue queue : queues.get()) {
+            if (queue.isCollected() && remove(queue)) {
+                log.debug("Removed the queue of a collected listener: " +
+                        queue);
+            }
+        }
+    }
+
+    /**
+     * Dispatches the given event to the current queues interested in its
+     * service type.
+     * @param serverInfo is the event.
+     */
+    void dispatch(SvnEdgeServerInfo serverInfo) {
+        expunge();
+        dispatcher.dispatch(serverInfo, queues.get());
+    }
+
+    /**
+     * Waits until the queues of the {@link SvnEdgeOverflowPolicy#BLOCK}
+     * policy have room for a new event. Must be called before taking the
+     * locks of the client.
+     */
+    void awaitCapacity() {
+        for (SvnEdgeListenerQueue queue : queues.get()) {
+            queue.awaitCapacity();
+        }
+    }
+
+    /**
+     * Removes all the queues, discarding their pending events.
+     */
+    void clear() {
+        for (SvnEdgeListenerQueue queue : queues.getAndSet(EMPTY)) {
+            queue.close();
+        }
+    }
+
+    /**
+     * @return the current queues. The array must not be modified.
+     */
+    SvnEdgeListenerQueue[] getQueues() {
+        return queues.get();
+    }
+
+    /**
+     * @return the number of registered listeners.
+     */
+    int size() {
+        return queues.get().length;
+    }
+}
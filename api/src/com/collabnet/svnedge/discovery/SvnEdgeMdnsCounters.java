@@ -0,0 +1,149 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+/**
+ * The traffic of the NIO mDNS engine shared by a client and the registers of
+ * its interface, so that the effect of the known-answer suppression, of the
+ * duplicate question suppression and of the query backoff can be observed.
+ * The unicast DNS-SD engine counts the lookups answered by its cache or by a
+ * query in flight as suppressed questions.
+ * The counters are incremented by the selector thread of the engine only,
+ * and can be read from any thread.
+ * 
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public final class SvnEdgeMdnsCounters {
+
+    private volatile long packetsReceived;
+    private volatile long packetsSent;
+    private volatile long malformedPackets;
+    private volatile long recordsFiltered;
+    private volatile long queriesSent;
+    private volatile long questionsSuppressed;
+    private volatile long answersSent;
+    private volatile long answersSuppressed;
+
+    SvnEdgeMdnsCounters() {
+    }
+
+    void packetReceived() {
+        packetsReceived++;
+    }
+
+    void packetSent() {
+        packetsSent++;
+    }
+
+    void malformedPacket() {
+        malformedPackets++;
+    }
+
+    void recordFiltered() {
+        recordsFiltered++;
+    }
+
+    void querySent() {
+        queriesSent++;
+    }
+
+    void questionSuppressed() {
+        questionsSuppressed++;
+    }
+
+    void answerSent() {
+        answersSent++;
+    }
+
+    void answerSuppressed() {
+        answersSuppressed++;
+    }
+
+    /**
+     * @return the number of packets received, including the ones sent by
+     * the engine, which are looped back.
+     */
+    public long getPacketsReceived() {
+        return this.packetsReceived;
+    }
+
+    /**
+     * @return the number of packets sent.
+     */
+    public long getPacketsSent() {
+        return this.packetsSent;
+    }
+
+    /**
+     * @return the number of malformed packets ignored.
+     */
+    public long getMalformedPackets() {
+        return this.malformedPackets;
+    }
+
+    /**
+     * @return the number of records received that were skipped without
+     * being decoded, as they are not about the observed types.
+     */
+    public long getRecordsFiltered() {
+        return this.recordsFiltered;
+    }
+
+    /**
+     * @return the number of browsing and resolution queries sent.
+     */
+    public long getQueriesSent() {
+        return this.queriesSent;
+    }
+
+    /**
+     * @return the number of browsing queries not sent because another host
+     * asked the same question with the same known answers.
+     */
+    public long getQuestionsSuppressed() {
+        return this.questionsSuppressed;
+    }
+
+    /**
+     * @return the number of records sent in the answer section of the
+     * responses.
+     */
+    public long getAnswersSent() {
+        return this.answersSent;
+    }
+
+    /**
+     * @return the number of answers not sent because the asking hosts
+     * already knew them, another host sent them first, or they were already
+     * part of a pending response.
+     */
+    public long getAnswersSuppressed() {
+        return this.answersSuppressed;
+    }
+
+    @Override
+    public String toString() {
+        return "packets received=" + packetsReceived + ", sent=" +
+                packetsSent + ", malformed=" + malformedPackets +
+                ", records filtered=" + recordsFiltered + ", queries sent=" +
+                queriesSent + ", questions suppressed=" + questionsSuppressed +
+                ", answers sent=" + answersSent + ", answers suppressed=" +
+                answersSuppressed;
+    }
+}
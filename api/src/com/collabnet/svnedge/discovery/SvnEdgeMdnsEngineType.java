@@ -0,0 +1,47 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+/**
+ * Defines the mDNS engine used by an {@link SvnEdgeBonjourClient} or an
+ * {@link SvnEdgeBonjourRegister}. The clients and registers of the same
+ * engine type bound to the same interface share a single engine.
+ * 
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public enum SvnEdgeMdnsEngineType {
+
+    /**
+     * The jmDNS library, with its own timer threads and record cache.
+     */
+    JMDNS,
+    /**
+     * A lightweight engine with a single selector thread, a non-blocking
+     * datagram channel and direct buffers, implementing the queries,
+     * responses, probes, announcements and goodbyes used by the discovery.
+     */
+    NIO,
+    /**
+     * Unicast DNS-SD against the DNS server of an
+     * {@link SvnEdgeWideAreaDomain}, browsing the services with queries and
+     * publishing them with dynamic updates, across the networks that
+     * multicast does not reach.
+     */
+    UNICAST
+}
@@ -0,0 +1,434 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.jmdns.JmDNS;
+import javax.jmdns.ServiceInfo;
+import javax.jmdns.impl.DNSCache;
+import javax.jmdns.impl.DNSEntry;
+import javax.jmdns.impl.DNSRecord;
+import javax.jmdns.impl.JmDNSImpl;
+import javax.jmdns.impl.constants.DNSRecordType;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The mDNS engines of the JVM, shared by the clients and the registers
+ * of the same {@link SvnEdgeMdnsEngineType} bound to the same interface, so
+ * that a console both publishing itself and observing its peers binds a
+ * single multicast socket, with a single cache and a single set of timers.
+ * The unicast engines are also shared by domain. Each instance is
+ * reference-counted, and closed when its last client stops or its last
+ * register closes.
+ * 
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public final class SvnEdgeMdnsEngines {
+
+    private static final Logger log = Logger.getLogger(
+            SvnEdgeMdnsEngines.class);
+    /**
+     * The key of the instance bound to the default interface.
+     */
+    private static final String DEFAULT_KEY = "*";
+    /**
+     * The delay in milliseconds after which the records of the services
+     * unregistered are removed from the cache, once the goodbye packets were
+     * sent to the other hosts.
+     */
+    private static final long GOODBYE_DELAY = 1100;
+    /**
+     * The engines by type and host address of their interface. Guarded by
+     * itself.
+     */
+    private static final Map<String, Engine> engines =
+            new HashMap<String, Engine>();
+
+    private SvnEdgeMdnsEngines() {
+    }
+
+    /**
+     * The thread removing the goodbyes from the caches, created on the first
+     * one.
+     */
+    private static final class CleanerHolder {
+        static final ScheduledExecutorService CLEANER =
+            Executors.newSingleThreadScheduledExecutor(
+                    new SvnEdgeThreadFactory("SvnEdge-Mdns-Cleaner-"));
+    }
+
+    /**
+     * A shared jmDNS instance.
+     */
+    private static final class Engine {
+        /**
+         * Creates the jmDNS instance once, outside of the lock of the
+         * engines, so that the engines of different interfaces are created
+         * in parallel.
+         */
+        final FutureTask<JmDNS> creation;
+        /**
+         * The number of clients and registers using the instance. Guarded
+         * by the engines.
+         */
+        int references;
+
+        Engine(final SvnEdgeMdnsEngineType type, final InetAddress address,
+                final String hostname, final SvnEdgeWideAreaDomain domain) {
+            this.creation = new FutureTask<JmDNS>(new Callable<JmDNS>() {
+                public JmDNS call() throws IOException {
+                    if (type == SvnEdgeMdnsEngineType.UNICAST) {
+                        return new SvnEdgeUnicastDnsSd(domain, address,
+                                hostname);
+                    }
+                    if (type == SvnEdgeMdnsEngineType.NIO) {
+                        return new SvnEdgeNioMdns(address, hostname);
+                    }
+                    if (address == null) {
+                        return JmDNS.create();
+                    }
+                    if (hostname != null && !hostname.equals("")) {
+                        return JmDNS.create(address, hostname);
+                    }
+                    return JmDNS.create(address);
+                }
+            });
+        }
+
+        /**
+         * @return the instance if it has been created, or <code>null</code>.
+         */
+        JmDNS getIfCreated() {
+            if (!creation.isDone()) {
+                return null;
+            }
+            try {
+                return creation.get();
+            } catch (Exception e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @param type is the type of the engine.
+     * @param address is the address of an interface, or <code>null</code>.
+     * @param domain is the domain of a unicast engine, or <code>null</code>.
+     * @return the key of the engine of the interface.
+     */
+    private static String keyOf(SvnEdgeMdnsEngineType type,
+            InetAddress address, SvnEdgeWideAreaDomain domain) {
+        return type + "/" + (address == null ? DEFAULT_KEY :
+            address.getHostAddress()) + (domain == null ? "" : "/" + domain);
+    }
+
+    /**
+     * Acquires the jmDNS instance bound to the given interface, creating it
+     * in case it is not used yet. It must be released with
+     * {@link #release(JmDNS)}.
+     * @param address is the address of the interface, or <code>null</code>
+     * for the default one.
+     * @param hostname is the hostname of a new instance, mostly used for
+     * debugging, or <code>null</code>. It is ignored by a shared instance.
+     * @return the jmDNS instance of the interface.
+     * @throws IOException if the instance can't be created.
+     */
+    static JmDNS acquire(InetAddress address, String hostname)
+            throws IOException {
+        return acquire(SvnEdgeMdnsEngineType.JMDNS, address, hostname);
+    }
+
+    /**
+     * Acquires the engine of the given type bound to the given interface,
+     * creating it in case it is not used yet. It must be released with
+     * {@link #release(JmDNS)}.
+     * @param type is the type of the engine, other than
+     * {@link SvnEdgeMdnsEngineType#UNICAST}.
+     * @param address is the address of the interface, or <code>null</code>
+     * for the default one.
+     * @param hostname is the hostname of a new instance, mostly used for
+     * debugging, or <code>null</code>. It is ignored by a shared instance.
+     * @return the engine of the interface.
+     * @throws IOException if the engine can't be created.
+     */
+    static JmDNS acquire(SvnEdgeMdnsEngineType type, InetAddress address,
+            String hostname) throws IOException {
+        return acquire(type, address, hostname, null);
+    }
+
+    /**
+     * Acquires the engine of the given type bound to the given interface,
+     * creating it in case it is not used yet. It must be released with
+     * {@link #release(JmDNS)}.
+     * @param type is the type of the engine.
+     * @param address is the address of the interface, or <code>null</code>
+     * for the default one. A unicast engine publishes it for the host.
+     * @param hostname is the hostname of a new instance, mostly used for
+     * debugging, or <code>null</code>. It is ignored by a shared instance.
+     * @param domain is the domain of a unicast engine, ignored by the
+     * multicast ones.
+     * @return the engine of the interface.
+     * @throws IOException if the engine can't be created.
+     * @throws IllegalArgumentException if a unicast engine has no domain.
+     */
+    static JmDNS acquire(SvnEdgeMdnsEngineType type, InetAddress address,
+            String hostname, SvnEdgeWideAreaDomain domain)
+            throws IOException {
+        if (type != SvnEdgeMdnsEngineType.UNICAST) {
+            domain = null;
+        } else if (domain == null) {
+            throw new IllegalArgumentException("The unicast DNS-SD engine " +
+                    "needs a wide-area domain");
+        }
+        String key = keyOf(type, address, domain);
+        Engine engine;
+        boolean created = false;
+        synchronized (engines) {
+            engine = engines.get(key);
+            if (engine == null) {
+                engine = new Engine(type, address, hostname, domain);
+                engines.put(key, engine);
+                created = true;
+            }
+            engine.references++;
+        }
+        if (created) {
+            engine.creation.run();
+        } else {
+            log.debug("Sharing the mDNS engine " + key);
+        }
+        try {
+            return engine.creation.get();
+
+        } catch (ExecutionException e) {
+            synchronized (engines) {
+                // the next users try again with a new instance.
+                engine.references--;
+                if (engines.get(key) == engine) {
+                    engines.remove(key);
+                }
+            }
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to create the mDNS engine " + key,
+                    e.getCause());
+
+        } catch (InterruptedException e) {
+            release(engine);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while creating the mDNS " +
+                    "engine " + key);
+        }
+    }
+
+    /**
+     * Releases the given jmDNS instance, closing it if this was its last
+     * user.
+     * @param jmdns is an instance returned by
+     * {@link #acquire(SvnEdgeMdnsEngineType, InetAddress, String)}.
+     * @throws IOException in case the close operation fails.
+     */
+    static void release(JmDNS jmdns) throws IOException {
+        Engine engine = null;
+        synchronized (engines) {
+            for (Engine candidate : engines.values()) {
+                if (candidate.getIfCreated() == jmdns) {
+                    engine = candidate;
+                    break;
+                }
+            }
+        }
+        if (engine == null) {
+            // not a shared instance.
+            jmdns.close();
+            return;
+        }
+        release(engine);
+    }
+
+    /**
+     * Releases the given engine, closing its instance if this was its last
+     * user.
+     * @param engine is an acquired engine.
+     * @throws IOException in case the close operation fails.
+     */
+    private static void release(Engine engine) throws IOException {
+        synchronized (engines) {
+            if (--engine.references > 0) {
+                return;
+            }
+            Iterator<Engine> iterator = engines.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next() == engine) {
+                    iterator.remove();
+                }
+            }
+        }
+        JmDNS jmdns = engine.getIfCreated();
+        if (jmdns != null) {
+            log.debug("Closing the jmDNS instance " + jmdns.getName());
+            jmdns.close();
+        }
+    }
+
+    /**
+     * Removes the records of the services just unregistered from the cache
+     * of the given instance, so that the clients sharing it see them leave
+     * right away. jmDNS only expires the records of its own goodbye packets,
+     * which may be lost or overridden by a late answer on a busy interface,
+     * and removes the expired records every ten seconds.
+     * @param jmdns is an acquired instance that sent goodbye packets.
+     * @param services are the services unregistered from the instance.
+     */
+    static void removeGoodbyes(final JmDNS jmdns,
+            final Collection<ServiceInfo> services) {
+        if (!(jmdns instanceof JmDNSImpl)) {
+            return;
+        }
+        CleanerHolder.CLEANER.schedule(new Runnable() {
+            public void run() {
+                JmDNSImpl impl = (JmDNSImpl) jmdns;
+                if (impl.isClosed()) {
+                    return;
+                }
+                for (ServiceInfo info : services) {
+                    // the service registered again in the meantime is kept.
+                    if (!impl.getServices().containsKey(info.getKey())) {
+                        removeRecords(impl, info);
+                    }
+                }
+            }
+        }, GOODBYE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Removes the pointer, service and text records of the given service from
+     * the cache of the given instance, notifying its service listeners.
+     * @param impl is an open instance.
+     * @param info is a service unregistered from the instance.
+     */
+    private static void removeRecords(JmDNSImpl impl, ServiceInfo info) {
+        DNSCache cache = impl.getCache();
+        List<DNSRecord> records = new ArrayList<DNSRecord>();
+        for (DNSEntry entry : cache.getDNSEntryList(
+                info.getType().toLowerCase())) {
+            if (entry instanceof DNSRecord && entry.getRecordType() ==
+                    DNSRecordType.TYPE_PTR && info.getQualifiedName()
+                        .equalsIgnoreCase(((DNSRecord) entry).getServiceInfo()
+                                .getQualifiedName())) {
+                records.add((DNSRecord) entry);
+            }
+        }
+        for (DNSEntry entry : cache.getDNSEntryList(info.getKey())) {
+            if (entry instanceof DNSRecord) {
+                records.add((DNSRecord) entry);
+            }
+        }
+        long now = System.currentTimeMillis();
+        for (DNSRecord record : records) {
+            impl.updateRecord(now, record, JmDNSImpl.Operation.Remove);
+            cache.removeDNSEntry(record);
+        }
+    }
+
+    /**
+     * @param jmdns is an acquired instance.
+     * @return the number of clients and registers using the given instance,
+     * or 0 if it is not shared.
+     */
+    static int getReferenceCount(JmDNS jmdns) {
+        synchronized (engines) {
+            for (Engine engine : engines.values()) {
+                if (engine.getIfCreated() == jmdns) {
+                    return engine.references;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param address is the address of an interface, or <code>null</code>
+     * for the default one.
+     * @return the number of clients and registers using the jmDNS instance
+     * of the given interface, or 0 if it has none.
+     */
+    public static int getReferenceCount(InetAddress address) {
+        return getReferenceCount(SvnEdgeMdnsEngineType.JMDNS, address);
+    }
+
+    /**
+     * @param type is the type of the engine.
+     * @param address is the address of an interface, or <code>null</code>
+     * for the default one.
+     * @return the number of clients and registers using the engine of the
+     * given type of the given interface, or 0 if it has none.
+     */
+    public static int getReferenceCount(SvnEdgeMdnsEngineType type,
+            InetAddress address) {
+        return getReferenceCount(type, address, null);
+    }
+
+    /**
+     * @param address is the address of an interface, or <code>null</code>
+     * for the default one.
+     * @param domain is a wide-area domain.
+     * @return the number of clients and registers using the unicast engine
+     * of the given domain of the given interface, or 0 if it has none.
+     */
+    public static int getReferenceCount(InetAddress address,
+            SvnEdgeWideAreaDomain domain) {
+        return getReferenceCount(SvnEdgeMdnsEngineType.UNICAST, address,
+                domain);
+    }
+
+    private static int getReferenceCount(SvnEdgeMdnsEngineType type,
+            InetAddress address, SvnEdgeWideAreaDomain domain) {
+        synchronized (engines) {
+            Engine engine = engines.get(keyOf(type, address, domain));
+            return engine != null ? engine.references : 0;
+        }
+    }
+
+    /**
+     * @return the number of mDNS engines currently open in the JVM, of all
+     * the types.
+     */
+    public static int getEngineCount() {
+        synchronized (engines) {
+            return engines.size();
+        }
+    }
+}
@@ -0,0 +1,1865 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.jmdns.ServiceEvent;
+import javax.jmdns.ServiceInfo;
+import javax.jmdns.ServiceListener;
+import javax.jmdns.ServiceTypeListener;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A lightweight mDNS engine implementing the subset of DNS-SD used by the
+ * {@link SvnEdgeBonjourClient} and the {@link SvnEdgeBonjourRegister}: the
+ * browsing queries of the service types, the resolution queries of the
+ * instances, the probes, announcements and goodbyes of the registered
+ * services, and the responses to the queries of the other hosts. The
+ * enumeration of all the service types of the network is not part of that
+ * subset: {@link #addServiceTypeListener(ServiceTypeListener)} is not
+ * supported, although the types of the registered services are answered.
+ *
+ * A single selector thread owns a non-blocking datagram channel, two direct
+ * buffers reused for every packet and a timer wheel for the probes, the
+ * announcements, the queries and the expiry of the cached records, instead
+ * of the timer threads and the record objects of jmDNS. The calls of the
+ * API are handed to that thread, and the listeners are called by it, so
+ * they must not block.
+ *
+ * The traffic grows with the changes of the network rather than with its
+ * size: the queries carry the instances already cached as known answers,
+ * the queries of a type back off exponentially while its instances are
+ * stable and are skipped when another host asks the same, and the shared
+ * answers are delayed so that the ones sent by the other hosts or known by
+ * the asking host are not repeated.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+final class SvnEdgeNioMdns extends SvnEdgeDnsSdEngine {
+
+    private static final Logger log = Logger.getLogger(SvnEdgeNioMdns.class);
+    /**
+     * The port of mDNS.
+     */
+    static final int MDNS_PORT = 5353;
+    private static final String MDNS_GROUP = "224.0.0.251";
+    private static final String MDNS_GROUP_V6 = "FF02::FB";
+    /**
+     * The meta query type listing the service types of a host.
+     */
+    private static final String SERVICES_TYPE = "_services._dns-sd._udp.local.";
+    /**
+     * The size of the buffer receiving the packets, the largest mDNS packet.
+     */
+    private static final int RECEIVE_SIZE = 9000;
+    /**
+     * The maximum size of the packets sent, so that they are not
+     * fragmented on an Ethernet link.
+     */
+    private static final int PACKET_SIZE = 1472;
+    /**
+     * The time to live of the host and service records, in seconds.
+     */
+    static final int HOST_TTL = 120;
+    /**
+     * The time to live of the pointer and text records, in seconds.
+     */
+    static final int SERVICE_TTL = 4500;
+    /**
+     * The time to live of the answers of legacy unicast queries, in seconds.
+     */
+    private static final int LEGACY_TTL = 10;
+    /**
+     * The time a record is kept after its goodbye, in milliseconds.
+     */
+    private static final long GOODBYE_GRACE = 1000;
+    private static final long PROBE_INTERVAL = 250;
+    private static final int PROBES = 3;
+    private static final long ANNOUNCE_INTERVAL = 1000;
+    private static final int ANNOUNCEMENTS = 2;
+    /**
+     * The interval between the first two queries of a service type, in
+     * milliseconds. It doubles after each query, and starts over when the
+     * instances of the type change.
+     */
+    private static final long MIN_QUERY_INTERVAL = 1000;
+    /**
+     * The longest interval between the queries of a service type, in
+     * milliseconds, once its instances are stable.
+     */
+    private static final long MAX_QUERY_INTERVAL = TimeUnit.MINUTES.toMillis(
+            60);
+    /**
+     * The random delay before refreshing the pointers about to expire, in
+     * milliseconds, so that the refreshes of a type are sent together. It
+     * is also the random delay of the multicast responses of the shared
+     * records, so that the answers of the hosts are aggregated.
+     */
+    private static final int REFRESH_DELAY = 100;
+    /**
+     * The delay of the responses to the queries whose known answers continue
+     * in the next packets, in milliseconds.
+     */
+    private static final long TRUNCATED_DELAY = 400;
+    /**
+     * The number of the last packets sent that are recognized when they are
+     * looped back, and for how long, in milliseconds.
+     */
+    private static final int SENT_HASHES = 64;
+    private static final long SENT_HASH_LIFETIME = 2000;
+    /**
+     * The maximum time {@link #registerService(ServiceInfo)} waits for the
+     * first announcement of the service, in milliseconds.
+     */
+    private static final long REGISTRATION_TIMEOUT = 6000;
+    /**
+     * The number of bits of the hashes of the cached hosts, a power of two.
+     */
+    private static final int HOST_HASHES = 4096;
+    private static final SvnEdgeThreadFactory threads =
+            new SvnEdgeThreadFactory("SvnEdge-Nio-Mdns-");
+
+    /**
+     * The browsing of a service type, with its listeners.
+     */
+    private final class Browse extends Task {
+        /**
+         * The type, as given by the first listener.
+         */
+        private final String type;
+        private final List<ServiceListener> listeners =
+                new CopyOnWriteArrayList<ServiceListener>();
+        /**
+         * The interval until the query after the next one, in milliseconds.
+         */
+        private long interval = MIN_QUERY_INTERVAL;
+
+        private Browse(String type) {
+            this.type = type;
+        }
+
+        void run(long now) {
+            sendBrowseQuery(this, now);
+        }
+    }
+
+    /**
+     * A service instance in the cache, with the expiry of each one of its
+     * records.
+     */
+    private final class CachedInstance extends Task {
+        private final String key;
+        private final Browse browse;
+        private final String name;
+        private long pointerReceived;
+        private long pointerExpiry;
+        private int pointerTtl;
+        /**
+         * The time of the next refresh query, or 0.
+         */
+        private long refreshAt;
+        private int refreshes;
+        private String server;
+        private int port;
+        private int priority;
+        private int weight;
+        private long serviceExpiry;
+        private byte[] text;
+        private long textExpiry;
+        /**
+         * The last service info reported resolved, or <code>null</code>.
+         */
+        private SvnEdgeNioServiceInfo resolved;
+
+        private CachedInstance(String key, Browse browse, String name) {
+            this.key = key;
+            this.browse = browse;
+            this.name = name;
+        }
+
+        void run(long now) {
+            checkInstance(this, now);
+        }
+    }
+
+    /**
+     * The addresses of a host referenced by the cached instances.
+     */
+    private static final class CachedHost {
+        /**
+         * The expiry of each address.
+         */
+        private final Map<InetAddress, Long> addresses =
+                new LinkedHashMap<InetAddress, Long>();
+        /**
+         * The number of cached instances on the host.
+         */
+        private int references;
+
+        private InetAddress[] getAddresses(long now) {
+            Iterator<Map.Entry<InetAddress, Long>> iterator =
+                    addresses.entrySet().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().getValue() <= now) {
+                    iterator.remove();
+                }
+            }
+            return addresses.keySet().toArray(new InetAddress[
+                    addresses.size()]);
+        }
+    }
+
+    /**
+     * A service registered by this engine.
+     */
+    private final class Service extends Task {
+        private static final int PROBING = 0;
+        private static final int ANNOUNCING = 1;
+        private static final int ANNOUNCED = 2;
+        private static final int CANCELLED = 3;
+
+        private final ServiceInfo info;
+        private final String type;
+        /**
+         * The name announced, which differs from the name of the info when
+         * it was taken by another host.
+         */
+        private String name;
+        private int state = PROBING;
+        private int step;
+        private final CountDownLatch firstAnnouncement = new CountDownLatch(1);
+
+        private Service(ServiceInfo info) {
+            this.info = info;
+            this.type = info.getType();
+            this.name = info.getName();
+        }
+
+        private String getQualifiedName() {
+            return name + "." + type;
+        }
+
+        private String getKey() {
+            return getQualifiedName().toLowerCase();
+        }
+
+        private SvnEdgeDnsRecord pointer(int ttl) {
+            return SvnEdgeDnsRecord.pointer(type, ttl, getQualifiedName());
+        }
+
+        private SvnEdgeDnsRecord service(int ttl) {
+            return SvnEdgeDnsRecord.service(getQualifiedName(), ttl,
+                    info.getPriority(), info.getWeight(), info.getPort(),
+                    hostName);
+        }
+
+        private SvnEdgeDnsRecord text(int ttl) {
+            return SvnEdgeDnsRecord.text(getQualifiedName(), ttl,
+                    info.getTextBytes());
+        }
+
+        void run(long now) {
+            advanceService(this, now);
+        }
+    }
+
+    /**
+     * The multicast response being delayed, aggregating the answers of the
+     * queries received meanwhile.
+     */
+    private final class PendingResponse extends Task {
+        /**
+         * The answers and the additional records by key.
+         */
+        private final Map<String, SvnEdgeDnsRecord> answers =
+                new LinkedHashMap<String, SvnEdgeDnsRecord>();
+        private final Map<String, SvnEdgeDnsRecord> additionals =
+                new LinkedHashMap<String, SvnEdgeDnsRecord>();
+        /**
+         * The host that asked each answer, or <code>null</code> if several
+         * hosts asked it, whose next known answers can suppress it.
+         */
+        private final Map<String, InetSocketAddress> askers =
+                new HashMap<String, InetSocketAddress>();
+
+        void run(long now) {
+            sendPendingResponse();
+        }
+    }
+
+    private final InetSocketAddress group;
+    private final DatagramChannel channel;
+    private final ByteBuffer receiveBuffer =
+            ByteBuffer.allocateDirect(RECEIVE_SIZE);
+    private final SvnEdgeDnsWriter writer = new SvnEdgeDnsWriter(PACKET_SIZE);
+    private final SvnEdgeDnsReader reader = new SvnEdgeDnsReader();
+    /**
+     * The questions, the records and the proposed records of the packet
+     * received that were kept, reused for each packet.
+     */
+    private final List<SvnEdgeDnsReader.Question> questionsRead =
+            new ArrayList<SvnEdgeDnsReader.Question>();
+    private final List<SvnEdgeDnsRecord> recordsRead =
+            new ArrayList<SvnEdgeDnsRecord>();
+    private final List<SvnEdgeDnsRecord> authoritiesRead =
+            new ArrayList<SvnEdgeDnsRecord>();
+    /**
+     * The known answers of the query received about the registered services
+     * and the browsed types.
+     */
+    private final List<SvnEdgeDnsRecord> knownAnswersRead =
+            new ArrayList<SvnEdgeDnsRecord>();
+    /**
+     * The hashes and the times of the last packets sent, to recognize them
+     * when they are looped back.
+     */
+    private final long[] sentHashes = new long[SENT_HASHES];
+    private final long[] sentTimes = new long[SENT_HASHES];
+    private int sentIndex;
+    /**
+     * The keys of the browsed types and of the types of the registered
+     * services, matched in the received packets before they are decoded.
+     */
+    private byte[][] browsedTypeKeys = new byte[0][];
+    private byte[][] serviceTypeKeys = new byte[0][];
+    /**
+     * The hashes of the hosts of the cached instances, modulo the size.
+     */
+    private final BitSet hostHashes = new BitSet(HOST_HASHES);
+    /**
+     * Whether the keys must be encoded again before the next packet.
+     */
+    private boolean keysChanged = true;
+    private final byte[] hostKey;
+    private final byte[] servicesTypeKey =
+            SvnEdgeDnsReader.keyOf(SERVICES_TYPE);
+    /**
+     * The browsed types by lower case type. Only used by the selector
+     * thread, as all the following maps.
+     */
+    private final Map<String, Browse> browses = new HashMap<String, Browse>();
+    /**
+     * The cached instances by lower case qualified name.
+     */
+    private final Map<String, CachedInstance> instances =
+            new HashMap<String, CachedInstance>();
+    /**
+     * The hosts of the cached instances by lower case name.
+     */
+    private final Map<String, CachedHost> hosts =
+            new HashMap<String, CachedHost>();
+    /**
+     * The registered services by the key of their info.
+     */
+    private final Map<String, Service> services =
+            new LinkedHashMap<String, Service>();
+    /**
+     * The registered services by the lower case qualified name announced.
+     */
+    private final Map<String, Service> servicesByName =
+            new HashMap<String, Service>();
+    /**
+     * The time until which the late answers for the services unregistered
+     * by this engine are ignored, by lower case qualified name, as the
+     * services are removed from the cache right away.
+     */
+    private final Map<String, Long> departed = new HashMap<String, Long>();
+    private final PendingResponse pendingResponse = new PendingResponse();
+    private final Random random = new Random();
+
+    /**
+     * Creates a new engine bound to the mDNS port of the given interface.
+     * @param address is the address of the interface, or <code>null</code>
+     * for the address of the local host.
+     * @param hostname is the name of the host announced, or
+     * <code>null</code> for the name of the address.
+     * @throws IOException if the multicast group can't be joined.
+     */
+    SvnEdgeNioMdns(InetAddress address, String hostname) throws IOException {
+        super("NIO mDNS", address, hostname, "local.", threads);
+        this.hostKey = SvnEdgeDnsReader.keyOf(this.hostName);
+        boolean ipv6 = this.address instanceof Inet6Address;
+        this.group = new InetSocketAddress(InetAddress.getByName(ipv6 ?
+                MDNS_GROUP_V6 : MDNS_GROUP), MDNS_PORT);
+        NetworkInterface networkInterface =
+                NetworkInterface.getByInetAddress(this.address);
+        if (networkInterface == null) {
+            selector.close();
+            throw new IOException("No network interface has the address " +
+                    this.address.getHostAddress());
+        }
+        this.channel = DatagramChannel.open(ipv6 ?
+                StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+        try {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.bind(new InetSocketAddress(MDNS_PORT));
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_IF,
+                    networkInterface);
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, 255);
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+            channel.join(group.getAddress(), networkInterface);
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+
+        } catch (IOException e) {
+            channel.close();
+            selector.close();
+            throw e;
+        }
+        startLoop();
+        log.debug("Started the NIO mDNS engine of " + hostName + " at " +
+                this.address.getHostAddress());
+    }
+
+    @Override
+    void selected(Set<SelectionKey> keys) throws IOException {
+        receive();
+    }
+
+    @Override
+    void closeChannels() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Receives and handles the pending packets.
+     */
+    private void receive() throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            SocketAddress from = channel.receive(receiveBuffer);
+            if (from == null) {
+                return;
+            }
+            receiveBuffer.flip();
+            counters.packetReceived();
+            try {
+                reader.reset(receiveBuffer);
+                readEntries();
+
+            } catch (IllegalArgumentException e) {
+                counters.malformedPacket();
+                log.debug("Ignoring a malformed packet from " + from + ": " +
+                        e.getMessage());
+                continue;
+            }
+            // any host of the network can send a packet: the failure to
+            // handle one of them must not stop the engine.
+            try {
+                handle(from);
+
+            } catch (RuntimeException e) {
+                counters.malformedPacket();
+                log.error("Failed to handle the packet from " + from, e);
+            }
+        }
+    }
+
+    /**
+     * Handles the entries read from the packet received.
+     */
+    private void handle(SocketAddress from) {
+        long now = System.currentTimeMillis();
+        if (reader.isResponse()) {
+            if (!recordsRead.isEmpty()) {
+                handleResponse(recordsRead, now, isSent(receiveBuffer, now));
+            }
+        } else if (!questionsRead.isEmpty() || !knownAnswersRead.isEmpty() ||
+                !authoritiesRead.isEmpty()) {
+            handleQuery(reader.getId(), reader.getFlags(), questionsRead,
+                    knownAnswersRead, authoritiesRead,
+                    (InetSocketAddress) from, isSent(receiveBuffer, now), now);
+        }
+    }
+
+    /**
+     * @return the hash of the given packet, from its start to its limit.
+     */
+    private static long hashOf(ByteBuffer packet) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < packet.limit(); i++) {
+            hash ^= packet.get(i) & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * @return whether the given packet received is one of the last packets
+     * sent, looped back.
+     */
+    private boolean isSent(ByteBuffer packet, long now) {
+        long hash = hashOf(packet);
+        for (int i = 0; i < SENT_HASHES; i++) {
+            if (sentHashes[i] == hash && now - sentTimes[i] <
+                    SENT_HASH_LIFETIME) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decodes the entries of the received packet about the observed types,
+     * the registered services and this host. The others, such as the
+     * chatter of the other devices of the network, are matched and skipped
+     * in place, without allocating anything.
+     */
+    private void readEntries() {
+        if (keysChanged) {
+            updateKeys();
+        }
+        questionsRead.clear();
+        recordsRead.clear();
+        authoritiesRead.clear();
+        knownAnswersRead.clear();
+        boolean response = reader.isResponse();
+        while (reader.next()) {
+            int section = reader.getSection();
+            if (section == SvnEdgeDnsWriter.QUESTION) {
+                // the questions about the browsed types are the duplicates
+                // of the queries of this engine.
+                if (!response && (isAnswered() || isBrowsedPointer())) {
+                    questionsRead.add(reader.toQuestion());
+                }
+            } else if (!response && section == SvnEdgeDnsWriter.ANSWER) {
+                // a known answer of a type not used by DNS-SD, such as ANY,
+                // cannot match any answer of this engine.
+                SvnEdgeDnsRecord knownAnswer = isAnswered() ||
+                        isBrowsedPointer() ? reader.toRecord() : null;
+                if (knownAnswer != null) {
+                    knownAnswersRead.add(knownAnswer);
+                } else {
+                    counters.recordFiltered();
+                }
+            } else if (section == SvnEdgeDnsWriter.AUTHORITY) {
+                // the records proposed by the probes of the other hosts.
+                if (!response && reader.getType() == SvnEdgeDnsRecord.TYPE_SRV
+                        && endsWithAny(serviceTypeKeys)) {
+                    authoritiesRead.add(reader.toRecord());
+                }
+            } else if (response && isObserved()) {
+                recordsRead.add(reader.toRecord());
+            } else {
+                counters.recordFiltered();
+            }
+        }
+    }
+
+    /**
+     * @return whether the current question or record is about a registered
+     * service or this host.
+     */
+    private boolean isAnswered() {
+        int type = reader.getType();
+        boolean any = type == SvnEdgeDnsRecord.TYPE_ANY;
+        if ((type == SvnEdgeDnsRecord.TYPE_PTR || any) &&
+                (equalsAny(serviceTypeKeys) || (serviceTypeKeys.length > 0 &&
+                        reader.nameEquals(servicesTypeKey)))) {
+            return true;
+        }
+        if ((type == SvnEdgeDnsRecord.TYPE_SRV ||
+                type == SvnEdgeDnsRecord.TYPE_TXT || any) &&
+                endsWithAny(serviceTypeKeys)) {
+            return true;
+        }
+        return (type == SvnEdgeDnsRecord.TYPE_A ||
+                type == SvnEdgeDnsRecord.TYPE_AAAA || any) &&
+                reader.nameEquals(hostKey);
+    }
+
+    /**
+     * @return whether the current record of a response is about an instance
+     * of a browsed type or a registered service, or is an address of the
+     * host of a cached instance.
+     */
+    private boolean isObserved() {
+        switch (reader.getType()) {
+        case SvnEdgeDnsRecord.TYPE_PTR:
+            return equalsAny(browsedTypeKeys);
+        case SvnEdgeDnsRecord.TYPE_SRV:
+            return endsWithAny(browsedTypeKeys) ||
+                    endsWithAny(serviceTypeKeys);
+        case SvnEdgeDnsRecord.TYPE_TXT:
+            return endsWithAny(browsedTypeKeys);
+        case SvnEdgeDnsRecord.TYPE_A:
+        case SvnEdgeDnsRecord.TYPE_AAAA:
+            // a false positive of the hashes is dropped by cacheAddress().
+            return !hosts.isEmpty() && hostHashes.get(reader.getNameHash() &
+                    (HOST_HASHES - 1));
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @return whether the current question or record is the pointer of a
+     * browsed type.
+     */
+    private boolean isBrowsedPointer() {
+        return reader.getType() == SvnEdgeDnsRecord.TYPE_PTR &&
+                equalsAny(browsedTypeKeys);
+    }
+
+    private boolean equalsAny(byte[][] keys) {
+        for (byte[] key : keys) {
+            if (reader.nameEquals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean endsWithAny(byte[][] keys) {
+        for (byte[] key : keys) {
+            if (reader.nameEndsWith(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Encodes the names matched in the received packets after the browsed
+     * types, the registered services or the cached hosts changed.
+     */
+    private void updateKeys() {
+        List<byte[]> keys = new ArrayList<byte[]>();
+        for (Browse browse : browses.values()) {
+            keys.add(SvnEdgeDnsReader.keyOf(browse.type));
+        }
+        browsedTypeKeys = keys.toArray(new byte[keys.size()][]);
+        Set<String> types = new LinkedHashSet<String>();
+        for (Service service : servicesByName.values()) {
+            types.add(service.type.toLowerCase());
+        }
+        keys.clear();
+        for (String type : types) {
+            keys.add(SvnEdgeDnsReader.keyOf(type));
+        }
+        serviceTypeKeys = keys.toArray(new byte[keys.size()][]);
+        hostHashes.clear();
+        for (String host : hosts.keySet()) {
+            hostHashes.set(SvnEdgeDnsReader.hashOf(SvnEdgeDnsReader.keyOf(
+                    host)) & (HOST_HASHES - 1));
+        }
+        keysChanged = false;
+    }
+
+    /**
+     * Sends the packet written.
+     */
+    private void flush(SocketAddress to) {
+        ByteBuffer packet = writer.finish();
+        sentHashes[sentIndex] = hashOf(packet);
+        sentTimes[sentIndex] = System.currentTimeMillis();
+        sentIndex = (sentIndex + 1) % SENT_HASHES;
+        try {
+            if (channel.send(packet, to) > 0) {
+                counters.packetSent();
+            } else {
+                log.debug("The mDNS packet to " + to + " was dropped");
+            }
+        } catch (IOException e) {
+            log.debug("Failed to send the mDNS packet to " + to, e);
+        }
+    }
+
+    /**
+     * Sends the given questions in as few packets as needed.
+     * @param knownAnswers are the answers already cached, or
+     * <code>null</code>. The packets whose known answers continue in the
+     * next ones are flagged as truncated.
+     * @param authorities are the proposed records of a probe, or
+     * <code>null</code>.
+     */
+    private void sendQuery(List<SvnEdgeDnsReader.Question> questions,
+            List<SvnEdgeDnsRecord> knownAnswers,
+            List<SvnEdgeDnsRecord> authorities) {
+        writer.reset(0, 0);
+        for (SvnEdgeDnsReader.Question question : questions) {
+            if (!writer.addQuestion(question.getName(), question.getType(),
+                    question.isUnicast())) {
+                flush(group);
+                writer.reset(0, 0);
+                writer.addQuestion(question.getName(), question.getType(),
+                        question.isUnicast());
+            }
+        }
+        if (knownAnswers != null) {
+            for (SvnEdgeDnsRecord record : knownAnswers) {
+                if (!writer.addRecord(SvnEdgeDnsWriter.ANSWER, record)) {
+                    writer.setFlags(SvnEdgeDnsReader.FLAG_TRUNCATED);
+                    flush(group);
+                    writer.reset(0, 0);
+                    writer.addRecord(SvnEdgeDnsWriter.ANSWER, record);
+                }
+            }
+        }
+        if (authorities != null) {
+            for (SvnEdgeDnsRecord record : authorities) {
+                writer.addRecord(SvnEdgeDnsWriter.AUTHORITY, record);
+            }
+        }
+        if (!writer.isEmpty()) {
+            flush(group);
+        }
+    }
+
+    /**
+     * Sends the given records in as few packets as needed.
+     * @param id is the id of the response, 0 for multicast.
+     * @param questions are the questions repeated in a response to a
+     * legacy query, or <code>null</code>.
+     */
+    private void sendResponse(int id, List<SvnEdgeDnsReader.Question>
+            questions, List<SvnEdgeDnsRecord> answers,
+            List<SvnEdgeDnsRecord> additionals, SocketAddress to) {
+        int flags = SvnEdgeDnsReader.FLAG_RESPONSE |
+                SvnEdgeDnsReader.FLAG_AUTHORITATIVE;
+        startResponse(id, flags, questions);
+        for (SvnEdgeDnsRecord record : answers) {
+            if (!writer.addRecord(SvnEdgeDnsWriter.ANSWER, record)) {
+                flush(to);
+                startResponse(id, flags, questions);
+                if (!writer.addRecord(SvnEdgeDnsWriter.ANSWER, record)) {
+                    log.warn("The record " + record + " does not fit in " +
+                            "a packet");
+                    continue;
+                }
+            }
+            counters.answerSent();
+        }
+        for (SvnEdgeDnsRecord record : additionals) {
+            if (!writer.addRecord(SvnEdgeDnsWriter.ADDITIONAL, record)) {
+                flush(to);
+                startResponse(id, flags, questions);
+                writer.addRecord(SvnEdgeDnsWriter.ADDITIONAL, record);
+            }
+        }
+        if (writer.getCount(SvnEdgeDnsWriter.ANSWER) +
+                writer.getCount(SvnEdgeDnsWriter.ADDITIONAL) > 0) {
+            flush(to);
+        }
+    }
+
+    private void startResponse(int id, int flags,
+            List<SvnEdgeDnsReader.Question> questions) {
+        writer.reset(id, flags);
+        if (questions != null) {
+            for (SvnEdgeDnsReader.Question question : questions) {
+                writer.addQuestion(question.getName(), question.getType(),
+                        false);
+            }
+        }
+    }
+
+    /**
+     * @return the address record of this host.
+     */
+    private SvnEdgeDnsRecord hostRecord(int ttl) {
+        return SvnEdgeDnsRecord.address(hostName, ttl, address);
+    }
+
+    // ----------------------------------------------------------------
+    // browsing and resolving
+    // ----------------------------------------------------------------
+
+    /**
+     * Sends the next query of the given browse, with the instances already
+     * cached as known answers, and schedules the following one.
+     */
+    private void sendBrowseQuery(Browse browse, long now) {
+        if (browses.get(browse.type.toLowerCase()) != browse) {
+            return;
+        }
+        sendQuery(Collections.singletonList(new SvnEdgeDnsReader.Question(
+                browse.type, SvnEdgeDnsRecord.TYPE_PTR, false)),
+                knownAnswers(browse, now), null);
+        counters.querySent();
+        scheduleNextQuery(browse, now);
+    }
+
+    /**
+     * Schedules the next query of the given browse after the current
+     * interval, which doubles up to the maximum.
+     */
+    private void scheduleNextQuery(Browse browse, long now) {
+        schedule(browse, now + browse.interval);
+        browse.interval = Math.min(browse.interval * 2, MAX_QUERY_INTERVAL);
+    }
+
+    /**
+     * @return the pointers of the cached instances of the given browse with
+     * more than half of their time to live left, with the time left.
+     */
+    private List<SvnEdgeDnsRecord> knownAnswers(Browse browse, long now) {
+        List<SvnEdgeDnsRecord> knownAnswers = new ArrayList<SvnEdgeDnsRecord>();
+        for (CachedInstance instance : instances.values()) {
+            long left = instance.pointerExpiry - now;
+            if (instance.browse == browse && left * 2 >
+                    TimeUnit.SECONDS.toMillis(instance.pointerTtl)) {
+                knownAnswers.add(SvnEdgeDnsRecord.pointer(browse.type,
+                        (int) TimeUnit.MILLISECONDS.toSeconds(left),
+                        instance.name + "." + browse.type));
+            }
+        }
+        return knownAnswers;
+    }
+
+    /**
+     * Queries the given type soon, unless a query is already scheduled
+     * before.
+     */
+    private void refreshBrowse(Browse browse, long now) {
+        long soon = now + 20 + random.nextInt(REFRESH_DELAY);
+        if (browse.timeout == null || browse.deadline > soon) {
+            schedule(browse, soon);
+        }
+    }
+
+    /**
+     * Starts the intervals of the queries of the given browse over after
+     * its instances changed, so that the queries follow the changes of the
+     * network and back off once it is stable.
+     */
+    private void restartQueries(Browse browse, long now) {
+        browse.interval = MIN_QUERY_INTERVAL;
+        if (browse.timeout != null && browse.deadline > now +
+                MIN_QUERY_INTERVAL) {
+            scheduleNextQuery(browse, now);
+        }
+    }
+
+    /**
+     * Counts the queries of the other hosts asking the browsed types as the
+     * queries of this engine, when their known answers are the ones this
+     * engine would send, as the answers will be the same.
+     */
+    private void suppressDuplicateQuestions(
+            List<SvnEdgeDnsReader.Question> questions,
+            List<SvnEdgeDnsRecord> knownAnswers, long now) {
+        for (SvnEdgeDnsReader.Question question : questions) {
+            if (question.getType() != SvnEdgeDnsRecord.TYPE_PTR ||
+                    question.isUnicast()) {
+                continue;
+            }
+            Browse browse = browses.get(question.getName().toLowerCase());
+            if (browse == null || browse.timeout == null) {
+                continue;
+            }
+            Set<String> ours = new HashSet<String>();
+            for (SvnEdgeDnsRecord record : knownAnswers(browse, now)) {
+                ours.add(record.getKey());
+            }
+            boolean duplicate = true;
+            for (SvnEdgeDnsRecord record : knownAnswers) {
+                if (record.getType() == SvnEdgeDnsRecord.TYPE_PTR &&
+                        record.getName().equalsIgnoreCase(browse.type) &&
+                        !ours.contains(record.getKey())) {
+                    duplicate = false;
+                    break;
+                }
+            }
+            if (duplicate) {
+                counters.questionSuppressed();
+                scheduleNextQuery(browse, now);
+            }
+        }
+    }
+
+    @Override
+    void addListener(String type, ServiceListener listener) {
+        String key = type.toLowerCase();
+        Browse browse = browses.get(key);
+        if (browse == null) {
+            browse = new Browse(type);
+            browses.put(key, browse);
+            keysChanged = true;
+            schedule(browse, System.currentTimeMillis());
+        }
+        if (browse.listeners.contains(listener)) {
+            return;
+        }
+        browse.listeners.add(listener);
+        // the listeners added later catch up with the cache.
+        for (CachedInstance instance : instances.values()) {
+            if (instance.browse == browse) {
+                notify(listener, EventKind.ADDED, unresolvedInfo(instance));
+                if (instance.resolved != null) {
+                    notify(listener, EventKind.RESOLVED, instance.resolved);
+                }
+            }
+        }
+    }
+
+    @Override
+    void removeListener(String type, ServiceListener listener) {
+        String key = type.toLowerCase();
+        Browse browse = browses.get(key);
+        if (browse == null || !browse.listeners.remove(listener) ||
+                !browse.listeners.isEmpty()) {
+            return;
+        }
+        browses.remove(key);
+        keysChanged = true;
+        unschedule(browse);
+        Iterator<CachedInstance> iterator = instances.values().iterator();
+        while (iterator.hasNext()) {
+            CachedInstance instance = iterator.next();
+            if (instance.browse == browse) {
+                iterator.remove();
+                unschedule(instance);
+                setServer(instance, null);
+            }
+        }
+    }
+
+    @Override
+    boolean isBrowsed(String type) {
+        return browses.containsKey(type.toLowerCase());
+    }
+
+    /**
+     * Reports the given instance resolved if it is cached, or asks for its
+     * records.
+     */
+    @Override
+    void resolveInstance(String type, String name) {
+        String qualifiedName = name + "." + type;
+        CachedInstance instance = instances.get(qualifiedName.toLowerCase());
+        if (instance != null && instance.resolved != null) {
+            fire(instance.browse, EventKind.RESOLVED, instance.resolved);
+            return;
+        }
+        List<SvnEdgeDnsReader.Question> questions =
+                new ArrayList<SvnEdgeDnsReader.Question>();
+        questions.add(new SvnEdgeDnsReader.Question(qualifiedName,
+                SvnEdgeDnsRecord.TYPE_SRV, false));
+        questions.add(new SvnEdgeDnsReader.Question(qualifiedName,
+                SvnEdgeDnsRecord.TYPE_TXT, false));
+        if (instance != null && instance.server != null) {
+            questions.add(new SvnEdgeDnsReader.Question(instance.server,
+                    address instanceof Inet6Address ?
+                            SvnEdgeDnsRecord.TYPE_AAAA :
+                                SvnEdgeDnsRecord.TYPE_A, false));
+        }
+        sendQuery(questions, null, null);
+        counters.querySent();
+    }
+
+    @Override
+    ServiceInfo getResolved(String type, String name) {
+        CachedInstance instance = instances.get((name + "." + type)
+                .toLowerCase());
+        return instance != null ? instance.resolved : null;
+    }
+
+    @Override
+    List<ServiceInfo> listResolved(String type) {
+        List<ServiceInfo> infos = new ArrayList<ServiceInfo>();
+        for (CachedInstance instance : instances.values()) {
+            if (instance.resolved != null &&
+                    instance.browse.type.equalsIgnoreCase(type)) {
+                infos.add(instance.resolved);
+            }
+        }
+        return infos;
+    }
+
+    /**
+     * Caches the records of the given response and reports the changes of
+     * the instances.
+     * @param sent whether the response was sent by this engine.
+     */
+    private void handleResponse(List<SvnEdgeDnsRecord> records, long now,
+            boolean sent) {
+        if (!sent) {
+            suppressPendingAnswers(records, null);
+        }
+        detectConflicts(records, now);
+        Set<CachedInstance> changed = new LinkedHashSet<CachedInstance>();
+        // the pointers create the instances, whose service records
+        // reference the hosts of the addresses.
+        for (SvnEdgeDnsRecord record : records) {
+            if (record.getType() == SvnEdgeDnsRecord.TYPE_PTR) {
+                cachePointer(record, now);
+            }
+        }
+        for (SvnEdgeDnsRecord record : records) {
+            if (record.getType() == SvnEdgeDnsRecord.TYPE_SRV ||
+                    record.getType() == SvnEdgeDnsRecord.TYPE_TXT) {
+                cacheServiceRecord(record, now, changed);
+            }
+        }
+        for (SvnEdgeDnsRecord record : records) {
+            if (record.getType() == SvnEdgeDnsRecord.TYPE_A ||
+                    record.getType() == SvnEdgeDnsRecord.TYPE_AAAA) {
+                cacheAddress(record, now, changed);
+            }
+        }
+        for (CachedInstance instance : changed) {
+            resolve(instance, now);
+        }
+    }
+
+    private void cachePointer(SvnEdgeDnsRecord record, long now) {
+        Browse browse = browses.get(record.getName().toLowerCase());
+        if (browse == null) {
+            return;
+        }
+        String key = record.getTarget().toLowerCase();
+        CachedInstance instance = instances.get(key);
+        if (record.getTtl() == 0) {
+            if (instance != null && instance.pointerExpiry >
+                    now + GOODBYE_GRACE) {
+                instance.pointerExpiry = now + GOODBYE_GRACE;
+                instance.refreshAt = 0;
+                scheduleInstance(instance);
+            }
+            return;
+        }
+        if (instance == null) {
+            Long until = departed.get(key);
+            if (until != null) {
+                if (until > now) {
+                    return;
+                }
+                departed.remove(key);
+            }
+            String name = instanceName(record.getTarget(), browse.type);
+            if (name == null) {
+                return;
+            }
+            instance = new CachedInstance(key, browse, name);
+            instances.put(key, instance);
+            restartQueries(browse, now);
+            fire(browse, EventKind.ADDED, unresolvedInfo(instance));
+        }
+        instance.pointerTtl = record.getTtl();
+        instance.pointerReceived = now;
+        instance.pointerExpiry = now + TimeUnit.SECONDS.toMillis(
+                record.getTtl());
+        instance.refreshAt = now + record.getTtl() * 800L;
+        instance.refreshes = 0;
+        scheduleInstance(instance);
+    }
+
+    /**
+     * @return the name of the given instance of the given type, or
+     * <code>null</code> if it is not an instance of the type.
+     */
+    static String instanceName(String qualifiedName, String type) {
+        int length = qualifiedName.length() - type.length() - 1;
+        if (length <= 0 || !qualifiedName.regionMatches(true, length + 1,
+                type, 0, type.length())) {
+            return null;
+        }
+        return qualifiedName.substring(0, length);
+    }
+
+    private void cacheServiceRecord(SvnEdgeDnsRecord record, long now,
+            Set<CachedInstance> changed) {
+        CachedInstance instance = instances.get(
+                record.getName().toLowerCase());
+        if (instance == null) {
+            return;
+        }
+        boolean service = record.getType() == SvnEdgeDnsRecord.TYPE_SRV;
+        if (record.getTtl() == 0) {
+            if (service && instance.server != null) {
+                instance.serviceExpiry = Math.min(instance.serviceExpiry,
+                        now + GOODBYE_GRACE);
+            } else if (!service && instance.text != null) {
+                instance.textExpiry = Math.min(instance.textExpiry,
+                        now + GOODBYE_GRACE);
+            }
+            scheduleInstance(instance);
+            return;
+        }
+        long expiry = now + TimeUnit.SECONDS.toMillis(record.getTtl());
+        if (service) {
+            if (!record.getTarget().equalsIgnoreCase(instance.server) ||
+                    record.getPort() != instance.port ||
+                    record.getPriority() != instance.priority ||
+                    record.getWeight() != instance.weight) {
+                setServer(instance, record.getTarget());
+                instance.port = record.getPort();
+                instance.priority = record.getPriority();
+                instance.weight = record.getWeight();
+                changed.add(instance);
+            }
+            instance.serviceExpiry = expiry;
+        } else {
+            if (!Arrays.equals(record.getText(), instance.text)) {
+                instance.text = record.getText();
+                changed.add(instance);
+            }
+            instance.textExpiry = expiry;
+        }
+        scheduleInstance(instance);
+    }
+
+    /**
+     * Changes the host of the given instance, keeping the addresses of the
+     * hosts of the cached instances only.
+     */
+    private void setServer(CachedInstance instance, String server) {
+        if (instance.server != null) {
+            String key = instance.server.toLowerCase();
+            CachedHost host = hosts.get(key);
+            if (host != null && --host.references == 0) {
+                hosts.remove(key);
+                keysChanged = true;
+            }
+        }
+        instance.server = server;
+        if (server != null) {
+            String key = server.toLowerCase();
+            CachedHost host = hosts.get(key);
+            if (host == null) {
+                host = new CachedHost();
+                hosts.put(key, host);
+                keysChanged = true;
+            }
+            host.references++;
+        } else {
+            instance.serviceExpiry = 0;
+        }
+    }
+
+    private void cacheAddress(SvnEdgeDnsRecord record, long now,
+            Set<CachedInstance> changed) {
+        String key = record.getName().toLowerCase();
+        CachedHost host = hosts.get(key);
+        if (host == null) {
+            // the addresses of the other hosts of the network.
+            return;
+        }
+        InetAddress hostAddress = record.getAddress();
+        Long previous = host.addresses.get(hostAddress);
+        if (record.getTtl() == 0) {
+            if (previous != null && previous > now + GOODBYE_GRACE) {
+                host.addresses.put(hostAddress, now + GOODBYE_GRACE);
+            }
+            return;
+        }
+        host.addresses.put(hostAddress, now + TimeUnit.SECONDS.toMillis(
+                record.getTtl()));
+        if (previous == null || previous <= now) {
+            for (CachedInstance instance : instances.values()) {
+                if (key.equalsIgnoreCase(instance.server)) {
+                    changed.add(instance);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reports the given instance resolved once its records are cached, or
+     * when its records changed since it was last reported.
+     */
+    private void resolve(CachedInstance instance, long now) {
+        if (instance.server == null || instance.text == null) {
+            return;
+        }
+        CachedHost host = hosts.get(instance.server.toLowerCase());
+        InetAddress[] addresses = host != null ? host.getAddresses(now) :
+            NO_ADDRESSES;
+        boolean inet4 = false;
+        for (InetAddress hostAddress : addresses) {
+            inet4 |= hostAddress instanceof Inet4Address;
+        }
+        if (!inet4) {
+            // the servers are reported with their IPv4 address.
+            return;
+        }
+        SvnEdgeNioServiceInfo previous = instance.resolved;
+        if (previous != null && previous.getPort() == instance.port &&
+                previous.getServer().equals(instance.server) &&
+                Arrays.equals(previous.getTextBytes(), instance.text) &&
+                Arrays.equals(previous.getInetAddresses(), addresses)) {
+            return;
+        }
+        instance.resolved = new SvnEdgeNioServiceInfo(instance.browse.type,
+                instance.name, instance.port, instance.weight,
+                instance.priority, instance.text, instance.server, addresses);
+        fire(instance.browse, EventKind.RESOLVED, instance.resolved);
+    }
+
+    private SvnEdgeNioServiceInfo unresolvedInfo(CachedInstance instance) {
+        return new SvnEdgeNioServiceInfo(instance.browse.type, instance.name,
+                0, 0, 0, null, null, NO_ADDRESSES);
+    }
+
+    /**
+     * Schedules the next expiry or refresh of the given instance, unless an
+     * earlier one is already scheduled.
+     */
+    private void scheduleInstance(CachedInstance instance) {
+        long deadline = instance.pointerExpiry;
+        if (instance.refreshAt != 0) {
+            deadline = Math.min(deadline, instance.refreshAt);
+        }
+        if (instance.serviceExpiry != 0) {
+            deadline = Math.min(deadline, instance.serviceExpiry);
+        }
+        if (instance.textExpiry != 0) {
+            deadline = Math.min(deadline, instance.textExpiry);
+        }
+        if (instance.timeout == null || deadline < instance.deadline) {
+            schedule(instance, deadline);
+        }
+    }
+
+    /**
+     * Expires or refreshes the records of the given instance.
+     */
+    private void checkInstance(CachedInstance instance, long now) {
+        if (instances.get(instance.key) != instance) {
+            return;
+        }
+        if (instance.pointerExpiry <= now) {
+            removeInstance(instance, now);
+            return;
+        }
+        if (instance.serviceExpiry != 0 && instance.serviceExpiry <= now) {
+            setServer(instance, null);
+            instance.resolved = null;
+        }
+        if (instance.textExpiry != 0 && instance.textExpiry <= now) {
+            instance.text = null;
+            instance.textExpiry = 0;
+            instance.resolved = null;
+        }
+        if (instance.refreshAt != 0 && instance.refreshAt <= now) {
+            // refreshed at 80% and 90% of the time to live.
+            instance.refreshes++;
+            instance.refreshAt = instance.refreshes < 2 ?
+                    instance.pointerReceived + instance.pointerTtl * 900L : 0;
+            refreshBrowse(instance.browse, now);
+        }
+        scheduleInstance(instance);
+    }
+
+    private void removeInstance(CachedInstance instance, long now) {
+        instances.remove(instance.key);
+        unschedule(instance);
+        setServer(instance, null);
+        restartQueries(instance.browse, now);
+        fire(instance.browse, EventKind.REMOVED, unresolvedInfo(instance));
+    }
+
+    private enum EventKind {
+        ADDED, REMOVED, RESOLVED
+    }
+
+    private void fire(Browse browse, EventKind kind, ServiceInfo info) {
+        for (ServiceListener listener : browse.listeners) {
+            notify(listener, kind, info);
+        }
+    }
+
+    private void notify(ServiceListener listener, EventKind kind,
+            ServiceInfo info) {
+        ServiceEvent event = new SvnEdgeNioServiceEvent(this, info);
+        try {
+            switch (kind) {
+            case ADDED:
+                listener.serviceAdded(event);
+                break;
+            case REMOVED:
+                listener.serviceRemoved(event);
+                break;
+            default:
+                listener.serviceResolved(event);
+            }
+        } catch (RuntimeException e) {
+            log.error("The listener " + listener + " failed to handle " +
+                    event, e);
+        }
+    }
+
+    // ----------------------------------------------------------------
+    // responding
+    // ----------------------------------------------------------------
+
+    /**
+     * Answers the questions about the registered services and this host,
+     * leaving out the answers known by the asking host. The multicast
+     * answers of the shared records are delayed, so that the answers of the
+     * queries received meanwhile are aggregated and the ones sent by the
+     * other hosts are not repeated.
+     * @param flags are the flags of the query.
+     * @param sent whether the query was sent by this engine.
+     */
+    private void handleQuery(int id, int flags,
+            List<SvnEdgeDnsReader.Question> questions,
+            List<SvnEdgeDnsRecord> knownAnswers,
+            List<SvnEdgeDnsRecord> authorities, InetSocketAddress from,
+            boolean sent, long now) {
+        detectProbeConflicts(authorities);
+        boolean truncated = (flags & SvnEdgeDnsReader.FLAG_TRUNCATED) != 0;
+        if (!sent) {
+            if (!truncated) {
+                suppressDuplicateQuestions(questions, knownAnswers, now);
+            }
+            if (questions.isEmpty()) {
+                // the known answers continuing a truncated query.
+                suppressPendingAnswers(knownAnswers, from);
+            }
+        }
+        List<SvnEdgeDnsRecord> answers = new ArrayList<SvnEdgeDnsRecord>();
+        boolean unicast = false;
+        boolean legacy = from.getPort() != MDNS_PORT;
+        int ttlCap = legacy ? LEGACY_TTL : Integer.MAX_VALUE;
+        for (SvnEdgeDnsReader.Question question : questions) {
+            String key = question.getName().toLowerCase();
+            int type = question.getType();
+            boolean any = type == SvnEdgeDnsRecord.TYPE_ANY;
+            int before = answers.size();
+            if (type == SvnEdgeDnsRecord.TYPE_PTR || any) {
+                Set<String> types = new LinkedHashSet<String>();
+                for (Service service : servicesByName.values()) {
+                    if (service.state < Service.ANNOUNCING) {
+                        continue;
+                    }
+                    if (key.equals(SERVICES_TYPE)) {
+                        types.add(service.type);
+
+                    } else if (key.equalsIgnoreCase(service.type)) {
+                        answers.add(service.pointer(Math.min(SERVICE_TTL,
+                                ttlCap)));
+                    }
+                }
+                for (String serviceType : types) {
+                    answers.add(SvnEdgeDnsRecord.pointer(SERVICES_TYPE,
+                            Math.min(SERVICE_TTL, ttlCap), serviceType));
+                }
+            }
+            Service service = servicesByName.get(key);
+            if (service != null && service.state >= Service.ANNOUNCING) {
+                if (type == SvnEdgeDnsRecord.TYPE_SRV || any) {
+                    answers.add(service.service(Math.min(HOST_TTL, ttlCap)));
+                }
+                if (type == SvnEdgeDnsRecord.TYPE_TXT || any) {
+                    answers.add(service.text(Math.min(SERVICE_TTL, ttlCap)));
+                }
+            }
+            if (key.equals(hostName.toLowerCase()) && (any ||
+                    type == hostRecord(0).getType())) {
+                answers.add(hostRecord(Math.min(HOST_TTL, ttlCap)));
+            }
+            if (answers.size() > before) {
+                unicast |= question.isUnicast();
+            }
+        }
+        Iterator<SvnEdgeDnsRecord> iterator = answers.iterator();
+        while (iterator.hasNext()) {
+            if (isKnown(iterator.next(), knownAnswers)) {
+                iterator.remove();
+                counters.answerSuppressed();
+            }
+        }
+        if (answers.isEmpty()) {
+            return;
+        }
+        Map<String, SvnEdgeDnsRecord> additionals =
+            new LinkedHashMap<String, SvnEdgeDnsRecord>();
+        for (SvnEdgeDnsRecord answer : answers) {
+            Service service = servicesByName.get((answer.getType() ==
+                SvnEdgeDnsRecord.TYPE_PTR ? answer.getTarget() :
+                    answer.getName()).toLowerCase());
+            if (service != null) {
+                addAdditionals(service, additionals, ttlCap);
+            }
+        }
+        for (SvnEdgeDnsRecord answer : answers) {
+            additionals.remove(answer.getKey());
+        }
+        List<SvnEdgeDnsRecord> additionalRecords =
+            new ArrayList<SvnEdgeDnsRecord>();
+        for (SvnEdgeDnsRecord additional : additionals.values()) {
+            if (!isKnown(additional, knownAnswers)) {
+                additionalRecords.add(additional);
+            }
+        }
+        if (legacy) {
+            sendResponse(id, questions, answers,
+                    additionalRecords, from);
+        } else if (unicast) {
+            sendResponse(0, null, answers, additionalRecords, from);
+        } else {
+            delayResponse(answers, additionalRecords, from, truncated, now);
+        }
+    }
+
+    /**
+     * @return whether one of the given known answers has the data of the
+     * given answer and at least half of its time to live.
+     */
+    private static boolean isKnown(SvnEdgeDnsRecord answer,
+            List<SvnEdgeDnsRecord> knownAnswers) {
+        for (SvnEdgeDnsRecord knownAnswer : knownAnswers) {
+            if (knownAnswer.getTtl() * 2L >= answer.getTtl() &&
+                    knownAnswer.hasSameData(answer)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the given multicast answers to the pending response. The unique
+     * records are sent right away, the shared ones after a random delay,
+     * and the answers of a truncated query after its known answers.
+     */
+    private void delayResponse(List<SvnEdgeDnsRecord> answers,
+            List<SvnEdgeDnsRecord> additionals, InetSocketAddress from,
+            boolean truncated, long now) {
+        boolean shared = false;
+        for (SvnEdgeDnsRecord answer : answers) {
+            shared |= !answer.isUnique();
+        }
+        if (!shared && !truncated) {
+            sendResponse(0, null, answers, additionals, group);
+            return;
+        }
+        for (SvnEdgeDnsRecord answer : answers) {
+            String key = answer.getKey();
+            if (pendingResponse.answers.containsKey(key)) {
+                // answered once for all the hosts asking it.
+                counters.answerSuppressed();
+                pendingResponse.askers.put(key, null);
+            } else {
+                pendingResponse.answers.put(key, answer);
+                pendingResponse.askers.put(key, from);
+            }
+        }
+        for (SvnEdgeDnsRecord additional : additionals) {
+            if (!pendingResponse.additionals.containsKey(
+                    additional.getKey())) {
+                pendingResponse.additionals.put(additional.getKey(),
+                        additional);
+            }
+        }
+        if (truncated) {
+            long time = now + TRUNCATED_DELAY + random.nextInt(REFRESH_DELAY);
+            if (pendingResponse.timeout == null ||
+                    pendingResponse.deadline < time) {
+                schedule(pendingResponse, time);
+            }
+        } else {
+            long time = now + 20 + random.nextInt(REFRESH_DELAY);
+            if (pendingResponse.timeout == null ||
+                    pendingResponse.deadline > time) {
+                schedule(pendingResponse, time);
+            }
+        }
+    }
+
+    /**
+     * Removes from the pending response the answers known by the given
+     * records of another host, which are either its answers or the known
+     * answers continuing its truncated query.
+     * @param asker is the host of the truncated query, whose answers only
+     * are removed, or <code>null</code> for the records of a response,
+     * which are received by all the hosts.
+     */
+    private void suppressPendingAnswers(List<SvnEdgeDnsRecord> records,
+            InetSocketAddress asker) {
+        if (pendingResponse.answers.isEmpty()) {
+            return;
+        }
+        Iterator<Map.Entry<String, SvnEdgeDnsRecord>> iterator =
+            pendingResponse.answers.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, SvnEdgeDnsRecord> entry = iterator.next();
+            if ((asker == null || asker.equals(pendingResponse.askers.get(
+                    entry.getKey()))) && isKnown(entry.getValue(), records)) {
+                iterator.remove();
+                pendingResponse.askers.remove(entry.getKey());
+                counters.answerSuppressed();
+            }
+        }
+    }
+
+    /**
+     * Sends the answers of the pending response left, with their additional
+     * records.
+     */
+    private void sendPendingResponse() {
+        unschedule(pendingResponse);
+        if (!pendingResponse.answers.isEmpty()) {
+            List<SvnEdgeDnsRecord> additionals =
+                new ArrayList<SvnEdgeDnsRecord>();
+            for (Map.Entry<String, SvnEdgeDnsRecord> entry :
+                    pendingResponse.additionals.entrySet()) {
+                if (!pendingResponse.answers.containsKey(entry.getKey())) {
+                    additionals.add(entry.getValue());
+                }
+            }
+            sendResponse(0, null, new ArrayList<SvnEdgeDnsRecord>(
+                    pendingResponse.answers.values()), additionals, group);
+        }
+        pendingResponse.answers.clear();
+        pendingResponse.additionals.clear();
+        pendingResponse.askers.clear();
+    }
+
+    /**
+     * Removes the records of the given cancelled service from the pending
+     * response, so that they are not sent after its goodbyes.
+     */
+    private void discardPendingRecords(Service service) {
+        discardRecords(pendingResponse.answers, service.getQualifiedName());
+        discardRecords(pendingResponse.additionals,
+                service.getQualifiedName());
+    }
+
+    private static void discardRecords(Map<String, SvnEdgeDnsRecord> records,
+            String qualifiedName) {
+        Iterator<SvnEdgeDnsRecord> iterator = records.values().iterator();
+        while (iterator.hasNext()) {
+            SvnEdgeDnsRecord record = iterator.next();
+            if (record.getName().equalsIgnoreCase(qualifiedName) ||
+                    (record.getType() == SvnEdgeDnsRecord.TYPE_PTR &&
+                            record.getTarget().equalsIgnoreCase(
+                                    qualifiedName))) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void addAdditionals(Service service,
+            Map<String, SvnEdgeDnsRecord> additionals, int ttlCap) {
+        SvnEdgeDnsRecord[] records = {
+            service.service(Math.min(HOST_TTL, ttlCap)),
+            service.text(Math.min(SERVICE_TTL, ttlCap)),
+            hostRecord(Math.min(HOST_TTL, ttlCap))
+        };
+        for (SvnEdgeDnsRecord record : records) {
+            additionals.put(record.getKey(), record);
+        }
+    }
+
+    /**
+     * Renames the services being probed whose names are announced by other
+     * hosts, and defends the announced ones.
+     */
+    private void detectConflicts(List<SvnEdgeDnsRecord> records, long now) {
+        for (SvnEdgeDnsRecord record : records) {
+            if (record.getType() != SvnEdgeDnsRecord.TYPE_SRV ||
+                    record.getTtl() == 0) {
+                continue;
+            }
+            Service service = servicesByName.get(
+                    record.getName().toLowerCase());
+            if (service == null || isOwn(service, record)) {
+                continue;
+            }
+            if (service.state == Service.PROBING) {
+                rename(service, now);
+            } else {
+                log.warn("The service " + service.getQualifiedName() +
+                        " is also announced by " + record.getTarget());
+                sendResponse(0, null, Collections.singletonList(
+                        service.service(HOST_TTL)), Collections.singletonList(
+                                hostRecord(HOST_TTL)), group);
+            }
+        }
+    }
+
+    /**
+     * Resolves the simultaneous probes of the same name: the service whose
+     * proposed record is lexicographically later keeps the name.
+     */
+    private void detectProbeConflicts(List<SvnEdgeDnsRecord> authorities) {
+        for (SvnEdgeDnsRecord record : authorities) {
+            if (record.getType() != SvnEdgeDnsRecord.TYPE_SRV) {
+                continue;
+            }
+            Service service = servicesByName.get(
+                    record.getName().toLowerCase());
+            if (service == null || service.state != Service.PROBING ||
+                    isOwn(service, record)) {
+                continue;
+            }
+            String theirs = record.getTarget().toLowerCase() + ":" +
+                    record.getPort();
+            String ours = hostName.toLowerCase() + ":" + service.info.getPort();
+            if (theirs.compareTo(ours) > 0) {
+                rename(service, System.currentTimeMillis());
+            }
+        }
+    }
+
+    private boolean isOwn(Service service, SvnEdgeDnsRecord record) {
+        return record.getPort() == service.info.getPort() &&
+                record.getTarget().equalsIgnoreCase(hostName);
+    }
+
+    /**
+     * Probes the given service again with the next free name, as in
+     * "name (2)".
+     */
+    private void rename(Service service, long now) {
+        servicesByName.remove(service.getKey());
+        String previous = service.getQualifiedName();
+        do {
+            service.name = nextName(service.name);
+        } while (servicesByName.containsKey(service.getKey()));
+        servicesByName.put(service.getKey(), service);
+        log.info("The service " + previous + " is taken, probing " +
+                service.getQualifiedName());
+        service.state = Service.PROBING;
+        service.step = 0;
+        schedule(service, now + PROBE_INTERVAL);
+    }
+
+    /**
+     * @return the name following the given one, as jmDNS does.
+     */
+    static String nextName(String name) {
+        int open = name.lastIndexOf('(');
+        int close = name.lastIndexOf(')');
+        if (open >= 0 && close > open) {
+            try {
+                int count = Integer.parseInt(name.substring(open + 1, close));
+                return name.substring(0, open) + "(" + (count + 1) + ")";
+            } catch (NumberFormatException e) {
+                // not a counter.
+            }
+        }
+        return name + " (2)";
+    }
+
+    /**
+     * Probes, then announces the given service.
+     */
+    private void advanceService(Service service, long now) {
+        if (service.state == Service.PROBING) {
+            if (service.step < PROBES) {
+                List<SvnEdgeDnsRecord> proposed =
+                    new ArrayList<SvnEdgeDnsRecord>();
+                proposed.add(service.service(HOST_TTL));
+                proposed.add(service.text(SERVICE_TTL));
+                sendQuery(Collections.singletonList(
+                        new SvnEdgeDnsReader.Question(
+                                service.getQualifiedName(),
+                                SvnEdgeDnsRecord.TYPE_ANY, true)), null,
+                        proposed);
+                service.step++;
+                schedule(service, now + PROBE_INTERVAL);
+                return;
+            }
+            service.state = Service.ANNOUNCING;
+            service.step = 0;
+        }
+        if (service.state == Service.ANNOUNCING) {
+            List<SvnEdgeDnsRecord> answers = new ArrayList<SvnEdgeDnsRecord>();
+            answers.add(service.pointer(SERVICE_TTL));
+            answers.add(service.service(HOST_TTL));
+            answers.add(service.text(SERVICE_TTL));
+            answers.add(hostRecord(HOST_TTL));
+            sendResponse(0, null, answers,
+                    Collections.<SvnEdgeDnsRecord>emptyList(), group);
+            service.step++;
+            service.firstAnnouncement.countDown();
+            if (service.step < ANNOUNCEMENTS) {
+                // the interval doubles after each announcement.
+                schedule(service, now + (ANNOUNCE_INTERVAL << (service.step -
+                        1)));
+            } else {
+                service.state = Service.ANNOUNCED;
+            }
+        }
+    }
+
+    private Service addService(ServiceInfo info) {
+        if (services.containsKey(info.getKey())) {
+            throw new IllegalStateException("The service " +
+                    info.getQualifiedName() + " is already registered");
+        }
+        Service service = new Service(info);
+        while (servicesByName.containsKey(service.getKey())) {
+            service.name = nextName(service.name);
+        }
+        services.put(info.getKey(), service);
+        servicesByName.put(service.getKey(), service);
+        keysChanged = true;
+        departed.remove(service.getKey());
+        // the probes of the hosts starting together are spread.
+        schedule(service, System.currentTimeMillis() +
+                random.nextInt((int) PROBE_INTERVAL));
+        return service;
+    }
+
+    /**
+     * Cancels the given services, sending their goodbyes twice, and removes
+     * them from the cache right away.
+     */
+    private void cancelServices(List<Service> cancelled) {
+        final List<SvnEdgeDnsRecord> goodbyes =
+            new ArrayList<SvnEdgeDnsRecord>();
+        long now = System.currentTimeMillis();
+        for (Service service : cancelled) {
+            boolean announced = service.state >= Service.ANNOUNCING;
+            service.state = Service.CANCELLED;
+            unschedule(service);
+            servicesByName.remove(service.getKey());
+            keysChanged = true;
+            discardPendingRecords(service);
+            service.firstAnnouncement.countDown();
+            if (!announced) {
+                continue;
+            }
+            goodbyes.add(service.pointer(0));
+            goodbyes.add(service.service(0));
+            goodbyes.add(service.text(0));
+            // the answers sent before the goodbyes may still be received.
+            departed.put(service.getKey(), now + 2 * GOODBYE_GRACE);
+            CachedInstance instance = instances.get(service.getKey());
+            if (instance != null) {
+                removeInstance(instance, now);
+            }
+        }
+        Iterator<Long> untils = departed.values().iterator();
+        while (untils.hasNext()) {
+            if (untils.next() <= now) {
+                untils.remove();
+            }
+        }
+        if (goodbyes.isEmpty()) {
+            return;
+        }
+        sendResponse(0, null, goodbyes,
+                Collections.<SvnEdgeDnsRecord>emptyList(), group);
+        schedule(new Task() {
+            void run(long time) {
+                sendResponse(0, null, goodbyes,
+                        Collections.<SvnEdgeDnsRecord>emptyList(), group);
+            }
+        }, now + PROBE_INTERVAL);
+    }
+
+    // ----------------------------------------------------------------
+    // the jmDNS API
+    // ----------------------------------------------------------------
+
+    /**
+     * Registers the given service, waiting for its first announcement, as
+     * jmDNS does. A service whose name is taken is announced with the next
+     * free name, as in "name (2)".
+     */
+    @Override
+    public void registerService(final ServiceInfo info) throws IOException {
+        Service service = call(new Callable<Service>() {
+            public Service call() {
+                return addService(info);
+            }
+        });
+        if (service == null) {
+            throw new IOException("The mDNS engine of " + hostName +
+                    " is closed");
+        }
+        if (Thread.currentThread() == thread) {
+            return;
+        }
+        try {
+            if (!service.firstAnnouncement.await(REGISTRATION_TIMEOUT,
+                    TimeUnit.MILLISECONDS)) {
+                log.warn("The service " + info.getQualifiedName() +
+                        " was not announced in " + REGISTRATION_TIMEOUT +
+                        " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Unregisters the given service, sending its goodbyes.
+     */
+    @Override
+    public void unregisterService(final ServiceInfo info) {
+        call(new Callable<Void>() {
+            public Void call() {
+                Service service = services.remove(info.getKey());
+                if (service != null) {
+                    cancelServices(Collections.singletonList(service));
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Unregisters all the services of this engine, sending their goodbyes
+     * in as few packets as possible.
+     */
+    @Override
+    public void unregisterAllServices() {
+        call(new Callable<Void>() {
+            public Void call() {
+                List<Service> cancelled = new ArrayList<Service>(
+                        services.values());
+                services.clear();
+                cancelServices(cancelled);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + hostName + " at " +
+                address.getHostAddress() + ", " + counters + "]";
+    }
+}
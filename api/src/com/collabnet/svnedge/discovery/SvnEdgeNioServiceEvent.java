@@ -0,0 +1,71 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import javax.jmdns.JmDNS;
+import javax.jmdns.ServiceEvent;
+import javax.jmdns.ServiceInfo;
+
+/**
+ * An event of a service instance captured by the {@link SvnEdgeNioMdns} or
+ * the {@link SvnEdgeUnicastDnsSd} engine.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+final class SvnEdgeNioServiceEvent extends ServiceEvent {
+
+    private static final long serialVersionUID = 4312517316395186291L;
+
+    private final ServiceInfo info;
+
+    /**
+     * @param engine is the engine that captured the event.
+     * @param info is the service instance.
+     */
+    SvnEdgeNioServiceEvent(JmDNS engine, ServiceInfo info) {
+        super(engine);
+        this.info = info;
+    }
+
+    @Override
+    public JmDNS getDNS() {
+        return (JmDNS) getSource();
+    }
+
+    @Override
+    public String getType() {
+        return this.info.getType();
+    }
+
+    @Override
+    public String getName() {
+        return this.info.getName();
+    }
+
+    @Override
+    public ServiceInfo getInfo() {
+        return this.info;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + info.getQualifiedName() +
+                "]";
+    }
+}
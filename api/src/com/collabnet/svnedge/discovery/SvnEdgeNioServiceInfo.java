@@ -0,0 +1,143 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jmdns.impl.DNSRecord;
+import javax.jmdns.impl.ServiceInfoImpl;
+
+/**
+ * A snapshot of a service instance cached by the {@link SvnEdgeNioMdns}
+ * engine, with the host and the addresses of its records, so that the
+ * events of the engine carry the same service infos as the ones of jmDNS.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+final class SvnEdgeNioServiceInfo extends ServiceInfoImpl {
+
+    /**
+     * The qualified name of the host of the instance, or <code>null</code>
+     * if its service record is not known.
+     */
+    private final String server;
+    private final InetAddress[] addresses;
+
+    /**
+     * @param type is the service type, such as "_csvn._tcp.local.".
+     * @param name is the name of the instance.
+     * @param port is the port of the instance.
+     * @param weight is the weight of the instance.
+     * @param priority is the priority of the instance.
+     * @param text is the encoded properties of the instance, or
+     * <code>null</code> if they are not known.
+     * @param server is the qualified name of the host, or <code>null</code>.
+     * @param addresses are the addresses of the host.
+     */
+    SvnEdgeNioServiceInfo(String type, String name, int port, int weight,
+            int priority, byte[] text, String server,
+            InetAddress[] addresses) {
+        super(type, name, "", port, weight, priority, false,
+                text != null ? text : DNSRecord.EMPTY_TXT);
+        this.server = server;
+        this.addresses = addresses;
+    }
+
+    @Override
+    public String getServer() {
+        return this.server != null ? this.server : "";
+    }
+
+    @Override
+    public InetAddress[] getInetAddresses() {
+        return this.addresses.clone();
+    }
+
+    @Override
+    public Inet4Address[] getInet4Addresses() {
+        List<Inet4Address> inet4Addresses = new ArrayList<Inet4Address>();
+        for (InetAddress address : addresses) {
+            if (address instanceof Inet4Address) {
+                inet4Addresses.add((Inet4Address) address);
+            }
+        }
+        return inet4Addresses.toArray(new Inet4Address[inet4Addresses.size()]);
+    }
+
+    @Override
+    public Inet6Address[] getInet6Addresses() {
+        List<Inet6Address> inet6Addresses = new ArrayList<Inet6Address>();
+        for (InetAddress address : addresses) {
+            if (address instanceof Inet6Address) {
+                inet6Addresses.add((Inet6Address) address);
+            }
+        }
+        return inet6Addresses.toArray(new Inet6Address[inet6Addresses.size()]);
+    }
+
+    @Override
+    public String[] getHostAddresses() {
+        String[] hostAddresses = new String[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            hostAddresses[i] = addresses[i].getHostAddress();
+        }
+        return hostAddresses;
+    }
+
+    @Override
+    @Deprecated
+    public String getHostAddress() {
+        return addresses.length > 0 ? addresses[0].getHostAddress() : "";
+    }
+
+    @Override
+    @Deprecated
+    public InetAddress getAddress() {
+        return addresses.length > 0 ? addresses[0] : null;
+    }
+
+    @Override
+    @Deprecated
+    public InetAddress getInetAddress() {
+        return getAddress();
+    }
+
+    @Override
+    @Deprecated
+    public Inet4Address getInet4Address() {
+        Inet4Address[] inet4Addresses = getInet4Addresses();
+        return inet4Addresses.length > 0 ? inet4Addresses[0] : null;
+    }
+
+    @Override
+    @Deprecated
+    public Inet6Address getInet6Address() {
+        Inet6Address[] inet6Addresses = getInet6Addresses();
+        return inet6Addresses.length > 0 ? inet6Addresses[0] : null;
+    }
+
+    @Override
+    public synchronized boolean hasData() {
+        return this.server != null && this.addresses.length > 0;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+/**
+ * Defines what happens when an event is dispatched to a listener whose
+ * queue of pending events is full. See {@link SvnEdgeListenerQueue}.
+ * 
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public enum SvnEdgeOverflowPolicy {
+
+    /**
+     * The thread capturing the events of mDNS waits until the queue has
+     * room, before it takes the locks of the client, so that only the
+     * discovery of the next event is held back. The events published while
+     * the queue is full anyway, such as the servers reported stopped by the
+     * timers of the client or released by the flap damper, are rejected and
+     * counted as dropped. Use it only with listeners that are guaranteed to
+     * make progress.
+     */
+    BLOCK,
+    /**
+     * The oldest pending event is discarded to make room for the new one.
+     */
+    DROP_OLDEST,
+    /**
+     * A pending event of the same server is replaced by the new one, so that
+     * the listener only receives the latest state of each server. When the
+     * queue is full with events of other servers, the oldest one is dropped.
+     * The default policy of the listeners.
+     */
+    COALESCE_LATEST
+}
@@ -0,0 +1,406 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The SvnEdge Resolution Scheduler decides when the services announced on
+ * the network are resolved. jmDNS reports the same service many times, and
+ * each report used to send a new resolution query. The scheduler keeps the
+ * state of the resolution of each service (type and name): requests for a
+ * service being resolved or already resolved are coalesced, the pending
+ * requests are sent together once per batch window, and the resolutions that
+ * do not complete are retried with an exponential backoff. The queries are
+ * sent by a pool of threads, as jmDNS waits a little for the answer of
+ * each one, so that a batch does not delay the next deadlines.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public final class SvnEdgeResolutionScheduler {
+
+    private static final Logger log = Logger.getLogger(
+            SvnEdgeResolutionScheduler.class);
+    /**
+     * The default time the requests are collected before being sent, in
+     * milliseconds.
+     */
+    public static final long DEFAULT_BATCH_WINDOW = 100;
+    /**
+     * The default time waited for a resolution before retrying it, in
+     * milliseconds.
+     */
+    public static final long DEFAULT_RESOLUTION_TIMEOUT = 3000;
+    /**
+     * The maximum backoff between two attempts, in milliseconds.
+     */
+    public static final long MAX_BACKOFF = TimeUnit.MINUTES.toMillis(1);
+    /**
+     * The number of attempts before giving up a resolution. A new
+     * announcement of the service starts it again.
+     */
+    public static final int MAX_ATTEMPTS = 6;
+    /**
+     * The number of threads sending the queries of a batch concurrently.
+     */
+    public static final int SENDERS = 8;
+
+    /**
+     * Sends the resolution queries.
+     */
+    public interface Requester {
+        /**
+         * Requests the resolution of the given service. It may wait briefly
+         * for the answer, as it is called by the senders of the scheduler.
+         * @param type is the service type with subtype.
+         * @param name is the name of the service.
+         */
+        void requestServiceInfo(String type, String name);
+    }
+
+    /**
+     * The states of the resolution of a service.
+     */
+    private enum Phase {
+        /**
+         * Waiting for the next batch.
+         */
+        PENDING,
+        /**
+         * The query was sent, waiting for the resolution.
+         */
+        IN_FLIGHT,
+        /**
+         * The resolution failed, waiting for the backoff.
+         */
+        BACKING_OFF,
+        /**
+         * The service is resolved.
+         */
+        RESOLVED
+    }
+
+    /**
+     * The resolution of a service.
+     */
+    private static final class Resolution {
+        private final String type;
+        private final String name;
+        private Phase phase = Phase.PENDING;
+        private int attempts;
+        private long deadline;
+
+        private Resolution(String type, String name) {
+            this.type = type;
+            this.name = name;
+        }
+    }
+
+    /**
+     * The resolutions by service key.
+     */
+    private final Map<String, Resolution> resolutions =
+            new HashMap<String, Resolution>();
+    /**
+     * The sender of the queries.
+     */
+    private final Requester requester;
+    /**
+     * The thread sending the batches and checking the deadlines.
+     */
+    private final ScheduledExecutorService timer;
+    /**
+     * The threads sending the queries of the batches.
+     */
+    private final ExecutorService senders;
+    private final long batchWindow;
+    private final long resolutionTimeout;
+    /**
+     * Whether the next batch is scheduled.
+     */
+    private boolean tickScheduled;
+    /**
+     * The counters of the scheduler.
+     */
+    private long requested;
+    private long coalesced;
+    private long sent;
+    private long retried;
+    private long abandoned;
+
+    /**
+     * Creates a new scheduler with the default batch window and timeout.
+     * @param requester is the sender of the queries.
+     */
+    public SvnEdgeResolutionScheduler(Requester requester) {
+        this(requester, DEFAULT_BATCH_WINDOW, DEFAULT_RESOLUTION_TIMEOUT);
+    }
+
+    /**
+     * Creates a new scheduler.
+     * @param requester is the sender of the queries.
+     * @param batchWindow is the time the requests are collected before being
+     * sent, in milliseconds.
+     * @param resolutionTimeout is the time waited for a resolution before
+     * retrying it, in milliseconds.
+     */
+    public SvnEdgeResolutionScheduler(Requester requester, long batchWindow,
+            long resolutionTimeout) {
+        this.requester = requester;
+        this.batchWindow = batchWindow;
+        this.resolutionTimeout = resolutionTimeout;
+        this.timer = Executors.newSingleThreadScheduledExecutor(
+                new SvnEdgeThreadFactory("SvnEdge-Resolution-Scheduler-"));
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(SENDERS, SENDERS, 60,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new SvnEdgeThreadFactory("SvnEdge-Resolution-Sender-"));
+        pool.allowCoreThreadTimeOut(true);
+        this.senders = pool;
+    }
+
+    /**
+     * @param type is the service type.
+     * @param name is the service name.
+     * @return the key of the service.
+     */
+    private static String keyOf(String type, String name) {
+        return name + "." + type;
+    }
+
+    /**
+     * Requests the resolution of the given service. The request is ignored in
+     * case the service is already being resolved or is resolved.
+     * @param type is the service type with subtype.
+     * @param name is the name of the service.
+     */
+    public synchronized void request(String type, String name) {
+        requested++;
+        String key = keyOf(type, name);
+        Resolution resolution = resolutions.get(key);
+        if (resolution != null && resolution.phase != Phase.BACKING_OFF) {
+            coalesced++;
+            return;
+        }
+        if (resolution == null) {
+            resolution = new Resolution(type, name);
+            resolutions.put(key, resolution);
+        }
+        // a new announcement ends the backoff.
+        resolution.phase = Phase.PENDING;
+        scheduleTick(batchWindow);
+    }
+
+    /**
+     * Marks the given service as resolved.
+     * @param type is the service type with subtype.
+     * @param name is the name of the service.
+     */
+    public synchronized void resolved(String type, String name) {
+        String key = keyOf(type, name);
+        Resolution resolution = resolutions.get(key);
+        if (resolution == null) {
+            resolution = new Resolution(type, name);
+            resolutions.put(key, resolution);
+        }
+        resolution.phase = Phase.RESOLVED;
+        resolution.attempts = 0;
+    }
+
+    /**
+     * Forgets the given service, so that its next announcement is resolved.
+     * @param type is the service type with subtype.
+     * @param name is the name of the service.
+     */
+    public synchronized void removed(String type, String name) {
+        resolutions.remove(keyOf(type, name));
+    }
+
+    /**
+     * Schedules the next batch, unless it is already scheduled. Must be
+     * called holding the lock.
+     * @param delay is the delay of the batch in milliseconds.
+     */
+    private void scheduleTick(long delay) {
+        if (tickScheduled) {
+            return;
+        }
+        try {
+            timer.schedule(new Runnable() {
+                public void run() {
+                    tick();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+            tickScheduled = true;
+        } catch (RejectedExecutionException e) {
+            log.debug("The resolution scheduler has been shut down.");
+        }
+    }
+
+    /**
+     * Sends the pending requests, and retries the resolutions whose deadline
+     * passed.
+     */
+    private void tick() {
+        List<Resolution> batch = new ArrayList<Resolution>();
+        synchronized (this) {
+            tickScheduled = false;
+            long now = System.currentTimeMillis();
+            long nextDeadline = Long.MAX_VALUE;
+            Iterator<Resolution> all = resolutions.values().iterator();
+            while (all.hasNext()) {
+                Resolution resolution = all.next();
+                switch (resolution.phase) {
+                case IN_FLIGHT:
+                    if (resolution.deadline > now) {
+                        break;
+                    }
+                    if (resolution.attempts >= MAX_ATTEMPTS) {
+                        log.debug("Giving up resolving " + resolution.name);
+                        abandoned++;
+                        all.remove();
+                        continue;
+                    }
+                    resolution.phase = Phase.BACKING_OFF;
+                    resolution.deadline = now + Math.min(MAX_BACKOFF,
+                            resolutionTimeout << (resolution.attempts - 1));
+                    break;
+                case BACKING_OFF:
+                    if (resolution.deadline > now) {
+                        break;
+                    }
+                    retried++;
+                    send(resolution, now, batch);
+                    break;
+                case PENDING:
+                    send(resolution, now, batch);
+                    break;
+                default:
+                    continue;
+                }
+                nextDeadline = Math.min(nextDeadline, resolution.deadline);
+            }
+            sent += batch.size();
+            if (nextDeadline != Long.MAX_VALUE) {
+                scheduleTick(Math.max(batchWindow, nextDeadline - now));
+            }
+        }
+        if (!batch.isEmpty()) {
+            log.debug("Requesting the resolution of " + batch.size() +
+                    " service(s)");
+        }
+        for (final Resolution resolution : batch) {
+            try {
+                senders.execute(new Runnable() {
+                    public void run() {
+                        sendRequest(resolution);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                log.debug("The resolution scheduler has been shut down.");
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends the query of the given resolution, in a sender thread.
+     * @param resolution is the resolution requested.
+     */
+    private void sendRequest(Resolution resolution) {
+        try {
+            requester.requestServiceInfo(resolution.type, resolution.name);
+        } catch (RuntimeException e) {
+            log.error("Failed to request the resolution of " +
+                    resolution.name, e);
+        }
+    }
+
+    /**
+     * Adds the given resolution to the batch of requests, waiting for its
+     * answer until the resolution timeout. Must be called holding the lock.
+     * @param resolution is the resolution to be requested.
+     * @param now is the current time in milliseconds.
+     * @param batch is the batch of requests being sent.
+     */
+    private void send(Resolution resolution, long now,
+            List<Resolution> batch) {
+        resolution.phase = Phase.IN_FLIGHT;
+        resolution.attempts++;
+        resolution.deadline = now + resolutionTimeout;
+        batch.add(resolution);
+    }
+
+    /**
+     * Stops the scheduler. The pending requests are discarded.
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+        senders.shutdownNow();
+    }
+
+    /**
+     * @return the number of resolutions requested.
+     */
+    public synchronized long getRequestedCount() {
+        return this.requested;
+    }
+
+    /**
+     * @return the number of requests ignored because the service was already
+     * being resolved or was resolved.
+     */
+    public synchronized long getCoalescedCount() {
+        return this.coalesced;
+    }
+
+    /**
+     * @return the number of resolution queries sent.
+     */
+    public synchronized long getSentCount() {
+        return this.sent;
+    }
+
+    /**
+     * @return the number of resolutions retried after a backoff.
+     */
+    public synchronized long getRetriedCount() {
+        return this.retried;
+    }
+
+    /**
+     * @return the number of resolutions given up after
+     * {@link #MAX_ATTEMPTS} attempts.
+     */
+    public synchronized long getAbandonedCount() {
+        return this.abandoned;
+    }
+}
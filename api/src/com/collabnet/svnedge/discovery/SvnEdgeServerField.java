@@ -0,0 +1,58 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+/**
+ * The values of an {@link SvnEdgeServerInfo} that can change while the
+ * server is running. See
+ * {@link com.collabnet.svnedge.discovery.mdns.SvnEdgeServerEvent#SERVER_UPDATED}.
+ * 
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public enum SvnEdgeServerField {
+
+    /**
+     * The port number of the server.
+     */
+    PORT,
+    /**
+     * The IP address of the server.
+     */
+    ADDRESS,
+    /**
+     * The hostname of the server, usually resolved after the server is
+     * discovered.
+     */
+    HOSTNAME,
+    /**
+     * The URL of the web console of the server.
+     */
+    URL,
+    /**
+     * At least one of the properties of the service. See
+     * {@link SvnEdgeServerInfo#getChangedKeys()}.
+     */
+    PROPERTIES,
+    /**
+     * Whether the server is confirmed by mDNS, as when a server loaded from
+     * the {@link SvnEdgeServersCache} is announced. See
+     * {@link SvnEdgeServerInfo#isVerified()}.
+     */
+    VERIFIED
+}
@@ -0,0 +1,36 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+/**
+ * Selects the events of the servers received by the subscribers of an
+ * {@link SvnEdgeServersPublisher}. The filter runs while the event is
+ * published, before it is buffered for the subscriber, so it must be fast
+ * and must not block.
+ * 
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public interface SvnEdgeServerFilter {
+
+    /**
+     * @param serverInfo is the event of a server.
+     * @return whether the event is delivered to the subscriber.
+     */
+    boolean accepts(SvnEdgeServerInfo serverInfo);
+}
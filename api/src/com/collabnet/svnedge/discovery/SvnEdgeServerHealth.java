@@ -0,0 +1,173 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.util.Comparator;
+
+/**
+ * An immutable view of the health of the web console of a server, as probed
+ * by the {@link SvnEdgeHealthProber}.
+ * 
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public final class SvnEdgeServerHealth {
+
+    /**
+     * Sorts the healthy servers first by their average latency, then the
+     * degraded, the unknown and the unhealthy ones, by service name.
+     */
+    public static final Comparator<SvnEdgeServerHealth> BY_RESPONSIVENESS =
+            new Comparator<SvnEdgeServerHealth>() {
+        public int compare(SvnEdgeServerHealth h1, SvnEdgeServerHealth h2) {
+            int byState = rank(h1.state) - rank(h2.state);
+            if (byState != 0) {
+                return byState;
+            }
+            if (h1.state == SvnEdgeHealthState.HEALTHY) {
+                int byLatency = Double.compare(h1.averageLatency,
+                        h2.averageLatency);
+                if (byLatency != 0) {
+                    return byLatency;
+                }
+            }
+            return h1.serverInfo.compareTo(h2.serverInfo);
+        }
+
+        private int rank(SvnEdgeHealthState state) {
+            switch (state) {
+            case HEALTHY:
+                return 0;
+            case DEGRADED:
+                return 1;
+            case UNKNOWN:
+                return 2;
+            default:
+                return 3;
+            }
+        }
+    };
+
+    private final SvnEdgeServerInfo serverInfo;
+    private final SvnEdgeHealthState state;
+    /**
+     * The exponentially weighted moving average of the latency, in
+     * milliseconds, or -1 if no probe succeeded.
+     */
+    private final double averageLatency;
+    private final long lastLatency;
+    private final int lastStatusCode;
+    private final long lastProbedAt;
+    private final int consecutiveFailures;
+    private final long probes;
+    private final long failures;
+
+    SvnEdgeServerHealth(SvnEdgeServerInfo serverInfo,
+            SvnEdgeHealthState state, double averageLatency, long lastLatency,
+            int lastStatusCode, long lastProbedAt, int consecutiveFailures,
+            long probes, long failures) {
+        this.serverInfo = serverInfo;
+        this.state = state;
+        this.averageLatency = averageLatency;
+        this.lastLatency = lastLatency;
+        this.lastStatusCode = lastStatusCode;
+        this.lastProbedAt = lastProbedAt;
+        this.consecutiveFailures = consecutiveFailures;
+        this.probes = probes;
+        this.failures = failures;
+    }
+
+    /**
+     * @return the server probed.
+     */
+    public SvnEdgeServerInfo getServerInfo() {
+        return this.serverInfo;
+    }
+
+    /**
+     * @return the health state of the console.
+     */
+    public SvnEdgeHealthState getState() {
+        return this.state;
+    }
+
+    /**
+     * @return the exponentially weighted moving average of the latency of
+     * the successful probes in milliseconds, or -1 if no probe succeeded.
+     */
+    public double getAverageLatency() {
+        return this.averageLatency;
+    }
+
+    /**
+     * @return the latency of the last successful probe in milliseconds,
+     * measured up to the status line of the response, or -1 if no probe
+     * succeeded.
+     */
+    public long getLastLatency() {
+        return this.lastLatency;
+    }
+
+    /**
+     * @return the HTTP status code of the last probe, 0 if the console was
+     * only connected to, or -1 if the last probe got no response.
+     */
+    public int getLastStatusCode() {
+        return this.lastStatusCode;
+    }
+
+    /**
+     * @return the time of the last probe in milliseconds, or 0 if the
+     * console has not been probed yet.
+     */
+    public long getLastProbedAt() {
+        return this.lastProbedAt;
+    }
+
+    /**
+     * @return the number of probes failed in a row.
+     */
+    public int getConsecutiveFailures() {
+        return this.consecutiveFailures;
+    }
+
+    /**
+     * @return the number of probes of the console.
+     */
+    public long getProbeCount() {
+        return this.probes;
+    }
+
+    /**
+     * @return the number of failed probes of the console.
+     */
+    public long getFailureCount() {
+        return this.failures;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    public String toString() {
+        return "SvnEdgeServerHealth [" + serverInfo.getServiceName() +
+            ", state=" + state + ", latency=" +
+            (averageLatency < 0 ? "n/a" : Math.round(averageLatency) + "ms") +
+            ", status=" + lastStatusCode + ", failures=" +
+            consecutiveFailures + "/" + failures + " of " + probes + "]";
+    }
+}
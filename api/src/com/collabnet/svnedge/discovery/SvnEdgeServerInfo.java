@@ -20,8 +20,12 @@ package com.collabnet.svnedge.discovery;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import javax.jmdns.ServiceInfo;
 
@@ -45,6 +49,10 @@ public final class SvnEdgeServerInfo implements Comparable<SvnEdgeServerInfo> {
      * "collabnetsvn (2)".
      */
     private String serviceName;
+    /**
+     * The mDNS service type where the service was published.
+     */
+    private SvnEdgeServiceType serviceType;
     /**
      * This is the inet address instance of the service. Any information
      * regarding the IP address and hostname.
@@ -71,6 +79,29 @@ public final class SvnEdgeServerInfo implements Comparable<SvnEdgeServerInfo> {
      */
     private Map<SvnEdgeServiceKey, String> keyValues =
             new HashMap<SvnEdgeServiceKey, String>();
+    /**
+     * Whether the information was captured from mDNS, instead of loaded from
+     * the {@link SvnEdgeServersCache} and not confirmed yet.
+     */
+    private boolean verified = true;
+    /**
+     * The time the information was captured from mDNS, in milliseconds.
+     */
+    private long capturedAt;
+    /**
+     * The server information replaced by an update, or <code>null</code> if
+     * the event is not {@link SvnEdgeServerEvent#SERVER_UPDATED}.
+     */
+    private SvnEdgeServerInfo previous;
+    /**
+     * The fields changed by an update.
+     */
+    private Set<SvnEdgeServerField> changedFields =
+            Collections.emptySet();
+    /**
+     * The properties changed by an update.
+     */
+    private Set<SvnEdgeServiceKey> changedKeys = Collections.emptySet();
 
     /**
      * Creates a new instance of the class with the value of the creation.
@@ -81,7 +112,10 @@ public final class SvnEdgeServerInfo implements Comparable<SvnEdgeServerInfo> {
 
     /**
      * Factory method that builds a new SvnEdge Service Info from a given
-     * service info from mDNS.
+     * service info from mDNS. The hostname of the server is taken from the
+     * cache of the shared {@link SvnEdgeHostnameResolver}, and the url uses
+     * the IP address while the hostname is not resolved. This method never
+     * blocks.
      * 
      * @param serviceInfo
      *            is an instance of a service info captured from jmDNS.
@@ -89,26 +123,47 @@ public final class SvnEdgeServerInfo implements Comparable<SvnEdgeServerInfo> {
      * @return a new instance of the SvnEdge Service Info with the captured
      *         values from the service.
      */
-    public static synchronized SvnEdgeServerInfo makeNew(ServiceInfo serviceInfo,
+    public static SvnEdgeServerInfo makeNew(ServiceInfo serviceInfo,
                 SvnEdgeServerEvent event) {
+        return makeNew(serviceInfo, event,
+                SvnEdgeHostnameResolver.getDefault());
+    }
+
+    /**
+     * Factory method that builds a new SvnEdge Service Info from a given
+     * service info from mDNS, taking the hostname of the server from the
+     * cache of the given resolver. This method never blocks.
+     * 
+     * @param serviceInfo
+     *            is an instance of a service info captured from jmDNS.
+     * @param event is the event that originated the serviceInfo.
+     * @param resolver is the resolver looking up the hostnames of the
+     *            client that captured the service.
+     * @return a new instance of the SvnEdge Service Info with the captured
+     *         values from the service.
+     */
+    public static SvnEdgeServerInfo makeNew(ServiceInfo serviceInfo,
+                SvnEdgeServerEvent event, SvnEdgeHostnameResolver resolver) {
 
         SvnEdgeServerInfo newInst = new SvnEdgeServerInfo();
+        newInst.capturedAt = System.currentTimeMillis();
         newInst.serviceName = serviceInfo.getName();
+        newInst.serviceType = SvnEdgeServiceType.retrieveByType(
+                serviceInfo.getType());
         newInst.event = event;
 
         if (event.equals(SvnEdgeServerEvent.SERVER_RUNNING)) {
             newInst.port = serviceInfo.getPort();
             // getInetAddresses forces the jmDNS proxy to find other server.
             newInst.ipAddress = serviceInfo.getInet4Addresses()[0];
-            newInst.domainName = serviceInfo.getInet4Addresses()[0].
-                getCanonicalHostName();
+            String hostname = resolver.getCachedHostname(newInst.ipAddress);
+            newInst.domainName = hostname != null ? hostname :
+                newInst.ipAddress.getHostAddress();
             // replaces the IP address with the domain name
             newInst.url = serviceInfo.getURLs()[0].replace(
                     newInst.ipAddress.getHostAddress(), newInst.domainName);
             newInst.url = newInst.url.replace(".local", "");
-            SvnEdgeServiceType type = SvnEdgeServiceType.retrieveByType(
-                    serviceInfo.getType());
-            for (SvnEdgeServiceKey key : type.getRequiredKeys()) {
+            for (SvnEdgeServiceKey key : newInst.serviceType.getRequiredKeys()) {
                 newInst.keyValues.put(key, serviceInfo.getPropertyString(
                         key.toString()));
             }
@@ -116,6 +171,161 @@ public final class SvnEdgeServerInfo implements Comparable<SvnEdgeServerInfo> {
         return newInst;
     }
 
+    /**
+     * Builds a server information decoded by the
+     * {@link SvnEdgeServerInfoCodec}, or stored by the
+     * {@link SvnEdgeServersCache}, with all its values.
+     * @param previous is the server information replaced by an update, or
+     * <code>null</code>.
+     * @return a new server information.
+     */
+    static SvnEdgeServerInfo makeDecoded(String serviceName,
+            SvnEdgeServiceType type, SvnEdgeServerEvent event,
+            InetAddress ipAddress, String domainName, String url, int port,
+            Map<SvnEdgeServiceKey, String> keyValues, boolean verified,
+            long capturedAt, SvnEdgeServerInfo previous,
+            Set<SvnEdgeServerField> changedFields,
+            Set<SvnEdgeServiceKey> changedKeys) {
+        SvnEdgeServerInfo newInst = new SvnEdgeServerInfo();
+        newInst.serviceName = serviceName;
+        newInst.serviceType = type;
+        newInst.event = event;
+        newInst.ipAddress = ipAddress;
+        newInst.domainName = domainName;
+        newInst.url = url;
+        newInst.port = port;
+        newInst.keyValues = keyValues;
+        newInst.verified = verified;
+        newInst.capturedAt = capturedAt;
+        if (previous != null) {
+            newInst.previous = previous;
+            newInst.changedFields = Collections.unmodifiableSet(
+                    changedFields);
+            newInst.changedKeys = Collections.unmodifiableSet(changedKeys);
+        }
+        return newInst;
+    }
+
+    /**
+     * @param hostname is the canonical hostname of the server.
+     * @return a copy of this server information whose url uses the given
+     * hostname instead of the IP address.
+     */
+    SvnEdgeServerInfo withDomainName(String hostname) {
+        SvnEdgeServerInfo copy = withEvent(this.event);
+        copy.domainName = hostname;
+        copy.url = this.url.replace(this.ipAddress.getHostAddress(), hostname)
+                .replace(".local", "");
+        return copy;
+    }
+
+    /**
+     * @param newEvent is the event of the copy.
+     * @return a copy of this server information with the given event, keeping
+     * the last known address, url and properties of the server.
+     */
+    SvnEdgeServerInfo withEvent(SvnEdgeServerEvent newEvent) {
+        SvnEdgeServerInfo copy = new SvnEdgeServerInfo();
+        copy.serviceName = this.serviceName;
+        copy.serviceType = this.serviceType;
+        copy.ipAddress = this.ipAddress;
+        copy.domainName = this.domainName;
+        copy.url = this.url;
+        copy.port = this.port;
+        copy.keyValues = this.keyValues;
+        copy.verified = this.verified;
+        copy.capturedAt = this.capturedAt;
+        copy.event = newEvent;
+        return copy;
+    }
+
+    /**
+     * @param previousInfo is the running server information replaced by this
+     * one.
+     * @return the update from the given server information to this one, or
+     * <code>null</code> if none of the values changed.
+     */
+    SvnEdgeServerInfo asUpdateOf(SvnEdgeServerInfo previousInfo) {
+        Set<SvnEdgeServerField> fields = EnumSet.noneOf(
+                SvnEdgeServerField.class);
+        if (this.port != previousInfo.port) {
+            fields.add(SvnEdgeServerField.PORT);
+        }
+        if (!same(this.ipAddress, previousInfo.ipAddress)) {
+            fields.add(SvnEdgeServerField.ADDRESS);
+        }
+        if (!same(this.domainName, previousInfo.domainName)) {
+            fields.add(SvnEdgeServerField.HOSTNAME);
+        }
+        if (!same(this.url, previousInfo.url)) {
+            fields.add(SvnEdgeServerField.URL);
+        }
+        Set<SvnEdgeServiceKey> keys = new HashSet<SvnEdgeServiceKey>();
+        if (this.keyValues != previousInfo.keyValues) {
+            for (SvnEdgeServiceKey key : this.keyValues.keySet()) {
+                if (!same(this.keyValues.get(key),
+                        previousInfo.keyValues.get(key))) {
+                    keys.add(key);
+                }
+            }
+            for (SvnEdgeServiceKey key : previousInfo.keyValues.keySet()) {
+                if (!this.keyValues.containsKey(key)) {
+                    keys.add(key);
+                }
+            }
+        }
+        if (!keys.isEmpty()) {
+            fields.add(SvnEdgeServerField.PROPERTIES);
+        }
+        if (this.verified != previousInfo.verified) {
+            fields.add(SvnEdgeServerField.VERIFIED);
+        }
+        if (fields.isEmpty()) {
+            return null;
+        }
+        SvnEdgeServerInfo update = withEvent(
+                SvnEdgeServerEvent.SERVER_UPDATED);
+        update.previous = previousInfo;
+        update.changedFields = Collections.unmodifiableSet(fields);
+        update.changedKeys = Collections.unmodifiableSet(keys);
+        return update;
+    }
+
+    /**
+     * Merges two events of the same server that were not delivered yet, so
+     * that the listener still sees a consistent transition.
+     * @param pending is the event waiting to be delivered.
+     * @param next is the newer event.
+     * @return the event replacing both.
+     */
+    static SvnEdgeServerInfo coalesce(SvnEdgeServerInfo pending,
+            SvnEdgeServerInfo next) {
+        if (next.event != SvnEdgeServerEvent.SERVER_UPDATED) {
+            return next;
+        }
+        if (pending.event == SvnEdgeServerEvent.SERVER_RUNNING) {
+            // the listener has not seen the server yet.
+            return next.withEvent(SvnEdgeServerEvent.SERVER_RUNNING);
+        }
+        if (pending.event == SvnEdgeServerEvent.SERVER_UPDATED) {
+            SvnEdgeServerInfo merged = next.withEvent(
+                    SvnEdgeServerEvent.SERVER_RUNNING).asUpdateOf(
+                            pending.previous);
+            // back to the values the listener knows: nothing to report but
+            // the latest values, as a running event.
+            return merged != null ? merged :
+                next.withEvent(SvnEdgeServerEvent.SERVER_RUNNING);
+        }
+        return next;
+    }
+
+    /**
+     * @return whether both objects are null or equal.
+     */
+    private static boolean same(Object one, Object other) {
+        return one == null ? other == null : one.equals(other);
+    }
+
     @Override
     public String toString() {
         StringBuilder propsBuilder = new StringBuilder();
@@ -125,8 +335,11 @@ public final class SvnEdgeServerInfo implements Comparable<SvnEdgeServerInfo> {
             propsBuilder.append(this.keyValues.get(key));
             propsBuilder.append(" ");
         }
-        return "SvnEdgeServerInfo: name=" + serviceName + ", url=" + getUrl() +
-               propsBuilder.toString();
+        return "SvnEdgeServerInfo: name=" + serviceName + ", type=" +
+               serviceType + ", url=" + getUrl() +
+               propsBuilder.toString() + (verified ? "" : "(unverified) ") +
+               (previous == null ? "" :
+                   "Changed: " + changedFields + " " + changedKeys);
     }
 
     @Override
@@ -135,6 +348,8 @@ public final class SvnEdgeServerInfo implements Comparable<SvnEdgeServerInfo> {
         int result = 1;
         result = prime * result + ((serviceName == null) ? 0 : 
             serviceName.hashCode());
+        result = prime * result + ((serviceType == null) ? 0 :
+            serviceType.hashCode());
         return result;
     }
 
@@ -152,6 +367,8 @@ public final class SvnEdgeServerInfo implements Comparable<SvnEdgeServerInfo> {
                 return false;
         } else if (!serviceName.equals(other.serviceName))
             return false;
+        if (this.serviceType != other.serviceType)
+            return false;
         return true;
     }
 
@@ -162,6 +379,22 @@ public final class SvnEdgeServerInfo implements Comparable<SvnEdgeServerInfo> {
         return this.serviceName;
     }
 
+    /**
+     * @return the mDNS service type where the service was published.
+     */
+    public SvnEdgeServiceType getServiceType() {
+        return this.serviceType;
+    }
+
+    /**
+     * @return the key identifying the server among the servers of all the
+     * service types, made of the service name and the service type.
+     */
+    String getServerKey() {
+        return this.serviceType == null ? this.serviceName :
+            this.serviceName + "." + this.serviceType.getType();
+    }
+
     /**
      * @return the iNetAddress instance of the service.
      */
@@ -183,6 +416,23 @@ public final class SvnEdgeServerInfo implements Comparable<SvnEdgeServerInfo> {
         return this.ipAddress.getHostName();
     }
 
+    /**
+     * @return the hostname used in the url, which is the IP address until
+     * the hostname is resolved.
+     */
+    String getDomainName() {
+        return this.domainName;
+    }
+
+    /**
+     * @return whether the url uses the canonical hostname of the server,
+     * instead of its IP address.
+     */
+    public boolean isHostnameResolved() {
+        return this.ipAddress != null && this.domainName != null &&
+            !this.domainName.equals(this.ipAddress.getHostAddress());
+    }
+
     /**
      * @return the port where the service is running.
      */
@@ -197,6 +447,24 @@ public final class SvnEdgeServerInfo implements Comparable<SvnEdgeServerInfo> {
        return url;
     }
 
+    /**
+     * @return whether this server information was confirmed by mDNS.
+     * Servers loaded from the {@link SvnEdgeServersCache} are unverified
+     * until they are announced again.
+     */
+    public boolean isVerified() {
+        return this.verified;
+    }
+
+    /**
+     * @return the time this server information was captured from mDNS, in
+     * milliseconds. The information loaded from the
+     * {@link SvnEdgeServersCache} keeps the time of its original capture.
+     */
+    public long getCapturedAt() {
+        return this.capturedAt;
+    }
+
     /**
      * @return The event at which this server information was captured. See
      * {@link SvnEdgeServerEvent} values.
@@ -205,6 +473,38 @@ public final class SvnEdgeServerInfo implements Comparable<SvnEdgeServerInfo> {
         return this.event;
     }
 
+    /**
+     * @return the server information replaced by this update, or
+     * <code>null</code> if the event is not
+     * {@link SvnEdgeServerEvent#SERVER_UPDATED}.
+     */
+    public SvnEdgeServerInfo getPrevious() {
+        return this.previous;
+    }
+
+    /**
+     * @return the fields changed by this update. Empty if the event is not
+     * {@link SvnEdgeServerEvent#SERVER_UPDATED}.
+     */
+    public Set<SvnEdgeServerField> getChangedFields() {
+        return this.changedFields;
+    }
+
+    /**
+     * @return the properties changed by this update, when the changed fields
+     * include {@link SvnEdgeServerField#PROPERTIES}.
+     */
+    public Set<SvnEdgeServiceKey> getChangedKeys() {
+        return this.changedKeys;
+    }
+
+    /**
+     * @return the properties of the service, by key. Not to be modified.
+     */
+    Map<SvnEdgeServiceKey, String> getProperties() {
+        return this.keyValues;
+    }
+
     /**
      * @param key is the service key.
      * @return the text representation for the given key.
@@ -219,7 +519,15 @@ public final class SvnEdgeServerInfo implements Comparable<SvnEdgeServerInfo> {
      * @see java.lang.Comparable#compareTo(java.lang.Object)
      */
     public int compareTo(SvnEdgeServerInfo other) {
-        return this.serviceName.compareTo(other.serviceName);
+        int byName = this.serviceName.compareTo(other.serviceName);
+        if (byName != 0 || this.serviceType == other.serviceType) {
+            return byName;
+        }
+        if (this.serviceType == null) {
+            return -1;
+        }
+        return other.serviceType == null ? 1 :
+            this.serviceType.compareTo(other.serviceType);
     }
 
     /**
@@ -0,0 +1,578 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServerEvent;
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceKey;
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceType;
+
+/**
+ * Encodes the {@link SvnEdgeServerInfo} into a compact binary record, and
+ * decodes it back with all its values, for the caches, the gateways and the
+ * processes sharing the discovered servers. The records are written and read
+ * straight in the given buffers, without intermediate streams or encoded
+ * strings: the encoder only copies the bytes of the address, given by
+ * {@link InetAddress#getAddress()}, and the decoder only allocates the
+ * values of the server information it returns, its strings, address,
+ * properties and changes:
+ * <pre>
+ * version         1 byte, {@link #FORMAT_VERSION}
+ * length          2 bytes, the length of the fields
+ * service name    string
+ * service type    string, the mDNS type
+ * event           1 byte
+ * flags           1 byte: verified, update
+ * address         1 byte of length, 0, 4 or 16, and the address
+ * domain name     string
+ * url             string
+ * port            varint
+ * captured at     varint
+ * properties      varint count, and the key and value strings
+ * update          only for an update: the varint of the changed fields,
+ *                 the varint count of the changed keys and their strings,
+ *                 and the record of the previous server information
+ * </pre>
+ * The integers are unsigned varints of 7 bits per byte, least significant
+ * first. A string is a varint tag: 0 for <code>null</code>, a word of the
+ * dictionary, or a UTF-8 literal whose length is the tag, optionally between
+ * a prefix and a suffix of the dictionary. The dictionary holds the strings
+ * repeated by the servers, such as the default service name "collabnetsvn",
+ * the service types, the property keys, the url schemes and the domain
+ * suffixes, so that a server takes about 55 bytes, mostly its hostname and
+ * url. The dictionary is part of the format: changing it changes the format
+ * version.
+ * <p>
+ * Not thread-safe: the decoder reuses its buffers of characters and of
+ * address bytes.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public final class SvnEdgeServerInfoCodec {
+
+    /**
+     * The version of the format of the records.
+     */
+    public static final int FORMAT_VERSION = 1;
+    /**
+     * The maximum size of a record.
+     */
+    public static final int MAX_RECORD_SIZE = 3 + 0xFFFF;
+    /**
+     * The strings repeated by the servers, referenced by their index.
+     */
+    private static final String[] DICTIONARY = {
+        "",
+        "collabnetsvn",
+        "_csvn._tcp.local.",
+        "_http._tcp.local.",
+        "path",
+        "tfpath",
+        "/csvn",
+        "http://",
+        "https://",
+        "localhost",
+        ".local",
+        ".local.",
+        ".com",
+        ".net",
+        ".org",
+        ".collab.net",
+        "10.",
+        "192.168.",
+        "172."
+    };
+    private static final int FLAG_VERIFIED = 1;
+    private static final int FLAG_UPDATE = 2;
+    /**
+     * The maximum depth of the previous server information of the updates,
+     * of one in practice.
+     */
+    private static final int MAX_DEPTH = 8;
+    private static final SvnEdgeServerEvent[] EVENTS =
+            SvnEdgeServerEvent.values();
+    private static final SvnEdgeServerField[] FIELDS =
+            SvnEdgeServerField.values();
+
+    /**
+     * The characters of the string being decoded, grown as needed.
+     */
+    private char[] chars = new char[256];
+    /**
+     * The bytes of the address being decoded, copied by the address.
+     */
+    private final byte[] ipv4 = new byte[4];
+    private final byte[] ipv6 = new byte[16];
+
+    /**
+     * Writes the record of the given server information at the position of
+     * the given buffer, and moves the position after it.
+     * @param serverInfo is the server information.
+     * @param out receives the record.
+     * @throws BufferOverflowException if the record does not fit in the
+     * remaining bytes of the buffer, whose position is not changed.
+     * @throws IllegalArgumentException if the record is larger than
+     * {@link #MAX_RECORD_SIZE}.
+     */
+    public void encode(SvnEdgeServerInfo serverInfo, ByteBuffer out) {
+        int mark = out.position();
+        try {
+            write(serverInfo, out, 0);
+
+        } catch (BufferOverflowException e) {
+            out.position(mark);
+            throw e;
+        } catch (IllegalArgumentException e) {
+            out.position(mark);
+            throw e;
+        }
+    }
+
+    private void write(SvnEdgeServerInfo serverInfo, ByteBuffer out,
+            int depth) {
+        if (depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("Too many previous updates");
+        }
+        out.put((byte) FORMAT_VERSION);
+        int lengthPosition = out.position();
+        out.putShort((short) 0);
+        writeString(out, serverInfo.getServiceName());
+        writeString(out, serverInfo.getServiceType() != null ?
+                serverInfo.getServiceType().getType() : null);
+        out.put((byte) serverInfo.getEvent().ordinal());
+        SvnEdgeServerInfo previous = serverInfo.getPrevious();
+        out.put((byte) ((serverInfo.isVerified() ? FLAG_VERIFIED : 0) |
+                (previous != null ? FLAG_UPDATE : 0)));
+        InetAddress address = serverInfo.getInetAddress();
+        if (address == null) {
+            out.put((byte) 0);
+        } else {
+            byte[] bytes = address.getAddress();
+            out.put((byte) bytes.length);
+            out.put(bytes);
+        }
+        writeString(out, serverInfo.getDomainName());
+        writeString(out, serverInfo.getUrl());
+        writeVarint(out, serverInfo.getPort());
+        writeVarint(out, serverInfo.getCapturedAt());
+        Map<SvnEdgeServiceKey, String> properties =
+                serverInfo.getProperties();
+        writeVarint(out, properties.size());
+        for (Map.Entry<SvnEdgeServiceKey, String> property :
+                properties.entrySet()) {
+            writeString(out, property.getKey().toString());
+            writeString(out, property.getValue());
+        }
+        if (previous != null) {
+            int fields = 0;
+            for (SvnEdgeServerField field : serverInfo.getChangedFields()) {
+                fields |= 1 << field.ordinal();
+            }
+            writeVarint(out, fields);
+            writeVarint(out, serverInfo.getChangedKeys().size());
+            for (SvnEdgeServiceKey key : serverInfo.getChangedKeys()) {
+                writeString(out, key.toString());
+            }
+            write(previous, out, depth + 1);
+        }
+        int length = out.position() - lengthPosition - 2;
+        if (length > 0xFFFF) {
+            throw new IllegalArgumentException("The record of " +
+                    serverInfo.getServiceName() + " is larger than " +
+                    MAX_RECORD_SIZE + " bytes");
+        }
+        out.putShort(lengthPosition, (short) length);
+    }
+
+    /**
+     * Reads the record at the position of the given buffer, and moves the
+     * position after it.
+     * @param in has the record.
+     * @return the server information of the record.
+     * @throws IllegalArgumentException if the record is truncated, malformed
+     * or of an unknown version. The position of the buffer is not changed.
+     */
+    public SvnEdgeServerInfo decode(ByteBuffer in) {
+        int mark = in.position();
+        try {
+            return read(in, 0);
+
+        } catch (BufferUnderflowException e) {
+            in.position(mark);
+            throw new IllegalArgumentException("Truncated record");
+        } catch (IllegalArgumentException e) {
+            in.position(mark);
+            throw e;
+        }
+    }
+
+    private SvnEdgeServerInfo read(ByteBuffer in, int depth) {
+        if (depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("Too many previous updates");
+        }
+        int version = in.get() & 0xFF;
+        if (version != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Unknown record version " +
+                    version);
+        }
+        int length = in.getShort() & 0xFFFF;
+        int end = in.position() + length;
+        if (end > in.limit()) {
+            throw new IllegalArgumentException("Truncated record");
+        }
+        // the fields can't be read beyond the record.
+        int limit = in.limit();
+        in.limit(end);
+        try {
+            String serviceName = readString(in);
+            String mdnsType = readString(in);
+            SvnEdgeServiceType type = mdnsType != null ?
+                    SvnEdgeServiceType.retrieveByType(mdnsType) : null;
+            if (mdnsType != null && type == null) {
+                throw new IllegalArgumentException("Unknown service type " +
+                        mdnsType);
+            }
+            int event = in.get() & 0xFF;
+            if (event >= EVENTS.length) {
+                throw new IllegalArgumentException("Unknown event " + event);
+            }
+            int flags = in.get();
+            InetAddress address = readAddress(in);
+            String domainName = readString(in);
+            String url = readString(in);
+            int port = (int) readVarint(in, 0xFFFF);
+            long capturedAt = readVarint(in, Long.MAX_VALUE);
+            int count = (int) readVarint(in, length);
+            Map<SvnEdgeServiceKey, String> properties =
+                    new HashMap<SvnEdgeServiceKey, String>(count * 2);
+            for (int i = 0; i < count; i++) {
+                SvnEdgeServiceKey key = keyOf(type, readString(in));
+                String value = readString(in);
+                if (key != null) {
+                    properties.put(key, value);
+                }
+            }
+            SvnEdgeServerInfo previous = null;
+            Set<SvnEdgeServerField> fields = null;
+            Set<SvnEdgeServiceKey> keys = null;
+            if ((flags & FLAG_UPDATE) != 0) {
+                long mask = readVarint(in, (1L << FIELDS.length) - 1);
+                fields = EnumSet.noneOf(SvnEdgeServerField.class);
+                for (SvnEdgeServerField field : FIELDS) {
+                    if ((mask & (1L << field.ordinal())) != 0) {
+                        fields.add(field);
+                    }
+                }
+                count = (int) readVarint(in, length);
+                keys = new HashSet<SvnEdgeServiceKey>();
+                for (int i = 0; i < count; i++) {
+                    SvnEdgeServiceKey key = keyOf(type, readString(in));
+                    if (key != null) {
+                        keys.add(key);
+                    }
+                }
+                previous = read(in, depth + 1);
+            }
+            if (in.position() != end) {
+                throw new IllegalArgumentException("Invalid record length");
+            }
+            return SvnEdgeServerInfo.makeDecoded(serviceName, type,
+                    EVENTS[event], address, domainName, url, port,
+                    properties, (flags & FLAG_VERIFIED) != 0, capturedAt,
+                    previous, fields, keys);
+        } finally {
+            in.limit(limit);
+        }
+    }
+
+    private InetAddress readAddress(ByteBuffer in) {
+        int length = in.get() & 0xFF;
+        if (length == 0) {
+            return null;
+        }
+        if (length != 4 && length != 16) {
+            throw new IllegalArgumentException("Invalid address length " +
+                    length);
+        }
+        byte[] bytes = length == 4 ? ipv4 : ipv6;
+        in.get(bytes);
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * @return the key of the given name among the keys of the given type,
+     * or <code>null</code> for the keys of other versions.
+     */
+    private static SvnEdgeServiceKey keyOf(SvnEdgeServiceType type,
+            String name) {
+        if (type == null || name == null) {
+            return null;
+        }
+        for (SvnEdgeServiceKey key : type.getRequiredKeys()) {
+            if (key.toString().equals(name)) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes the given string as a word of the dictionary, or as a literal
+     * between the longest prefix and suffix of the dictionary it has.
+     */
+    private static void writeString(ByteBuffer out, String value) {
+        if (value == null) {
+            out.put((byte) 0);
+            return;
+        }
+        int length = value.length();
+        int prefix = -1;
+        int prefixLength = 0;
+        int suffix = -1;
+        int suffixLength = 0;
+        for (int i = 0; i < DICTIONARY.length; i++) {
+            String word = DICTIONARY[i];
+            int wordLength = word.length();
+            if (wordLength == length && word.equals(value)) {
+                // tag 2i + 2: a word of the dictionary.
+                writeVarint(out, 2 * i + 2);
+                return;
+            }
+            if (wordLength > prefixLength && wordLength < length &&
+                    value.startsWith(word)) {
+                prefix = i;
+                prefixLength = wordLength;
+            }
+        }
+        for (int i = 0; i < DICTIONARY.length; i++) {
+            String word = DICTIONARY[i];
+            int wordLength = word.length();
+            if (wordLength > suffixLength &&
+                    prefixLength + wordLength < length &&
+                    value.endsWith(word)) {
+                suffix = i;
+                suffixLength = wordLength;
+            }
+        }
+        int end = length - suffixLength;
+        int bytes = utf8Length(value, prefixLength, end);
+        // tag 8n + 1 + 2p + 4s: a literal of n bytes, with a prefix p and a
+        // suffix s.
+        writeVarint(out, 8L * bytes + 1 + (prefix >= 0 ? 2 : 0) +
+                (suffix >= 0 ? 4 : 0));
+        if (prefix >= 0) {
+            writeVarint(out, prefix);
+        }
+        writeUtf8(out, value, prefixLength, end);
+        if (suffix >= 0) {
+            writeVarint(out, suffix);
+        }
+    }
+
+    private String readString(ByteBuffer in) {
+        long tag = readVarint(in, Integer.MAX_VALUE);
+        if (tag == 0) {
+            return null;
+        }
+        if ((tag & 1) == 0) {
+            return wordOf(tag / 2 - 1);
+        }
+        int bytes = (int) (tag >>> 3);
+        String prefix = (tag & 2) != 0 ? wordOf(readVarint(in,
+                Integer.MAX_VALUE)) : "";
+        if (bytes > in.remaining()) {
+            throw new IllegalArgumentException("Truncated string");
+        }
+        int length = prefix.length();
+        // a byte is at most a character: the pairs take 4 bytes.
+        ensureChars(length + bytes);
+        prefix.getChars(0, length, chars, 0);
+        length = readUtf8(in, bytes, length);
+        if ((tag & 4) != 0) {
+            String suffix = wordOf(readVarint(in, Integer.MAX_VALUE));
+            ensureChars(length + suffix.length());
+            suffix.getChars(0, suffix.length(), chars, length);
+            length += suffix.length();
+        }
+        return new String(chars, 0, length);
+    }
+
+    private static String wordOf(long index) {
+        if (index < 0 || index >= DICTIONARY.length) {
+            throw new IllegalArgumentException("Unknown word " + index);
+        }
+        return DICTIONARY[(int) index];
+    }
+
+    private void ensureChars(int length) {
+        if (chars.length < length) {
+            char[] larger = new char[Math.max(length, chars.length * 2)];
+            System.arraycopy(chars, 0, larger, 0, chars.length);
+            chars = larger;
+        }
+    }
+
+    /**
+     * @return the number of bytes of the given characters in UTF-8, where
+     * the unpaired surrogates are replaced by '?'.
+     */
+    private static int utf8Length(String value, int start, int end) {
+        int bytes = 0;
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < end &&
+                    Character.isLowSurrogate(value.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                bytes++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    private static void writeUtf8(ByteBuffer out, String value, int start,
+            int end) {
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end &&
+                    Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                out.put((byte) (0xF0 | (codePoint >> 18)));
+                out.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                out.put((byte) '?');
+            } else {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * Reads the given number of bytes of UTF-8 into the characters, from
+     * the given offset.
+     * @return the offset after the characters read.
+     */
+    private int readUtf8(ByteBuffer in, int bytes, int offset) {
+        int end = in.position() + bytes;
+        while (in.position() < end) {
+            int b = in.get() & 0xFF;
+            if (b < 0x80) {
+                chars[offset++] = (char) b;
+                continue;
+            }
+            int extra;
+            int codePoint;
+            int min;
+            if ((b & 0xE0) == 0xC0) {
+                extra = 1;
+                codePoint = b & 0x1F;
+                min = 0x80;
+            } else if ((b & 0xF0) == 0xE0) {
+                extra = 2;
+                codePoint = b & 0x0F;
+                min = 0x800;
+            } else if ((b & 0xF8) == 0xF0) {
+                extra = 3;
+                codePoint = b & 0x07;
+                min = 0x10000;
+            } else {
+                throw new IllegalArgumentException("Invalid UTF-8");
+            }
+            if (in.position() + extra > end) {
+                throw new IllegalArgumentException("Invalid UTF-8");
+            }
+            for (int i = 0; i < extra; i++) {
+                int next = in.get() & 0xFF;
+                if ((next & 0xC0) != 0x80) {
+                    throw new IllegalArgumentException("Invalid UTF-8");
+                }
+                codePoint = (codePoint << 6) | (next & 0x3F);
+            }
+            if (codePoint < min || codePoint > Character.MAX_CODE_POINT ||
+                    (codePoint >= Character.MIN_SURROGATE &&
+                    codePoint <= Character.MAX_SURROGATE)) {
+                throw new IllegalArgumentException("Invalid UTF-8");
+            }
+            if (codePoint >= 0x10000) {
+                chars[offset++] = Character.highSurrogate(codePoint);
+                chars[offset++] = Character.lowSurrogate(codePoint);
+            } else {
+                chars[offset++] = (char) codePoint;
+            }
+        }
+        return offset;
+    }
+
+    private static void writeVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * @param max is the largest value accepted.
+     */
+    private static long readVarint(ByteBuffer in, long max) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.get() & 0xFF;
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0 || value > max) {
+                    throw new IllegalArgumentException("Invalid number " +
+                            value);
+                }
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Invalid number");
+    }
+}
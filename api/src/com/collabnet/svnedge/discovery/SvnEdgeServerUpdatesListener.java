@@ -0,0 +1,41 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+/**
+ * An SvnEdge Servers Listener also interested in the changes of the servers
+ * that are running, such as a new port or the TeamForge path becoming empty
+ * when the server is managed by TeamForge. The listeners that do not
+ * implement this interface receive the updates through
+ * {@link #csvnServerIsRunning(SvnEdgeServerInfo)}.
+ * 
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public interface SvnEdgeServerUpdatesListener extends SvnEdgeServersListener {
+
+    /**
+     * The event when a running SvnEdge server changes any of its values.
+     * @param serverInfo is the new server information. Its previous value
+     * and the changed fields are given by
+     * {@link SvnEdgeServerInfo#getPrevious()},
+     * {@link SvnEdgeServerInfo#getChangedFields()} and
+     * {@link SvnEdgeServerInfo#getChangedKeys()}.
+     */
+    public void csvnServerUpdated(SvnEdgeServerInfo serverInfo);
+}
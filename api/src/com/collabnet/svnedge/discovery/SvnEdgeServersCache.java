@@ -0,0 +1,508 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServerEvent;
+
+/**
+ * The SvnEdge Servers Cache keeps the last known servers of an
+ * {@link SvnEdgeBonjourClient} on disk, so that a new client shows them as
+ * soon as it starts instead of waiting for the next announcements. The loaded
+ * servers are reported as unverified (see
+ * {@link SvnEdgeServerInfo#isVerified()}) until mDNS confirms them, and
+ * reported stopped if mDNS does not confirm them within the verification
+ * timeout.
+ * 
+ * The file is a compact binary log: each change of the registry appends one
+ * record of the {@link SvnEdgeServerInfoCodec}, written in the background in
+ * batches. A running server replaces the server of the same key, and a
+ * server shut down removes it. The log is only rewritten with the live
+ * servers when it holds too many obsolete records. A record truncated by a
+ * crash, or damaged, is discarded with the records after it when the file
+ * is loaded.
+ *
+ * The changes are handed over to the writing thread under a lock of their
+ * own, so that the threads recording them never wait for the file.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public final class SvnEdgeServersCache {
+
+    private static final Logger log = Logger.getLogger(
+            SvnEdgeServersCache.class);
+    /**
+     * The default time the loaded servers wait for the confirmation of mDNS,
+     * in milliseconds.
+     */
+    public static final long DEFAULT_VERIFICATION_TIMEOUT =
+            TimeUnit.SECONDS.toMillis(30);
+    /**
+     * The default maximum age of the loaded servers, in milliseconds. The
+     * servers whose last change was captured earlier are not loaded.
+     */
+    public static final long DEFAULT_MAX_AGE = TimeUnit.DAYS.toMillis(7);
+    /**
+     * The time the changes are collected before being written, in
+     * milliseconds.
+     */
+    private static final long FLUSH_DELAY = 500;
+    /**
+     * The number of obsolete records tolerated besides the live ones before
+     * the log is rewritten.
+     */
+    private static final int COMPACTION_SLACK = 64;
+    /**
+     * The identification of the file: "SVNE".
+     */
+    private static final int MAGIC = 0x53564e45;
+    /**
+     * The version of the format of the file. The version 2 holds the records
+     * of the {@link SvnEdgeServerInfoCodec}.
+     */
+    private static final short FORMAT_VERSION = 2;
+
+    /**
+     * Receives the loaded servers that were not confirmed in time.
+     */
+    interface Sink {
+        /**
+         * @param serverInfo is a loaded server not confirmed by mDNS.
+         */
+        void expired(SvnEdgeServerInfo serverInfo);
+    }
+
+    /**
+     * The cache file.
+     */
+    private final File file;
+    private final long verificationTimeout;
+    private final long maxAge;
+    /**
+     * The servers in the file, by server key. Guarded by the monitor of the
+     * cache, with the file.
+     */
+    private final Map<String, SvnEdgeServerInfo> live =
+            new LinkedHashMap<String, SvnEdgeServerInfo>();
+    /**
+     * The changes not written yet, by server key. A <code>null</code> value
+     * removes the server. Guarded by its own monitor, only held to hand the
+     * changes over to the writing thread.
+     */
+    private final Map<String, SvnEdgeServerInfo> pending =
+            new LinkedHashMap<String, SvnEdgeServerInfo>();
+    /**
+     * The number of records in the file.
+     */
+    private int records;
+    /**
+     * The stream appending the records, opened on the first write.
+     */
+    private DataOutputStream out;
+    /**
+     * Encodes and decodes the records, guarded by the monitor of the cache.
+     */
+    private final SvnEdgeServerInfoCodec codec = new SvnEdgeServerInfoCodec();
+    /**
+     * The record being written.
+     */
+    private final ByteBuffer record = ByteBuffer.allocate(
+            SvnEdgeServerInfoCodec.MAX_RECORD_SIZE);
+    /**
+     * Whether a flush of the pending changes is scheduled. Guarded by the
+     * monitor of the pending changes.
+     */
+    private boolean flushScheduled;
+    /**
+     * The thread writing the file and expiring the unverified servers.
+     */
+    private final ScheduledExecutorService writer;
+
+    /**
+     * Creates a new cache in the given file, with the default verification
+     * timeout and maximum age.
+     * @param file is the cache file, created if it does not exist.
+     */
+    public SvnEdgeServersCache(File file) {
+        this(file, DEFAULT_VERIFICATION_TIMEOUT, DEFAULT_MAX_AGE);
+    }
+
+    /**
+     * Creates a new cache in the given file.
+     * @param file is the cache file, created if it does not exist.
+     * @param verificationTimeout is the time the loaded servers wait for the
+     * confirmation of mDNS, in milliseconds.
+     * @param maxAge is the maximum age of the loaded servers, in milliseconds.
+     */
+    public SvnEdgeServersCache(File file, long verificationTimeout,
+            long maxAge) {
+        this.file = file;
+        this.verificationTimeout = verificationTimeout;
+        this.maxAge = maxAge;
+        this.writer = Executors.newSingleThreadScheduledExecutor(
+                new SvnEdgeThreadFactory("SvnEdge-Servers-Cache-"));
+    }
+
+    /**
+     * Loads the servers of the file. A file that can't be read is discarded.
+     * The servers older than the maximum age are removed from the file.
+     * @param sink receives the loaded servers not confirmed in time.
+     * @return the unverified servers loaded, in the order of the file.
+     */
+    synchronized List<SvnEdgeServerInfo> load(final Sink sink) {
+        live.clear();
+        records = 0;
+        long validLength = 0;
+        if (file.exists()) {
+            try {
+                validLength = read();
+            } catch (IOException e) {
+                log.warn("Discarding the unreadable servers cache " + file, e);
+                live.clear();
+                records = 0;
+                validLength = 0;
+            }
+        }
+        long now = System.currentTimeMillis();
+        List<SvnEdgeServerInfo> loaded = new ArrayList<SvnEdgeServerInfo>();
+        List<SvnEdgeServerInfo> expired = new ArrayList<SvnEdgeServerInfo>();
+        Iterator<SvnEdgeServerInfo> servers = live.values().iterator();
+        while (servers.hasNext()) {
+            SvnEdgeServerInfo serverInfo = servers.next();
+            if (now - serverInfo.getCapturedAt() <= maxAge) {
+                loaded.add(serverInfo);
+            } else {
+                expired.add(serverInfo);
+                servers.remove();
+            }
+        }
+        try {
+            openForAppend(validLength);
+            for (SvnEdgeServerInfo serverInfo : expired) {
+                writeRecord(out, serverInfo,
+                        SvnEdgeServerEvent.SERVER_SHUTDOWN);
+            }
+            out.flush();
+            if (isCompactionDue()) {
+                compact();
+            }
+        } catch (IOException e) {
+            log.warn("The servers cache " + file + " can't be written", e);
+        }
+        if (!loaded.isEmpty()) {
+            final List<SvnEdgeServerInfo> unverified = loaded;
+            schedule(new Runnable() {
+                public void run() {
+                    for (SvnEdgeServerInfo serverInfo : unverified) {
+                        sink.expired(serverInfo);
+                    }
+                }
+            }, verificationTimeout);
+        }
+        log.debug("Loaded " + loaded.size() + " server(s) from " + file);
+        return loaded;
+    }
+
+    /**
+     * Reads the records of the file into the live servers.
+     * @return the length of the valid records of the file.
+     */
+    private long read() throws IOException {
+        long length = file.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("File too large");
+        }
+        ByteBuffer in = ByteBuffer.allocate((int) length);
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            while (in.hasRemaining() && channel.read(in) >= 0) {
+                // reading the whole file.
+            }
+        } finally {
+            channel.close();
+        }
+        in.flip();
+        if (in.remaining() < 6 || in.getInt() != MAGIC ||
+                in.getShort() != FORMAT_VERSION) {
+            throw new IOException("Unknown format");
+        }
+        long validLength = in.position();
+        while (in.hasRemaining()) {
+            try {
+                apply(codec.decode(in));
+            } catch (IllegalArgumentException e) {
+                log.warn("Discarding the records of the servers cache " +
+                        file + " after the invalid record at " +
+                        validLength + ": " + e.getMessage());
+                return validLength;
+            }
+            records++;
+            validLength = in.position();
+        }
+        return validLength;
+    }
+
+    /**
+     * Applies one record to the live servers.
+     * @throws IllegalArgumentException if the record is not of a server.
+     */
+    private void apply(SvnEdgeServerInfo serverInfo) {
+        if (serverInfo.getServiceType() == null ||
+                serverInfo.getServiceName() == null) {
+            throw new IllegalArgumentException("Unknown server");
+        }
+        if (serverInfo.getEvent() == SvnEdgeServerEvent.SERVER_SHUTDOWN) {
+            live.remove(serverInfo.getServerKey());
+        } else {
+            live.put(serverInfo.getServerKey(), serverInfo);
+        }
+    }
+
+    /**
+     * Records the given change of the registry, to be written shortly. Does
+     * not wait for the file being written.
+     * @param change is a change of the registry.
+     */
+    void record(SvnEdgeServerInfo change) {
+        if (change.getEvent() != SvnEdgeServerEvent.SERVER_SHUTDOWN &&
+                !change.isVerified()) {
+            // already in the file.
+            return;
+        }
+        synchronized (pending) {
+            pending.put(change.getServerKey(), change.getEvent() ==
+                    SvnEdgeServerEvent.SERVER_SHUTDOWN ? null : change);
+            if (!flushScheduled) {
+                flushScheduled = schedule(new Runnable() {
+                    public void run() {
+                        flush();
+                    }
+                }, FLUSH_DELAY);
+            }
+        }
+    }
+
+    /**
+     * Writes the pending changes, rewriting the file if it holds too many
+     * obsolete records. The changes are taken at once, and written after
+     * releasing the monitor of the pending changes.
+     */
+    private synchronized void flush() {
+        Map<String, SvnEdgeServerInfo> changes;
+        synchronized (pending) {
+            flushScheduled = false;
+            if (pending.isEmpty()) {
+                return;
+            }
+            changes = new LinkedHashMap<String, SvnEdgeServerInfo>(pending);
+            pending.clear();
+        }
+        if (out == null) {
+            // the file can't be written.
+            return;
+        }
+        try {
+            for (Map.Entry<String, SvnEdgeServerInfo> change :
+                    changes.entrySet()) {
+                SvnEdgeServerInfo serverInfo = change.getValue();
+                if (serverInfo == null) {
+                    SvnEdgeServerInfo removed = live.remove(change.getKey());
+                    if (removed != null) {
+                        writeRecord(out, removed,
+                                SvnEdgeServerEvent.SERVER_SHUTDOWN);
+                    }
+                } else {
+                    live.put(change.getKey(), serverInfo);
+                    writeRecord(out, serverInfo,
+                            SvnEdgeServerEvent.SERVER_RUNNING);
+                }
+            }
+            out.flush();
+            if (isCompactionDue()) {
+                compact();
+            }
+        } catch (IOException e) {
+            log.warn("Failed to write the servers cache " + file, e);
+        }
+    }
+
+    /**
+     * Writes one record to the given stream: the given server as it is
+     * loaded, unverified and without its previous values, with the given
+     * event.
+     */
+    private void writeRecord(DataOutputStream stream,
+            SvnEdgeServerInfo serverInfo, SvnEdgeServerEvent event)
+            throws IOException {
+        record.clear();
+        try {
+            codec.encode(SvnEdgeServerInfo.makeDecoded(
+                    serverInfo.getServiceName(), serverInfo.getServiceType(),
+                    event, serverInfo.getInetAddress(),
+                    serverInfo.getDomainName(), serverInfo.getUrl(),
+                    serverInfo.getPort(), serverInfo.getProperties(), false,
+                    serverInfo.getCapturedAt(), null, null, null), record);
+
+        } catch (BufferOverflowException e) {
+            log.warn("Not caching the server " + serverInfo.getServiceName() +
+                    " whose record is larger than " +
+                    SvnEdgeServerInfoCodec.MAX_RECORD_SIZE + " bytes");
+            return;
+        } catch (IllegalArgumentException e) {
+            log.warn("Not caching the server " + serverInfo.getServiceName() +
+                    ": " + e.getMessage());
+            return;
+        }
+        stream.write(record.array(), 0, record.position());
+        records++;
+    }
+
+    /**
+     * @return whether the file holds too many obsolete records.
+     */
+    private boolean isCompactionDue() {
+        return records > 2 * live.size() + COMPACTION_SLACK;
+    }
+
+    /**
+     * Rewrites the file with the live servers only, replacing it at once.
+     */
+    private void compact() throws IOException {
+        File compacted = new File(file.getPath() + ".tmp");
+        DataOutputStream stream = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(compacted)));
+        records = 0;
+        try {
+            stream.writeInt(MAGIC);
+            stream.writeShort(FORMAT_VERSION);
+            for (SvnEdgeServerInfo serverInfo : live.values()) {
+                writeRecord(stream, serverInfo,
+                        SvnEdgeServerEvent.SERVER_RUNNING);
+            }
+        } finally {
+            stream.close();
+        }
+        out.close();
+        out = null;
+        if (!compacted.renameTo(file)) {
+            // renameTo does not replace the file on every platform.
+            file.delete();
+            if (!compacted.renameTo(file)) {
+                throw new IOException("Failed to replace " + file);
+            }
+        }
+        openForAppend(file.length());
+        log.debug("Compacted the servers cache with " + records +
+                " server(s)");
+    }
+
+    /**
+     * Opens the file to append records after its valid records, writing the
+     * header of a new file.
+     * @param validLength is the length of the valid records of the file.
+     */
+    private void openForAppend(long validLength) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        if (validLength > 0 && file.length() != validLength) {
+            // discarding the record truncated by a crash or damaged.
+            RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+            try {
+                truncated.setLength(validLength);
+            } finally {
+                truncated.close();
+            }
+        }
+        out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file, validLength > 0)));
+        if (validLength == 0) {
+            out.writeInt(MAGIC);
+            out.writeShort(FORMAT_VERSION);
+            out.flush();
+        }
+    }
+
+    /**
+     * @return <code>false</code> if the cache has been closed.
+     */
+    private boolean schedule(Runnable task, long delay) {
+        try {
+            writer.schedule(task, delay, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException e) {
+            log.debug("The servers cache has been closed.");
+            return false;
+        }
+    }
+
+    /**
+     * Writes the pending changes and closes the file.
+     */
+    void close() {
+        writer.shutdownNow();
+        synchronized (this) {
+            flush();
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    log.warn("Failed to close the servers cache " + file, e);
+                }
+                out = null;
+            }
+        }
+    }
+
+    /**
+     * @return the cache file.
+     */
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * @return the number of servers in the file.
+     */
+    public synchronized int size() {
+        return this.live.size();
+    }
+}
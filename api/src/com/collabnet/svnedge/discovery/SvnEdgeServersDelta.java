@@ -0,0 +1,112 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The changes of the {@link SvnEdgeServersRegistry} between two versions.
+ * Each change is the latest {@link SvnEdgeServerInfo} of a server, whose
+ * event tells whether the server is running or has stopped. When the
+ * registry no longer has the history since the requested version, the delta
+ * is a reset: the changes are all the running servers, and the consumer must
+ * discard its current view before applying them.
+ * 
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public final class SvnEdgeServersDelta {
+
+    /**
+     * The version the changes start from.
+     */
+    private final long fromVersion;
+    /**
+     * The version of the registry after the changes.
+     */
+    private final long toVersion;
+    /**
+     * Whether the changes replace the whole view of the consumer.
+     */
+    private final boolean reset;
+    /**
+     * The latest change of each server, in the order they happened.
+     */
+    private final List<SvnEdgeServerInfo> changes;
+
+    /**
+     * Creates a new delta.
+     * @param fromVersion is the version the changes start from.
+     * @param toVersion is the version after the changes.
+     * @param reset is whether the changes are the whole state.
+     * @param changes are the changes.
+     */
+    SvnEdgeServersDelta(long fromVersion, long toVersion, boolean reset,
+            List<SvnEdgeServerInfo> changes) {
+        this.fromVersion = fromVersion;
+        this.toVersion = toVersion;
+        this.reset = reset;
+        this.changes = Collections.unmodifiableList(changes);
+    }
+
+    /**
+     * @return the version the changes start from.
+     */
+    public long getFromVersion() {
+        return this.fromVersion;
+    }
+
+    /**
+     * @return the version of the registry after the changes. It is used to
+     * request the next delta.
+     */
+    public long getToVersion() {
+        return this.toVersion;
+    }
+
+    /**
+     * @return <code>true</code> if the changes are all the running servers
+     * and replace the current view, because the history since the requested
+     * version is no longer available.
+     */
+    public boolean isReset() {
+        return this.reset;
+    }
+
+    /**
+     * @return the latest change of each server changed since the requested
+     * version, in the order they happened.
+     */
+    public List<SvnEdgeServerInfo> getChanges() {
+        return this.changes;
+    }
+
+    /**
+     * @return whether there are no changes.
+     */
+    public boolean isEmpty() {
+        return !this.reset && this.changes.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "SvnEdgeServersDelta: from=" + fromVersion + ", to=" +
+                toVersion + ", reset=" + reset + ", changes=" + changes.size();
+    }
+}
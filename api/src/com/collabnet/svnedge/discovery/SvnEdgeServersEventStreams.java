@@ -0,0 +1,572 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceType;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * The Server-Sent Events streams of the {@link SvnEdgeDiscoveryGateway},
+ * pushing the changes of the {@link SvnEdgeServersRegistry} to the web
+ * clients as they happen. Each frame carries the
+ * {@link SvnEdgeServersDelta} since the previous one, with the version of
+ * the registry as its id:
+ * <pre>
+ * id: 42
+ * event: changes
+ * data: {"from":40,"to":42,"reset":false,"changes":[...]}
+ * </pre>
+ * A new stream starts with a "reset" frame of the running servers, or, when
+ * the browser reconnects with a Last-Event-ID, with the changes it missed
+ * since that version, or a reset if the registry no longer has them. The
+ * changes arriving within the batch window are sent as one frame, holding
+ * the latest change of each server, rendered once for all the streams at
+ * the same version. The idle streams get a comment as heartbeat, so that
+ * the proxies keep them open and the clients notice a dead gateway.
+ * <p>
+ * The frames are only queued by the flushes and the timer. Each stream has
+ * its own bounded queue, written by one task of the executor at a time. The
+ * executor runs each task on its own thread, so that a slow client never
+ * holds back the others. A stream whose queue is
+ * full, or whose write takes longer than the write timeout, is closed: its
+ * browser reconnects with its Last-Event-ID and gets the changes it missed.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+final class SvnEdgeServersEventStreams {
+
+    private static final Logger log = Logger.getLogger(
+            SvnEdgeServersEventStreams.class);
+    /**
+     * The time the changes are collected into one frame, in milliseconds.
+     */
+    static final long BATCH_WINDOW = 100;
+    /**
+     * The longest time a stream stays without a frame before a heartbeat,
+     * in milliseconds.
+     */
+    static final long HEARTBEAT_INTERVAL = TimeUnit.SECONDS.toMillis(15);
+    /**
+     * The delay before the browsers reconnect a closed stream, in
+     * milliseconds.
+     */
+    private static final long RETRY_DELAY = 2000;
+    /**
+     * The longest time a write to a stream may take, in milliseconds.
+     */
+    static final long WRITE_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+    /**
+     * The maximum number of frames waiting to be written to a stream.
+     */
+    static final int MAX_PENDING = 64;
+    private static final byte[] RETRY = toBytes("retry: " + RETRY_DELAY +
+            "\n\n");
+    private static final byte[] HEARTBEAT = toBytes(": heartbeat\n\n");
+
+    /**
+     * The stream of a web client.
+     */
+    private static final class Stream {
+        private final HttpExchange exchange;
+        private final OutputStream out;
+        /**
+         * The frames waiting to be written. Guarded by the stream.
+         */
+        private final ArrayDeque<byte[]> pending = new ArrayDeque<byte[]>();
+        /**
+         * Whether a task of the executor writes the pending frames. Guarded
+         * by the stream.
+         */
+        private boolean writing;
+        /**
+         * The thread blocked writing to the client, or <code>null</code>.
+         * Guarded by the stream.
+         */
+        private Thread writer;
+        /**
+         * The time the current write started. Guarded by the stream.
+         */
+        private long writeStarted;
+        /**
+         * The service type of the changes sent, or <code>null</code> for all
+         * of them.
+         */
+        private final SvnEdgeServiceType type;
+        /**
+         * The version of the registry the client is up to date with. Guarded
+         * by the flush lock.
+         */
+        private long version;
+        /**
+         * The last time a frame or a heartbeat was written, or the stream
+         * opened. Guarded by the stream.
+         */
+        private long lastWrite = System.currentTimeMillis();
+        /**
+         * Whether the stream failed or was closed. Guarded by the stream,
+         * only set while holding the streams too.
+         */
+        private boolean closed;
+
+        private Stream(HttpExchange exchange, SvnEdgeServiceType type,
+                long version) {
+            this.exchange = exchange;
+            this.out = exchange.getResponseBody();
+            this.type = type;
+            this.version = version;
+        }
+    }
+
+    private final SvnEdgeServersRegistry registry;
+    private final Executor executor;
+    private final ScheduledExecutorService timer;
+    private final int maxStreams;
+    private final long writeTimeout;
+    /**
+     * The open streams. Guarded by itself.
+     */
+    private final List<Stream> streams = new ArrayList<Stream>();
+    /**
+     * Runs the flushes one at a time.
+     */
+    private final Object flushLock = new Object();
+    /**
+     * Whether a flush of the changes is scheduled. Guarded by the streams.
+     */
+    private boolean flushScheduled;
+    private final ScheduledFuture<?> checks;
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong heartbeatsSent = new AtomicLong();
+    private final AtomicLong resumed = new AtomicLong();
+    private final AtomicLong slow = new AtomicLong();
+
+    /**
+     * @param registry is the registry whose changes are streamed.
+     * @param executor writes the frames, running each task on its own
+     * thread, such as the executors of {@link SvnEdgeVirtualThreads}.
+     * @param timer schedules the flushes and the heartbeats.
+     * @param maxStreams is the maximum number of streams open at once.
+     */
+    SvnEdgeServersEventStreams(SvnEdgeServersRegistry registry,
+            Executor executor, ScheduledExecutorService timer,
+            int maxStreams) {
+        this(registry, executor, timer, maxStreams, WRITE_TIMEOUT);
+    }
+
+    /**
+     * @param registry is the registry whose changes are streamed.
+     * @param executor writes the frames, running each task on its own
+     * thread, such as the executors of {@link SvnEdgeVirtualThreads}.
+     * @param timer schedules the flushes and the heartbeats.
+     * @param maxStreams is the maximum number of streams open at once.
+     * @param writeTimeout is the longest time a write to a stream may take,
+     * in milliseconds.
+     */
+    SvnEdgeServersEventStreams(SvnEdgeServersRegistry registry,
+            Executor executor, ScheduledExecutorService timer,
+            int maxStreams, long writeTimeout) {
+        this.registry = registry;
+        this.executor = executor;
+        this.timer = timer;
+        this.maxStreams = maxStreams;
+        this.writeTimeout = writeTimeout;
+        long period = Math.min(HEARTBEAT_INTERVAL, writeTimeout) / 3;
+        this.checks = timer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                checkStreams();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens a new stream on the given exchange, sending the running servers
+     * or the changes missed since the given version.
+     * @param type is the service type of the changes sent, or
+     * <code>null</code> for all of them.
+     * @param lastEventId is the version of the last frame received by the
+     * client before it reconnected, or -1 for a new client.
+     * @return whether the stream is open, or the caller must answer 503 as
+     * too many are.
+     * @throws IOException if the headers of the stream can't be written.
+     */
+    boolean open(HttpExchange exchange, SvnEdgeServiceType type,
+            long lastEventId) throws IOException {
+        synchronized (streams) {
+            if (streams.size() >= maxStreams) {
+                return false;
+            }
+        }
+        if (lastEventId >= 0) {
+            resumed.incrementAndGet();
+        }
+        exchange.getResponseHeaders().set("Content-Type",
+                "text/event-stream; charset=UTF-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        // the proxies must not buffer the frames.
+        exchange.getResponseHeaders().set("X-Accel-Buffering", "no");
+        exchange.sendResponseHeaders(200, 0);
+        Stream stream = new Stream(exchange, type, lastEventId);
+        enqueue(stream, RETRY);
+        synchronized (flushLock) {
+            // the running servers, or the changes missed.
+            send(stream, registry.changesSince(lastEventId), null);
+            synchronized (streams) {
+                if (stream.closed) {
+                    return true;
+                }
+                streams.add(stream);
+            }
+        }
+        if (registry.getVersion() > stream.version) {
+            // changed before the stream was added.
+            changed();
+        }
+        return true;
+    }
+
+    /**
+     * Schedules the flush of the changes of the registry to the streams at
+     * the end of the batch window.
+     */
+    void changed() {
+        synchronized (streams) {
+            if (flushScheduled || streams.isEmpty()) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        try {
+            timer.schedule(new Runnable() {
+                public void run() {
+                    try {
+                        executor.execute(new Runnable() {
+                            public void run() {
+                                flush();
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        log.debug("The gateway stopped before the flush");
+                    }
+                }
+            }, BATCH_WINDOW, TimeUnit.MILLISECONDS);
+
+        } catch (RejectedExecutionException e) {
+            log.debug("The gateway stopped before the flush");
+        }
+    }
+
+    /**
+     * Sends the changes since the version of each stream, rendering the
+     * frame once for the streams at the same version.
+     */
+    private void flush() {
+        synchronized (flushLock) {
+            List<Stream> open;
+            synchronized (streams) {
+                flushScheduled = false;
+                open = new ArrayList<Stream>(streams);
+            }
+            Map<String, byte[]> frames = new HashMap<String, byte[]>();
+            for (Stream stream : open) {
+                if (stream.version < registry.getVersion()) {
+                    send(stream, registry.changesSince(stream.version),
+                            frames);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the given delta to the given stream, and moves the stream to the
+     * version of the delta.
+     * @param frames are the frames already rendered, by version and type, or
+     * <code>null</code>.
+     */
+    private void send(Stream stream, SvnEdgeServersDelta delta,
+            Map<String, byte[]> frames) {
+        List<SvnEdgeServerInfo> changes = SvnEdgeServersJson.filter(
+                delta.getChanges(), stream.type);
+        if (!delta.isReset() && changes.isEmpty()) {
+            // the changes of the other types.
+            stream.version = delta.getToVersion();
+            return;
+        }
+        String key = delta.getFromVersion() + "/" + delta.getToVersion() +
+                "/" + stream.type;
+        byte[] frame = frames != null && !delta.isReset() ?
+                frames.get(key) : null;
+        if (frame == null) {
+            StringBuilder out = new StringBuilder(256);
+            out.append("id: ").append(delta.getToVersion())
+                    .append("\nevent: ")
+                    .append(delta.isReset() ? "reset" : "changes")
+                    .append("\ndata: ");
+            SvnEdgeServersJson.appendDelta(out, delta, stream.type);
+            out.append("\n\n");
+            frame = toBytes(out.toString());
+            if (frames != null && !delta.isReset()) {
+                frames.put(key, frame);
+            }
+        }
+        stream.version = delta.getToVersion();
+        enqueue(stream, frame);
+    }
+
+    /**
+     * Queues a heartbeat to the streams without frame for a while, and
+     * interrupts the writes that take longer than the write timeout. Runs
+     * on the timer, without writing to any client.
+     */
+    private void checkStreams() {
+        List<Stream> open;
+        synchronized (streams) {
+            open = new ArrayList<Stream>(streams);
+        }
+        long now = System.currentTimeMillis();
+        for (Stream stream : open) {
+            boolean idle;
+            synchronized (stream) {
+                if (stream.writer != null &&
+                        now - stream.writeStarted >= writeTimeout) {
+                    // closes the channel of the client, failing the write.
+                    stream.writer.interrupt();
+                    stream.writer = null;
+                    slow.incrementAndGet();
+                    log.debug("The event stream of " +
+                            stream.exchange.getRemoteAddress() +
+                            " timed out writing");
+                }
+                idle = !stream.writing &&
+                        now - stream.lastWrite >= HEARTBEAT_INTERVAL;
+            }
+            if (idle) {
+                enqueue(stream, HEARTBEAT);
+            }
+        }
+    }
+
+    /**
+     * Queues the given bytes to be written to the given stream, closing it
+     * if its queue is full.
+     */
+    private void enqueue(Stream stream, byte[] bytes) {
+        boolean schedule;
+        synchronized (stream) {
+            if (stream.closed) {
+                return;
+            }
+            if (stream.pending.size() >= MAX_PENDING) {
+                schedule = false;
+            } else {
+                stream.pending.add(bytes);
+                schedule = !stream.writing;
+                stream.writing = true;
+                bytes = null;
+            }
+        }
+        if (bytes != null) {
+            slow.incrementAndGet();
+            log.debug("The event stream of " +
+                    stream.exchange.getRemoteAddress() + " is too slow");
+            close(stream);
+        } else if (schedule) {
+            schedule(stream);
+        }
+    }
+
+    /**
+     * Runs the writes of the given stream in the executor.
+     */
+    private void schedule(final Stream stream) {
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    write(stream);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // stopping: the exchange is closed with the server.
+            log.debug("The gateway stopped before writing the stream of " +
+                    stream.exchange.getRemoteAddress());
+        }
+    }
+
+    /**
+     * Writes the pending bytes of the given stream until its queue is empty,
+     * closing the stream if the client is gone. Only one task writes a
+     * stream at any time.
+     */
+    private void write(Stream stream) {
+        while (true) {
+            byte[] bytes;
+            synchronized (stream) {
+                if (stream.closed) {
+                    break;
+                }
+                bytes = stream.pending.poll();
+                if (bytes == null) {
+                    stream.writing = false;
+                    return;
+                }
+                stream.writer = Thread.currentThread();
+                stream.writeStarted = System.currentTimeMillis();
+            }
+            boolean written = false;
+            try {
+                stream.out.write(bytes);
+                stream.out.flush();
+                written = true;
+
+            } catch (IOException e) {
+                log.debug("The event stream of " +
+                        stream.exchange.getRemoteAddress() + " is closed: " +
+                        e.getMessage());
+            } finally {
+                synchronized (stream) {
+                    stream.writer = null;
+                    // an interrupt of a write that completed in time.
+                    Thread.interrupted();
+                    if (written) {
+                        stream.lastWrite = System.currentTimeMillis();
+                    }
+                }
+            }
+            if (!written) {
+                close(stream);
+            } else if (bytes == HEARTBEAT) {
+                heartbeatsSent.incrementAndGet();
+            } else if (bytes != RETRY) {
+                framesSent.incrementAndGet();
+            }
+        }
+        synchronized (stream) {
+            stream.writer = Thread.currentThread();
+            stream.writeStarted = System.currentTimeMillis();
+        }
+        try {
+            stream.exchange.close();
+        } finally {
+            synchronized (stream) {
+                stream.writer = null;
+                Thread.interrupted();
+            }
+        }
+    }
+
+    /**
+     * Closes the given stream, discarding its pending frames. The exchange
+     * is closed by the task writing the stream, out of the caller.
+     */
+    private void close(Stream stream) {
+        boolean schedule;
+        synchronized (streams) {
+            streams.remove(stream);
+            synchronized (stream) {
+                if (stream.closed) {
+                    return;
+                }
+                stream.closed = true;
+                stream.pending.clear();
+                schedule = !stream.writing;
+                stream.writing = true;
+            }
+        }
+        if (schedule) {
+            schedule(stream);
+        }
+    }
+
+    /**
+     * Closes all the streams. The browsers reconnect to the next gateway
+     * with their Last-Event-ID.
+     */
+    void close() {
+        checks.cancel(false);
+        List<Stream> open;
+        synchronized (streams) {
+            open = new ArrayList<Stream>(streams);
+        }
+        for (Stream stream : open) {
+            close(stream);
+        }
+    }
+
+    /**
+     * @return the number of open streams.
+     */
+    int getStreamCount() {
+        synchronized (streams) {
+            return streams.size();
+        }
+    }
+
+    /**
+     * @return the number of frames sent.
+     */
+    long getFramesSent() {
+        return this.framesSent.get();
+    }
+
+    /**
+     * @return the number of heartbeats sent.
+     */
+    long getHeartbeatsSent() {
+        return this.heartbeatsSent.get();
+    }
+
+    /**
+     * @return the number of streams resumed with a Last-Event-ID.
+     */
+    long getResumedCount() {
+        return this.resumed.get();
+    }
+
+    /**
+     * @return the number of streams closed as their queue was full or a
+     * write timed out.
+     */
+    long getSlowCount() {
+        return this.slow.get();
+    }
+
+    private static byte[] toBytes(String text) {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
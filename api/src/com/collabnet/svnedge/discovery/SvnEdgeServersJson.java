@@ -0,0 +1,191 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceKey;
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceType;
+
+/**
+ * Writes the servers and the deltas of the registry as JSON for the
+ * {@link SvnEdgeDiscoveryGateway}, such as the server:
+ * <pre>
+ * {"name":"collabnetsvn","type":"_csvn._tcp.local.",
+ *  "event":"SERVER_RUNNING","address":"10.0.0.5",
+ *  "hostname":"svn.example.com","port":80,
+ *  "url":"http://svn.example.com:80/csvn","verified":true,
+ *  "capturedAt":1285960000000,"properties":{"path":"/csvn"}}
+ * </pre>
+ * An update also lists its "changedFields".
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+final class SvnEdgeServersJson {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private SvnEdgeServersJson() {
+    }
+
+    /**
+     * @param out receives the servers as a JSON array.
+     * @param servers are the servers.
+     */
+    static void appendServers(StringBuilder out,
+            List<SvnEdgeServerInfo> servers) {
+        out.append('[');
+        for (int i = 0; i < servers.size(); i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            appendServer(out, servers.get(i));
+        }
+        out.append(']');
+    }
+
+    /**
+     * @param out receives the delta as a JSON object, such as
+     * <code>{"from":4,"to":6,"reset":false,"changes":[...]}</code>.
+     * @param delta is a delta of the registry.
+     * @param type is the service type of the changes written, or
+     * <code>null</code> for all of them.
+     */
+    static void appendDelta(StringBuilder out, SvnEdgeServersDelta delta,
+            SvnEdgeServiceType type) {
+        out.append("{\"from\":").append(delta.getFromVersion())
+                .append(",\"to\":").append(delta.getToVersion())
+                .append(",\"reset\":").append(delta.isReset())
+                .append(",\"changes\":");
+        appendServers(out, filter(delta.getChanges(), type));
+        out.append('}');
+    }
+
+    /**
+     * @param servers are servers or changes.
+     * @param type is a service type, or <code>null</code> for all of them.
+     * @return the servers of the given type.
+     */
+    static List<SvnEdgeServerInfo> filter(List<SvnEdgeServerInfo> servers,
+            SvnEdgeServiceType type) {
+        if (type == null) {
+            return servers;
+        }
+        List<SvnEdgeServerInfo> ofType = new ArrayList<SvnEdgeServerInfo>();
+        for (SvnEdgeServerInfo server : servers) {
+            if (server.getServiceType() == type) {
+                ofType.add(server);
+            }
+        }
+        return ofType;
+    }
+
+    /**
+     * @param out receives the server as a JSON object.
+     * @param server is a server of the registry or one of its changes.
+     */
+    static void appendServer(StringBuilder out, SvnEdgeServerInfo server) {
+        out.append("{\"name\":");
+        appendString(out, server.getServiceName());
+        out.append(",\"type\":");
+        appendString(out, server.getServiceType().getType());
+        out.append(",\"event\":");
+        appendString(out, server.getEvent().name());
+        out.append(",\"address\":");
+        appendString(out, server.getInetAddress() != null ?
+                server.getHostAddress() : null);
+        // the hostname resolved by the client, never looked up here.
+        out.append(",\"hostname\":");
+        appendString(out, server.getDomainName());
+        out.append(",\"port\":").append(server.getPort());
+        out.append(",\"url\":");
+        appendString(out, server.getUrl());
+        out.append(",\"verified\":").append(server.isVerified());
+        out.append(",\"capturedAt\":").append(server.getCapturedAt());
+        out.append(",\"properties\":{");
+        boolean first = true;
+        for (SvnEdgeServiceKey key :
+                server.getServiceType().getRequiredKeys()) {
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            appendString(out, key.toString());
+            out.append(':');
+            appendString(out, server.getPropertyValue(key));
+        }
+        out.append('}');
+        if (!server.getChangedFields().isEmpty()) {
+            out.append(",\"changedFields\":[");
+            first = true;
+            for (SvnEdgeServerField field : server.getChangedFields()) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                appendString(out, field.name());
+            }
+            out.append(']');
+        }
+        out.append('}');
+    }
+
+    /**
+     * @param out receives the given value as a JSON string, or null.
+     * @param value is a string, or <code>null</code>.
+     */
+    static void appendString(StringBuilder out, String value) {
+        if (value == null) {
+            out.append("null");
+            return;
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '"':
+                out.append("\\\"");
+                break;
+            case '\\':
+                out.append("\\\\");
+                break;
+            case '\n':
+                out.append("\\n");
+                break;
+            case '\r':
+                out.append("\\r");
+                break;
+            case '\t':
+                out.append("\\t");
+                break;
+            default:
+                if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+                    // the line separators are also escaped for the scripts.
+                    out.append("\\u").append(HEX[c >> 12])
+                            .append(HEX[(c >> 8) & 0xF])
+                            .append(HEX[(c >> 4) & 0xF]).append(HEX[c & 0xF]);
+                } else {
+                    out.append(c);
+                }
+            }
+        }
+        out.append('"');
+    }
+}
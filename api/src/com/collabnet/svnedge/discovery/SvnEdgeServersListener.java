@@ -21,6 +21,10 @@ package com.collabnet.svnedge.discovery;
  * The SvnEdge Server Observer is a type interested when a server has started
  * or stopped. That is, when the server starts, it is resolved by the network.
  * When the server is stopped, it will not be available in the network.
+ * The events are delivered outside of the jmDNS threads through a bounded
+ * {@link SvnEdgeListenerQueue}, and the events of the same server are
+ * received in order. See
+ * {@link SvnEdgeBonjourClient#setEventExecutor(java.util.concurrent.Executor)}.
  * 
  * @author Marcello de Sales (mdesales@collab.net)
  *
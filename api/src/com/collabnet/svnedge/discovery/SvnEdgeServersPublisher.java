@@ -0,0 +1,190 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.util.concurrent.Flow;
+
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceType;
+
+/**
+ * The SvnEdge Servers Publisher publishes the events of the servers seen by
+ * an {@link SvnEdgeBonjourClient} to reactive-streams subscribers. Unlike
+ * the {@link SvnEdgeServersListener}s, the subscribers only receive as many
+ * events as they request: the events are kept in the buffer of each
+ * subscription until then.
+ * <ul>
+ * <li>On subscribe, the servers currently running are replayed as
+ * SERVER_RUNNING events, followed by the changes.</li>
+ * <li>The filters select the events before they are buffered.</li>
+ * <li>A conflated subscription keeps only the latest state of each server
+ * while the subscriber does not request more, so that it never drops
+ * events. Otherwise, the oldest event is dropped when the buffer is
+ * full.</li>
+ * </ul>
+ * Publishers are immutable: each operator returns a new publisher.
+ * 
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public final class SvnEdgeServersPublisher implements
+        Flow.Publisher<SvnEdgeServerInfo> {
+
+    /**
+     * The client whose events are published.
+     */
+    private final SvnEdgeBonjourClient client;
+    /**
+     * The service type of the events, or <code>null</code> for the events of
+     * all the subscribed service types.
+     */
+    private final SvnEdgeServiceType serviceType;
+    /**
+     * The filter of the events, or <code>null</code> for all the events.
+     */
+    private final SvnEdgeServerFilter filter;
+    /**
+     * Whether the running servers are replayed on subscribe.
+     */
+    private final boolean replay;
+    /**
+     * Whether the events of a server are conflated while not requested.
+     */
+    private final boolean conflate;
+    /**
+     * The maximum number of events buffered by a subscription that is not
+     * conflated, besides the replayed servers.
+     */
+    private final int capacity;
+
+    /**
+     * Creates the publisher of the events of the given client, replaying the
+     * running servers, without filter nor conflation.
+     */
+    SvnEdgeServersPublisher(SvnEdgeBonjourClient client,
+            SvnEdgeServiceType serviceType) {
+        this(client, serviceType, null, true, false,
+                SvnEdgeListenerQueue.DEFAULT_CAPACITY);
+    }
+
+    private SvnEdgeServersPublisher(SvnEdgeBonjourClient client,
+            SvnEdgeServiceType serviceType, SvnEdgeServerFilter filter,
+            boolean replay, boolean conflate, int capacity) {
+        this.client = client;
+        this.serviceType = serviceType;
+        this.filter = filter;
+        this.replay = replay;
+        this.conflate = conflate;
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param next is a filter of the events.
+     * @return a publisher of the events accepted by the filters of this
+     * publisher and the given one.
+     */
+    public SvnEdgeServersPublisher filter(final SvnEdgeServerFilter next) {
+        if (next == null) {
+            throw new IllegalArgumentException("The filter must be provided");
+        }
+        final SvnEdgeServerFilter current = this.filter;
+        SvnEdgeServerFilter combined = current == null ? next :
+            new SvnEdgeServerFilter() {
+                public boolean accepts(SvnEdgeServerInfo serverInfo) {
+                    return current.accepts(serverInfo) &&
+                        next.accepts(serverInfo);
+                }
+            };
+        return new SvnEdgeServersPublisher(client, serviceType, combined,
+                replay, conflate, capacity);
+    }
+
+    /**
+     * @return a publisher keeping only the latest state of each server
+     * while the subscriber does not request more events.
+     */
+    public SvnEdgeServersPublisher conflate() {
+        return new SvnEdgeServersPublisher(client, serviceType, filter,
+                replay, true, capacity);
+    }
+
+    /**
+     * @return a publisher of the changes only, without replaying the running
+     * servers on subscribe.
+     */
+    public SvnEdgeServersPublisher withoutReplay() {
+        return new SvnEdgeServersPublisher(client, serviceType, filter,
+                false, conflate, capacity);
+    }
+
+    /**
+     * @param newCapacity is the maximum number of changes buffered for a
+     * subscriber that is not conflated.
+     * @return a publisher with the given buffer capacity.
+     */
+    public SvnEdgeServersPublisher withCapacity(int newCapacity) {
+        if (newCapacity < 1) {
+            throw new IllegalArgumentException("The capacity must be " +
+                    "greater than 0");
+        }
+        return new SvnEdgeServersPublisher(client, serviceType, filter,
+                replay, conflate, newCapacity);
+    }
+
+    /**
+     * Subscribes the given subscriber to the events of the client. The
+     * subscription given to the subscriber is an
+     * {@link SvnEdgeServersSubscription}, providing its counters. The
+     * subscriber is completed when the client stops.
+     * @param subscriber is the subscriber.
+     */
+    public void subscribe(Flow.Subscriber<? super SvnEdgeServerInfo>
+            subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("The subscriber must be provided");
+        }
+        SvnEdgeServersSubscription subscription =
+                new SvnEdgeServersSubscription(subscriber, serviceType, filter,
+                        conflate, capacity, client);
+        client.attach(subscription, replay);
+        subscriber.onSubscribe(subscription);
+        subscription.start();
+    }
+
+    /**
+     * @return the service type of the events, or <code>null</code> for the
+     * events of all the subscribed service types.
+     */
+    public SvnEdgeServiceType getServiceType() {
+        return this.serviceType;
+    }
+
+    /**
+     * @return whether the events of a server are conflated while the
+     * subscriber does not request more.
+     */
+    public boolean isConflated() {
+        return this.conflate;
+    }
+
+    /**
+     * @return whether the running servers are replayed on subscribe.
+     */
+    public boolean isReplayed() {
+        return this.replay;
+    }
+}
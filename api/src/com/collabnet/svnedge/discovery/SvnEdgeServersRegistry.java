@@ -0,0 +1,235 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServerEvent;
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceType;
+
+/**
+ * The SvnEdge Servers Registry is the authoritative view of the servers
+ * running on the network, as seen by an {@link SvnEdgeBonjourClient}. Every
+ * change increments the version of the registry, so that consumers can take
+ * an immutable {@link SvnEdgeServersSnapshot} and later catch up with
+ * {@link #changesSince(long)} instead of waiting for the next announcements.
+ *
+ * Reads never block. Changes are applied by the client only.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public final class SvnEdgeServersRegistry {
+
+    /**
+     * The default number of changes kept to answer the deltas.
+     */
+    public static final int DEFAULT_HISTORY_SIZE = 4096;
+    /**
+     * The running servers indexed by their server key.
+     */
+    private final ConcurrentMap<String, SvnEdgeServerInfo> servers =
+            new ConcurrentHashMap<String, SvnEdgeServerInfo>();
+    /**
+     * The current version of the registry.
+     */
+    private volatile long version;
+    /**
+     * The latest snapshot taken, reused until the next change.
+     */
+    private volatile SvnEdgeServersSnapshot snapshot;
+    /**
+     * The ring buffer with the latest changes. The change of version v is
+     * at the slot v modulo the size of the history.
+     */
+    private final SvnEdgeServerInfo[] history;
+
+    /**
+     * Creates a new empty registry.
+     */
+    SvnEdgeServersRegistry() {
+        this(DEFAULT_HISTORY_SIZE);
+    }
+
+    /**
+     * Creates a new empty registry keeping the given number of changes.
+     * @param historySize is the number of changes kept to answer deltas.
+     */
+    SvnEdgeServersRegistry(int historySize) {
+        this.history = new SvnEdgeServerInfo[historySize];
+        this.snapshot = new SvnEdgeServersSnapshot(0,
+                new ArrayList<SvnEdgeServerInfo>());
+    }
+
+    /**
+     * Applies the given event to the registry.
+     * @param serverInfo is the event captured for a server.
+     * @return the change recorded in the registry, or <code>null</code> if
+     * the event does not change the registry, as the shutdown of a server
+     * that is not running. A running event of a server already running is
+     * recorded as a {@link SvnEdgeServerEvent#SERVER_UPDATED} when any of its
+     * values changed. The resolved hostname of a server is kept while its
+     * address does not change, even if the event carries the IP address.
+     */
+    synchronized SvnEdgeServerInfo apply(SvnEdgeServerInfo serverInfo) {
+        String key = serverInfo.getServerKey();
+        SvnEdgeServerInfo change = serverInfo;
+        if (serverInfo.getEvent() == SvnEdgeServerEvent.SERVER_SHUTDOWN) {
+            SvnEdgeServerInfo previous = servers.remove(key);
+            if (previous == null) {
+                return null;
+            }
+            if (serverInfo.getUrl() == null) {
+                // the goodbye packets carry no address, keep the last known.
+                change = previous.withEvent(SvnEdgeServerEvent.SERVER_SHUTDOWN);
+            }
+        } else {
+            SvnEdgeServerInfo previous = servers.get(key);
+            if (previous != null && previous.isHostnameResolved() &&
+                    !serverInfo.isHostnameResolved() &&
+                    previous.getInetAddress().equals(
+                            serverInfo.getInetAddress())) {
+                // the hostname expired from the cache of the resolver.
+                serverInfo = serverInfo.withDomainName(
+                        previous.getDomainName());
+            }
+            if (previous != null) {
+                change = serverInfo.asUpdateOf(previous);
+                if (change == null) {
+                    // the same announcement again.
+                    return null;
+                }
+            }
+            servers.put(key, serverInfo);
+        }
+        record(change);
+        return change;
+    }
+
+    /**
+     * Removes all the servers of the given service type.
+     * @param type is the service type.
+     * @return the shutdown changes recorded for the removed servers.
+     */
+    synchronized List<SvnEdgeServerInfo> removeAll(SvnEdgeServiceType type) {
+        List<SvnEdgeServerInfo> removed = new ArrayList<SvnEdgeServerInfo>();
+        for (SvnEdgeServerInfo server : servers.values()) {
+            if (server.getServiceType() == type) {
+                servers.remove(server.getServerKey());
+                SvnEdgeServerInfo change = server.withEvent(
+                        SvnEdgeServerEvent.SERVER_SHUTDOWN);
+                record(change);
+                removed.add(change);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Records the given change in the history, incrementing the version.
+     * @param change is the change.
+     */
+    private void record(SvnEdgeServerInfo change) {
+        long newVersion = version + 1;
+        history[(int) (newVersion % history.length)] = change;
+        version = newVersion;
+    }
+
+    /**
+     * @return the current version of the registry. It only increases.
+     */
+    public long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * @return the number of running servers.
+     */
+    public int size() {
+        return this.servers.size();
+    }
+
+    /**
+     * @param type is the service type of the server.
+     * @param serviceName is the service name of the server.
+     * @return the server with the given service type and name, or
+     * <code>null</code> if it is not running.
+     */
+    public SvnEdgeServerInfo getServer(SvnEdgeServiceType type,
+            String serviceName) {
+        return this.servers.get(serviceName + "." + type.getType());
+    }
+
+    /**
+     * @return an immutable snapshot of the running servers. The snapshot is
+     * only rebuilt after the registry changes.
+     */
+    public SvnEdgeServersSnapshot getSnapshot() {
+        SvnEdgeServersSnapshot current = this.snapshot;
+        if (current.getVersion() == this.version) {
+            return current;
+        }
+        synchronized (this) {
+            if (this.snapshot.getVersion() != this.version) {
+                this.snapshot = new SvnEdgeServersSnapshot(this.version,
+                        this.servers.values());
+            }
+            return this.snapshot;
+        }
+    }
+
+    /**
+     * @param fromVersion is the version of the registry last seen by the
+     * consumer, as returned by {@link SvnEdgeServersSnapshot#getVersion()} or
+     * {@link SvnEdgeServersDelta#getToVersion()}.
+     * @return the latest change of each server changed after the given
+     * version. In case the history since the given version is no longer
+     * available, the delta is a reset with all the running servers.
+     */
+    public synchronized SvnEdgeServersDelta changesSince(long fromVersion) {
+        long current = this.version;
+        long oldest = current - history.length + 1;
+        if (fromVersion < 0 || fromVersion > current ||
+                (fromVersion + 1 < oldest)) {
+            return new SvnEdgeServersDelta(fromVersion, current, true,
+                    new ArrayList<SvnEdgeServerInfo>(
+                            getSnapshot().getServers()));
+        }
+        Map<String, SvnEdgeServerInfo> latest =
+                new LinkedHashMap<String, SvnEdgeServerInfo>();
+        for (long v = fromVersion + 1; v <= current; v++) {
+            SvnEdgeServerInfo change = history[(int) (v % history.length)];
+            // moving the server to the end, keeping the order of the changes.
+            latest.remove(change.getServerKey());
+            latest.put(change.getServerKey(), change);
+        }
+        return new SvnEdgeServersDelta(fromVersion, current, false,
+                new ArrayList<SvnEdgeServerInfo>(latest.values()));
+    }
+
+    @Override
+    public String toString() {
+        return "SvnEdgeServersRegistry: version=" + version + ", servers=" +
+                servers.size();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceType;
+
+/**
+ * An immutable view of the servers known by the
+ * {@link SvnEdgeServersRegistry} at a given version. The servers are sorted
+ * by service name.
+ * 
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public final class SvnEdgeServersSnapshot {
+
+    /**
+     * The version of the registry when the snapshot was taken.
+     */
+    private final long version;
+    /**
+     * The sorted list of running servers.
+     */
+    private final List<SvnEdgeServerInfo> servers;
+    /**
+     * The servers indexed by their server key.
+     */
+    private final Map<String, SvnEdgeServerInfo> serversByKey;
+
+    /**
+     * Creates a new snapshot with the given servers.
+     * @param version is the version of the registry.
+     * @param runningServers are the running servers.
+     */
+    SvnEdgeServersSnapshot(long version,
+            Collection<SvnEdgeServerInfo> runningServers) {
+        this.version = version;
+        List<SvnEdgeServerInfo> sorted = new ArrayList<SvnEdgeServerInfo>(
+                runningServers);
+        Collections.sort(sorted);
+        this.servers = Collections.unmodifiableList(sorted);
+        this.serversByKey = new HashMap<String, SvnEdgeServerInfo>(
+                sorted.size() * 2);
+        for (SvnEdgeServerInfo server : sorted) {
+            this.serversByKey.put(server.getServerKey(), server);
+        }
+    }
+
+    /**
+     * @return the version of the registry when the snapshot was taken.
+     */
+    public long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * @return the running servers sorted by service name.
+     */
+    public List<SvnEdgeServerInfo> getServers() {
+        return this.servers;
+    }
+
+    /**
+     * @param type is a service type.
+     * @return the running servers of the given service type sorted by service
+     * name.
+     */
+    public List<SvnEdgeServerInfo> getServers(SvnEdgeServiceType type) {
+        List<SvnEdgeServerInfo> ofType = new ArrayList<SvnEdgeServerInfo>();
+        for (SvnEdgeServerInfo server : this.servers) {
+            if (server.getServiceType() == type) {
+                ofType.add(server);
+            }
+        }
+        return Collections.unmodifiableList(ofType);
+    }
+
+    /**
+     * @param type is the service type of the server.
+     * @param serviceName is the service name of the server.
+     * @return the server with the given service type and name, or
+     * <code>null</code> if it is not running.
+     */
+    public SvnEdgeServerInfo getServer(SvnEdgeServiceType type,
+            String serviceName) {
+        return this.serversByKey.get(serviceName + "." + type.getType());
+    }
+
+    /**
+     * @return the number of running servers.
+     */
+    public int size() {
+        return this.servers.size();
+    }
+
+    @Override
+    public String toString() {
+        return "SvnEdgeServersSnapshot: version=" + version + ", servers=" +
+                servers.size();
+    }
+}
@@ -0,0 +1,449 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.log4j.Logger;
+
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServerEvent;
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceType;
+
+/**
+ * The subscription of a subscriber of an {@link SvnEdgeServersPublisher}.
+ * The events accepted by the filter are buffered until the subscriber
+ * requests them, and delivered serially by the event executor of the
+ * client, so that the events of the same server are received in order.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public final class SvnEdgeServersSubscription implements Flow.Subscription,
+        Runnable {
+
+    private static final Logger log = Logger.getLogger(
+            SvnEdgeServersSubscription.class);
+
+    private final Flow.Subscriber<? super SvnEdgeServerInfo> subscriber;
+    /**
+     * The service type of the events, or <code>null</code> for the events of
+     * all the subscribed service types.
+     */
+    private final SvnEdgeServiceType serviceType;
+    /**
+     * The filter of the events, or <code>null</code> for all the events.
+     */
+    private final SvnEdgeServerFilter filter;
+    /**
+     * The maximum number of changes buffered, when not conflated.
+     */
+    private final int capacity;
+    /**
+     * The client whose events are delivered.
+     */
+    private final SvnEdgeBonjourClient client;
+    /**
+     * The running servers replayed on subscribe, delivered first, when not
+     * conflated.
+     */
+    private final Queue<SvnEdgeServerInfo> replayed =
+            new ArrayDeque<SvnEdgeServerInfo>();
+    /**
+     * The changes pending delivery, when not conflated.
+     */
+    private final Queue<SvnEdgeServerInfo> pending;
+    /**
+     * The latest event of each server pending delivery by server key, in the
+     * order of their first event, when conflated.
+     */
+    private final Map<String, SvnEdgeServerInfo> latest;
+    /**
+     * The keys of the servers the subscriber received running and not shut
+     * down yet, when conflated.
+     */
+    private final Set<String> received;
+    /**
+     * The number of events requested and not delivered yet.
+     */
+    private long demand;
+    /**
+     * Whether the subscriber received the subscription, so that the events
+     * can be signalled.
+     */
+    private boolean started;
+    /**
+     * Whether the delivery of the pending events is scheduled.
+     */
+    private boolean scheduled;
+    /**
+     * Whether no more signals are sent to the subscriber.
+     */
+    private boolean cancelled;
+    /**
+     * Whether the subscriber is completed once the pending events are
+     * delivered.
+     */
+    private boolean completing;
+    /**
+     * The error to be signalled to the subscriber.
+     */
+    private Throwable failure;
+    private long offered;
+    private long delivered;
+    private long dropped;
+    private long conflated;
+
+    SvnEdgeServersSubscription(
+            Flow.Subscriber<? super SvnEdgeServerInfo> subscriber,
+            SvnEdgeServiceType serviceType, SvnEdgeServerFilter filter,
+            boolean conflate, int capacity, SvnEdgeBonjourClient client) {
+        this.subscriber = subscriber;
+        this.serviceType = serviceType;
+        this.filter = filter;
+        this.capacity = capacity;
+        this.client = client;
+        this.pending = conflate ? null : new ArrayDeque<SvnEdgeServerInfo>();
+        this.latest = conflate ?
+                new LinkedHashMap<String, SvnEdgeServerInfo>() : null;
+        this.received = conflate ? new HashSet<String>() : null;
+    }
+
+    /**
+     * @param serverInfo is an event.
+     * @return whether the subscriber is interested in the given event.
+     */
+    private boolean accepts(SvnEdgeServerInfo serverInfo) {
+        if (serviceType != null && serviceType != serverInfo.getServiceType()) {
+            return false;
+        }
+        try {
+            return filter == null || filter.accepts(serverInfo);
+
+        } catch (RuntimeException e) {
+            log.error("The filter " + filter + " failed to handle " +
+                    serverInfo, e);
+            return false;
+        }
+    }
+
+    /**
+     * Buffers the given running server, replayed on subscribe.
+     * @param serverInfo is a running server.
+     */
+    synchronized void replay(SvnEdgeServerInfo serverInfo) {
+        if (!accepts(serverInfo)) {
+            return;
+        }
+        if (latest != null) {
+            latest.put(serverInfo.getServerKey(), serverInfo);
+        } else {
+            replayed.add(serverInfo);
+        }
+    }
+
+    /**
+     * Buffers the given change to be delivered once requested.
+     * @param serverInfo is a change of the registry.
+     */
+    void offer(SvnEdgeServerInfo serverInfo) {
+        synchronized (this) {
+            if (cancelled || completing || !accepts(serverInfo)) {
+                return;
+            }
+            offered++;
+            if (latest != null) {
+                String key = serverInfo.getServerKey();
+                SvnEdgeServerInfo previous = latest.get(key);
+                if (previous != null) {
+                    conflated++;
+                    if (previous.getEvent() ==
+                            SvnEdgeServerEvent.SERVER_RUNNING &&
+                            serverInfo.getEvent() ==
+                                SvnEdgeServerEvent.SERVER_SHUTDOWN &&
+                            !received.contains(key)) {
+                        // the subscriber never saw the server running.
+                        latest.remove(key);
+                        return;
+                    }
+                    serverInfo = SvnEdgeServerInfo.coalesce(previous,
+                            serverInfo);
+                }
+                latest.put(key, serverInfo);
+            } else {
+                if (pending.size() == capacity) {
+                    pending.poll();
+                    dropped++;
+                }
+                pending.add(serverInfo);
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * Signals the subscription to the subscriber, after which the events
+     * can be delivered.
+     */
+    void start() {
+        synchronized (this) {
+            started = true;
+        }
+        schedule();
+    }
+
+    /**
+     * Completes the subscriber once the pending events are delivered, as the
+     * client stopped.
+     */
+    void complete() {
+        synchronized (this) {
+            completing = true;
+        }
+        schedule();
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.Flow.Subscription#request(long)
+     */
+    public void request(long n) {
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            if (n <= 0) {
+                // rule 3.9 of the reactive streams specification.
+                failure = new IllegalArgumentException("The number of " +
+                        "events requested must be positive: " + n);
+            } else {
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            }
+        }
+        schedule();
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.Flow.Subscription#cancel()
+     */
+    public void cancel() {
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            discardPending();
+        }
+        client.detach(this);
+    }
+
+    /**
+     * Discards the events pending delivery. Must be called holding the lock.
+     */
+    private void discardPending() {
+        replayed.clear();
+        if (pending != null) {
+            pending.clear();
+        } else {
+            latest.clear();
+        }
+    }
+
+    /**
+     * @return whether there are events pending delivery. Must be called
+     * holding the lock.
+     */
+    private boolean hasPending() {
+        return !replayed.isEmpty() || (pending != null ? !pending.isEmpty() :
+            !latest.isEmpty());
+    }
+
+    /**
+     * Removes the next event pending delivery. Must be called holding the
+     * lock.
+     * @return the next event, or <code>null</code> if there is none.
+     */
+    private SvnEdgeServerInfo poll() {
+        if (!replayed.isEmpty()) {
+            return replayed.poll();
+        }
+        if (pending != null) {
+            return pending.poll();
+        }
+        Iterator<SvnEdgeServerInfo> iterator = latest.values().iterator();
+        if (!iterator.hasNext()) {
+            return null;
+        }
+        SvnEdgeServerInfo next = iterator.next();
+        iterator.remove();
+        if (next.getEvent() == SvnEdgeServerEvent.SERVER_SHUTDOWN) {
+            received.remove(next.getServerKey());
+        } else {
+            received.add(next.getServerKey());
+        }
+        return next;
+    }
+
+    /**
+     * @return whether there is a signal to be sent to the subscriber. Must
+     * be called holding the lock.
+     */
+    private boolean hasSignal() {
+        return started && !cancelled && (failure != null ||
+                (demand > 0 && hasPending()) || (completing && !hasPending()));
+    }
+
+    /**
+     * Schedules the delivery of the signals in the event executor of the
+     * client, unless already scheduled. Must be called without the lock.
+     */
+    private void schedule() {
+        synchronized (this) {
+            if (scheduled || !hasSignal()) {
+                return;
+            }
+            scheduled = true;
+        }
+        try {
+            client.execute(this);
+
+        } catch (RejectedExecutionException e) {
+            // the client stopped: only the completion is left.
+            synchronized (this) {
+                discardPending();
+                completing = true;
+            }
+            run();
+        }
+    }
+
+    /**
+     * Signals the requested events to the subscriber, then its completion or
+     * its error. Only one thread runs this method at any time.
+     */
+    public void run() {
+        while (true) {
+            SvnEdgeServerInfo next = null;
+            Throwable error = null;
+            synchronized (this) {
+                if (!hasSignal()) {
+                    scheduled = false;
+                    return;
+                }
+                if (failure != null) {
+                    error = failure;
+                    cancelled = true;
+                    discardPending();
+
+                } else if (demand > 0 && hasPending()) {
+                    next = poll();
+                    demand--;
+
+                } else {
+                    cancelled = true;
+                }
+            }
+            if (next != null) {
+                try {
+                    subscriber.onNext(next);
+                } catch (RuntimeException e) {
+                    // rule 2.13: the subscriber is considered cancelled.
+                    log.error("The subscriber " + subscriber + " failed to " +
+                            "handle " + next, e);
+                    cancel();
+                }
+                synchronized (this) {
+                    delivered++;
+                }
+                continue;
+            }
+            client.detach(this);
+            try {
+                if (error != null) {
+                    subscriber.onError(error);
+                } else {
+                    subscriber.onComplete();
+                }
+            } catch (RuntimeException e) {
+                log.error("The subscriber " + subscriber + " failed to " +
+                        "handle its termination", e);
+            }
+            synchronized (this) {
+                scheduled = false;
+            }
+            return;
+        }
+    }
+
+    /**
+     * @return the number of events requested and not delivered yet.
+     */
+    public synchronized long getDemand() {
+        return this.demand;
+    }
+
+    /**
+     * @return the number of events pending delivery.
+     */
+    public synchronized int getPendingCount() {
+        return this.replayed.size() + (pending != null ? pending.size() :
+            latest.size());
+    }
+
+    /**
+     * @return the number of changes accepted by the filter.
+     */
+    public synchronized long getOfferedCount() {
+        return this.offered;
+    }
+
+    /**
+     * @return the number of events delivered to the subscriber.
+     */
+    public synchronized long getDeliveredCount() {
+        return this.delivered;
+    }
+
+    /**
+     * @return the number of changes dropped because the buffer was full.
+     */
+    public synchronized long getDroppedCount() {
+        return this.dropped;
+    }
+
+    /**
+     * @return the number of changes merged with a pending event of the same
+     * server.
+     */
+    public synchronized long getConflatedCount() {
+        return this.conflated;
+    }
+
+    /**
+     * @return whether no more events are delivered to the subscriber.
+     */
+    public synchronized boolean isCancelled() {
+        return this.cancelled;
+    }
+}
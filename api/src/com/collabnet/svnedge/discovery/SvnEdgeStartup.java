@@ -0,0 +1,139 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs the blocking startups of the clients and the registers in the
+ * background, so that the callers, such as the GUI of the browser, are not
+ * delayed while the jmDNS instances come up. The startups run in parallel
+ * on a pool of daemon threads growing with them.
+ * 
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+final class SvnEdgeStartup {
+
+    private static final Logger log = Logger.getLogger(SvnEdgeStartup.class);
+
+    /**
+     * A blocking startup.
+     */
+    interface Task<T> {
+        /**
+         * @param timings records the phases of the startup.
+         * @return the started instance.
+         * @throws Exception if the startup fails.
+         */
+        T start(SvnEdgeStartupTimings timings) throws Exception;
+    }
+
+    /**
+     * Closes an instance that started while another one of the same request
+     * failed.
+     */
+    interface Closer<T> {
+        /**
+         * @param instance is a started instance.
+         * @throws Exception if closing the instance fails.
+         */
+        void close(T instance) throws Exception;
+    }
+
+    /**
+     * The threads running the startups, created on the first one.
+     */
+    private static final class ExecutorHolder {
+        static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(
+                new SvnEdgeThreadFactory("SvnEdge-Startup-"));
+    }
+
+    private SvnEdgeStartup() {
+    }
+
+    /**
+     * @param task is a blocking startup.
+     * @return the future instance, completed exceptionally with the failure
+     * of the startup.
+     */
+    static <T> CompletableFuture<T> startAsync(final Task<T> task) {
+        // the timings start with the request, measuring the queueing.
+        final SvnEdgeStartupTimings timings = new SvnEdgeStartupTimings();
+        return CompletableFuture.supplyAsync(new Supplier<T>() {
+            public T get() {
+                timings.record(SvnEdgeStartupPhase.QUEUED);
+                try {
+                    return task.start(timings);
+
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }
+        }, ExecutorHolder.EXECUTOR);
+    }
+
+    /**
+     * @param futures are the futures of the startups started in parallel.
+     * @param closer closes the started instances in case another startup
+     * failed.
+     * @return the future instances, in the order of the given futures,
+     * completed exceptionally with the first failure once all the startups
+     * end.
+     */
+    static <T> CompletableFuture<List<T>> allOf(
+            final List<CompletableFuture<T>> futures, final Closer<T> closer) {
+        CompletableFuture<?>[] array = futures.toArray(
+                new CompletableFuture<?>[futures.size()]);
+        return CompletableFuture.allOf(array).handle(
+                new BiFunction<Void, Throwable, List<T>>() {
+            public List<T> apply(Void ignored, Throwable failure) {
+                List<T> instances = new ArrayList<T>(futures.size());
+                for (CompletableFuture<T> future : futures) {
+                    if (!future.isCompletedExceptionally()) {
+                        instances.add(future.join());
+                    }
+                }
+                if (failure == null) {
+                    return instances;
+                }
+                for (T instance : instances) {
+                    try {
+                        closer.close(instance);
+                    } catch (Exception e) {
+                        log.warn("Failed to close " + instance, e);
+                    }
+                }
+                throw failure instanceof CompletionException ?
+                        (CompletionException) failure :
+                        new CompletionException(failure);
+            }
+        });
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+/**
+ * The phases of the startup of an {@link SvnEdgeBonjourClient} or an
+ * {@link SvnEdgeBonjourRegister}, timed by their
+ * {@link SvnEdgeStartupTimings}.
+ * 
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public enum SvnEdgeStartupPhase {
+
+    /**
+     * Waiting for a startup thread, when started asynchronously.
+     */
+    QUEUED,
+    /**
+     * Creating the dispatcher, the registry and the background threads of
+     * the client.
+     */
+    SETUP,
+    /**
+     * Creating the jmDNS instance: binding the multicast socket and probing
+     * the hostname on the network.
+     */
+    JMDNS,
+    /**
+     * Subscribing the service types, sending the first queries.
+     */
+    SUBSCRIBE
+}
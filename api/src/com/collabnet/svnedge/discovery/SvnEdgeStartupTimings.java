@@ -0,0 +1,115 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time spent in each {@link SvnEdgeStartupPhase} by the startup of an
+ * {@link SvnEdgeBonjourClient} or an {@link SvnEdgeBonjourRegister}. The
+ * phases are recorded in order by the thread starting it, and the timings
+ * are not changed once the startup completes.
+ * 
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public final class SvnEdgeStartupTimings {
+
+    /**
+     * The time in nanoseconds the startup was requested.
+     */
+    private final long requestedAt;
+    /**
+     * The time in nanoseconds the last phase ended.
+     */
+    private long lastAt;
+    /**
+     * The duration in nanoseconds of each recorded phase, in the order of the
+     * phases.
+     */
+    private final Map<SvnEdgeStartupPhase, Long> durations =
+            new EnumMap<SvnEdgeStartupPhase, Long>(SvnEdgeStartupPhase.class);
+
+    /**
+     * Starts timing a startup requested now.
+     */
+    SvnEdgeStartupTimings() {
+        this.requestedAt = System.nanoTime();
+        this.lastAt = this.requestedAt;
+    }
+
+    /**
+     * Records the end of the given phase, started when the previous one
+     * ended.
+     * @param phase is the phase that just ended.
+     */
+    synchronized void record(SvnEdgeStartupPhase phase) {
+        long now = System.nanoTime();
+        this.durations.put(phase, now - this.lastAt);
+        this.lastAt = now;
+    }
+
+    /**
+     * @param phase is a startup phase.
+     * @return the duration of the given phase in milliseconds, or -1 if the
+     * phase was not recorded.
+     */
+    public synchronized long getDuration(SvnEdgeStartupPhase phase) {
+        Long duration = this.durations.get(phase);
+        return duration != null ? TimeUnit.NANOSECONDS.toMillis(duration) : -1;
+    }
+
+    /**
+     * @return the time in milliseconds from the request of the startup to the
+     * end of the last recorded phase.
+     */
+    public synchronized long getTotal() {
+        return TimeUnit.NANOSECONDS.toMillis(this.lastAt - this.requestedAt);
+    }
+
+    /**
+     * @return the duration in milliseconds of each recorded phase, in the
+     * order of the phases.
+     */
+    public synchronized Map<SvnEdgeStartupPhase, Long> getDurations() {
+        Map<SvnEdgeStartupPhase, Long> millis =
+            new EnumMap<SvnEdgeStartupPhase, Long>(SvnEdgeStartupPhase.class);
+        for (Map.Entry<SvnEdgeStartupPhase, Long> entry :
+                this.durations.entrySet()) {
+            millis.put(entry.getKey(),
+                    TimeUnit.NANOSECONDS.toMillis(entry.getValue()));
+        }
+        return millis;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder("SvnEdgeStartupTimings [");
+        for (Map.Entry<SvnEdgeStartupPhase, Long> entry :
+                getDurations().entrySet()) {
+            builder.append(entry.getKey()).append("=")
+                    .append(entry.getValue()).append("ms, ");
+        }
+        return builder.append("total=").append(getTotal()).append("ms]")
+                .toString();
+    }
+}
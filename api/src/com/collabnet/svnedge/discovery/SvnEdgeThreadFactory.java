@@ -0,0 +1,54 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the named daemon threads used by the discovery API, so that its
+ * background work never prevents the JVM from exiting.
+ * 
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+final class SvnEdgeThreadFactory implements ThreadFactory {
+
+    /**
+     * The prefix of the name of the threads.
+     */
+    private final String namePrefix;
+    /**
+     * The number of threads created.
+     */
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * @param namePrefix is the prefix of the name of the threads, followed by
+     * the number of the thread.
+     */
+    SvnEdgeThreadFactory(String namePrefix) {
+        this.namePrefix = namePrefix;
+    }
+
+    public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, namePrefix + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
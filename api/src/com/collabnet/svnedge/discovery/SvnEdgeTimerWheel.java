@@ -0,0 +1,249 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.util.List;
+
+/**
+ * A hierarchical timer wheel: the timeouts are kept in the slots of wheels
+ * of increasing granularity, and move to the finer wheels as their deadline
+ * approaches. Scheduling and cancelling a timeout cost O(1), and each tick
+ * only visits the timeouts of one slot, so that tens of thousands of
+ * timeouts need no timer thread or priority queue. Not thread-safe.
+ *
+ * @param <T> is the type of the items of the timeouts.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+final class SvnEdgeTimerWheel<T> {
+
+    /**
+     * The number of bits of the slot index of each wheel.
+     */
+    private static final int SLOT_BITS = 6;
+    /**
+     * The number of slots of each wheel.
+     */
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    /**
+     * The number of wheels. With 64 slots per wheel, the wheels cover 64^4
+     * ticks; longer timeouts are cascaded until they are within reach.
+     */
+    private static final int LEVELS = 4;
+    /**
+     * The number of ticks covered by all the wheels.
+     */
+    private static final long HORIZON = 1L << (SLOT_BITS * LEVELS);
+
+    /**
+     * A scheduled item, linked to the other timeouts of its slot.
+     */
+    static final class Timeout<T> {
+        private final T item;
+        private final long deadline;
+        private Timeout<T> previous;
+        private Timeout<T> next;
+        private int level = -1;
+        private int slot;
+
+        private Timeout(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return the item of this timeout.
+         */
+        T getItem() {
+            return this.item;
+        }
+
+        /**
+         * @return whether this timeout has neither expired nor been
+         * cancelled.
+         */
+        boolean isScheduled() {
+            return this.level >= 0;
+        }
+    }
+
+    /**
+     * The first timeout of each slot of each wheel.
+     */
+    private final Timeout<T>[][] slots;
+    /**
+     * The duration of a tick in milliseconds.
+     */
+    private final long tickDuration;
+    /**
+     * The time of the tick 0 in milliseconds.
+     */
+    private final long startTime;
+    /**
+     * The last tick processed.
+     */
+    private long currentTick;
+    /**
+     * The number of scheduled timeouts.
+     */
+    private int size;
+
+    /**
+     * Creates a new timer wheel.
+     * @param tickDuration is the duration of a tick in milliseconds, which is
+     * the precision of the timeouts.
+     * @param now is the current time in milliseconds.
+     */
+    SvnEdgeTimerWheel(long tickDuration, long now) {
+        this.tickDuration = tickDuration;
+        this.startTime = now;
+        // a generic array cannot be created, but the slots only ever hold
+        // the timeouts of this wheel, created by schedule() with items T.
+        @SuppressWarnings("unchecked")
+        Timeout<T>[][] emptySlots = (Timeout<T>[][])
+                new Timeout<?>[LEVELS][SLOTS];
+        this.slots = emptySlots;
+    }
+
+    /**
+     * Schedules the given item.
+     * @param item is the item.
+     * @param time is the time the item expires in milliseconds.
+     * @return the timeout, to be cancelled.
+     */
+    Timeout<T> schedule(T item, long time) {
+        // rounding up, so that the item never expires early.
+        long deadline = (time - startTime + tickDuration - 1) / tickDuration;
+        Timeout<T> timeout = new Timeout<T>(item, deadline);
+        // the slot of the current tick has been processed.
+        insert(timeout, currentTick + 1);
+        size++;
+        return timeout;
+    }
+
+    /**
+     * Cancels the given timeout, unless it has expired.
+     * @param timeout is a timeout of this wheel.
+     */
+    void cancel(Timeout<T> timeout) {
+        if (timeout.level < 0) {
+            return;
+        }
+        unlink(timeout);
+        size--;
+    }
+
+    /**
+     * Places the timeout in the slot of the finest wheel reaching its
+     * deadline.
+     * @param earliest is the earliest tick whose slot is still processed:
+     * the timeouts due before are placed in its slot.
+     */
+    private void insert(Timeout<T> timeout, long earliest) {
+        long placement = Math.max(timeout.deadline, earliest);
+        placement = Math.min(placement, currentTick + HORIZON - 1);
+        long delta = placement - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 &&
+                delta >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        int slot = (int) ((placement >>> (SLOT_BITS * level)) & SLOT_MASK);
+        timeout.level = level;
+        timeout.slot = slot;
+        timeout.previous = null;
+        timeout.next = slots[level][slot];
+        if (timeout.next != null) {
+            timeout.next.previous = timeout;
+        }
+        slots[level][slot] = timeout;
+    }
+
+    private void unlink(Timeout<T> timeout) {
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            slots[timeout.level][timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+        timeout.previous = timeout.next = null;
+        timeout.level = -1;
+    }
+
+    /**
+     * Processes the ticks up to the given time.
+     * @param now is the current time in milliseconds.
+     * @param expired receives the items expired.
+     */
+    void advance(long now, List<T> expired) {
+        long target = (now - startTime) / tickDuration;
+        while (currentTick < target) {
+            currentTick++;
+            // moving the timeouts of the coarser wheels, coarsest first.
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    cascade(level, (int) ((currentTick >>>
+                            (SLOT_BITS * level)) & SLOT_MASK));
+                }
+            }
+            int slot = (int) (currentTick & SLOT_MASK);
+            Timeout<T> timeout = slots[0][slot];
+            slots[0][slot] = null;
+            while (timeout != null) {
+                Timeout<T> next = timeout.next;
+                timeout.previous = timeout.next = null;
+                timeout.level = -1;
+                if (timeout.deadline > currentTick) {
+                    // beyond the horizon when it was scheduled.
+                    insert(timeout, currentTick + 1);
+                } else {
+                    size--;
+                    expired.add(timeout.item);
+                }
+                timeout = next;
+            }
+        }
+    }
+
+    /**
+     * Moves the timeouts of the given slot to the finer wheels. Called
+     * before processing the slot of the current tick, where the timeouts due
+     * at the current tick are placed.
+     */
+    private void cascade(int level, int slot) {
+        Timeout<T> timeout = slots[level][slot];
+        slots[level][slot] = null;
+        while (timeout != null) {
+            Timeout<T> next = timeout.next;
+            timeout.previous = timeout.next = null;
+            insert(timeout, currentTick);
+            timeout = next;
+        }
+    }
+
+    /**
+     * @return the number of scheduled timeouts.
+     */
+    int size() {
+        return this.size;
+    }
+}
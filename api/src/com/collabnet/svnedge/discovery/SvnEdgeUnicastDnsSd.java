@@ -0,0 +1,1310 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.jmdns.ServiceEvent;
+import javax.jmdns.ServiceInfo;
+import javax.jmdns.ServiceListener;
+import javax.jmdns.ServiceTypeListener;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A unicast DNS-SD engine publishing and browsing the services of a
+ * {@link SvnEdgeWideAreaDomain}, so that the clients and the registers see
+ * the servers beyond their multicast segment. The service types keep their
+ * names in the API, such as "_csvn._tcp.local.", and are mapped to the
+ * domain on the wire.
+ *
+ * The browsed types are polled, and their instances resolved, with queries
+ * pipelined over a single datagram socket connected to the DNS server of
+ * the domain, matched with their answers by id and retransmitted when the
+ * answers are lost. The answers are cached for their time to live, and the
+ * truncated ones, such as the pointers of hundreds of servers, are asked
+ * again over TCP. The services are published with dynamic updates leased
+ * for a while and refreshed, so that the DNS server removes the services of
+ * the crashed servers. A name taken by another host is published with the
+ * next free name, as in "name (2)". The enumeration of all the service types
+ * of the domain is not supported:
+ * {@link #addServiceTypeListener(ServiceTypeListener)} always fails.
+ *
+ * As in the other {@link SvnEdgeDnsSdEngine}, a single selector thread
+ * owns the sockets, the timers and the cache, runs the calls of the API and
+ * calls the listeners, which must not block.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+final class SvnEdgeUnicastDnsSd extends SvnEdgeDnsSdEngine {
+
+    private static final Logger log = Logger.getLogger(
+            SvnEdgeUnicastDnsSd.class);
+    /**
+     * The size of the largest response received over UDP, announced to the
+     * DNS server with EDNS0.
+     */
+    private static final int RECEIVE_SIZE = 9000;
+    /**
+     * The maximum size of the queries and updates sent.
+     */
+    private static final int PACKET_SIZE = 1472;
+    /**
+     * The time waited for the first answer of a query or an update, in
+     * milliseconds, doubled after each retransmission.
+     */
+    private static final long EXCHANGE_TIMEOUT = 1000;
+    private static final int EXCHANGE_ATTEMPTS = 3;
+    /**
+     * The response code of an exchange without answer.
+     */
+    private static final int NO_RESPONSE = -1;
+    /**
+     * The time to live of the records published, in seconds.
+     */
+    static final int RECORD_TTL = 60;
+    /**
+     * The lease of the records published, in seconds, refreshed at 80%.
+     */
+    static final int UPDATE_LEASE = 3600;
+    /**
+     * The time a missing name or record is cached, in seconds.
+     */
+    private static final int NEGATIVE_TTL = 5;
+    /**
+     * The shortest interval between two polls of a browsed type, whatever
+     * the time to live of its pointers, in milliseconds.
+     */
+    private static final long MIN_POLL_INTERVAL = 1000;
+    /**
+     * The delay before publishing a service again after a failure, in
+     * milliseconds.
+     */
+    private static final long RETRY_DELAY = TimeUnit.MINUTES.toMillis(1);
+    /**
+     * The maximum time {@link #registerService(ServiceInfo)} waits for the
+     * DNS server to accept the service, in milliseconds.
+     */
+    private static final long REGISTRATION_TIMEOUT = 8000;
+    private static final SvnEdgeThreadFactory threads =
+            new SvnEdgeThreadFactory("SvnEdge-Unicast-DnsSd-");
+
+    /**
+     * A query or an update sent to the DNS server, retransmitted until it is
+     * answered.
+     */
+    private abstract class Exchange extends Task {
+        int id;
+        int attempts;
+
+        /**
+         * Writes the message of the exchange with its id.
+         */
+        abstract void write();
+
+        /**
+         * @param rcode is the response code of the answer, or
+         * {@link SvnEdgeUnicastDnsSd#NO_RESPONSE}.
+         * @param records are the records of the answer section.
+         */
+        abstract void completed(int rcode, List<SvnEdgeDnsRecord> records,
+                long now);
+
+        void run(long now) {
+            retransmit(this, now);
+        }
+    }
+
+    /**
+     * The answer of a query, from the cache or from the DNS server.
+     */
+    private interface Callback {
+        /**
+         * @param rcode is the response code of the answer, or
+         * {@link SvnEdgeUnicastDnsSd#NO_RESPONSE}.
+         * @param records are the records of the name and type asked.
+         */
+        void answered(int rcode, List<SvnEdgeDnsRecord> records, long now);
+    }
+
+    /**
+     * A query in flight, shared by all the lookups of its name and type.
+     */
+    private final class Query extends Exchange {
+        private final String key;
+        private final String name;
+        private final int type;
+        private final List<Callback> callbacks = new ArrayList<Callback>(1);
+        /**
+         * Whether the answer was truncated and is asked over TCP.
+         */
+        private boolean tcp;
+        private SocketChannel tcpChannel;
+
+        private Query(String key, String name, int type) {
+            this.key = key;
+            this.name = name;
+            this.type = type;
+        }
+
+        void write() {
+            writer.reset(id, SvnEdgeDnsReader.FLAG_RECURSION_DESIRED);
+            writer.addQuestion(name, type, false);
+            writer.addEdns(RECEIVE_SIZE, 0);
+        }
+
+        void completed(int rcode, List<SvnEdgeDnsRecord> records, long now) {
+            answered(this, rcode, records, now);
+        }
+    }
+
+    /**
+     * The records of a name and type cached for their time to live.
+     */
+    private static final class CachedSet {
+        private final int rcode;
+        private final List<SvnEdgeDnsRecord> records;
+        private final long expiry;
+
+        private CachedSet(int rcode, List<SvnEdgeDnsRecord> records,
+                long expiry) {
+            this.rcode = rcode;
+            this.records = records;
+            this.expiry = expiry;
+        }
+    }
+
+    /**
+     * A response read over TCP.
+     */
+    private static final class TcpExchange {
+        private final Query query;
+        private final ByteBuffer out;
+        private final ByteBuffer length = ByteBuffer.allocate(2);
+        private ByteBuffer in;
+
+        private TcpExchange(Query query, ByteBuffer out) {
+            this.query = query;
+            this.out = out;
+        }
+    }
+
+    /**
+     * The browsing of a service type, with its listeners and instances.
+     */
+    private final class Browse extends Task {
+        /**
+         * The type, as given by the first listener.
+         */
+        private final String type;
+        /**
+         * The type in the domain.
+         */
+        private final String wideType;
+        private final List<ServiceListener> listeners =
+                new CopyOnWriteArrayList<ServiceListener>();
+        /**
+         * The instances listed by the last answer, by lower case qualified
+         * name in the domain.
+         */
+        private final Map<String, Instance> instances =
+                new LinkedHashMap<String, Instance>();
+
+        private Browse(String type) {
+            this.type = type;
+            this.wideType = domain.toWideArea(type);
+        }
+
+        void run(long now) {
+            poll(this, now);
+        }
+    }
+
+    /**
+     * An instance of a browsed type, with the records resolved.
+     */
+    private static final class Instance {
+        private final String name;
+        private final String qualifiedName;
+        private SvnEdgeDnsRecord service;
+        private byte[] text;
+        private InetAddress[] addresses = NO_ADDRESSES;
+        /**
+         * The last service info reported resolved, or <code>null</code>.
+         */
+        private SvnEdgeNioServiceInfo resolved;
+
+        private Instance(String name, String qualifiedName) {
+            this.name = name;
+            this.qualifiedName = qualifiedName;
+        }
+    }
+
+    /**
+     * A service published by this engine, refreshed before its lease ends.
+     */
+    private final class Service extends Task {
+        private static final int PUBLISHING = 0;
+        private static final int PUBLISHED = 1;
+        private static final int CANCELLED = 2;
+
+        private final ServiceInfo info;
+        /**
+         * The type in the domain.
+         */
+        private final String type;
+        /**
+         * The name published, which differs from the name of the info when
+         * it was taken by another host.
+         */
+        private String name;
+        private int state = PUBLISHING;
+        /**
+         * The reason why the service could not be published, or
+         * <code>null</code>.
+         */
+        private String failure;
+        private final CountDownLatch firstUpdate = new CountDownLatch(1);
+
+        private Service(ServiceInfo info) {
+            this.info = info;
+            this.type = domain.toWideArea(info.getType());
+            this.name = info.getName();
+        }
+
+        private String getQualifiedName() {
+            return name + "." + type;
+        }
+
+        private SvnEdgeDnsRecord pointer() {
+            return SvnEdgeDnsRecord.pointer(type, RECORD_TTL,
+                    getQualifiedName());
+        }
+
+        private SvnEdgeDnsRecord service() {
+            return SvnEdgeDnsRecord.service(getQualifiedName(), RECORD_TTL,
+                    info.getPriority(), info.getWeight(), info.getPort(),
+                    hostName).withUnique(false);
+        }
+
+        private SvnEdgeDnsRecord text() {
+            return SvnEdgeDnsRecord.text(getQualifiedName(), RECORD_TTL,
+                    info.getTextBytes()).withUnique(false);
+        }
+
+        void run(long now) {
+            start(new Update(this, Update.REPLACE), now);
+        }
+    }
+
+    /**
+     * A dynamic update of a service.
+     */
+    private final class Update extends Exchange {
+        /**
+         * Adds the records of the service, unless its name is in use.
+         */
+        private static final int REGISTER = 0;
+        /**
+         * Replaces the records of the service, refreshing its lease.
+         */
+        private static final int REPLACE = 1;
+        /**
+         * Deletes the records of the service.
+         */
+        private static final int CANCEL = 2;
+
+        private final Service service;
+        private final int kind;
+        /**
+         * The records deleted by a cancellation, as published.
+         */
+        private final SvnEdgeDnsRecord pointer;
+        private final String qualifiedName;
+
+        private Update(Service service, int kind) {
+            this.service = service;
+            this.kind = kind;
+            this.pointer = service.pointer();
+            this.qualifiedName = service.getQualifiedName();
+        }
+
+        void write() {
+            writer.reset(id, SvnEdgeDnsReader.OPCODE_UPDATE <<
+                    SvnEdgeDnsReader.OPCODE_SHIFT);
+            writer.addQuestion(domain.getDomain(), SvnEdgeDnsRecord.TYPE_SOA,
+                    false);
+            if (kind == REGISTER) {
+                writer.addNameNotInUse(qualifiedName);
+            }
+            if (kind == CANCEL) {
+                writer.addDeletion(pointer);
+                writer.addSetDeletion(qualifiedName,
+                        SvnEdgeDnsRecord.TYPE_ANY);
+            } else {
+                if (kind == REPLACE) {
+                    writer.addSetDeletion(qualifiedName,
+                            SvnEdgeDnsRecord.TYPE_SRV);
+                    writer.addSetDeletion(qualifiedName,
+                            SvnEdgeDnsRecord.TYPE_TXT);
+                }
+                SvnEdgeDnsRecord[] records = {service.pointer(),
+                        service.service(), service.text(), hostRecord()};
+                for (SvnEdgeDnsRecord record : records) {
+                    if (!writer.addRecord(SvnEdgeDnsWriter.AUTHORITY,
+                            record)) {
+                        log.warn("The record " + record + " does not fit " +
+                                "in an update");
+                    }
+                }
+            }
+            writer.addEdns(RECEIVE_SIZE, kind == CANCEL ? 0 : UPDATE_LEASE);
+        }
+
+        void completed(int rcode, List<SvnEdgeDnsRecord> records, long now) {
+            updated(this, rcode, now);
+        }
+    }
+
+    private final SvnEdgeWideAreaDomain domain;
+    private final DatagramChannel channel;
+    private final ByteBuffer receiveBuffer =
+            ByteBuffer.allocateDirect(RECEIVE_SIZE);
+    private final SvnEdgeDnsWriter writer = new SvnEdgeDnsWriter(PACKET_SIZE);
+    private final SvnEdgeDnsReader reader = new SvnEdgeDnsReader();
+    /**
+     * The queries and updates in flight by id. Only used by the selector
+     * thread, as all the following maps.
+     */
+    private final Map<Integer, Exchange> exchanges =
+            new HashMap<Integer, Exchange>();
+    /**
+     * The queries in flight by lower case name and type.
+     */
+    private final Map<String, Query> queries = new HashMap<String, Query>();
+    /**
+     * The answers by lower case name and type.
+     */
+    private final Map<String, CachedSet> cache =
+            new HashMap<String, CachedSet>();
+    /**
+     * The browsed types by lower case type.
+     */
+    private final Map<String, Browse> browses = new HashMap<String, Browse>();
+    /**
+     * The published services by the key of their info.
+     */
+    private final Map<String, Service> services =
+            new LinkedHashMap<String, Service>();
+    private final Random random = new Random();
+
+    /**
+     * Creates a new engine sending its queries and updates to the DNS server
+     * of the given domain.
+     * @param domain is the domain of the services.
+     * @param address is the address published for the host, or
+     * <code>null</code> for the address of the local host.
+     * @param hostname is the name of the host published, or
+     * <code>null</code> for the name of the address.
+     * @throws IOException if the socket can't be opened.
+     */
+    SvnEdgeUnicastDnsSd(SvnEdgeWideAreaDomain domain, InetAddress address,
+            String hostname) throws IOException {
+        super("unicast DNS-SD", address, hostname, domain.getDomain(),
+                threads);
+        this.domain = domain;
+        this.channel = DatagramChannel.open();
+        try {
+            channel.bind(null);
+            channel.connect(domain.getServer());
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+
+        } catch (IOException e) {
+            channel.close();
+            selector.close();
+            throw e;
+        }
+        startLoop();
+        log.debug("Started the unicast DNS-SD engine of " + hostName +
+                " with " + domain);
+    }
+
+    @Override
+    void selected(Set<SelectionKey> keys) throws IOException {
+        for (SelectionKey key : keys) {
+            if (key.attachment() instanceof TcpExchange) {
+                handleTcp(key);
+            } else {
+                receive();
+            }
+        }
+    }
+
+    @Override
+    void closeChannels() throws IOException {
+        for (Exchange exchange : exchanges.values()) {
+            if (exchange instanceof Query) {
+                closeTcp((Query) exchange);
+            }
+        }
+        channel.close();
+    }
+
+    // ----------------------------------------------------------------
+    // exchanges
+    // ----------------------------------------------------------------
+
+    /**
+     * Sends the given query or update with a new id, pipelined with the
+     * ones in flight.
+     */
+    private void start(Exchange exchange, long now) {
+        int id;
+        do {
+            id = random.nextInt(0x10000);
+        } while (exchanges.containsKey(id));
+        exchange.id = id;
+        exchange.attempts = 0;
+        exchanges.put(id, exchange);
+        send(exchange);
+        schedule(exchange, now + EXCHANGE_TIMEOUT);
+    }
+
+    private void send(Exchange exchange) {
+        if (exchange instanceof Query && ((Query) exchange).tcp) {
+            sendTcp((Query) exchange);
+            return;
+        }
+        exchange.write();
+        ByteBuffer packet = writer.finish();
+        try {
+            if (channel.write(packet) > 0) {
+                counters.packetSent();
+            } else {
+                log.debug("The DNS packet to " + domain.getServer() +
+                        " was dropped");
+            }
+        } catch (IOException e) {
+            // retransmitted.
+            log.debug("Failed to send the DNS packet to " +
+                    domain.getServer() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends the given exchange again, or completes it without answer after
+     * the last attempt.
+     */
+    private void retransmit(Exchange exchange, long now) {
+        if (exchanges.get(exchange.id) != exchange) {
+            return;
+        }
+        if (++exchange.attempts >= EXCHANGE_ATTEMPTS) {
+            exchanges.remove(exchange.id);
+            if (exchange instanceof Query) {
+                closeTcp((Query) exchange);
+            }
+            exchange.completed(NO_RESPONSE,
+                    Collections.<SvnEdgeDnsRecord>emptyList(), now);
+            return;
+        }
+        send(exchange);
+        schedule(exchange, now + (EXCHANGE_TIMEOUT << exchange.attempts));
+    }
+
+    /**
+     * Receives and handles the pending datagrams.
+     */
+    private void receive() throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            int read;
+            try {
+                read = channel.read(receiveBuffer);
+            } catch (PortUnreachableException e) {
+                // the exchanges are retransmitted.
+                log.debug("The DNS server " + domain.getServer() +
+                        " is unreachable");
+                continue;
+            }
+            if (read <= 0) {
+                return;
+            }
+            receiveBuffer.flip();
+            handleResponse(receiveBuffer, false);
+        }
+    }
+
+    /**
+     * Completes the exchange answered by the given response.
+     * @param overTcp whether the response was received over TCP.
+     */
+    private void handleResponse(ByteBuffer packet, boolean overTcp) {
+        counters.packetReceived();
+        Exchange exchange;
+        int rcode;
+        List<SvnEdgeDnsRecord> records = new ArrayList<SvnEdgeDnsRecord>();
+        try {
+            reader.reset(packet);
+            exchange = exchanges.get(reader.getId());
+            if (!reader.isResponse() || exchange == null) {
+                // a late answer of an exchange already completed.
+                return;
+            }
+            if (exchange instanceof Query && !overTcp && (reader.getFlags() &
+                    SvnEdgeDnsReader.FLAG_TRUNCATED) != 0) {
+                Query query = (Query) exchange;
+                query.tcp = true;
+                query.attempts = 0;
+                sendTcp(query);
+                schedule(query, System.currentTimeMillis() + EXCHANGE_TIMEOUT);
+                return;
+            }
+            rcode = reader.getResponseCode();
+            while (reader.next()) {
+                if (reader.getSection() == SvnEdgeDnsWriter.ANSWER) {
+                    SvnEdgeDnsRecord record = reader.toRecord();
+                    if (record != null) {
+                        records.add(record);
+                    }
+                } else {
+                    counters.recordFiltered();
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            counters.malformedPacket();
+            log.debug("Ignoring a malformed DNS response: " + e.getMessage());
+            return;
+        }
+        exchanges.remove(exchange.id);
+        unschedule(exchange);
+        if (exchange instanceof Query) {
+            closeTcp((Query) exchange);
+        }
+        exchange.completed(rcode, records, System.currentTimeMillis());
+    }
+
+    /**
+     * Asks the given truncated query again over a new TCP connection.
+     */
+    private void sendTcp(Query query) {
+        closeTcp(query);
+        query.write();
+        ByteBuffer packet = writer.finish();
+        ByteBuffer out = ByteBuffer.allocate(packet.remaining() + 2);
+        out.putShort((short) packet.remaining());
+        out.put(packet);
+        out.flip();
+        try {
+            SocketChannel socket = SocketChannel.open();
+            query.tcpChannel = socket;
+            socket.configureBlocking(false);
+            socket.connect(domain.getServer());
+            socket.register(selector, SelectionKey.OP_CONNECT,
+                    new TcpExchange(query, out));
+            counters.packetSent();
+
+        } catch (IOException e) {
+            // retransmitted.
+            log.debug("Failed to connect to the DNS server " +
+                    domain.getServer() + ": " + e.getMessage());
+            closeTcp(query);
+        }
+    }
+
+    /**
+     * Connects, writes the query or reads the response of the TCP exchange
+     * of the given key.
+     */
+    private void handleTcp(SelectionKey key) {
+        TcpExchange tcp = (TcpExchange) key.attachment();
+        SocketChannel socket = (SocketChannel) key.channel();
+        if (tcp.query.tcpChannel != socket) {
+            return;
+        }
+        try {
+            if (key.isConnectable()) {
+                if (!socket.finishConnect()) {
+                    return;
+                }
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+            if (key.isWritable()) {
+                socket.write(tcp.out);
+                if (!tcp.out.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+                return;
+            }
+            if (!key.isReadable()) {
+                return;
+            }
+            if (tcp.in == null) {
+                if (socket.read(tcp.length) < 0) {
+                    throw new EOFException("The DNS server closed the " +
+                            "connection");
+                }
+                if (tcp.length.hasRemaining()) {
+                    return;
+                }
+                tcp.in = ByteBuffer.allocate(tcp.length.getShort(0) & 0xFFFF);
+            }
+            if (socket.read(tcp.in) < 0) {
+                throw new EOFException("The DNS server closed the " +
+                        "connection");
+            }
+            if (!tcp.in.hasRemaining()) {
+                closeTcp(tcp.query);
+                tcp.in.flip();
+                handleResponse(tcp.in, true);
+            }
+        } catch (IOException e) {
+            // retransmitted.
+            log.debug("The TCP exchange with the DNS server " +
+                    domain.getServer() + " failed: " + e.getMessage());
+            closeTcp(tcp.query);
+        }
+    }
+
+    private void closeTcp(Query query) {
+        if (query.tcpChannel != null) {
+            try {
+                query.tcpChannel.close();
+            } catch (IOException e) {
+                log.debug("Failed to close the DNS connection", e);
+            }
+            query.tcpChannel = null;
+        }
+    }
+
+    // ----------------------------------------------------------------
+    // queries and cache
+    // ----------------------------------------------------------------
+
+    private static String keyOf(String name, int type) {
+        return type + " " + name.toLowerCase();
+    }
+
+    /**
+     * Looks up the records of the given name and type in the cache, or asks
+     * them to the DNS server, with the query in flight if any.
+     * @param fresh whether the cache is skipped.
+     */
+    private void lookup(String name, int type, boolean fresh,
+            Callback callback, long now) {
+        String key = keyOf(name, type);
+        if (!fresh) {
+            CachedSet cached = cache.get(key);
+            if (cached != null && cached.expiry > now) {
+                counters.questionSuppressed();
+                callback.answered(cached.rcode, cached.records, now);
+                return;
+            }
+        }
+        Query query = queries.get(key);
+        if (query == null) {
+            query = new Query(key, name, type);
+            queries.put(key, query);
+            start(query, now);
+            counters.querySent();
+        } else {
+            counters.questionSuppressed();
+        }
+        query.callbacks.add(callback);
+    }
+
+    /**
+     * Caches the answer of the given query for its time to live and calls
+     * back the lookups.
+     */
+    private void answered(Query query, int rcode, List<SvnEdgeDnsRecord>
+            records, long now) {
+        queries.remove(query.key);
+        List<SvnEdgeDnsRecord> matching = new ArrayList<SvnEdgeDnsRecord>();
+        for (SvnEdgeDnsRecord record : records) {
+            if (record.getType() == query.type &&
+                    record.getName().equalsIgnoreCase(query.name)) {
+                matching.add(record);
+            }
+        }
+        if (rcode == SvnEdgeDnsReader.RCODE_NO_ERROR ||
+                rcode == SvnEdgeDnsReader.RCODE_NAME_ERROR) {
+            int ttl = matching.isEmpty() ? NEGATIVE_TTL : Integer.MAX_VALUE;
+            for (SvnEdgeDnsRecord record : matching) {
+                ttl = Math.min(ttl, record.getTtl());
+            }
+            cache.put(query.key, new CachedSet(rcode, matching,
+                    now + TimeUnit.SECONDS.toMillis(ttl)));
+        }
+        for (Callback callback : query.callbacks) {
+            callback.answered(rcode, matching, now);
+        }
+    }
+
+    /**
+     * Removes the expired answers from the cache.
+     */
+    private void purgeCache(long now) {
+        Iterator<CachedSet> iterator = cache.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().expiry <= now) {
+                iterator.remove();
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------
+    // browsing and resolving
+    // ----------------------------------------------------------------
+
+    /**
+     * Asks the pointers of the given browse to the DNS server.
+     */
+    private void poll(final Browse browse, long now) {
+        if (browses.get(browse.type.toLowerCase()) != browse) {
+            return;
+        }
+        purgeCache(now);
+        lookup(browse.wideType, SvnEdgeDnsRecord.TYPE_PTR, true,
+                new Callback() {
+            public void answered(int rcode, List<SvnEdgeDnsRecord> records,
+                    long time) {
+                pointersAnswered(browse, rcode, records, time);
+            }
+        }, now);
+    }
+
+    /**
+     * Reports the instances added and removed since the last poll, resolves
+     * the instances and schedules the next poll, before the pointers
+     * expire.
+     */
+    private void pointersAnswered(Browse browse, int rcode,
+            List<SvnEdgeDnsRecord> records, long now) {
+        if (browses.get(browse.type.toLowerCase()) != browse) {
+            return;
+        }
+        long interval = domain.getPollInterval();
+        if (rcode == SvnEdgeDnsReader.RCODE_NO_ERROR ||
+                rcode == SvnEdgeDnsReader.RCODE_NAME_ERROR) {
+            Map<String, String> listed = new LinkedHashMap<String, String>();
+            for (SvnEdgeDnsRecord record : records) {
+                String name = SvnEdgeNioMdns.instanceName(record.getTarget(),
+                        browse.wideType);
+                if (name != null) {
+                    listed.put(record.getTarget().toLowerCase(), name);
+                    interval = Math.min(interval, TimeUnit.SECONDS.toMillis(
+                            record.getTtl()));
+                }
+            }
+            Iterator<Instance> iterator = browse.instances.values().iterator();
+            while (iterator.hasNext()) {
+                Instance instance = iterator.next();
+                if (!listed.containsKey(instance.qualifiedName.toLowerCase())) {
+                    iterator.remove();
+                    fire(browse, EventKind.REMOVED, unresolvedInfo(browse,
+                            instance));
+                }
+            }
+            for (Map.Entry<String, String> entry : listed.entrySet()) {
+                if (!browse.instances.containsKey(entry.getKey())) {
+                    Instance instance = new Instance(entry.getValue(),
+                            entry.getValue() + "." + browse.wideType);
+                    browse.instances.put(entry.getKey(), instance);
+                    fire(browse, EventKind.ADDED, unresolvedInfo(browse,
+                            instance));
+                }
+            }
+            for (Instance instance : new ArrayList<Instance>(
+                    browse.instances.values())) {
+                resolve(browse, instance, now);
+            }
+        } else if (rcode != NO_RESPONSE) {
+            log.warn("The DNS server " + domain.getServer() + " failed to " +
+                    "list " + browse.wideType + ": response code " + rcode);
+        }
+        schedule(browse, now + Math.max(MIN_POLL_INTERVAL, interval));
+    }
+
+    /**
+     * Looks up the service and text records of the given instance, then the
+     * addresses of its host, in the cache or from the DNS server.
+     */
+    private void resolve(final Browse browse, final Instance instance,
+            long now) {
+        lookup(instance.qualifiedName, SvnEdgeDnsRecord.TYPE_SRV, false,
+                new Callback() {
+            public void answered(int rcode, List<SvnEdgeDnsRecord> records,
+                    long time) {
+                if (!isCurrent(browse, instance) || rcode == NO_RESPONSE) {
+                    return;
+                }
+                SvnEdgeDnsRecord service = records.isEmpty() ? null :
+                    records.get(0);
+                if (service != null && (instance.service == null ||
+                        !service.hasSameData(instance.service))) {
+                    instance.addresses = NO_ADDRESSES;
+                }
+                instance.service = service;
+                if (service != null) {
+                    resolveHost(browse, instance, time);
+                }
+                report(browse, instance);
+            }
+        }, now);
+        lookup(instance.qualifiedName, SvnEdgeDnsRecord.TYPE_TXT, false,
+                new Callback() {
+            public void answered(int rcode, List<SvnEdgeDnsRecord> records,
+                    long time) {
+                if (!isCurrent(browse, instance) || rcode == NO_RESPONSE) {
+                    return;
+                }
+                instance.text = records.isEmpty() ? null :
+                    records.get(0).getText();
+                report(browse, instance);
+            }
+        }, now);
+    }
+
+    private void resolveHost(final Browse browse, final Instance instance,
+            long now) {
+        final String host = instance.service.getTarget();
+        lookup(host, SvnEdgeDnsRecord.TYPE_A, false, new Callback() {
+            public void answered(int rcode, List<SvnEdgeDnsRecord> records,
+                    long time) {
+                if (!isCurrent(browse, instance) || rcode == NO_RESPONSE ||
+                        instance.service == null ||
+                        !host.equalsIgnoreCase(instance.service.getTarget())) {
+                    return;
+                }
+                InetAddress[] addresses = new InetAddress[records.size()];
+                for (int i = 0; i < addresses.length; i++) {
+                    addresses[i] = records.get(i).getAddress();
+                }
+                instance.addresses = addresses;
+                report(browse, instance);
+            }
+        }, now);
+    }
+
+    private boolean isCurrent(Browse browse, Instance instance) {
+        return browses.get(browse.type.toLowerCase()) == browse &&
+                browse.instances.get(instance.qualifiedName.toLowerCase()) ==
+                    instance;
+    }
+
+    /**
+     * Reports the given instance resolved once its records are known, or
+     * when its records changed since it was last reported.
+     */
+    private void report(Browse browse, Instance instance) {
+        SvnEdgeDnsRecord service = instance.service;
+        if (service == null || instance.text == null) {
+            return;
+        }
+        boolean inet4 = false;
+        for (InetAddress hostAddress : instance.addresses) {
+            inet4 |= hostAddress instanceof Inet4Address;
+        }
+        if (!inet4) {
+            // the servers are reported with their IPv4 address.
+            return;
+        }
+        SvnEdgeNioServiceInfo previous = instance.resolved;
+        if (previous != null && previous.getPort() == service.getPort() &&
+                previous.getServer().equals(service.getTarget()) &&
+                Arrays.equals(previous.getTextBytes(), instance.text) &&
+                Arrays.equals(previous.getInetAddresses(),
+                        instance.addresses)) {
+            return;
+        }
+        instance.resolved = new SvnEdgeNioServiceInfo(browse.type,
+                instance.name, service.getPort(), service.getWeight(),
+                service.getPriority(), instance.text, service.getTarget(),
+                instance.addresses);
+        fire(browse, EventKind.RESOLVED, instance.resolved);
+    }
+
+    private SvnEdgeNioServiceInfo unresolvedInfo(Browse browse,
+            Instance instance) {
+        return new SvnEdgeNioServiceInfo(browse.type, instance.name, 0, 0, 0,
+                null, null, NO_ADDRESSES);
+    }
+
+    @Override
+    void addListener(String type, ServiceListener listener) {
+        String key = type.toLowerCase();
+        Browse browse = browses.get(key);
+        if (browse == null) {
+            browse = new Browse(type);
+            browses.put(key, browse);
+            schedule(browse, System.currentTimeMillis());
+        }
+        if (browse.listeners.contains(listener)) {
+            return;
+        }
+        browse.listeners.add(listener);
+        // the listeners added later catch up with the instances known.
+        for (Instance instance : browse.instances.values()) {
+            notify(listener, EventKind.ADDED, unresolvedInfo(browse,
+                    instance));
+            if (instance.resolved != null) {
+                notify(listener, EventKind.RESOLVED, instance.resolved);
+            }
+        }
+    }
+
+    @Override
+    void removeListener(String type, ServiceListener listener) {
+        String key = type.toLowerCase();
+        Browse browse = browses.get(key);
+        if (browse == null || !browse.listeners.remove(listener) ||
+                !browse.listeners.isEmpty()) {
+            return;
+        }
+        browses.remove(key);
+        unschedule(browse);
+    }
+
+    @Override
+    boolean isBrowsed(String type) {
+        return browses.containsKey(type.toLowerCase());
+    }
+
+    /**
+     * Reports the given instance resolved if it is, or resolves it again.
+     */
+    @Override
+    void resolveInstance(String type, String name) {
+        Browse browse = browses.get(type.toLowerCase());
+        if (browse == null) {
+            return;
+        }
+        Instance instance = browse.instances.get((name + "." +
+                browse.wideType).toLowerCase());
+        if (instance == null) {
+            return;
+        }
+        if (instance.resolved != null) {
+            fire(browse, EventKind.RESOLVED, instance.resolved);
+        } else {
+            resolve(browse, instance, System.currentTimeMillis());
+        }
+    }
+
+    @Override
+    ServiceInfo getResolved(String type, String name) {
+        Browse browse = browses.get(type.toLowerCase());
+        Instance instance = browse == null ? null :
+            browse.instances.get((name + "." + browse.wideType).toLowerCase());
+        return instance != null ? instance.resolved : null;
+    }
+
+    @Override
+    List<ServiceInfo> listResolved(String type) {
+        List<ServiceInfo> infos = new ArrayList<ServiceInfo>();
+        Browse browse = browses.get(type.toLowerCase());
+        if (browse != null) {
+            for (Instance instance : browse.instances.values()) {
+                if (instance.resolved != null) {
+                    infos.add(instance.resolved);
+                }
+            }
+        }
+        return infos;
+    }
+
+    /**
+     * Polls the browse of the given type in the domain right away, after a
+     * service of this engine changed.
+     */
+    private void pollSoon(String wideType, long now) {
+        for (Browse browse : browses.values()) {
+            if (browse.wideType.equalsIgnoreCase(wideType)) {
+                schedule(browse, now);
+            }
+        }
+    }
+
+    private enum EventKind {
+        ADDED, REMOVED, RESOLVED
+    }
+
+    private void fire(Browse browse, EventKind kind, ServiceInfo info) {
+        for (ServiceListener listener : browse.listeners) {
+            notify(listener, kind, info);
+        }
+    }
+
+    private void notify(ServiceListener listener, EventKind kind,
+            ServiceInfo info) {
+        ServiceEvent event = new SvnEdgeNioServiceEvent(this, info);
+        try {
+            switch (kind) {
+            case ADDED:
+                listener.serviceAdded(event);
+                break;
+            case REMOVED:
+                listener.serviceRemoved(event);
+                break;
+            default:
+                listener.serviceResolved(event);
+            }
+        } catch (RuntimeException e) {
+            log.error("The listener " + listener + " failed to handle " +
+                    event, e);
+        }
+    }
+
+    // ----------------------------------------------------------------
+    // publishing
+    // ----------------------------------------------------------------
+
+    /**
+     * @return the address record of this host.
+     */
+    private SvnEdgeDnsRecord hostRecord() {
+        return SvnEdgeDnsRecord.address(hostName, RECORD_TTL, address)
+                .withUnique(false);
+    }
+
+    private Service addService(ServiceInfo info) {
+        if (services.containsKey(info.getKey())) {
+            throw new IllegalStateException("The service " +
+                    info.getQualifiedName() + " is already registered");
+        }
+        Service service = new Service(info);
+        services.put(info.getKey(), service);
+        start(new Update(service, Update.REGISTER),
+                System.currentTimeMillis());
+        return service;
+    }
+
+    /**
+     * Handles the answer of the DNS server to the given update.
+     */
+    private void updated(Update update, int rcode, long now) {
+        final Service service = update.service;
+        if (update.kind == Update.CANCEL) {
+            if (rcode != SvnEdgeDnsReader.RCODE_NO_ERROR) {
+                log.warn("Failed to delete the service " +
+                        update.qualifiedName + " from " + domain + ": " +
+                        describe(rcode));
+            }
+            pollSoon(service.type, now);
+            return;
+        }
+        if (service.state == Service.CANCELLED) {
+            return;
+        }
+        if (rcode == SvnEdgeDnsReader.RCODE_NO_ERROR) {
+            service.state = Service.PUBLISHED;
+            service.failure = null;
+            service.firstUpdate.countDown();
+            // refreshed before the lease ends.
+            schedule(service, now + UPDATE_LEASE * 800L);
+            pollSoon(service.type, now);
+
+        } else if (rcode == SvnEdgeDnsReader.RCODE_NAME_EXISTS &&
+                update.kind == Update.REGISTER) {
+            // the records of the name may be the ones published by this
+            // host before it stopped.
+            lookup(service.getQualifiedName(), SvnEdgeDnsRecord.TYPE_SRV,
+                    true, new Callback() {
+                public void answered(int code, List<SvnEdgeDnsRecord> records,
+                        long time) {
+                    checkOwner(service, records, time);
+                }
+            }, now);
+
+        } else {
+            service.failure = describe(rcode);
+            log.warn("Failed to publish the service " +
+                    service.getQualifiedName() + " in " + domain + ": " +
+                    service.failure);
+            service.firstUpdate.countDown();
+            schedule(service, now + RETRY_DELAY);
+        }
+    }
+
+    /**
+     * Publishes the given service over the records of its name if they are
+     * the ones of this host, or with the next free name otherwise.
+     */
+    private void checkOwner(Service service, List<SvnEdgeDnsRecord> records,
+            long now) {
+        if (service.state == Service.CANCELLED) {
+            return;
+        }
+        for (SvnEdgeDnsRecord record : records) {
+            if (record.getPort() == service.info.getPort() &&
+                    record.getTarget().equalsIgnoreCase(hostName)) {
+                start(new Update(service, Update.REPLACE), now);
+                return;
+            }
+        }
+        String previous = service.getQualifiedName();
+        service.name = SvnEdgeNioMdns.nextName(service.name);
+        log.info("The service " + previous + " is taken, publishing " +
+                service.getQualifiedName());
+        start(new Update(service, Update.REGISTER), now);
+    }
+
+    private String describe(int rcode) {
+        switch (rcode) {
+        case NO_RESPONSE:
+            return "no response from " + domain.getServer();
+        case SvnEdgeDnsReader.RCODE_REFUSED:
+            return "the update was refused";
+        case SvnEdgeDnsReader.RCODE_NOT_ZONE:
+            return "the domain is not a zone of the server";
+        case SvnEdgeDnsReader.RCODE_NOT_IMPLEMENTED:
+            return "the server does not implement dynamic updates";
+        default:
+            return "response code " + rcode;
+        }
+    }
+
+    /**
+     * Cancels the given services, deleting their records.
+     */
+    private void cancelServices(List<Service> cancelled) {
+        long now = System.currentTimeMillis();
+        for (Service service : cancelled) {
+            int previous = service.state;
+            service.state = Service.CANCELLED;
+            unschedule(service);
+            service.firstUpdate.countDown();
+            if (previous != Service.CANCELLED) {
+                start(new Update(service, Update.CANCEL), now);
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------
+    // the jmDNS API
+    // ----------------------------------------------------------------
+
+    /**
+     * Publishes the given service, waiting for the DNS server to accept it.
+     * A service whose name is taken by another host is published with the
+     * next free name, as in "name (2)".
+     * @throws IOException if the DNS server refused the update.
+     */
+    @Override
+    public void registerService(final ServiceInfo info) throws IOException {
+        Service service = call(new Callable<Service>() {
+            public Service call() {
+                return addService(info);
+            }
+        });
+        if (service == null) {
+            throw new IOException("The DNS-SD engine of " + hostName +
+                    " is closed");
+        }
+        if (Thread.currentThread() == thread) {
+            return;
+        }
+        try {
+            if (!service.firstUpdate.await(REGISTRATION_TIMEOUT,
+                    TimeUnit.MILLISECONDS)) {
+                log.warn("The service " + info.getQualifiedName() +
+                        " was not published in " + REGISTRATION_TIMEOUT +
+                        " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        String failure = service.failure;
+        if (failure != null) {
+            throw new IOException("Failed to publish the service " +
+                    info.getQualifiedName() + " in " + domain + ": " +
+                    failure);
+        }
+    }
+
+    /**
+     * Unregisters the given service, deleting its records.
+     */
+    @Override
+    public void unregisterService(final ServiceInfo info) {
+        call(new Callable<Void>() {
+            public Void call() {
+                Service service = services.remove(info.getKey());
+                if (service != null) {
+                    cancelServices(Collections.singletonList(service));
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Unregisters all the services of this engine, deleting their records.
+     */
+    @Override
+    public void unregisterAllServices() {
+        call(new Callable<Void>() {
+            public Void call() {
+                List<Service> cancelled = new ArrayList<Service>(
+                        services.values());
+                services.clear();
+                cancelServices(cancelled);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @return the domain of the engine.
+     */
+    SvnEdgeWideAreaDomain getDomain() {
+        return this.domain;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + hostName + " with " +
+                domain + ", " + counters + "]";
+    }
+}
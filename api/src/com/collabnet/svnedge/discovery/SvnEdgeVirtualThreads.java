@@ -0,0 +1,115 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Creates the executors running each task on its own virtual thread. The
+ * virtual threads are looked up by reflection, so that the discovery API
+ * still runs on JVMs without them, using a growing pool of daemon threads.
+ * 
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+final class SvnEdgeVirtualThreads {
+
+    private static final Logger log = Logger.getLogger(
+            SvnEdgeVirtualThreads.class);
+    /**
+     * Thread.ofVirtual(), or <code>null</code> if the JVM has no virtual
+     * threads.
+     */
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method FACTORY;
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method factory = null;
+        Method newExecutor = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            name = builderClass.getMethod("name", String.class, long.class);
+            factory = builderClass.getMethod("factory");
+            newExecutor = Executors.class.getMethod(
+                    "newThreadPerTaskExecutor", ThreadFactory.class);
+
+        } catch (Exception e) {
+            log.debug("Virtual threads are not available: " + e);
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+        NEW_THREAD_PER_TASK_EXECUTOR = newExecutor;
+    }
+
+    private SvnEdgeVirtualThreads() {
+    }
+
+    /**
+     * @return whether the JVM has virtual threads.
+     */
+    static boolean isAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * @param namePrefix is the prefix of the name of the threads, followed by
+     * the number of the thread.
+     * @return a new executor running each task on its own virtual thread, or
+     * on a pool of daemon threads growing with the tasks if the JVM has no
+     * virtual threads.
+     */
+    static ExecutorService newTaskExecutor(String namePrefix) {
+        if (OF_VIRTUAL != null) {
+            try {
+                // the name and the counter are set on a new builder.
+                Object builder = OF_VIRTUAL.invoke(null);
+                NAME.invoke(builder, namePrefix, 1L);
+                ThreadFactory factory = (ThreadFactory) FACTORY.invoke(
+                        builder);
+                return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(
+                        null, factory);
+
+            } catch (Exception e) {
+                log.warn("Failed to create the virtual threads executor", e);
+            }
+        }
+        return newPlatformTaskExecutor(namePrefix);
+    }
+
+    /**
+     * @param namePrefix is the prefix of the name of the threads, followed by
+     * the number of the thread.
+     * @return a new pool of daemon threads growing with the tasks.
+     */
+    static ExecutorService newPlatformTaskExecutor(String namePrefix) {
+        return Executors.newCachedThreadPool(new SvnEdgeThreadFactory(
+                namePrefix));
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * A DNS domain where the SvnEdge servers are published and browsed with
+ * unicast DNS-SD, so that the offices in other subnets see each other
+ * without a browser on each multicast segment. The service types keep their
+ * names, with the domain instead of "local.", such as
+ * "_csvn._tcp.example.com.". The registers publish their servers with
+ * dynamic updates sent to the DNS server of the domain, and the clients
+ * poll it. Immutable.
+ * 
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public final class SvnEdgeWideAreaDomain {
+
+    /**
+     * The port of DNS.
+     */
+    public static final int DNS_PORT = 53;
+    /**
+     * The default interval between the queries of the instances of a
+     * browsed type, in milliseconds.
+     */
+    public static final long DEFAULT_POLL_INTERVAL = 5000;
+    private static final String LOCAL_DOMAIN = "local.";
+
+    /**
+     * The domain, in lower case with the final dot.
+     */
+    private final String domain;
+    private final InetSocketAddress server;
+    private final long pollInterval;
+
+    /**
+     * @param domain is the domain, such as "example.com".
+     * @param server is the address of its DNS server, on the DNS port.
+     */
+    public SvnEdgeWideAreaDomain(String domain, InetAddress server) {
+        this(domain, new InetSocketAddress(server, DNS_PORT));
+    }
+
+    /**
+     * @param domain is the domain, such as "example.com".
+     * @param server is the socket address of its DNS server.
+     */
+    public SvnEdgeWideAreaDomain(String domain, InetSocketAddress server) {
+        this(domain, server, DEFAULT_POLL_INTERVAL);
+    }
+
+    private SvnEdgeWideAreaDomain(String domain, InetSocketAddress server,
+            long pollInterval) {
+        if (domain == null || domain.replace(".", "").length() == 0) {
+            throw new IllegalArgumentException("The domain is empty");
+        }
+        if (server == null) {
+            throw new IllegalArgumentException("The DNS server is missing");
+        }
+        if (pollInterval <= 0) {
+            throw new IllegalArgumentException("The poll interval must be " +
+                    "positive: " + pollInterval);
+        }
+        String name = domain.toLowerCase();
+        while (name.startsWith(".")) {
+            name = name.substring(1);
+        }
+        this.domain = name.endsWith(".") ? name : name + ".";
+        this.server = server;
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * @param millis is the interval between the queries of the instances
+     * of a browsed type, in milliseconds. The changes of the servers are
+     * seen by the clients after this interval at most.
+     * @return a copy of this domain with the given poll interval.
+     */
+    public SvnEdgeWideAreaDomain withPollInterval(long millis) {
+        return new SvnEdgeWideAreaDomain(domain, server, millis);
+    }
+
+    /**
+     * @return the domain, in lower case with the final dot, such as
+     * "example.com.".
+     */
+    public String getDomain() {
+        return this.domain;
+    }
+
+    /**
+     * @return the socket address of the DNS server of the domain.
+     */
+    public InetSocketAddress getServer() {
+        return this.server;
+    }
+
+    /**
+     * @return the interval between the queries of the instances of a
+     * browsed type, in milliseconds.
+     */
+    public long getPollInterval() {
+        return this.pollInterval;
+    }
+
+    /**
+     * @param type is a service type, such as "_csvn._tcp.local.".
+     * @return the type in this domain, such as "_csvn._tcp.example.com.".
+     */
+    String toWideArea(String type) {
+        String name = type.endsWith(".") ? type : type + ".";
+        if (name.toLowerCase().endsWith("." + LOCAL_DOMAIN)) {
+            name = name.substring(0, name.length() - LOCAL_DOMAIN.length());
+        }
+        return name + domain;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof SvnEdgeWideAreaDomain)) {
+            return false;
+        }
+        SvnEdgeWideAreaDomain that = (SvnEdgeWideAreaDomain) other;
+        return domain.equals(that.domain) && server.equals(that.server) &&
+                pollInterval == that.pollInterval;
+    }
+
+    @Override
+    public int hashCode() {
+        return domain.hashCode() * 31 + server.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return domain + " at " + server.getHostString() + ":" +
+                server.getPort();
+    }
+}
@@ -15,5 +15,10 @@ public enum SvnEdgeServerEvent {
     /**
      * When the server has just stopped.
      */
-    SERVER_SHUTDOWN
+    SERVER_SHUTDOWN,
+    /**
+     * When a running server has changed any of its published values, such as
+     * its port, address or properties.
+     */
+    SERVER_UPDATED
 }
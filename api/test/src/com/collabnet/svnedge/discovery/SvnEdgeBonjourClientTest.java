@@ -0,0 +1,116 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import static com.collabnet.svnedge.discovery.SvnEdgeTests.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceType;
+
+/**
+ * The tests of the lifecycle of the {@link SvnEdgeBonjourClient}, browsing
+ * the domain of an {@link SvnEdgeDnsStandInServer} on the loopback
+ * interface.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public final class SvnEdgeBonjourClientTest {
+
+    /**
+     * The interval between the polls of the client, in milliseconds.
+     */
+    private static final long POLL_INTERVAL = 1000;
+    /**
+     * The longest time a task submitted while the client stops may take to
+     * be rejected, well below the 5 seconds the client waits for its tasks.
+     */
+    private static final long SUBMIT_TIMEOUT = 1000;
+
+    private final SvnEdgeDnsStandInServer server;
+    private final SvnEdgeBonjourClient client;
+
+    public SvnEdgeBonjourClientTest() throws IOException {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        this.server = new SvnEdgeDnsStandInServer("svnedge.test", loopback);
+        this.client = SvnEdgeBonjourClient.makeInstance(loopback,
+                SvnEdgeServiceType.CSVN, server.getDomain(POLL_INTERVAL));
+    }
+
+    public void testTasksSubmittedWhileStoppingAreRejectedRightAway()
+            throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final Callable<Void> followUp = new Callable<Void>() {
+            public Void call() {
+                return null;
+            }
+        };
+        Future<Long> task = client.submitTask(new Callable<Long>() {
+            public Long call() throws Exception {
+                started.countDown();
+                proceed.await();
+                long start = System.currentTimeMillis();
+                try {
+                    client.submitTask(followUp);
+                    return -1L;
+
+                } catch (RejectedExecutionException e) {
+                    return System.currentTimeMillis() - start;
+                }
+            }
+        });
+        Thread stopper = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    client.stop();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        try {
+            assertTrue("task started", started.await(
+                    SvnEdgeTests.AWAIT_TIMEOUT, TimeUnit.MILLISECONDS));
+            stopper.start();
+            // the client waits for the task to complete.
+            Thread.sleep(200);
+            proceed.countDown();
+            long rejectedAfter = task.get();
+            assertTrue("follow-up accepted", rejectedAfter >= 0);
+            assertTrue("follow-up rejected after " + rejectedAfter + " ms",
+                    rejectedAfter < SUBMIT_TIMEOUT);
+            stopper.join(SvnEdgeTests.AWAIT_TIMEOUT);
+            assertTrue("client stopped", !stopper.isAlive());
+        } finally {
+            proceed.countDown();
+            server.close();
+        }
+    }
+
+    public static void main(String[] args) throws Throwable {
+        SvnEdgeTests.runAll(SvnEdgeBonjourClientTest.class);
+    }
+}
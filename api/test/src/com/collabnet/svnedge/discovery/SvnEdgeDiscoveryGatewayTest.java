@@ -0,0 +1,401 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import static com.collabnet.svnedge.discovery.SvnEdgeTests.assertEquals;
+import static com.collabnet.svnedge.discovery.SvnEdgeTests.assertTrue;
+import static com.collabnet.svnedge.discovery.SvnEdgeTests.await;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeCsvnServiceKey;
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceKey;
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceType;
+
+/**
+ * The tests of the {@link SvnEdgeDiscoveryGateway}: the ETags, the held
+ * requests, the limit of the requests held, the compression and the
+ * malformed requests. The servers are published with a register and
+ * discovered by a client in the domain of an {@link SvnEdgeDnsStandInServer}
+ * on the loopback interface, and the gateway is requested over HTTP.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public final class SvnEdgeDiscoveryGatewayTest {
+
+    /**
+     * The interval between the polls of the client, in milliseconds.
+     */
+    private static final long POLL_INTERVAL = 1000;
+    /**
+     * The maximum number of requests held by the gateways of the tests.
+     */
+    private static final int MAX_WAITING = 2;
+
+    /**
+     * A response of the gateway.
+     */
+    private static final class Response {
+        private final int status;
+        private final Map<String, String> headers =
+                new HashMap<String, String>();
+        private final byte[] body;
+
+        private Response(HttpURLConnection connection) throws IOException {
+            this.status = connection.getResponseCode();
+            for (String name : new String[] {"ETag", "Content-Type",
+                    "Content-Encoding", "Content-Length", "Retry-After",
+                    "Allow"}) {
+                headers.put(name, connection.getHeaderField(name));
+            }
+            InputStream in = status < 400 ? connection.getInputStream() :
+                connection.getErrorStream();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            if (in != null) {
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    bytes.write(buffer, 0, read);
+                }
+                in.close();
+            }
+            this.body = bytes.toByteArray();
+        }
+
+        private String text() throws IOException {
+            return new String(body, "UTF-8");
+        }
+
+        private String gunzip() throws IOException {
+            GZIPInputStream in = new GZIPInputStream(
+                    new ByteArrayInputStream(body));
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                bytes.write(buffer, 0, read);
+            }
+            return new String(bytes.toByteArray(), "UTF-8");
+        }
+    }
+
+    private final InetAddress loopback;
+    private final SvnEdgeDnsStandInServer server;
+    private final SvnEdgeBonjourRegister register;
+    private final SvnEdgeBonjourClient client;
+    private final SvnEdgeDiscoveryGateway gateway;
+    /**
+     * Sends the requests held by the gateway.
+     */
+    private final ExecutorService requests = Executors.newCachedThreadPool();
+
+    public SvnEdgeDiscoveryGatewayTest() throws IOException {
+        this.loopback = InetAddress.getByName("127.0.0.1");
+        this.server = new SvnEdgeDnsStandInServer("svnedge.test", loopback);
+        SvnEdgeWideAreaDomain domain = server.getDomain(POLL_INTERVAL);
+        this.register = SvnEdgeBonjourRegister.getInstance(loopback, domain);
+        this.client = SvnEdgeBonjourClient.makeInstance(loopback,
+                SvnEdgeServiceType.CSVN, domain);
+        this.gateway = new SvnEdgeDiscoveryGateway(client,
+                new InetSocketAddress(loopback, 0), MAX_WAITING);
+        this.gateway.start();
+    }
+
+    private void close() throws IOException {
+        try {
+            gateway.stop();
+            requests.shutdownNow();
+            register.close();
+            client.stop();
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * Publishes a server with the given name, and waits for the client to
+     * discover it and to resolve the hostname of its url.
+     * @return the version of the registry with the server.
+     */
+    private long publish(final String name, int port) throws Exception {
+        Map<SvnEdgeServiceKey, String> params =
+                new HashMap<SvnEdgeServiceKey, String>();
+        params.put(SvnEdgeCsvnServiceKey.CONTEXT_PATH, "/csvn");
+        params.put(SvnEdgeCsvnServiceKey.TEAMFORGE_PATH, "/sf");
+        register.registerService(name, port, SvnEdgeServiceType.CSVN, params);
+        await("The server " + name + " was not discovered",
+                new SvnEdgeTests.Condition() {
+            public boolean holds() {
+                SvnEdgeServerInfo serverInfo = client.getRegistry().getServer(
+                        SvnEdgeServiceType.CSVN, name);
+                return serverInfo != null && serverInfo.isHostnameResolved();
+            }
+        });
+        return client.getRegistry().getVersion();
+    }
+
+    /**
+     * Requests the given path of the gateway.
+     * @param headers are the names and values of the headers of the
+     * request.
+     */
+    private Response request(String method, String path, String... headers)
+            throws IOException {
+        URL url = new URL("http", loopback.getHostAddress(),
+                gateway.getAddress().getPort(), path);
+        HttpURLConnection connection =
+                (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(method);
+        connection.setUseCaches(false);
+        for (int i = 0; i < headers.length; i += 2) {
+            connection.setRequestProperty(headers[i], headers[i + 1]);
+        }
+        try {
+            return new Response(connection);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private Response get(String path, String... headers) throws IOException {
+        return request("GET", path, headers);
+    }
+
+    /**
+     * Requests the given path in the background, so that the gateway can
+     * hold the request.
+     */
+    private Future<Response> getLater(final String path) {
+        return requests.submit(new Callable<Response>() {
+            public Response call() throws IOException {
+                return get(path);
+            }
+        });
+    }
+
+    private void awaitWaiting(final int count) throws Exception {
+        await("The requests are not held", new SvnEdgeTests.Condition() {
+            public boolean holds() {
+                return gateway.getWaitingCount() == count;
+            }
+        });
+    }
+
+    public void testAnswersNotModifiedForTheCurrentVersion() throws Exception {
+        try {
+            long version = publish("server-1", 18080);
+            Response servers = get("/servers");
+            assertEquals("Status", 200, servers.status);
+            assertEquals("ETag", "W/\"" + version + "\"",
+                    servers.headers.get("ETag"));
+            assertTrue("Servers", servers.text().startsWith("{\"version\":" +
+                    version + ",\"servers\":[{\"name\":\"server-1\""));
+
+            Response cached = get("/servers", "If-None-Match",
+                    servers.headers.get("ETag"));
+            assertEquals("Status", 304, cached.status);
+            assertEquals("ETag", servers.headers.get("ETag"),
+                    cached.headers.get("ETag"));
+            assertEquals("Body", 0, cached.body.length);
+            assertEquals("Status after the version", 304,
+                    get("/servers?after=" + version).status);
+            assertEquals("Status of an old ETag", 200, get("/servers",
+                    "If-None-Match", "W/\"" + (version - 1) + "\"").status);
+            assertEquals("Not modified", 2, gateway.getNotModifiedCount());
+        } finally {
+            close();
+        }
+    }
+
+    public void testAnswersTheHeldRequestsWhenTheRegistryChanges()
+            throws Exception {
+        try {
+            long version = publish("server-1", 18080);
+            Future<Response> servers = getLater("/servers?after=" + version +
+                    "&wait=" + SvnEdgeDiscoveryGateway.MAX_WAIT);
+            Future<Response> changes = getLater("/changes?since=" + version +
+                    "&wait=" + SvnEdgeDiscoveryGateway.MAX_WAIT);
+            awaitWaiting(2);
+            assertTrue("Answered before the change", !servers.isDone() &&
+                    !changes.isDone());
+
+            long changed = publish("server-2", 18081);
+            Response answer = servers.get(SvnEdgeTests.AWAIT_TIMEOUT,
+                    TimeUnit.MILLISECONDS);
+            assertEquals("Status", 200, answer.status);
+            assertEquals("ETag", "W/\"" + changed + "\"",
+                    answer.headers.get("ETag"));
+            answer = changes.get(SvnEdgeTests.AWAIT_TIMEOUT,
+                    TimeUnit.MILLISECONDS);
+            assertEquals("Status", 200, answer.status);
+            assertTrue("Changes", answer.text().startsWith("{\"from\":" +
+                    version + ",\"to\":" + changed + ",\"reset\":false"));
+            assertTrue("Change", answer.text().contains("\"server-2\""));
+            assertEquals("Held", 0, gateway.getWaitingCount());
+            assertEquals("Timed out", 0, gateway.getTimedOutCount());
+        } finally {
+            close();
+        }
+    }
+
+    public void testAnswersTheHeldRequestsAtTheirDeadline() throws Exception {
+        try {
+            long version = publish("server-1", 18080);
+            long start = System.currentTimeMillis();
+            Future<Response> servers = getLater("/servers?after=" + version +
+                    "&wait=1");
+            Future<Response> changes = getLater("/changes?since=" + version +
+                    "&wait=1");
+            Response answer = servers.get(SvnEdgeTests.AWAIT_TIMEOUT,
+                    TimeUnit.MILLISECONDS);
+            assertTrue("Answered before the deadline",
+                    System.currentTimeMillis() - start >= 1000);
+            assertEquals("Status", 304, answer.status);
+            answer = changes.get(SvnEdgeTests.AWAIT_TIMEOUT,
+                    TimeUnit.MILLISECONDS);
+            assertEquals("Status", 200, answer.status);
+            assertTrue("Changes", answer.text().contains("\"changes\":[]"));
+            assertEquals("Timed out", 2, gateway.getTimedOutCount());
+        } finally {
+            close();
+        }
+    }
+
+    public void testAnswersServiceUnavailableBeyondTheMaxWaiting()
+            throws Exception {
+        try {
+            long version = publish("server-1", 18080);
+            String held = "/servers?after=" + version + "&wait=" +
+                    SvnEdgeDiscoveryGateway.MAX_WAIT;
+            Future<Response> first = getLater(held);
+            Future<Response> second = getLater(held);
+            awaitWaiting(MAX_WAITING);
+
+            Response rejected = get(held);
+            assertEquals("Status", 503, rejected.status);
+            assertEquals("Retry-After", "1",
+                    rejected.headers.get("Retry-After"));
+            assertEquals("Held", MAX_WAITING, gateway.getWaitingCount());
+
+            // the held requests are answered when the gateway stops.
+            gateway.stop();
+            assertEquals("Status", 304, first.get(SvnEdgeTests.AWAIT_TIMEOUT,
+                    TimeUnit.MILLISECONDS).status);
+            assertEquals("Status", 304, second.get(SvnEdgeTests.AWAIT_TIMEOUT,
+                    TimeUnit.MILLISECONDS).status);
+        } finally {
+            close();
+        }
+    }
+
+    public void testCompressesForTheClientsAcceptingGzip() throws Exception {
+        try {
+            publish("server-1", 18080);
+            publish("server-2", 18081);
+            Response plain = get("/servers");
+            assertTrue("Small body", plain.body.length >= 512);
+            assertEquals("Encoding", null,
+                    plain.headers.get("Content-Encoding"));
+
+            Response gzipped = get("/servers", "Accept-Encoding",
+                    "deflate, gzip");
+            assertEquals("Encoding", "gzip",
+                    gzipped.headers.get("Content-Encoding"));
+            assertEquals("Body", plain.text(), gzipped.gunzip());
+            gzipped = get("/servers", "Accept-Encoding", "gzip;q=0.5");
+            assertEquals("Encoding", "gzip",
+                    gzipped.headers.get("Content-Encoding"));
+
+            for (String refused : new String[] {"gzip;q=0", "gzip; q=0.000",
+                    "identity"}) {
+                Response response = get("/servers", "Accept-Encoding",
+                        refused);
+                assertEquals("Encoding for " + refused, null,
+                        response.headers.get("Content-Encoding"));
+                assertEquals("Body for " + refused, plain.text(),
+                        response.text());
+            }
+            assertEquals("Compressed", 2, gateway.getCompressedCount());
+        } finally {
+            close();
+        }
+    }
+
+    public void testRejectsTheMalformedRequests() throws Exception {
+        try {
+            Response response = get("/changes");
+            assertEquals("Status without since", 400, response.status);
+            assertTrue("Error", response.text().contains("since is missing"));
+            response = get("/servers?type=unknown");
+            assertEquals("Status of an unknown type", 400, response.status);
+            assertTrue("Error", response.text().contains(
+                    "Unknown service type unknown"));
+            assertEquals("Status of an unknown type", 400,
+                    get("/changes?since=0&type=unknown").status);
+            assertEquals("Status of an unknown type", 400,
+                    get("/events?type=unknown").status);
+            assertEquals("Status of a negative wait", 400,
+                    get("/servers?wait=-1").status);
+            assertEquals("Held", 0, gateway.getWaitingCount());
+        } finally {
+            close();
+        }
+    }
+
+    public void testAnswersTheHeadersOfAHeadRequest() throws Exception {
+        try {
+            long version = publish("server-1", 18080);
+            Response head = request("HEAD", "/servers");
+            assertEquals("Status", 200, head.status);
+            assertEquals("ETag", "W/\"" + version + "\"",
+                    head.headers.get("ETag"));
+            assertEquals("Content-Type", "application/json; charset=UTF-8",
+                    head.headers.get("Content-Type"));
+            assertEquals("Body", 0, head.body.length);
+            assertEquals("Status of the current version", 304,
+                    request("HEAD", "/servers", "If-None-Match",
+                            head.headers.get("ETag")).status);
+
+            Response post = request("POST", "/servers");
+            assertEquals("Status of a POST", 405, post.status);
+            assertEquals("Allow", "GET, HEAD", post.headers.get("Allow"));
+        } finally {
+            close();
+        }
+    }
+
+    public static void main(String[] args) throws Throwable {
+        SvnEdgeTests.runAll(SvnEdgeDiscoveryGatewayTest.class);
+    }
+}
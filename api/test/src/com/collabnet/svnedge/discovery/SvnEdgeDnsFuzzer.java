@@ -0,0 +1,299 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Fuzzes the {@link SvnEdgeDnsReader} with the packets of the
+ * {@link SvnEdgeDnsWriter}, as they are, mutated and truncated, and with
+ * random bytes. The packets written must be read back with the same
+ * records and names, and the reader must reject any other packet with an
+ * {@link IllegalArgumentException} only, without looping. Exits with 1 at
+ * the first failure, printing the seed to reproduce it, so that the test
+ * target of the build fails.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+final class SvnEdgeDnsFuzzer {
+
+    private static final String[] TYPES = {
+        "_csvn._tcp.local.", "_http._tcp.local.", "_printer._tcp.local.",
+        "_services._dns-sd._udp.local."
+    };
+    private static final String LABEL_CHARS =
+        "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789- _\u00e9";
+
+    private final Random random;
+    private final SvnEdgeDnsWriter writer = new SvnEdgeDnsWriter(1472);
+    private final SvnEdgeDnsReader reader = new SvnEdgeDnsReader();
+    private long packets;
+    private long rejected;
+
+    private SvnEdgeDnsFuzzer(long seed) {
+        this.random = new Random(seed);
+    }
+
+    private String label(int maxLength) {
+        StringBuilder label = new StringBuilder();
+        int length = 1 + random.nextInt(maxLength);
+        for (int i = 0; i < length; i++) {
+            label.append(LABEL_CHARS.charAt(random.nextInt(
+                    LABEL_CHARS.length())));
+        }
+        return label.toString().trim().length() == 0 ? "x" : label.toString();
+    }
+
+    private String type() {
+        return TYPES[random.nextInt(TYPES.length)];
+    }
+
+    /**
+     * @return the name of an instance, whose label may have dots.
+     */
+    private String instance(String type) {
+        String name = label(20);
+        if (random.nextInt(4) == 0) {
+            name += "." + label(10);
+        }
+        return name + "." + type;
+    }
+
+    private String host() {
+        return label(15).replace(' ', '-') + ".local.";
+    }
+
+    private SvnEdgeDnsRecord record() throws Exception {
+        String type = type();
+        int ttl = random.nextInt(5) == 0 ? 0 : random.nextInt(4500);
+        switch (random.nextInt(5)) {
+        case 0:
+            return SvnEdgeDnsRecord.pointer(type, ttl, instance(type));
+        case 1:
+            return SvnEdgeDnsRecord.service(instance(type), ttl,
+                    random.nextInt(65536), random.nextInt(65536),
+                    random.nextInt(65536), host());
+        case 2:
+            byte[] text = new byte[random.nextInt(300)];
+            random.nextBytes(text);
+            return SvnEdgeDnsRecord.text(instance(type), ttl, text);
+        default:
+            byte[] address = new byte[random.nextBoolean() ? 4 : 16];
+            random.nextBytes(address);
+            return SvnEdgeDnsRecord.address(host(), ttl,
+                    InetAddress.getByAddress(address));
+        }
+    }
+
+    /**
+     * Writes a random message.
+     * @param expected receives the records written.
+     * @param names receives the names of the entries written.
+     * @return a copy of the packet.
+     */
+    private byte[] write(List<SvnEdgeDnsRecord> expected, List<String> names)
+            throws Exception {
+        writer.reset(random.nextInt(65536), random.nextBoolean() ?
+                SvnEdgeDnsReader.FLAG_RESPONSE : 0);
+        int questions = random.nextInt(4);
+        for (int i = 0; i < questions; i++) {
+            String name = instance(type());
+            if (writer.addQuestion(name, SvnEdgeDnsRecord.TYPE_ANY,
+                    random.nextBoolean())) {
+                names.add(name);
+            }
+        }
+        int section = SvnEdgeDnsWriter.ANSWER;
+        int records = random.nextInt(12);
+        for (int i = 0; i < records; i++) {
+            section = Math.min(SvnEdgeDnsWriter.ADDITIONAL,
+                    section + (random.nextInt(4) == 0 ? 1 : 0));
+            SvnEdgeDnsRecord record = record().withUnique(random.nextBoolean());
+            if (writer.addRecord(section, record)) {
+                expected.add(record);
+                names.add(record.getName());
+            }
+        }
+        ByteBuffer packet = writer.finish();
+        byte[] bytes = new byte[packet.remaining()];
+        packet.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Checks that the given packet is read back as written.
+     */
+    private void checkRoundTrip(byte[] packet, List<SvnEdgeDnsRecord> expected,
+            List<String> names) {
+        reader.reset(ByteBuffer.wrap(packet));
+        int entry = 0;
+        List<SvnEdgeDnsRecord> records = new ArrayList<SvnEdgeDnsRecord>();
+        while (reader.next()) {
+            String name = names.get(entry++);
+            byte[] key = SvnEdgeDnsReader.keyOf(name);
+            // the names compressed may take the case of a previous one.
+            check(reader.getName().equalsIgnoreCase(name), "name " +
+                    reader.getName() + " instead of " + name);
+            check(reader.nameEquals(key), "nameEquals " + name);
+            check(reader.getNameHash() == SvnEdgeDnsReader.hashOf(key),
+                    "hash of " + name);
+            int dot = name.indexOf('.');
+            if (dot > 0 && name.indexOf('.', dot + 1) > 0) {
+                check(reader.nameEndsWith(SvnEdgeDnsReader.keyOf(
+                        name.substring(dot + 1))), "nameEndsWith " + name);
+            }
+            check(!reader.nameEndsWith(key), "nameEndsWith itself " + name);
+            if (reader.getSection() != SvnEdgeDnsWriter.QUESTION) {
+                records.add(reader.toRecord());
+            }
+        }
+        check(entry == names.size(), entry + " entries instead of " +
+                names.size());
+        for (int i = 0; i < expected.size(); i++) {
+            SvnEdgeDnsRecord read = records.get(i);
+            SvnEdgeDnsRecord written = expected.get(i);
+            check(read.toString().equalsIgnoreCase(written.toString()) &&
+                    read.isUnique() == written.isUnique() &&
+                    Arrays.equals(read.getText(), written.getText()),
+                    "record " + read + " instead of " + written);
+        }
+    }
+
+    /**
+     * Reads the given packet entirely, decoding everything.
+     */
+    private void readAll(byte[] packet) {
+        try {
+            reader.reset(ByteBuffer.wrap(packet));
+            int entries = 0;
+            while (reader.next()) {
+                check(++entries <= 4 * 65535, "too many entries");
+                reader.getNameHash();
+                reader.nameEndsWith(SvnEdgeDnsReader.keyOf(TYPES[0]));
+                if (reader.getSection() == SvnEdgeDnsWriter.QUESTION) {
+                    reader.toQuestion();
+                } else {
+                    reader.toRecord();
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            rejected++;
+        }
+    }
+
+    /**
+     * @return a copy of the given packet with some bits flipped, a pointer
+     * set anywhere, truncated or with inflated counts.
+     */
+    static byte[] mutate(Random random, byte[] packet) {
+        byte[] mutated = packet.clone();
+        switch (random.nextInt(4)) {
+        case 0:
+            // flips some bits.
+            for (int i = random.nextInt(4); i >= 0; i--) {
+                mutated[random.nextInt(mutated.length)] ^= 1 << random.nextInt(8);
+            }
+            return mutated;
+        case 1:
+            // points some bytes anywhere, including forwards and to itself.
+            int offset = random.nextInt(mutated.length - 1);
+            mutated[offset] = (byte) (0xC0 | random.nextInt(64));
+            mutated[offset + 1] = (byte) random.nextInt(256);
+            return mutated;
+        case 2:
+            return Arrays.copyOf(mutated, random.nextInt(mutated.length));
+        default:
+            // inflates the counts of the header.
+            mutated[4 + random.nextInt(8)] = (byte) 0xFF;
+            return mutated;
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+
+    /**
+     * Runs one round of each kind of packet.
+     */
+    private void round() throws Exception {
+        List<SvnEdgeDnsRecord> expected = new ArrayList<SvnEdgeDnsRecord>();
+        List<String> names = new ArrayList<String>();
+        byte[] packet = write(expected, names);
+        checkRoundTrip(packet, expected, names);
+        readAll(packet);
+        for (int i = 0; i < 8; i++) {
+            readAll(mutate(random, packet));
+        }
+        byte[] noise = new byte[random.nextInt(600)];
+        random.nextBytes(noise);
+        readAll(noise);
+        packets += 10;
+    }
+
+    /**
+     * Runs the fuzzer. The options are:
+     * <pre>
+     * -rounds N   the number of rounds of 10 packets (default 100000)
+     * -seed S     the seed of the first round (default the current time)
+     * </pre>
+     * @param args are the options.
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i], args[i + 1]);
+        }
+        long rounds = options.containsKey("-rounds") ?
+                Long.parseLong(options.get("-rounds")) : 100000;
+        long seed = options.containsKey("-seed") ?
+                Long.parseLong(options.get("-seed")) :
+                    System.currentTimeMillis();
+        long start = System.currentTimeMillis();
+        long packets = 0;
+        long rejected = 0;
+        for (long round = 0; round < rounds; round++) {
+            // each round has its own seed, to be reproduced alone.
+            SvnEdgeDnsFuzzer fuzzer = new SvnEdgeDnsFuzzer(seed + round);
+            try {
+                fuzzer.round();
+            } catch (Throwable e) {
+                // any error, including a stack overflow of the reader.
+                System.err.println("Failed with -seed " + (seed + round) +
+                        " -rounds 1");
+                e.printStackTrace();
+                System.exit(1);
+            }
+            packets += fuzzer.packets;
+            rejected += fuzzer.rejected;
+        }
+        System.out.println("Fuzzed " + packets + " packets in " +
+                (System.currentTimeMillis() - start) + " ms from seed " + seed +
+                ": " + rejected + " rejected, no failures");
+    }
+}
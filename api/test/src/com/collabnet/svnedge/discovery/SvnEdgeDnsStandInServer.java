@@ -0,0 +1,626 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An in-process DNS server authoritative for a single zone, standing in for
+ * the DNS server of an {@link SvnEdgeWideAreaDomain} in the load generator
+ * and the tests of the {@link SvnEdgeUnicastDnsSd} engine. It answers the
+ * queries over UDP and TCP, truncating the UDP responses larger than the
+ * size announced by the client, and applies the dynamic updates adding and
+ * deleting records, with the name-not-in-use prerequisite and the EDNS0
+ * lease used by the engine. The zone is kept in memory, without
+ * authentication or delegation. A single thread serves the requests.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+final class SvnEdgeDnsStandInServer {
+
+    private static final Logger log = Logger.getLogger(
+            SvnEdgeDnsStandInServer.class);
+    /**
+     * The size of a UDP response to a client without EDNS0.
+     */
+    private static final int DEFAULT_UDP_SIZE = 512;
+    private static final int MAX_UDP_SIZE = 9000;
+    private static final int MAX_MESSAGE_SIZE = 0xFFFF;
+    private static final SvnEdgeThreadFactory threads =
+            new SvnEdgeThreadFactory("SvnEdge-Dns-StandIn-");
+
+    /**
+     * A record of the zone, removed when its lease ends.
+     */
+    private static final class Entry {
+        private final SvnEdgeDnsRecord record;
+        /**
+         * The end of the lease, or <code>Long.MAX_VALUE</code>.
+         */
+        private final long expiry;
+
+        private Entry(SvnEdgeDnsRecord record, long expiry) {
+            this.record = record;
+            this.expiry = expiry;
+        }
+    }
+
+    /**
+     * A change of a dynamic update.
+     */
+    private static final class Change {
+        private final String name;
+        private final int type;
+        private final int recordClass;
+        /**
+         * The record added or deleted, <code>null</code> for the deletion of
+         * a set.
+         */
+        private final SvnEdgeDnsRecord record;
+
+        private Change(String name, int type, int recordClass,
+                SvnEdgeDnsRecord record) {
+            this.name = name;
+            this.type = type;
+            this.recordClass = recordClass;
+            this.record = record;
+        }
+    }
+
+    /**
+     * A TCP connection, carrying messages prefixed by their length.
+     */
+    private static final class Connection {
+        private final ByteBuffer length = ByteBuffer.allocate(2);
+        private ByteBuffer in;
+        private ByteBuffer out;
+    }
+
+    /**
+     * The zone, in lower case with the final dot.
+     */
+    private final String zone;
+    /**
+     * The records by lower case name.
+     */
+    private final Map<String, List<Entry>> records =
+            new LinkedHashMap<String, List<Entry>>();
+    private final DatagramChannel udp;
+    private final ServerSocketChannel tcp;
+    private final Selector selector;
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(
+            MAX_MESSAGE_SIZE);
+    private final SvnEdgeDnsReader reader = new SvnEdgeDnsReader();
+    private final SvnEdgeDnsWriter writer =
+            new SvnEdgeDnsWriter(MAX_MESSAGE_SIZE);
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile long queries;
+    private volatile long truncatedResponses;
+    private volatile long updatesApplied;
+    private volatile long updatesRejected;
+
+    /**
+     * Starts a new server on an ephemeral port of the given address.
+     * @param zone is the zone of the server, such as "svnedge.test".
+     * @param address is the address the server listens to, such as the
+     * loopback address.
+     * @throws IOException if the sockets can't be bound.
+     */
+    SvnEdgeDnsStandInServer(String zone, InetAddress address)
+            throws IOException {
+        this.zone = new SvnEdgeWideAreaDomain(zone, new InetSocketAddress(
+                address, 0)).getDomain();
+        this.selector = Selector.open();
+        this.udp = DatagramChannel.open();
+        this.tcp = ServerSocketChannel.open();
+        try {
+            udp.bind(new InetSocketAddress(address, 0));
+            // the TCP fallback uses the port of the datagrams.
+            tcp.bind(udp.getLocalAddress());
+            udp.configureBlocking(false);
+            tcp.configureBlocking(false);
+            udp.register(selector, SelectionKey.OP_READ);
+            tcp.register(selector, SelectionKey.OP_ACCEPT);
+
+        } catch (IOException e) {
+            close(udp);
+            close(tcp);
+            selector.close();
+            throw e;
+        }
+        this.thread = threads.newThread(new Runnable() {
+            public void run() {
+                loop();
+            }
+        });
+        this.thread.start();
+        log.debug("Started the DNS stand-in server of " + this.zone +
+                " at " + getAddress());
+    }
+
+    /**
+     * @return the address of the server, for UDP and TCP.
+     */
+    InetSocketAddress getAddress() {
+        return new InetSocketAddress(udp.socket().getLocalAddress(),
+                udp.socket().getLocalPort());
+    }
+
+    /**
+     * @param pollInterval is the interval between the polls of the clients.
+     * @return the domain served, pointing to this server.
+     */
+    SvnEdgeWideAreaDomain getDomain(long pollInterval) {
+        return new SvnEdgeWideAreaDomain(zone, getAddress())
+                .withPollInterval(pollInterval);
+    }
+
+    private void loop() {
+        try {
+            while (running) {
+                selector.select();
+                Iterator<SelectionKey> keys =
+                    selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.channel() == udp) {
+                        receive();
+                    } else if (key.channel() == tcp) {
+                        accept();
+                    } else {
+                        serve(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (running) {
+                log.error("The DNS stand-in server of " + zone + " stopped",
+                        e);
+            }
+        } finally {
+            running = false;
+            for (SelectionKey key : selector.keys()) {
+                close(key.channel());
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                log.debug("Failed to close the selector", e);
+            }
+        }
+    }
+
+    private void receive() throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            SocketAddress from = udp.receive(receiveBuffer);
+            if (from == null) {
+                return;
+            }
+            receiveBuffer.flip();
+            ByteBuffer response = handle(receiveBuffer, false);
+            if (response != null) {
+                udp.send(response, from);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel socket;
+        while ((socket = tcp.accept()) != null) {
+            socket.configureBlocking(false);
+            socket.register(selector, SelectionKey.OP_READ, new Connection());
+        }
+    }
+
+    /**
+     * Reads the requests of a TCP connection and writes their responses.
+     */
+    private void serve(SelectionKey key) {
+        SocketChannel socket = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        try {
+            if (key.isWritable()) {
+                socket.write(connection.out);
+                if (connection.out.hasRemaining()) {
+                    return;
+                }
+                connection.out = null;
+                key.interestOps(SelectionKey.OP_READ);
+            }
+            if (!key.isReadable()) {
+                return;
+            }
+            if (connection.in == null) {
+                if (socket.read(connection.length) < 0) {
+                    close(socket);
+                    return;
+                }
+                if (connection.length.hasRemaining()) {
+                    return;
+                }
+                connection.in = ByteBuffer.allocate(
+                        connection.length.getShort(0) & 0xFFFF);
+            }
+            if (socket.read(connection.in) < 0) {
+                close(socket);
+                return;
+            }
+            if (connection.in.hasRemaining()) {
+                return;
+            }
+            connection.in.flip();
+            ByteBuffer response = handle(connection.in, true);
+            connection.in = null;
+            connection.length.clear();
+            if (response == null) {
+                return;
+            }
+            connection.out = ByteBuffer.allocate(response.remaining() + 2);
+            connection.out.putShort((short) response.remaining());
+            connection.out.put(response);
+            connection.out.flip();
+            socket.write(connection.out);
+            if (connection.out.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else {
+                connection.out = null;
+            }
+        } catch (IOException e) {
+            log.debug("The DNS connection failed: " + e.getMessage());
+            close(socket);
+        }
+    }
+
+    /**
+     * @param request is a received message.
+     * @param overTcp whether the message was received over TCP.
+     * @return the response, or <code>null</code> if the message is ignored.
+     */
+    private ByteBuffer handle(ByteBuffer request, boolean overTcp) {
+        long now = System.currentTimeMillis();
+        purge(now);
+        int id;
+        int flags;
+        try {
+            reader.reset(request);
+            id = reader.getId();
+            flags = reader.getFlags();
+            if (reader.isResponse()) {
+                return null;
+            }
+            if (reader.getOpcode() == SvnEdgeDnsReader.OPCODE_UPDATE) {
+                return update(id, now);
+            }
+            if (reader.getOpcode() != SvnEdgeDnsReader.OPCODE_QUERY) {
+                return respond(id, flags,
+                        SvnEdgeDnsReader.RCODE_NOT_IMPLEMENTED);
+            }
+            return query(id, flags, overTcp);
+
+        } catch (IllegalArgumentException e) {
+            log.debug("Ignoring a malformed DNS request: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return the response without records, with the given response code.
+     */
+    private ByteBuffer respond(int id, int flags, int rcode) {
+        writer.reset(id, SvnEdgeDnsReader.FLAG_RESPONSE | (flags & 0x7900) |
+                rcode);
+        return writer.finish();
+    }
+
+    /**
+     * Answers the question of the current message.
+     */
+    private ByteBuffer query(int id, int flags, boolean overTcp) {
+        queries++;
+        SvnEdgeDnsReader.Question question = null;
+        int size = DEFAULT_UDP_SIZE;
+        while (reader.next()) {
+            if (reader.getSection() == SvnEdgeDnsWriter.QUESTION) {
+                if (question == null) {
+                    question = reader.toQuestion();
+                }
+            } else if (reader.getType() == SvnEdgeDnsRecord.TYPE_OPT) {
+                size = Math.min(MAX_UDP_SIZE, Math.max(DEFAULT_UDP_SIZE,
+                        reader.getRecordClass()));
+            }
+        }
+        int responseFlags = SvnEdgeDnsReader.FLAG_RESPONSE |
+                SvnEdgeDnsReader.FLAG_AUTHORITATIVE |
+                (flags & SvnEdgeDnsReader.FLAG_RECURSION_DESIRED);
+        if (question == null) {
+            return respond(id, flags, SvnEdgeDnsReader.RCODE_FORMAT_ERROR);
+        }
+        if (!isInZone(question.getName())) {
+            return respond(id, flags, SvnEdgeDnsReader.RCODE_REFUSED);
+        }
+        List<Entry> entries = records.get(question.getName().toLowerCase());
+        int rcode = entries == null ? SvnEdgeDnsReader.RCODE_NAME_ERROR :
+            SvnEdgeDnsReader.RCODE_NO_ERROR;
+        writer.reset(id, responseFlags | rcode);
+        writer.addQuestion(question.getName(), question.getType(), false);
+        boolean complete = true;
+        if (entries != null) {
+            for (Entry entry : entries) {
+                if (question.getType() == SvnEdgeDnsRecord.TYPE_ANY ||
+                        question.getType() == entry.record.getType()) {
+                    complete &= writer.addRecord(SvnEdgeDnsWriter.ANSWER,
+                            entry.record);
+                }
+            }
+        }
+        ByteBuffer response = writer.finish();
+        if (complete && (overTcp || response.remaining() <= size)) {
+            return response;
+        }
+        // the client asks again over TCP.
+        truncatedResponses++;
+        writer.reset(id, responseFlags | SvnEdgeDnsReader.FLAG_TRUNCATED |
+                rcode);
+        writer.addQuestion(question.getName(), question.getType(), false);
+        return writer.finish();
+    }
+
+    /**
+     * Applies the dynamic update of the current message, if its
+     * prerequisites hold.
+     */
+    private ByteBuffer update(int id, long now) {
+        int flags = SvnEdgeDnsReader.OPCODE_UPDATE <<
+                SvnEdgeDnsReader.OPCODE_SHIFT;
+        String zoneName = null;
+        List<String> notInUse = new ArrayList<String>();
+        List<Change> changes = new ArrayList<Change>();
+        long lease = 0;
+        while (reader.next()) {
+            String name = reader.getName();
+            switch (reader.getSection()) {
+            case SvnEdgeDnsWriter.QUESTION:
+                if (zoneName != null ||
+                        reader.getType() != SvnEdgeDnsRecord.TYPE_SOA) {
+                    return reject(id, flags,
+                            SvnEdgeDnsReader.RCODE_FORMAT_ERROR);
+                }
+                zoneName = name;
+                break;
+            case SvnEdgeDnsWriter.ANSWER:
+                if (reader.getRecordClass() != SvnEdgeDnsRecord.CLASS_NONE ||
+                        reader.getType() != SvnEdgeDnsRecord.TYPE_ANY) {
+                    // only the prerequisites used by the engine.
+                    return reject(id, flags,
+                            SvnEdgeDnsReader.RCODE_NOT_IMPLEMENTED);
+                }
+                notInUse.add(name);
+                break;
+            case SvnEdgeDnsWriter.AUTHORITY:
+                int recordClass = reader.getRecordClass();
+                SvnEdgeDnsRecord record = null;
+                if (recordClass != SvnEdgeDnsRecord.CLASS_ANY) {
+                    record = reader.toRecord();
+                    if (record == null) {
+                        return reject(id, flags,
+                                SvnEdgeDnsReader.RCODE_NOT_IMPLEMENTED);
+                    }
+                    record = record.withUnique(false);
+                }
+                changes.add(new Change(name, reader.getType(), recordClass,
+                        record));
+                break;
+            default:
+                if (reader.getType() == SvnEdgeDnsRecord.TYPE_OPT) {
+                    lease = leaseOf(reader.getText());
+                }
+            }
+        }
+        if (zoneName == null) {
+            return reject(id, flags, SvnEdgeDnsReader.RCODE_FORMAT_ERROR);
+        }
+        if (!zoneName.equalsIgnoreCase(zone)) {
+            return reject(id, flags, SvnEdgeDnsReader.RCODE_NOT_ZONE);
+        }
+        for (Change change : changes) {
+            if (!isInZone(change.name)) {
+                return reject(id, flags, SvnEdgeDnsReader.RCODE_NOT_ZONE);
+            }
+        }
+        for (String name : notInUse) {
+            if (records.containsKey(name.toLowerCase())) {
+                return reject(id, flags, SvnEdgeDnsReader.RCODE_NAME_EXISTS);
+            }
+        }
+        long expiry = lease > 0 ? now + TimeUnit.SECONDS.toMillis(lease) :
+            Long.MAX_VALUE;
+        for (Change change : changes) {
+            apply(change, expiry);
+        }
+        updatesApplied++;
+        writer.reset(id, SvnEdgeDnsReader.FLAG_RESPONSE | flags);
+        return writer.finish();
+    }
+
+    private ByteBuffer reject(int id, int flags, int rcode) {
+        updatesRejected++;
+        return respond(id, flags, rcode);
+    }
+
+    /**
+     * @param options are the options of an EDNS0 record.
+     * @return the lease of the update lease option in seconds, or 0.
+     */
+    private static long leaseOf(byte[] options) {
+        ByteBuffer buffer = ByteBuffer.wrap(options);
+        while (buffer.remaining() >= 4) {
+            int code = buffer.getShort() & 0xFFFF;
+            int length = buffer.getShort() & 0xFFFF;
+            if (length > buffer.remaining()) {
+                return 0;
+            }
+            if (code == SvnEdgeDnsWriter.OPTION_UPDATE_LEASE && length >= 4) {
+                return buffer.getInt(buffer.position()) & 0xFFFFFFFFL;
+            }
+            buffer.position(buffer.position() + length);
+        }
+        return 0;
+    }
+
+    private void apply(Change change, long expiry) {
+        String key = change.name.toLowerCase();
+        List<Entry> entries = records.get(key);
+        if (change.recordClass == SvnEdgeDnsRecord.CLASS_IN) {
+            if (entries == null) {
+                entries = new ArrayList<Entry>();
+                records.put(key, entries);
+            }
+            Iterator<Entry> iterator = entries.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().record.hasSameData(change.record)) {
+                    // renewed with the new lease.
+                    iterator.remove();
+                }
+            }
+            entries.add(new Entry(change.record, expiry));
+            return;
+        }
+        if (entries == null) {
+            return;
+        }
+        Iterator<Entry> iterator = entries.iterator();
+        while (iterator.hasNext()) {
+            SvnEdgeDnsRecord record = iterator.next().record;
+            if (change.recordClass == SvnEdgeDnsRecord.CLASS_NONE ?
+                    record.hasSameData(change.record) :
+                    change.type == SvnEdgeDnsRecord.TYPE_ANY ||
+                        change.type == record.getType()) {
+                iterator.remove();
+            }
+        }
+        if (entries.isEmpty()) {
+            records.remove(key);
+        }
+    }
+
+    /**
+     * Removes the records whose lease ended.
+     */
+    private void purge(long now) {
+        Iterator<List<Entry>> lists = records.values().iterator();
+        while (lists.hasNext()) {
+            List<Entry> entries = lists.next();
+            Iterator<Entry> iterator = entries.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().expiry <= now) {
+                    iterator.remove();
+                }
+            }
+            if (entries.isEmpty()) {
+                lists.remove();
+            }
+        }
+    }
+
+    private boolean isInZone(String name) {
+        String lower = name.toLowerCase();
+        return lower.equals(zone) || lower.endsWith("." + zone);
+    }
+
+    private static void close(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.debug("Failed to close the DNS channel", e);
+        }
+    }
+
+    /**
+     * @return the number of queries answered.
+     */
+    long getQueries() {
+        return this.queries;
+    }
+
+    /**
+     * @return the number of UDP responses truncated.
+     */
+    long getTruncatedResponses() {
+        return this.truncatedResponses;
+    }
+
+    /**
+     * @return the number of dynamic updates applied.
+     */
+    long getUpdatesApplied() {
+        return this.updatesApplied;
+    }
+
+    /**
+     * @return the number of dynamic updates rejected.
+     */
+    long getUpdatesRejected() {
+        return this.updatesRejected;
+    }
+
+    /**
+     * Stops the server.
+     */
+    void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + zone + ", " + queries +
+                " queries, " + truncatedResponses + " truncated, " +
+                updatesApplied + " updates applied, " + updatesRejected +
+                " rejected]";
+    }
+}
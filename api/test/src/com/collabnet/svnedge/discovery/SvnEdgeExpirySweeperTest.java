@@ -0,0 +1,160 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import static com.collabnet.svnedge.discovery.SvnEdgeTests.assertEquals;
+import static com.collabnet.svnedge.discovery.SvnEdgeTests.assertTrue;
+import static com.collabnet.svnedge.discovery.SvnEdgeTests.await;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The tests of the {@link SvnEdgeExpirySweeper}, with records whose state is
+ * set by the tests: the servers whose records expired are reported stopped,
+ * the stale ones are queried and the fresh ones kept.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public final class SvnEdgeExpirySweeperTest {
+
+    /**
+     * The precision of the checks of the tests, in milliseconds.
+     */
+    private static final long TICK = 10;
+    /**
+     * The TTL of the records of the tests, in milliseconds, checked after
+     * the minimum delay of a second.
+     */
+    private static final long TTL = 1000;
+
+    private final InetAddress loopback;
+    private final SvnEdgeExpirySweeper sweeper = new SvnEdgeExpirySweeper(TICK);
+    /**
+     * The state of the records of each server, by service name.
+     */
+    private final Map<String, SvnEdgeExpirySweeper.RecordState> states =
+            new ConcurrentHashMap<String, SvnEdgeExpirySweeper.RecordState>();
+    private final List<String> refreshed = new CopyOnWriteArrayList<String>();
+    private final List<String> expired = new CopyOnWriteArrayList<String>();
+    private final AtomicInteger checks = new AtomicInteger();
+
+    public SvnEdgeExpirySweeperTest() throws Exception {
+        this.loopback = InetAddress.getByName("127.0.0.1");
+        sweeper.attach(new SvnEdgeExpirySweeper.Probe() {
+            public long getTtl(SvnEdgeServerInfo serverInfo) {
+                return TTL;
+            }
+
+            public SvnEdgeExpirySweeper.RecordState getRecordState(
+                    SvnEdgeServerInfo serverInfo) {
+                checks.incrementAndGet();
+                return states.get(serverInfo.getServiceName());
+            }
+
+            public void refresh(SvnEdgeServerInfo serverInfo) {
+                refreshed.add(serverInfo.getServiceName());
+            }
+        }, new SvnEdgeExpirySweeper.Sink() {
+            public void expired(SvnEdgeServerInfo serverInfo) {
+                expired.add(serverInfo.getServiceName());
+            }
+        });
+    }
+
+    private SvnEdgeServerInfo track(String name,
+            SvnEdgeExpirySweeper.RecordState state) {
+        SvnEdgeServerInfo serverInfo = SvnEdgeTests.newServer(name, loopback,
+                "http://127.0.0.1:18080/csvn", 18080);
+        states.put(name, state);
+        sweeper.track(serverInfo);
+        return serverInfo;
+    }
+
+    public void testReportsTheServersWhoseRecordsExpired() throws Exception {
+        try {
+            long start = System.currentTimeMillis();
+            track("server-1", SvnEdgeExpirySweeper.RecordState.EXPIRED);
+            await("The server did not expire", new SvnEdgeTests.Condition() {
+                public boolean holds() {
+                    return !expired.isEmpty();
+                }
+            });
+            assertTrue("Expired before its check", System.currentTimeMillis() -
+                    start >= TTL - TICK);
+            assertEquals("Expired", "[server-1]", expired.toString());
+            assertEquals("Expired count", 1, sweeper.getExpiredCount());
+            assertEquals("Tracked", 0, sweeper.getTrackedCount());
+        } finally {
+            sweeper.shutdown();
+        }
+    }
+
+    public void testQueriesTheStaleRecordsAndKeepsTheFreshOnes()
+            throws Exception {
+        try {
+            track("fresh", SvnEdgeExpirySweeper.RecordState.FRESH);
+            track("stale", SvnEdgeExpirySweeper.RecordState.STALE);
+            await("The stale records were not queried",
+                    new SvnEdgeTests.Condition() {
+                public boolean holds() {
+                    return !refreshed.isEmpty();
+                }
+            });
+            assertEquals("Refreshed", "[stale]", refreshed.toString());
+            assertEquals("Refreshed count", 1, sweeper.getRefreshedCount());
+            assertEquals("Tracked", 2, sweeper.getTrackedCount());
+
+            // the query was not answered.
+            states.put("stale", SvnEdgeExpirySweeper.RecordState.EXPIRED);
+            await("The stale server did not expire",
+                    new SvnEdgeTests.Condition() {
+                public boolean holds() {
+                    return !expired.isEmpty();
+                }
+            });
+            assertEquals("Expired", "[stale]", expired.toString());
+            assertEquals("Tracked", 1, sweeper.getTrackedCount());
+        } finally {
+            sweeper.shutdown();
+        }
+    }
+
+    public void testNeverChecksTheServersUntracked() throws Exception {
+        try {
+            SvnEdgeServerInfo serverInfo = track("server-1",
+                    SvnEdgeExpirySweeper.RecordState.EXPIRED);
+            sweeper.untrack(serverInfo);
+            assertEquals("Tracked", 0, sweeper.getTrackedCount());
+            Thread.sleep(TTL + 20 * TICK);
+            assertEquals("Checks", 0, checks.get());
+            assertEquals("Expired", 0, expired.size());
+        } finally {
+            sweeper.shutdown();
+        }
+    }
+
+    public static void main(String[] args) throws Throwable {
+        SvnEdgeTests.runAll(SvnEdgeExpirySweeperTest.class);
+    }
+}
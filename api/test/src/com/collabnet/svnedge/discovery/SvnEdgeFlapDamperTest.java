@@ -0,0 +1,196 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import static com.collabnet.svnedge.discovery.SvnEdgeTests.assertEquals;
+import static com.collabnet.svnedge.discovery.SvnEdgeTests.assertTrue;
+import static com.collabnet.svnedge.discovery.SvnEdgeTests.await;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServerEvent;
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceType;
+
+/**
+ * The tests of the {@link SvnEdgeFlapDamper}: the hold-down of the
+ * shutdowns, the penalty damping the servers that flap and their reuse once
+ * the penalty decays, recording the events reported to the sink.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public final class SvnEdgeFlapDamperTest {
+
+    /**
+     * The hold-down window of the tests, in milliseconds.
+     */
+    private static final long HOLD_DOWN = 200;
+    /**
+     * The half-life of the penalty of the tests, in milliseconds.
+     */
+    private static final long HALF_LIFE = 200;
+    /**
+     * Damps a server at its third transition.
+     */
+    private static final double SUPPRESS_THRESHOLD = 2500;
+    private static final double REUSE_THRESHOLD = 750;
+
+    private final InetAddress loopback;
+    /**
+     * The events reported to the sink, in order.
+     */
+    private final List<SvnEdgeServerInfo> reported =
+            new CopyOnWriteArrayList<SvnEdgeServerInfo>();
+    /**
+     * Whether an event was reported holding the monitor of the damper.
+     */
+    private volatile boolean reportedHoldingTheLock;
+
+    public SvnEdgeFlapDamperTest() throws Exception {
+        this.loopback = InetAddress.getByName("127.0.0.1");
+    }
+
+    private SvnEdgeFlapDamper newDamper(long holdDown) {
+        final SvnEdgeFlapDamper damper = new SvnEdgeFlapDamper(holdDown,
+                HALF_LIFE, SUPPRESS_THRESHOLD, REUSE_THRESHOLD);
+        damper.attach(new SvnEdgeFlapDamper.Sink() {
+            public void publish(SvnEdgeServerInfo serverInfo) {
+                if (Thread.holdsLock(damper)) {
+                    reportedHoldingTheLock = true;
+                }
+                reported.add(serverInfo);
+            }
+        });
+        return damper;
+    }
+
+    private SvnEdgeServerInfo running() {
+        return SvnEdgeTests.newServer("server-1", loopback,
+                "http://127.0.0.1:18080/csvn", 18080);
+    }
+
+    private SvnEdgeServerInfo shutdown() {
+        return running().withEvent(SvnEdgeServerEvent.SERVER_SHUTDOWN);
+    }
+
+    private SvnEdgeServerEvent lastEvent() {
+        return reported.get(reported.size() - 1).getEvent();
+    }
+
+    public void testReportsAShutdownAfterTheHoldDown() throws Exception {
+        SvnEdgeFlapDamper damper = newDamper(HOLD_DOWN);
+        try {
+            damper.submit(running());
+            damper.submit(shutdown());
+            assertEquals("Events reported within the hold-down", 1,
+                    reported.size());
+            await("The shutdown is not reported", new SvnEdgeTests.Condition() {
+                public boolean holds() {
+                    return reported.size() == 2;
+                }
+            });
+            assertEquals("Event", SvnEdgeServerEvent.SERVER_SHUTDOWN,
+                    lastEvent());
+            assertTrue("Reported holding the lock", !reportedHoldingTheLock);
+        } finally {
+            damper.shutdown();
+        }
+    }
+
+    public void testHidesAShutdownRunningAgainWithinTheHoldDown()
+            throws Exception {
+        SvnEdgeFlapDamper damper = newDamper(HOLD_DOWN);
+        try {
+            damper.submit(running());
+            damper.submit(shutdown());
+            damper.submit(running());
+            Thread.sleep(2 * HOLD_DOWN);
+            for (SvnEdgeServerInfo serverInfo : reported) {
+                assertEquals("Event", SvnEdgeServerEvent.SERVER_RUNNING,
+                        serverInfo.getEvent());
+            }
+            assertEquals("Suppressed", 1, damper.getSuppressedEventCount());
+        } finally {
+            damper.shutdown();
+        }
+    }
+
+    public void testHidesTheShutdownOfAServerNeverReported() {
+        SvnEdgeFlapDamper damper = newDamper(0);
+        try {
+            damper.submit(shutdown());
+            assertEquals("Events reported", 0, reported.size());
+            assertEquals("Suppressed", 1, damper.getSuppressedEventCount());
+        } finally {
+            damper.shutdown();
+        }
+    }
+
+    public void testDampsAFlappingServerUntilItsPenaltyDecays()
+            throws Exception {
+        final SvnEdgeFlapDamper damper = newDamper(0);
+        try {
+            damper.submit(running());
+            damper.submit(shutdown());
+            damper.submit(running());
+            assertEquals("Events reported before the damping", 3,
+                    reported.size());
+            damper.submit(shutdown());
+            damper.submit(running());
+            assertTrue("Not damped", damper.isDamped(SvnEdgeServiceType.CSVN,
+                    "server-1"));
+            assertEquals("Damped servers", 1, damper.getDampedCount());
+            assertEquals("Events reported while damped", 3, reported.size());
+            assertEquals("Suppressed", 2, damper.getSuppressedEventCount());
+
+            // the latest state is reported once the damper lock is released.
+            await("The server reused is not reported",
+                    new SvnEdgeTests.Condition() {
+                public boolean holds() {
+                    return !damper.isDamped(SvnEdgeServiceType.CSVN,
+                            "server-1") && reported.size() == 4;
+                }
+            });
+            assertEquals("Latest state", SvnEdgeServerEvent.SERVER_RUNNING,
+                    lastEvent());
+            assertTrue("Penalty over the reuse threshold", damper.getPenalty(
+                    SvnEdgeServiceType.CSVN, "server-1") < REUSE_THRESHOLD);
+            assertTrue("Reported holding the lock", !reportedHoldingTheLock);
+        } finally {
+            damper.shutdown();
+        }
+    }
+
+    public void testReportsWithoutHoldingTheLock() {
+        SvnEdgeFlapDamper damper = newDamper(0);
+        try {
+            damper.submit(running());
+            damper.submit(shutdown());
+            assertEquals("Events reported", 2, reported.size());
+            assertTrue("Reported holding the lock", !reportedHoldingTheLock);
+        } finally {
+            damper.shutdown();
+        }
+    }
+
+    public static void main(String[] args) throws Throwable {
+        SvnEdgeTests.runAll(SvnEdgeFlapDamperTest.class);
+    }
+}
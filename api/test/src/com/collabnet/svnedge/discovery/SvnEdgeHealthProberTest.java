@@ -0,0 +1,348 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import static com.collabnet.svnedge.discovery.SvnEdgeTests.assertEquals;
+import static com.collabnet.svnedge.discovery.SvnEdgeTests.assertTrue;
+import static com.collabnet.svnedge.discovery.SvnEdgeTests.await;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The tests of the {@link SvnEdgeHealthProber}, probing stand-in web consoles
+ * on the loopback interface whose status code is changed by the tests, so
+ * that the servers go through all the {@link SvnEdgeHealthState}s.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public final class SvnEdgeHealthProberTest {
+
+    /**
+     * The interval between the probes of the tests, in milliseconds.
+     */
+    private static final long INTERVAL = 100;
+    /**
+     * The timeout of the probes of the tests, in milliseconds.
+     */
+    private static final long TIMEOUT = 500;
+    private static final int THRESHOLD = 3;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final InetAddress LOOPBACK;
+    static {
+        try {
+            LOOPBACK = InetAddress.getByName("127.0.0.1");
+        } catch (IOException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * A web console on the loopback interface answering with the status code
+     * set by the test.
+     */
+    private static final class Console {
+        private final HttpServer server;
+        private volatile int statusCode = 200;
+
+        private Console() throws IOException {
+            this.server = HttpServer.create(new InetSocketAddress(LOOPBACK, 0),
+                    0);
+            this.server.createContext("/", new HttpHandler() {
+                public void handle(HttpExchange exchange) throws IOException {
+                    exchange.sendResponseHeaders(statusCode, -1);
+                    exchange.close();
+                }
+            });
+            this.server.start();
+        }
+
+        private String getUrl() {
+            return "http://" + LOOPBACK.getHostAddress() + ":" +
+                    server.getAddress().getPort() + "/csvn";
+        }
+
+        private void stop() {
+            server.stop(0);
+        }
+    }
+
+    private static SvnEdgeHealthProber newProber() throws IOException {
+        return new SvnEdgeHealthProber(INTERVAL, TIMEOUT, 4, THRESHOLD);
+    }
+
+    private static SvnEdgeServerInfo newServer(String name, String url) {
+        return SvnEdgeTests.newServer(name, LOOPBACK, url,
+                Integer.parseInt(url.replaceAll(".*:(\\d+).*", "$1")));
+    }
+
+    /**
+     * Waits until the given server reaches the given state.
+     */
+    private static SvnEdgeServerHealth awaitState(
+            final SvnEdgeHealthProber prober, final SvnEdgeServerInfo server,
+            final SvnEdgeHealthState state) throws Exception {
+        await(server.getServiceName() + " never became " + state,
+                new SvnEdgeTests.Condition() {
+            public boolean holds() {
+                return prober.getHealth(server).getState() == state;
+            }
+        });
+        return prober.getHealth(server);
+    }
+
+    /**
+     * @return the url of a port of the loopback interface nobody listens to.
+     */
+    private static String closedUrl() throws IOException {
+        ServerSocket socket = new ServerSocket(0, 1, LOOPBACK);
+        int port = socket.getLocalPort();
+        socket.close();
+        return "http://" + LOOPBACK.getHostAddress() + ":" + port + "/csvn";
+    }
+
+    public void testParseStatusCode() {
+        assertEquals("complete status line", 200,
+                SvnEdgeHealthProber.parseStatusCode(response(
+                        "HTTP/1.1 200 OK\r\nServer: x\r\n")));
+        assertEquals("status without reason", 503,
+                SvnEdgeHealthProber.parseStatusCode(response(
+                        "HTTP/1.0 503\n")));
+        assertEquals("incomplete status line", 0,
+                SvnEdgeHealthProber.parseStatusCode(response("HTTP/1.1 2")));
+        assertEquals("not http", -1,
+                SvnEdgeHealthProber.parseStatusCode(response("SSH-2.0\r\n")));
+        assertEquals("invalid status", -1,
+                SvnEdgeHealthProber.parseStatusCode(response(
+                        "HTTP/1.1 999 Nope\r\n")));
+        assertEquals("not a number", -1,
+                SvnEdgeHealthProber.parseStatusCode(response(
+                        "HTTP/1.1 OK\r\n")));
+    }
+
+    private static ByteBuffer response(String text) {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        buffer.put(text.getBytes(ASCII));
+        return buffer;
+    }
+
+    public void testHealthyDegradedUnhealthyAndHealthyAgain()
+            throws Exception {
+        SvnEdgeHealthProber prober = newProber();
+        Console console = new Console();
+        try {
+            SvnEdgeServerInfo server = newServer("flaky", console.getUrl());
+            prober.track(server);
+            SvnEdgeServerHealth health = prober.getHealth(server);
+            assertTrue("not probed yet: " + health,
+                    health.getProbeCount() > 0 ||
+                    health.getState() == SvnEdgeHealthState.UNKNOWN);
+
+            health = awaitState(prober, server, SvnEdgeHealthState.HEALTHY);
+            assertEquals("status", 200, health.getLastStatusCode());
+            assertTrue("latency", health.getAverageLatency() >= 0 &&
+                    health.getLastLatency() >= 0);
+            assertEquals("failures", 0, health.getConsecutiveFailures());
+
+            console.statusCode = 503;
+            health = awaitState(prober, server, SvnEdgeHealthState.DEGRADED);
+            assertTrue("below the threshold: " + health,
+                    health.getConsecutiveFailures() > 0 &&
+                    health.getConsecutiveFailures() < THRESHOLD);
+            health = awaitState(prober, server,
+                    SvnEdgeHealthState.UNHEALTHY);
+            assertTrue("at the threshold: " + health,
+                    health.getConsecutiveFailures() >= THRESHOLD);
+            assertEquals("status", 503, health.getLastStatusCode());
+
+            console.statusCode = 200;
+            health = awaitState(prober, server, SvnEdgeHealthState.HEALTHY);
+            assertEquals("failures in a row", 0,
+                    health.getConsecutiveFailures());
+            assertTrue("failures kept: " + health,
+                    health.getFailureCount() >= THRESHOLD);
+            assertTrue("failed probes counted",
+                    prober.getFailedCount() >= THRESHOLD);
+        } finally {
+            prober.shutdown();
+            console.stop();
+        }
+    }
+
+    public void testClientErrorsAreHealthy() throws Exception {
+        SvnEdgeHealthProber prober = newProber();
+        Console console = new Console();
+        console.statusCode = 404;
+        try {
+            SvnEdgeServerInfo server = newServer("moved", console.getUrl());
+            prober.track(server);
+            SvnEdgeServerHealth health = awaitState(prober, server,
+                    SvnEdgeHealthState.HEALTHY);
+            assertEquals("status", 404, health.getLastStatusCode());
+        } finally {
+            prober.shutdown();
+            console.stop();
+        }
+    }
+
+    public void testRefusedConnectionsMakeUnhealthy() throws Exception {
+        SvnEdgeHealthProber prober = newProber();
+        try {
+            SvnEdgeServerInfo server = newServer("down", closedUrl());
+            prober.track(server);
+            awaitState(prober, server, SvnEdgeHealthState.DEGRADED);
+            SvnEdgeServerHealth health = awaitState(prober, server,
+                    SvnEdgeHealthState.UNHEALTHY);
+            assertEquals("status", -1, health.getLastStatusCode());
+        } finally {
+            prober.shutdown();
+        }
+    }
+
+    public void testSilentConsolesTimeOut() throws Exception {
+        SvnEdgeHealthProber prober = newProber();
+        // accepts the connections in its backlog, but never answers.
+        ServerSocket silent = new ServerSocket(0, 50, LOOPBACK);
+        try {
+            SvnEdgeServerInfo server = newServer("silent", "http://" +
+                    LOOPBACK.getHostAddress() + ":" + silent.getLocalPort() +
+                    "/csvn");
+            prober.track(server);
+            long start = System.currentTimeMillis();
+            awaitState(prober, server, SvnEdgeHealthState.DEGRADED);
+            assertTrue("failed after the timeout",
+                    System.currentTimeMillis() - start >= TIMEOUT);
+            assertTrue("timeouts counted", prober.getTimedOutCount() > 0);
+        } finally {
+            prober.shutdown();
+            silent.close();
+        }
+    }
+
+    public void testNewUrlIsMeasuredFromScratch() throws Exception {
+        SvnEdgeHealthProber prober = newProber();
+        Console console = new Console();
+        try {
+            SvnEdgeServerInfo server = newServer("moving", closedUrl());
+            prober.track(server);
+            awaitState(prober, server, SvnEdgeHealthState.UNHEALTHY);
+
+            SvnEdgeServerInfo moved = newServer("moving", console.getUrl());
+            prober.track(moved);
+            SvnEdgeServerHealth health = prober.getHealth(moved);
+            assertEquals("failures reset", 0,
+                    health.getConsecutiveFailures());
+            assertEquals("url", console.getUrl(),
+                    health.getServerInfo().getUrl());
+            awaitState(prober, moved, SvnEdgeHealthState.HEALTHY);
+            assertEquals("tracked", 1, prober.getTrackedCount());
+        } finally {
+            prober.shutdown();
+            console.stop();
+        }
+    }
+
+    public void testMovedServersWaitingForASlotAreProbedOnce()
+            throws Exception {
+        // a single slot, held by a silent console for most of the time.
+        long timeout = 10 * INTERVAL;
+        SvnEdgeHealthProber prober = new SvnEdgeHealthProber(INTERVAL,
+                timeout, 1, THRESHOLD);
+        ServerSocket silent = new ServerSocket(0, 50, LOOPBACK);
+        Console console = new Console();
+        Console other = new Console();
+        try {
+            prober.track(newServer("silent", "http://" +
+                    LOOPBACK.getHostAddress() + ":" + silent.getLocalPort() +
+                    "/csvn"));
+            SvnEdgeServerInfo server = newServer("moving", console.getUrl());
+            prober.track(server);
+            awaitState(prober, server, SvnEdgeHealthState.HEALTHY);
+            // moved once per probe of the silent one, mostly while due.
+            for (int i = 0; i < 4; i++) {
+                prober.track(newServer("moving", (i % 2 == 0 ? other :
+                    console).getUrl()));
+                Thread.sleep(timeout + INTERVAL);
+            }
+            long probes = prober.getHealth(server).getProbeCount();
+            Thread.sleep(3 * (timeout + INTERVAL));
+            // one probe per probe of the silent one, not one per move.
+            probes = prober.getHealth(server).getProbeCount() - probes;
+            assertTrue("probed " + probes + " times", probes <= 4);
+        } finally {
+            prober.shutdown();
+            silent.close();
+            console.stop();
+            other.stop();
+        }
+    }
+
+    public void testUntrackedServersAreForgotten() throws Exception {
+        SvnEdgeHealthProber prober = newProber();
+        Console console = new Console();
+        try {
+            SvnEdgeServerInfo server = newServer("gone", console.getUrl());
+            prober.track(server);
+            awaitState(prober, server, SvnEdgeHealthState.HEALTHY);
+            prober.untrack(server);
+            assertEquals("health", null, prober.getHealth(server));
+            assertEquals("tracked", 0, prober.getTrackedCount());
+        } finally {
+            prober.shutdown();
+            console.stop();
+        }
+    }
+
+    public void testHealthyServersComeFirst() throws Exception {
+        SvnEdgeHealthProber prober = newProber();
+        Console console = new Console();
+        try {
+            SvnEdgeServerInfo down = newServer("a-down", closedUrl());
+            SvnEdgeServerInfo up = newServer("b-up", console.getUrl());
+            prober.track(down);
+            prober.track(up);
+            awaitState(prober, down, SvnEdgeHealthState.UNHEALTHY);
+            awaitState(prober, up, SvnEdgeHealthState.HEALTHY);
+            List<SvnEdgeServerHealth> servers =
+                    prober.getServersByResponsiveness();
+            assertEquals("servers", 2, servers.size());
+            assertEquals("first", "b-up",
+                    servers.get(0).getServerInfo().getServiceName());
+            assertEquals("last", "a-down",
+                    servers.get(1).getServerInfo().getServiceName());
+        } finally {
+            prober.shutdown();
+            console.stop();
+        }
+    }
+
+    public static void main(String[] args) throws Throwable {
+        SvnEdgeTests.runAll(SvnEdgeHealthProberTest.class);
+    }
+}
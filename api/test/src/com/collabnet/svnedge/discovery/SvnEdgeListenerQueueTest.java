@@ -0,0 +1,163 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import static com.collabnet.svnedge.discovery.SvnEdgeTests.assertEquals;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * The tests of the {@link SvnEdgeListenerQueue}, whose deliveries are held
+ * until the tests run them, so that the queues fill up.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public final class SvnEdgeListenerQueueTest {
+
+    private static final int CAPACITY = 4;
+
+    /**
+     * The deliveries scheduled, run by the tests.
+     */
+    private final List<Runnable> deliveries =
+            Collections.synchronizedList(new ArrayList<Runnable>());
+    /**
+     * The names of the servers received by the listener, in order.
+     */
+    private final List<String> received = new ArrayList<String>();
+    private final SvnEdgeEventDispatcher dispatcher =
+            new SvnEdgeEventDispatcher(new Executor() {
+        public void execute(Runnable delivery) {
+            deliveries.add(delivery);
+        }
+    });
+    private final SvnEdgeServersListener listener =
+            new SvnEdgeServersListener() {
+        public void csvnServerIsRunning(SvnEdgeServerInfo serverInfo) {
+            received.add(serverInfo.getServiceName());
+        }
+
+        public void csvnServerStopped(SvnEdgeServerInfo serverInfo) {
+            received.add(serverInfo.getServiceName());
+        }
+    };
+    private final InetAddress loopback;
+
+    public SvnEdgeListenerQueueTest() throws Exception {
+        this.loopback = InetAddress.getByName("127.0.0.1");
+    }
+
+    private SvnEdgeServerInfo server(String name, int port) {
+        return SvnEdgeTests.newServer(name, loopback,
+                "http://127.0.0.1:" + port + "/csvn", port);
+    }
+
+    private void deliver() {
+        List<Runnable> scheduled;
+        synchronized (deliveries) {
+            scheduled = new ArrayList<Runnable>(deliveries);
+            deliveries.clear();
+        }
+        for (Runnable delivery : scheduled) {
+            delivery.run();
+        }
+    }
+
+    public void testDropOldestKeepsTheNewestEvents() {
+        SvnEdgeListenerQueue queue = dispatcher.newQueue(listener, null,
+                CAPACITY, SvnEdgeOverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 10; i++) {
+            queue.offer(server("server-" + i, 18080));
+        }
+        assertEquals("Pending", CAPACITY, queue.getPendingCount());
+        assertEquals("Dropped", 6, queue.getDroppedCount());
+        deliver();
+        assertEquals("Received", "[server-6, server-7, server-8, server-9]",
+                received.toString());
+        assertEquals("Delivered", CAPACITY, queue.getDeliveredCount());
+    }
+
+    public void testCoalesceLatestKeepsOneEventPerServer() {
+        SvnEdgeListenerQueue queue = dispatcher.newQueue(listener, null,
+                CAPACITY, SvnEdgeOverflowPolicy.COALESCE_LATEST);
+        for (int i = 0; i < 10; i++) {
+            queue.offer(server("server-" + (i % 2), 18080 + i));
+        }
+        assertEquals("Pending", 2, queue.getPendingCount());
+        assertEquals("Coalesced", 8, queue.getCoalescedCount());
+        assertEquals("Dropped", 0, queue.getDroppedCount());
+        for (int i = 2; i < 10; i++) {
+            queue.offer(server("server-" + i, 18080));
+        }
+        assertEquals("Pending of the full queue", CAPACITY,
+                queue.getPendingCount());
+        assertEquals("Dropped of the full queue", 6, queue.getDroppedCount());
+    }
+
+    public void testBlockRejectsTheEventsBeyondItsCapacity() {
+        SvnEdgeListenerQueue queue = dispatcher.newQueue(listener, null,
+                CAPACITY, SvnEdgeOverflowPolicy.BLOCK);
+        for (int i = 0; i < 10; i++) {
+            queue.offer(server("server-" + i, 18080));
+        }
+        assertEquals("Pending", CAPACITY, queue.getPendingCount());
+        assertEquals("Rejected", 6, queue.getDroppedCount());
+        deliver();
+        assertEquals("Received", "[server-0, server-1, server-2, server-3]",
+                received.toString());
+    }
+
+    public void testBlockWaitsForRoomBeforeTheOffer() throws Exception {
+        final SvnEdgeListenerRegistry observers =
+                new SvnEdgeListenerRegistry(dispatcher);
+        SvnEdgeListenerQueue queue = observers.add(listener, null, CAPACITY,
+                SvnEdgeOverflowPolicy.BLOCK, false);
+        for (int i = 0; i < CAPACITY; i++) {
+            queue.offer(server("server-" + i, 18080));
+        }
+        final Thread publisher = new Thread() {
+            public void run() {
+                // as the client publishes a change.
+                observers.awaitCapacity();
+                observers.dispatch(server("server-late", 18080));
+            }
+        };
+        publisher.start();
+        SvnEdgeTests.await("The publisher does not wait",
+                new SvnEdgeTests.Condition() {
+            public boolean holds() {
+                return publisher.getState() == Thread.State.WAITING;
+            }
+        });
+        deliver();
+        publisher.join(SvnEdgeTests.AWAIT_TIMEOUT);
+        deliver();
+        assertEquals("Rejected", 0, queue.getDroppedCount());
+        assertEquals("Received", "[server-0, server-1, server-2, server-3, " +
+                "server-late]", received.toString());
+    }
+
+    public static void main(String[] args) throws Throwable {
+        SvnEdgeTests.runAll(SvnEdgeListenerQueueTest.class);
+    }
+}
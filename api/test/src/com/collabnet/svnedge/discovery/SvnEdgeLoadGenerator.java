@@ -0,0 +1,757 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeCsvnServiceKey;
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeHttpServiceKey;
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceKey;
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceType;
+
+/**
+ * The SvnEdge Load Generator publishes a number of simulated SvnEdge servers
+ * with an {@link SvnEdgeBonjourRegister}, and observes them with an
+ * {@link SvnEdgeBonjourClient} on the same host, so that the convergence of
+ * the discovery can be measured with thousands of servers on a single box.
+ * 
+ * The servers are first registered all at once, and the time until the
+ * client discovers all of them is measured. Then, for the churn duration,
+ * random servers are stopped or started again at the churn rate. The report
+ * includes the latency between each registration change and the event
+ * received by the client, the duplicate events, the unexpected events, and
+ * the events dropped by the listener queue or never received.
+ * 
+ * When probing is enabled, the servers point to a stand-in web console on
+ * the same host, whose latency depends on the server and which fails every
+ * tenth server, and the client probes them with an
+ * {@link SvnEdgeHealthProber}. The report then includes the health of the
+ * servers.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public final class SvnEdgeLoadGenerator {
+
+    private static final Logger log = Logger.getLogger(
+            SvnEdgeLoadGenerator.class);
+    /**
+     * The default prefix of the names of the simulated servers.
+     */
+    public static final String DEFAULT_NAME_PREFIX = "svnedge-load";
+    /**
+     * The default port of the first simulated server.
+     */
+    public static final int DEFAULT_BASE_PORT = 20000;
+    /**
+     * The domain of the stand-in DNS server of the unicast engine.
+     */
+    private static final String STAND_IN_DOMAIN = "svnedge.test";
+    /**
+     * The interval between the polls of the unicast client, in
+     * milliseconds.
+     */
+    private static final long STAND_IN_POLL_INTERVAL = 1000;
+    /**
+     * The default time waited for the discovery of all the servers, and for
+     * the last changes after the churn, in milliseconds.
+     */
+    public static final long DEFAULT_DISCOVERY_TIMEOUT =
+            TimeUnit.MINUTES.toMillis(2);
+    /**
+     * The maximum number of concurrent registrations. jmDNS blocks each
+     * registration until the service is announced.
+     */
+    private static final int MAX_CONCURRENT_REGISTRATIONS = 64;
+
+    /**
+     * The address where the servers are published and observed.
+     */
+    private final InetAddress ipAddress;
+    /**
+     * The service type of the simulated servers.
+     */
+    private final SvnEdgeServiceType type;
+    /**
+     * The number of simulated servers.
+     */
+    private final int servers;
+    private int basePort = DEFAULT_BASE_PORT;
+    private String namePrefix = DEFAULT_NAME_PREFIX;
+    private String contextPath = "/csvn";
+    private String teamForgePath = "/setupTeamForge/ctfInfo";
+    /**
+     * The number of servers stopped or started per second after the
+     * discovery of all the servers.
+     */
+    private double churnRate;
+    /**
+     * The duration of the churn, in milliseconds.
+     */
+    private long churnDuration;
+    private long discoveryTimeout = DEFAULT_DISCOVERY_TIMEOUT;
+    /**
+     * The interval between the probes of the consoles in milliseconds, or 0
+     * if the consoles are not probed.
+     */
+    private long probeInterval;
+    /**
+     * The type of the mDNS engine of the register and the client.
+     */
+    private SvnEdgeMdnsEngineType engineType = SvnEdgeMdnsEngineType.JMDNS;
+    /**
+     * The stand-in web console of all the servers, when probing.
+     */
+    private HttpServer console;
+    /**
+     * The stand-in DNS server of the domain of the unicast engine.
+     */
+    private SvnEdgeDnsStandInServer dnsServer;
+    /**
+     * The health of the servers at the end of the run, sorted by
+     * responsiveness, when probing.
+     */
+    private List<SvnEdgeServerHealth> healths;
+    private long probesSent;
+    /**
+     * The traffic of the NIO or unicast engine during the run, or
+     * <code>null</code> with jmDNS.
+     */
+    private SvnEdgeMdnsCounters mdnsCounters;
+    private long probesFailed;
+
+    /**
+     * The time each server was registered, waiting for its running event, by
+     * service name. The times are given by System.nanoTime().
+     */
+    private final ConcurrentMap<String, Long> pendingRunning =
+            new ConcurrentHashMap<String, Long>();
+    /**
+     * The time each server was unregistered, waiting for its shutdown event,
+     * by service name.
+     */
+    private final ConcurrentMap<String, Long> pendingShutdown =
+            new ConcurrentHashMap<String, Long>();
+    /**
+     * The servers the client reported running.
+     */
+    private final Set<String> running = Collections.newSetFromMap(
+            new ConcurrentHashMap<String, Boolean>());
+    /**
+     * The latencies of the expected events, in nanoseconds.
+     */
+    private final List<Long> latencies = new ArrayList<Long>();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong unexpected = new AtomicLong();
+    private final AtomicLong updates = new AtomicLong();
+    /**
+     * Released when the client discovered all the servers registered first.
+     */
+    private CountDownLatch initialDiscovery;
+    /**
+     * The time until the client discovered all the servers, in milliseconds,
+     * or -1 if the discovery timed out.
+     */
+    private long timeToDiscoverAll = -1;
+    /**
+     * The number of churn operations executed.
+     */
+    private long churnOperations;
+    /**
+     * The queue of the listener of the client.
+     */
+    private SvnEdgeListenerQueue queue;
+
+    /**
+     * Creates a new load generator.
+     * @param ipAddress is the address where the servers are published and
+     * observed, usually a loopback or private address.
+     * @param type is the service type of the simulated servers.
+     * @param servers is the number of simulated servers.
+     */
+    public SvnEdgeLoadGenerator(InetAddress ipAddress, SvnEdgeServiceType type,
+            int servers) {
+        if (servers < 1) {
+            throw new IllegalArgumentException("The number of servers must " +
+                    "be greater than 0");
+        }
+        this.ipAddress = ipAddress;
+        this.type = type;
+        this.servers = servers;
+    }
+
+    /**
+     * @param basePort is the port of the first server. Each server uses the
+     * next port.
+     */
+    public void setBasePort(int basePort) {
+        this.basePort = basePort;
+    }
+
+    /**
+     * @param namePrefix is the prefix of the service names. The events of the
+     * other servers on the network are ignored.
+     */
+    public void setNamePrefix(String namePrefix) {
+        this.namePrefix = namePrefix;
+    }
+
+    /**
+     * @param contextPath is the value of the "path" key of the servers.
+     */
+    public void setContextPath(String contextPath) {
+        this.contextPath = contextPath;
+    }
+
+    /**
+     * @param teamForgePath is the value of the "tfpath" key of the servers.
+     * Empty for servers managed by TeamForge.
+     */
+    public void setTeamForgePath(String teamForgePath) {
+        this.teamForgePath = teamForgePath;
+    }
+
+    /**
+     * @param churnRate is the number of servers stopped or started per
+     * second.
+     * @param churnDuration is the duration of the churn in milliseconds.
+     */
+    public void setChurn(double churnRate, long churnDuration) {
+        this.churnRate = churnRate;
+        this.churnDuration = churnDuration;
+    }
+
+    /**
+     * @param discoveryTimeout is the time waited for the discovery of all the
+     * servers, and for the last changes after the churn, in milliseconds.
+     */
+    public void setDiscoveryTimeout(long discoveryTimeout) {
+        this.discoveryTimeout = discoveryTimeout;
+    }
+
+    /**
+     * @param probeInterval is the interval between the probes of the stand-in
+     * consoles of the servers in milliseconds, or 0 not to probe them.
+     */
+    public void setProbeInterval(long probeInterval) {
+        this.probeInterval = probeInterval;
+    }
+
+    /**
+     * @param engineType is the type of the mDNS engine of the register and
+     * the client.
+     */
+    public void setEngineType(SvnEdgeMdnsEngineType engineType) {
+        this.engineType = engineType;
+    }
+
+    /**
+     * @param index is the index of a server.
+     * @return the service name of the server.
+     */
+    private String nameOf(int index) {
+        return namePrefix + "-" + index;
+    }
+
+    /**
+     * @param index is the index of a server.
+     * @return the keys and values published by the server. When probing, the
+     * context path ends with the index of the server, so that the stand-in
+     * console can tell the servers apart.
+     */
+    private Map<SvnEdgeServiceKey, String> makeParams(int index) {
+        Map<SvnEdgeServiceKey, String> params =
+                new HashMap<SvnEdgeServiceKey, String>();
+        String path = console != null ? contextPath + "-" + index :
+            contextPath;
+        if (type == SvnEdgeServiceType.HTTP) {
+            params.put(SvnEdgeHttpServiceKey.PATH, path);
+        } else {
+            params.put(SvnEdgeCsvnServiceKey.CONTEXT_PATH, path);
+            params.put(SvnEdgeCsvnServiceKey.TEAMFORGE_PATH, teamForgePath);
+        }
+        return params;
+    }
+
+    /**
+     * Starts the stand-in web console of the servers. The server of index i
+     * answers after i % 50 ms, and every tenth server answers 503.
+     * @throws IOException if the console cannot be bound.
+     */
+    private void startConsole() throws IOException {
+        console = HttpServer.create(new InetSocketAddress(ipAddress, 0), 0);
+        console.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                int index = 0;
+                try {
+                    index = Integer.parseInt(path.substring(
+                            path.lastIndexOf('-') + 1).replace("/", ""));
+                } catch (NumberFormatException e) {
+                    log.debug("Probe of an unknown path " + path);
+                }
+                try {
+                    Thread.sleep(index % 50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                byte[] body = "SvnEdge stand-in console".getBytes("UTF-8");
+                exchange.sendResponseHeaders(index % 10 == 9 ? 503 : 200,
+                        body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        console.setExecutor(Executors.newFixedThreadPool(16,
+                new SvnEdgeThreadFactory("SvnEdge-Load-Console-")));
+        console.start();
+    }
+
+    /**
+     * Runs the load: registers the servers, waits for their discovery, runs
+     * the churn and waits for the last changes. Blocks until the end.
+     * @throws IOException if the register or the client fail to start.
+     * @throws InterruptedException if the current thread is interrupted.
+     */
+    public void run() throws IOException, InterruptedException {
+        SvnEdgeBonjourClient client;
+        SvnEdgeBonjourRegister register;
+        if (engineType == SvnEdgeMdnsEngineType.UNICAST) {
+            dnsServer = new SvnEdgeDnsStandInServer(STAND_IN_DOMAIN,
+                    ipAddress);
+            SvnEdgeWideAreaDomain domain = dnsServer.getDomain(
+                    STAND_IN_POLL_INTERVAL);
+            client = SvnEdgeBonjourClient.makeInstance(ipAddress, type,
+                    domain);
+            register = SvnEdgeBonjourRegister.getInstance(ipAddress, domain);
+        } else {
+            client = SvnEdgeBonjourClient.makeInstance(ipAddress, type,
+                    engineType);
+            register = SvnEdgeBonjourRegister.getInstance(ipAddress,
+                    engineType);
+        }
+        SvnEdgeHealthProber prober = null;
+        if (probeInterval > 0) {
+            startConsole();
+            prober = new SvnEdgeHealthProber(probeInterval,
+                    SvnEdgeHealthProber.DEFAULT_TIMEOUT,
+                    SvnEdgeHealthProber.DEFAULT_CONCURRENCY,
+                    SvnEdgeHealthProber.DEFAULT_UNHEALTHY_THRESHOLD);
+            client.setHealthProber(prober);
+        }
+        ExecutorService registrations = Executors.newFixedThreadPool(
+                Math.min(servers, MAX_CONCURRENT_REGISTRATIONS),
+                new SvnEdgeThreadFactory("SvnEdge-Load-Register-"));
+        try {
+            queue = client.addServersListener(type, new Observer(),
+                    SvnEdgeListenerQueue.DEFAULT_CAPACITY,
+                    SvnEdgeOverflowPolicy.DROP_OLDEST);
+            boolean[] registered = new boolean[servers];
+            initialDiscovery = new CountDownLatch(servers);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < servers; i++) {
+                change(registrations, register, i, true);
+                registered[i] = true;
+            }
+            if (initialDiscovery.await(discoveryTimeout,
+                    TimeUnit.MILLISECONDS)) {
+                timeToDiscoverAll = TimeUnit.NANOSECONDS.toMillis(
+                        System.nanoTime() - start);
+            } else {
+                log.warn("The client did not discover all the servers in " +
+                        discoveryTimeout + " ms");
+            }
+
+            if (churnRate > 0 && churnDuration > 0) {
+                churn(registrations, register, registered);
+            }
+            // waiting for the events of the last changes.
+            long deadline = System.currentTimeMillis() + discoveryTimeout;
+            while ((!pendingRunning.isEmpty() || !pendingShutdown.isEmpty())
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+            }
+            if (prober != null) {
+                awaitProbes(prober, deadline);
+            }
+        } finally {
+            registrations.shutdownNow();
+            // the goodbyes of the register are not part of the load.
+            mdnsCounters = client.getMdnsCounters();
+            client.stop();
+            register.close();
+            if (dnsServer != null) {
+                dnsServer.close();
+            }
+            if (console != null) {
+                console.stop(0);
+                ((ExecutorService) console.getExecutor()).shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Waits until all the running servers were probed at least twice, and
+     * keeps their health for the report.
+     */
+    private void awaitProbes(SvnEdgeHealthProber prober, long deadline)
+            throws InterruptedException {
+        deadline = Math.max(deadline, System.currentTimeMillis() +
+                3 * probeInterval);
+        boolean probed = false;
+        while (!probed && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+            probed = true;
+            for (SvnEdgeServerHealth health :
+                    prober.getServersByResponsiveness()) {
+                probed &= health.getProbeCount() >= 2;
+            }
+        }
+        healths = prober.getServersByResponsiveness();
+        probesSent = prober.getSentCount();
+        probesFailed = prober.getFailedCount();
+    }
+
+    /**
+     * Registers or unregisters the given server in the background.
+     * @param register is the register publishing the servers.
+     * @param index is the index of the server.
+     * @param start whether the server starts or stops.
+     */
+    private void change(ExecutorService registrations,
+            final SvnEdgeBonjourRegister register, final int index,
+            final boolean start) {
+        final String name = nameOf(index);
+        if (start) {
+            pendingShutdown.remove(name);
+            pendingRunning.put(name, System.nanoTime());
+        } else {
+            pendingRunning.remove(name);
+            pendingShutdown.put(name, System.nanoTime());
+        }
+        registrations.execute(new Runnable() {
+            public void run() {
+                try {
+                    if (start) {
+                        int port = console != null ?
+                                console.getAddress().getPort() :
+                                    basePort + index;
+                        register.registerService(name, port, type,
+                                makeParams(index));
+                    } else {
+                        register.unregisterService(name, type);
+                    }
+                } catch (IOException e) {
+                    log.error("Failed to register the server " + name, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops or starts random servers at the churn rate.
+     */
+    private void churn(ExecutorService registrations,
+            SvnEdgeBonjourRegister register, boolean[] registered)
+            throws InterruptedException {
+        Random random = new Random();
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / churnRate);
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(
+                churnDuration);
+        long next = System.nanoTime();
+        while (next < end) {
+            int index = random.nextInt(servers);
+            String name = nameOf(index);
+            // the servers whose last change was not observed yet are left
+            // alone, so that each event can be matched to its change.
+            if (!pendingRunning.containsKey(name) &&
+                    !pendingShutdown.containsKey(name)) {
+                change(registrations, register, index, !registered[index]);
+                registered[index] = !registered[index];
+                churnOperations++;
+            }
+            next += interval;
+            long sleep = next - System.nanoTime();
+            if (sleep > 0) {
+                TimeUnit.NANOSECONDS.sleep(sleep);
+            }
+        }
+    }
+
+    /**
+     * Records the latency of an expected event.
+     * @param since is the time of the registration change.
+     */
+    private void recordLatency(long since) {
+        long latency = System.nanoTime() - since;
+        synchronized (latencies) {
+            latencies.add(latency);
+        }
+    }
+
+    /**
+     * Verifies the events received by the client against the registrations.
+     */
+    private final class Observer implements SvnEdgeServerUpdatesListener {
+
+        public void csvnServerIsRunning(SvnEdgeServerInfo serverInfo) {
+            String name = serverInfo.getServiceName();
+            if (!name.startsWith(namePrefix)) {
+                return;
+            }
+            Long since = pendingRunning.remove(name);
+            if (since != null) {
+                recordLatency(since);
+                if (running.add(name) && initialDiscovery.getCount() > 0) {
+                    initialDiscovery.countDown();
+                }
+            } else if (running.contains(name)) {
+                duplicates.incrementAndGet();
+            } else {
+                unexpected.incrementAndGet();
+            }
+        }
+
+        public void csvnServerStopped(SvnEdgeServerInfo serverInfo) {
+            String name = serverInfo.getServiceName();
+            if (!name.startsWith(namePrefix)) {
+                return;
+            }
+            Long since = pendingShutdown.remove(name);
+            if (since != null) {
+                recordLatency(since);
+                running.remove(name);
+            } else if (!running.contains(name)) {
+                duplicates.incrementAndGet();
+            } else {
+                unexpected.incrementAndGet();
+            }
+        }
+
+        public void csvnServerUpdated(SvnEdgeServerInfo serverInfo) {
+            // the hostnames resolved after the discovery.
+            updates.incrementAndGet();
+        }
+    }
+
+    /**
+     * @param sorted is a sorted list of latencies.
+     * @param percentile is the percentile, from 0 to 100.
+     * @return the latency at the given percentile in milliseconds.
+     */
+    private static double percentile(List<Long> sorted, double percentile) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100 * sorted.size()) - 1;
+        long nanos = sorted.get(Math.max(0, Math.min(index,
+                sorted.size() - 1)));
+        return nanos / 1000000.0;
+    }
+
+    /**
+     * @return the time until the client discovered all the servers in
+     * milliseconds, or -1 if the discovery timed out.
+     */
+    public long getTimeToDiscoverAll() {
+        return this.timeToDiscoverAll;
+    }
+
+    /**
+     * @return the number of events repeating the state of a server already
+     * reported.
+     */
+    public long getDuplicateCount() {
+        return this.duplicates.get();
+    }
+
+    /**
+     * @return the number of events contradicting the registrations.
+     */
+    public long getUnexpectedCount() {
+        return this.unexpected.get();
+    }
+
+    /**
+     * @return the number of changes whose event was never received.
+     */
+    public int getMissedCount() {
+        return this.pendingRunning.size() + this.pendingShutdown.size();
+    }
+
+    /**
+     * @return the number of events dropped by the listener queue.
+     */
+    public long getDroppedCount() {
+        return this.queue != null ? this.queue.getDroppedCount() : 0;
+    }
+
+    /**
+     * Prints the report of the run.
+     * @param out is the output stream.
+     */
+    public void printReport(PrintStream out) {
+        List<Long> sorted;
+        synchronized (latencies) {
+            sorted = new ArrayList<Long>(latencies);
+        }
+        Collections.sort(sorted);
+        out.println("%%%%%%%%% SvnEdge Load Generator Report %%%%%%%%%%%%%%");
+        out.println("Servers:               " + servers + " (" + type + ")");
+        out.println("Time to discover all:  " + (timeToDiscoverAll >= 0 ?
+                timeToDiscoverAll + " ms" : "timed out"));
+        out.println("Churn operations:      " + churnOperations);
+        out.println("Events measured:       " + sorted.size());
+        out.println(String.format("Latency (ms):          p50=%.1f p90=%.1f " +
+                "p99=%.1f max=%.1f", percentile(sorted, 50),
+                percentile(sorted, 90), percentile(sorted, 99),
+                percentile(sorted, 100)));
+        out.println("Duplicate events:      " + getDuplicateCount());
+        out.println("Unexpected events:     " + getUnexpectedCount());
+        out.println("Updates:               " + updates.get());
+        out.println("Dropped events:        " + getDroppedCount());
+        out.println("Missed events:         " + getMissedCount());
+        if (mdnsCounters != null) {
+            out.println("mDNS traffic:          " + mdnsCounters);
+        }
+        if (dnsServer != null) {
+            out.println("DNS server:            " + dnsServer);
+        }
+        if (healths != null) {
+            Map<SvnEdgeHealthState, Integer> byState =
+                    new HashMap<SvnEdgeHealthState, Integer>();
+            for (SvnEdgeHealthState state : SvnEdgeHealthState.values()) {
+                byState.put(state, 0);
+            }
+            for (SvnEdgeServerHealth health : healths) {
+                byState.put(health.getState(), byState.get(health.getState())
+                        + 1);
+            }
+            out.println("Probes:                " + probesSent + " sent, " +
+                    probesFailed + " failed");
+            out.println("Health:                " + byState);
+            for (int i = 0; i < Math.min(3, healths.size()); i++) {
+                out.println("Most responsive #" + (i + 1) + ":    " +
+                        healths.get(i));
+            }
+        }
+    }
+
+    /**
+     * Runs the load generator. The options are:
+     * <pre>
+     * -servers N      the number of servers (default 100)
+     * -ip ADDRESS     the address to use (default the loopback address)
+     * -type TYPE      the service type (default _csvn._tcp.local.)
+     * -port PORT      the port of the first server
+     * -prefix NAME    the prefix of the service names
+     * -path PATH      the context path of the servers
+     * -tfpath PATH    the TeamForge path of the servers
+     * -churn RATE     the servers stopped or started per second (default 0)
+     * -duration SECS  the duration of the churn (default 60)
+     * -timeout SECS   the time waited for the discovery (default 120)
+     * -probe SECS     the interval of the probes of the stand-in consoles
+     *                 (default no probes)
+     * -engine ENGINE  the mDNS engine, jmdns, nio or unicast against a
+     *                 stand-in DNS server (default jmdns)
+     * </pre>
+     * @param args are the options.
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i], args[i + 1]);
+        }
+        InetAddress ipAddress = options.containsKey("-ip") ?
+                InetAddress.getByName(options.get("-ip")) :
+                    InetAddress.getByName("127.0.0.1");
+        SvnEdgeServiceType type = options.containsKey("-type") ?
+                SvnEdgeServiceType.retrieveByType(options.get("-type")) :
+                    SvnEdgeServiceType.CSVN;
+        if (type == null) {
+            System.err.println("Unknown service type " + options.get("-type"));
+            System.exit(1);
+        }
+        int servers = options.containsKey("-servers") ?
+                Integer.parseInt(options.get("-servers")) : 100;
+
+        SvnEdgeLoadGenerator generator = new SvnEdgeLoadGenerator(ipAddress,
+                type, servers);
+        if (options.containsKey("-port")) {
+            generator.setBasePort(Integer.parseInt(options.get("-port")));
+        }
+        if (options.containsKey("-prefix")) {
+            generator.setNamePrefix(options.get("-prefix"));
+        }
+        if (options.containsKey("-path")) {
+            generator.setContextPath(options.get("-path"));
+        }
+        if (options.containsKey("-tfpath")) {
+            generator.setTeamForgePath(options.get("-tfpath"));
+        }
+        if (options.containsKey("-churn")) {
+            long duration = options.containsKey("-duration") ?
+                    Long.parseLong(options.get("-duration")) : 60;
+            generator.setChurn(Double.parseDouble(options.get("-churn")),
+                    TimeUnit.SECONDS.toMillis(duration));
+        }
+        if (options.containsKey("-timeout")) {
+            generator.setDiscoveryTimeout(TimeUnit.SECONDS.toMillis(
+                    Long.parseLong(options.get("-timeout"))));
+        }
+        if (options.containsKey("-probe")) {
+            generator.setProbeInterval(TimeUnit.SECONDS.toMillis(
+                    Long.parseLong(options.get("-probe"))));
+        }
+        if (options.containsKey("-engine")) {
+            generator.setEngineType(SvnEdgeMdnsEngineType.valueOf(
+                    options.get("-engine").toUpperCase()));
+        }
+        System.out.println("Simulating " + servers + " SvnEdge servers at " +
+                ipAddress.getHostAddress());
+        generator.run();
+        generator.printReport(System.out);
+        System.exit(0);
+    }
+}
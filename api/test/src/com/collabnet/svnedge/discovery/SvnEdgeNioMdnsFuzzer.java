@@ -0,0 +1,244 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import javax.jmdns.ServiceEvent;
+import javax.jmdns.ServiceInfo;
+import javax.jmdns.ServiceListener;
+
+/**
+ * Fuzzes a running {@link SvnEdgeNioMdns} with whole packets sent to its
+ * port on the loopback interface: the queries and the responses about its
+ * host, its registered service and its browsed types, with known answers
+ * and proposed records of any type, as they are, mutated and truncated,
+ * and random bytes. The engine must handle or drop every packet and keep
+ * running. Exits with 1 at the first failure, printing the seed, so that
+ * the test target of the build fails.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+final class SvnEdgeNioMdnsFuzzer {
+
+    private static final String HOST = "fuzzed";
+    private static final String TYPE = "_csvn._tcp.local.";
+    private static final String[] BROWSED_TYPES = {
+        TYPE, "_http._tcp.local."
+    };
+    private static final String[] NAMES = {
+        HOST + ".local.", HOST + "." + TYPE, "other." + TYPE,
+        "other._http._tcp.local.", "other.local.", TYPE, "_http._tcp.local.",
+        "_services._dns-sd._udp.local."
+    };
+    private static final int[] RECORD_TYPES = {
+        SvnEdgeDnsRecord.TYPE_A, SvnEdgeDnsRecord.TYPE_AAAA,
+        SvnEdgeDnsRecord.TYPE_PTR, SvnEdgeDnsRecord.TYPE_TXT,
+        SvnEdgeDnsRecord.TYPE_SRV, SvnEdgeDnsRecord.TYPE_SOA,
+        SvnEdgeDnsRecord.TYPE_ANY
+    };
+    /**
+     * The time waited for the engine to read the packets sent, in
+     * milliseconds, before sending more.
+     */
+    private static final long DRAIN_TIMEOUT = 1000;
+
+    private final Random random;
+    private final SvnEdgeDnsWriter writer = new SvnEdgeDnsWriter(1472);
+    private long packets;
+
+    private SvnEdgeNioMdnsFuzzer(long seed) {
+        this.random = new Random(seed);
+    }
+
+    private String name() {
+        return NAMES[random.nextInt(NAMES.length)];
+    }
+
+    private int type() {
+        return RECORD_TYPES[random.nextInt(RECORD_TYPES.length)];
+    }
+
+    private SvnEdgeDnsRecord record(String name) throws Exception {
+        int ttl = random.nextInt(5) == 0 ? 0 : random.nextInt(4500);
+        switch (random.nextInt(4)) {
+        case 0:
+            return SvnEdgeDnsRecord.pointer(name, ttl, name());
+        case 1:
+            return SvnEdgeDnsRecord.service(name, ttl, random.nextInt(65536),
+                    random.nextInt(65536), random.nextInt(65536), name());
+        case 2:
+            byte[] text = new byte[random.nextInt(100)];
+            random.nextBytes(text);
+            return SvnEdgeDnsRecord.text(name, ttl, text);
+        default:
+            byte[] address = new byte[random.nextBoolean() ? 4 : 16];
+            random.nextBytes(address);
+            return SvnEdgeDnsRecord.address(name, ttl,
+                    InetAddress.getByAddress(address));
+        }
+    }
+
+    /**
+     * Writes a random query or response about the engine.
+     * @return a copy of the packet.
+     */
+    private byte[] write() throws Exception {
+        writer.reset(random.nextInt(65536), random.nextBoolean() ?
+                SvnEdgeDnsReader.FLAG_RESPONSE : 0);
+        int questions = random.nextInt(4);
+        for (int i = 0; i < questions; i++) {
+            writer.addQuestion(name(), type(), random.nextBoolean());
+        }
+        int records = random.nextInt(8);
+        for (int i = 0; i < records; i++) {
+            if (random.nextInt(4) == 0) {
+                // a known answer of a type not used by DNS-SD, such as ANY.
+                writer.addNameNotInUse(name());
+            } else {
+                writer.addRecord(SvnEdgeDnsWriter.ANSWER,
+                        record(name()).withUnique(random.nextBoolean()));
+            }
+        }
+        if (random.nextInt(4) == 0) {
+            writer.addRecord(SvnEdgeDnsWriter.AUTHORITY, record(NAMES[1]));
+        }
+        ByteBuffer packet = writer.finish();
+        byte[] bytes = new byte[packet.remaining()];
+        packet.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Sends one round of packets: a packet written, some mutations of it and
+     * random bytes.
+     */
+    private void round(DatagramChannel channel) throws Exception {
+        byte[] packet = write();
+        channel.write(ByteBuffer.wrap(packet));
+        for (int i = 0; i < 4; i++) {
+            channel.write(ByteBuffer.wrap(SvnEdgeDnsFuzzer.mutate(random,
+                    packet)));
+        }
+        byte[] noise = new byte[random.nextInt(600)];
+        random.nextBytes(noise);
+        channel.write(ByteBuffer.wrap(noise));
+        packets += 6;
+    }
+
+    /**
+     * Waits until the engine received the given number of packets, or for
+     * the {@link #DRAIN_TIMEOUT} in case some were dropped. The packets the
+     * engine sends itself and receives back are counted as well.
+     */
+    private static void drain(SvnEdgeNioMdns engine, long received)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+        while (engine.getCounters().getPacketsReceived() < received &&
+                System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+
+    /**
+     * Runs the fuzzer. The options are:
+     * <pre>
+     * -rounds N   the number of rounds of 6 packets (default 10000)
+     * -seed S     the seed of the first round (default the current time)
+     * </pre>
+     * @param args are the options.
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i], args[i + 1]);
+        }
+        long rounds = options.containsKey("-rounds") ?
+                Long.parseLong(options.get("-rounds")) : 10000;
+        long seed = options.containsKey("-seed") ?
+                Long.parseLong(options.get("-seed")) :
+                    System.currentTimeMillis();
+        long start = System.currentTimeMillis();
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        SvnEdgeNioMdns engine = new SvnEdgeNioMdns(loopback, HOST);
+        DatagramChannel channel = DatagramChannel.open();
+        long packets = 0;
+        int status = 0;
+        try {
+            channel.connect(new InetSocketAddress(loopback,
+                    SvnEdgeNioMdns.MDNS_PORT));
+            engine.registerService(ServiceInfo.create(TYPE, HOST, 3343, 0, 0,
+                    new HashMap<String, String>()));
+            ServiceListener listener = new ServiceListener() {
+                public void serviceAdded(ServiceEvent event) {
+                }
+
+                public void serviceRemoved(ServiceEvent event) {
+                }
+
+                public void serviceResolved(ServiceEvent event) {
+                }
+            };
+            for (String type : BROWSED_TYPES) {
+                engine.addServiceListener(type, listener);
+            }
+            long received = engine.getCounters().getPacketsReceived();
+            for (long round = 0; round < rounds; round++) {
+                // each round has its own seed, although the state of the
+                // engine depends on the previous rounds.
+                SvnEdgeNioMdnsFuzzer fuzzer = new SvnEdgeNioMdnsFuzzer(
+                        seed + round);
+                try {
+                    fuzzer.round(channel);
+                    drain(engine, received + fuzzer.packets);
+                    received = engine.getCounters().getPacketsReceived();
+                    check(!engine.isClosed(), "the engine stopped");
+                } catch (Throwable e) {
+                    System.err.println("Failed with -seed " + seed +
+                            " at round " + round);
+                    e.printStackTrace();
+                    status = 1;
+                    break;
+                }
+                packets += fuzzer.packets;
+            }
+        } finally {
+            channel.close();
+            engine.close();
+        }
+        if (status != 0) {
+            System.exit(status);
+        }
+        System.out.println("Fuzzed the NIO mDNS engine with " + packets +
+                " packets in " + (System.currentTimeMillis() - start) +
+                " ms from seed " + seed + ", no failures: " + engine);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import static com.collabnet.svnedge.discovery.SvnEdgeTests.assertEquals;
+import static com.collabnet.svnedge.discovery.SvnEdgeTests.assertTrue;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeCsvnServiceKey;
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServerEvent;
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceKey;
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceType;
+
+/**
+ * The tests of the {@link SvnEdgeServerInfoCodec}, encoding the server
+ * information and decoding it back with every one of its values.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public final class SvnEdgeServerInfoCodecTest {
+
+    private final SvnEdgeServerInfoCodec codec = new SvnEdgeServerInfoCodec();
+    private final ByteBuffer buffer = ByteBuffer.allocate(
+            SvnEdgeServerInfoCodec.MAX_RECORD_SIZE);
+
+    private static SvnEdgeServerInfo newServer(String serviceName,
+            SvnEdgeServiceType type, InetAddress ipAddress, String domainName,
+            String url, int port, Map<SvnEdgeServiceKey, String> keyValues,
+            boolean verified, long capturedAt) {
+        return SvnEdgeServerInfo.makeDecoded(serviceName, type,
+                SvnEdgeServerEvent.SERVER_RUNNING, ipAddress, domainName, url,
+                port, keyValues, verified, capturedAt, null, null, null);
+    }
+
+    /**
+     * @return the given server information encoded and decoded back.
+     */
+    private SvnEdgeServerInfo roundTrip(SvnEdgeServerInfo serverInfo) {
+        buffer.clear();
+        codec.encode(serverInfo, buffer);
+        buffer.flip();
+        SvnEdgeServerInfo decoded = codec.decode(buffer);
+        assertEquals("Bytes left after the record", 0, buffer.remaining());
+        return decoded;
+    }
+
+    /**
+     * Verifies every value of the decoded server information, and of the
+     * previous one of an update.
+     */
+    private static void assertSame(String message, SvnEdgeServerInfo expected,
+            SvnEdgeServerInfo actual) {
+        if (expected == null) {
+            assertEquals(message, null, actual);
+            return;
+        }
+        assertTrue(message + " is missing", actual != null);
+        assertEquals(message + " name", expected.getServiceName(),
+                actual.getServiceName());
+        assertEquals(message + " type", expected.getServiceType(),
+                actual.getServiceType());
+        assertEquals(message + " event", expected.getEvent(),
+                actual.getEvent());
+        assertEquals(message + " address", expected.getInetAddress(),
+                actual.getInetAddress());
+        assertEquals(message + " hostname", expected.getDomainName(),
+                actual.getDomainName());
+        assertEquals(message + " url", expected.getUrl(), actual.getUrl());
+        assertEquals(message + " port", expected.getPort(),
+                actual.getPort());
+        assertEquals(message + " properties", expected.getProperties(),
+                actual.getProperties());
+        assertEquals(message + " verified", expected.isVerified(),
+                actual.isVerified());
+        assertEquals(message + " captured at", expected.getCapturedAt(),
+                actual.getCapturedAt());
+        assertEquals(message + " changed fields", expected.getChangedFields(),
+                actual.getChangedFields());
+        assertEquals(message + " changed keys", expected.getChangedKeys(),
+                actual.getChangedKeys());
+        assertSame(message + " previous", expected.getPrevious(),
+                actual.getPrevious());
+    }
+
+    public void testRunningServerWithAllItsValues() throws Exception {
+        Map<SvnEdgeServiceKey, String> keyValues =
+                new HashMap<SvnEdgeServiceKey, String>();
+        keyValues.put(SvnEdgeCsvnServiceKey.CONTEXT_PATH, "/csvn");
+        keyValues.put(SvnEdgeCsvnServiceKey.TEAMFORGE_PATH,
+                "/sf/projects/d\u00e9p\u00f4t\u2603\ud83d\ude80");
+        SvnEdgeServerInfo server = newServer("collabnetsvn-build",
+                SvnEdgeServiceType.CSVN,
+                InetAddress.getByName("192.168.1.20"), "build.collab.net",
+                "http://build.collab.net:18080/csvn", 18080, keyValues, true,
+                1287360000123L);
+        assertSame("Running", server, roundTrip(server));
+    }
+
+    public void testUpdateWithItsPreviousServer() throws Exception {
+        Map<SvnEdgeServiceKey, String> previousValues =
+                new HashMap<SvnEdgeServiceKey, String>();
+        previousValues.put(SvnEdgeCsvnServiceKey.CONTEXT_PATH, "/csvn");
+        SvnEdgeServerInfo previous = newServer("collabnetsvn",
+                SvnEdgeServiceType.CSVN, InetAddress.getByName("fe80::1"),
+                "fe80::1", "http://[fe80::1]:3343/csvn", 3343,
+                previousValues, false, 1287360000000L);
+        Map<SvnEdgeServiceKey, String> keyValues =
+                new HashMap<SvnEdgeServiceKey, String>();
+        keyValues.put(SvnEdgeCsvnServiceKey.CONTEXT_PATH, "/svn");
+        keyValues.put(SvnEdgeCsvnServiceKey.TEAMFORGE_PATH, "/sf");
+        SvnEdgeServerInfo update = newServer("collabnetsvn",
+                SvnEdgeServiceType.CSVN, InetAddress.getByName("10.0.0.7"),
+                "svn.local", "https://svn.local:4434/svn", 4434, keyValues,
+                true, 1287360000456L).asUpdateOf(previous);
+        assertEquals("Changed fields", EnumSet.allOf(
+                SvnEdgeServerField.class), update.getChangedFields());
+        assertEquals("Changed keys", 2, update.getChangedKeys().size());
+        assertSame("Update", update, roundTrip(update));
+    }
+
+    public void testNullValues() throws Exception {
+        SvnEdgeServerInfo server = newServer(null, null, null, null, null, 0,
+                new HashMap<SvnEdgeServiceKey, String>(), false, 0);
+        assertSame("Empty", server, roundTrip(server));
+    }
+
+    public void testDecodedAddressesAreNotShared() throws Exception {
+        Map<SvnEdgeServiceKey, String> keyValues =
+                new HashMap<SvnEdgeServiceKey, String>();
+        SvnEdgeServerInfo first = roundTrip(newServer("first",
+                SvnEdgeServiceType.CSVN, InetAddress.getByName("10.0.0.1"),
+                null, "http://10.0.0.1/csvn", 80, keyValues, true, 1));
+        SvnEdgeServerInfo second = roundTrip(newServer("second",
+                SvnEdgeServiceType.CSVN, InetAddress.getByName("10.0.0.2"),
+                null, "http://10.0.0.2/csvn", 80, keyValues, true, 2));
+        assertEquals("First address", InetAddress.getByName("10.0.0.1"),
+                first.getInetAddress());
+        assertEquals("Second address", InetAddress.getByName("10.0.0.2"),
+                second.getInetAddress());
+    }
+
+    public static void main(String[] args) throws Throwable {
+        SvnEdgeTests.runAll(SvnEdgeServerInfoCodecTest.class);
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import static com.collabnet.svnedge.discovery.SvnEdgeTests.assertEquals;
+import static com.collabnet.svnedge.discovery.SvnEdgeTests.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServerEvent;
+
+/**
+ * The tests of the {@link SvnEdgeServersCache}, loading the servers of files
+ * whose last records are damaged or too old, and recording the changes while
+ * the file is being written.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public final class SvnEdgeServersCacheTest {
+
+    private static final SvnEdgeServersCache.Sink IGNORED =
+            new SvnEdgeServersCache.Sink() {
+        public void expired(SvnEdgeServerInfo serverInfo) {
+        }
+    };
+
+    private final File file;
+    private final InetAddress loopback;
+
+    public SvnEdgeServersCacheTest() throws IOException {
+        this.file = File.createTempFile("svnedge-servers", ".cache");
+        this.file.delete();
+        this.loopback = InetAddress.getByName("127.0.0.1");
+    }
+
+    private SvnEdgeServersCache newCache() {
+        return newCache(TimeUnit.DAYS.toMillis(1));
+    }
+
+    private SvnEdgeServersCache newCache(long maxAge) {
+        return new SvnEdgeServersCache(file, TimeUnit.MINUTES.toMillis(1),
+                maxAge);
+    }
+
+    /**
+     * Writes a file with two servers.
+     * @return the length of the file.
+     */
+    private long writeServers() {
+        SvnEdgeServersCache cache = newCache();
+        cache.load(IGNORED);
+        cache.record(SvnEdgeTests.newServer("server-1", loopback,
+                "http://127.0.0.1:18080/csvn", 18080));
+        cache.record(SvnEdgeTests.newServer("server-2", loopback,
+                "http://127.0.0.1:18081/csvn", 18081));
+        cache.close();
+        return file.length();
+    }
+
+    /**
+     * Appends the given bytes to the file.
+     */
+    private void append(byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return a record whose header has the given version and length,
+     * followed by a few bytes.
+     */
+    private static byte[] header(int version, int length) {
+        ByteBuffer record = ByteBuffer.allocate(19);
+        record.put((byte) version);
+        record.putShort((short) length);
+        return record.array();
+    }
+
+    /**
+     * Loads the file after a damaged record, which must be discarded with
+     * the bytes after it.
+     */
+    private void assertDamagedRecordIsDiscarded(String damage, byte[] record)
+            throws Exception {
+        try {
+            long validLength = writeServers();
+            append(record);
+            SvnEdgeServersCache cache = newCache();
+            List<SvnEdgeServerInfo> loaded = cache.load(IGNORED);
+            cache.close();
+            assertEquals("Servers loaded after " + damage, 2, loaded.size());
+            assertEquals("File length after " + damage, validLength,
+                    file.length());
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testLoadsTheServersWritten() throws Exception {
+        try {
+            writeServers();
+            SvnEdgeServersCache cache = newCache();
+            List<SvnEdgeServerInfo> loaded = cache.load(IGNORED);
+            cache.close();
+            assertEquals("Servers loaded", 2, loaded.size());
+            SvnEdgeServerInfo first = loaded.get(0);
+            assertEquals("First server", "server-1", first.getServiceName());
+            assertEquals("Url", "http://127.0.0.1:18080/csvn",
+                    first.getUrl());
+            assertEquals("Port", 18080, first.getPort());
+            assertEquals("Address", loopback, first.getInetAddress());
+            assertEquals("Event", SvnEdgeServerEvent.SERVER_RUNNING,
+                    first.getEvent());
+            assertEquals("Unverified", false, first.isVerified());
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testRemovesTheServersShutDown() throws Exception {
+        try {
+            writeServers();
+            SvnEdgeServersCache cache = newCache();
+            cache.load(IGNORED);
+            cache.record(SvnEdgeTests.newServer("server-1", loopback,
+                    "http://127.0.0.1:18080/csvn", 18080).withEvent(
+                            SvnEdgeServerEvent.SERVER_SHUTDOWN));
+            cache.close();
+
+            cache = newCache();
+            List<SvnEdgeServerInfo> loaded = cache.load(IGNORED);
+            cache.close();
+            assertEquals("Servers loaded", 1, loaded.size());
+            assertEquals("Server", "server-2", loaded.get(0).getServiceName());
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testUnknownVersionIsDiscarded() throws Exception {
+        assertDamagedRecordIsDiscarded("an unknown version", header(0x7F, 16));
+    }
+
+    public void testZeroLengthIsDiscarded() throws Exception {
+        assertDamagedRecordIsDiscarded("a zero length",
+                header(SvnEdgeServerInfoCodec.FORMAT_VERSION, 0));
+    }
+
+    public void testLengthBeyondTheFileIsDiscarded() throws Exception {
+        assertDamagedRecordIsDiscarded("a length beyond the file",
+                header(SvnEdgeServerInfoCodec.FORMAT_VERSION, 0xFFFF));
+    }
+
+    public void testTruncatedRecordIsDiscarded() throws Exception {
+        ByteBuffer record = ByteBuffer.allocate(
+                SvnEdgeServerInfoCodec.MAX_RECORD_SIZE);
+        new SvnEdgeServerInfoCodec().encode(SvnEdgeTests.newServer(
+                "server-3", loopback, "http://127.0.0.1:18082/csvn", 18082),
+                record);
+        assertDamagedRecordIsDiscarded("a truncated record", Arrays.copyOf(
+                record.array(), record.position() - 2));
+    }
+
+    public void testFileOfAnotherVersionIsDiscarded() throws Exception {
+        try {
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(
+                    file));
+            try {
+                out.writeInt(0x53564e45);
+                out.writeShort(1);
+                out.write(new byte[16]);
+            } finally {
+                out.close();
+            }
+            SvnEdgeServersCache cache = newCache();
+            List<SvnEdgeServerInfo> loaded = cache.load(IGNORED);
+            cache.close();
+            assertEquals("Servers loaded", 0, loaded.size());
+            assertEquals("File length", 6, file.length());
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testServersTooOldAreRemovedFromTheFile() throws Exception {
+        try {
+            writeServers();
+            Thread.sleep(10);
+            SvnEdgeServersCache cache = newCache(1);
+            List<SvnEdgeServerInfo> loaded = cache.load(IGNORED);
+            cache.close();
+            assertEquals("Servers loaded", 0, loaded.size());
+            assertEquals("Servers in the file", 0, cache.size());
+
+            cache = newCache();
+            loaded = cache.load(IGNORED);
+            cache.close();
+            assertEquals("Servers loaded with a longer maximum age", 0,
+                    loaded.size());
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testRecordsWhileTheFileIsBeingWritten() throws Exception {
+        try {
+            final SvnEdgeServersCache cache = newCache();
+            cache.load(IGNORED);
+            Thread recorder = new Thread(new Runnable() {
+                public void run() {
+                    cache.record(SvnEdgeTests.newServer("server-1", loopback,
+                            "http://127.0.0.1:18080/csvn", 18080));
+                }
+            });
+            // the monitor of the cache is held while writing the file.
+            synchronized (cache) {
+                recorder.start();
+                recorder.join(1000);
+                assertTrue("Recording waited for the file",
+                        !recorder.isAlive());
+            }
+            cache.close();
+            assertEquals("Servers in the file", 1, cache.size());
+        } finally {
+            file.delete();
+        }
+    }
+
+    public static void main(String[] args) throws Throwable {
+        SvnEdgeTests.runAll(SvnEdgeServersCacheTest.class);
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import static com.collabnet.svnedge.discovery.SvnEdgeTests.assertEquals;
+import static com.collabnet.svnedge.discovery.SvnEdgeTests.await;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceType;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The tests of the {@link SvnEdgeServersEventStreams}, served on the
+ * loopback interface to clients reading the frames, or not reading them at
+ * all.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public final class SvnEdgeServersEventStreamsTest {
+
+    /**
+     * The write timeout of the tests, in milliseconds.
+     */
+    private static final long WRITE_TIMEOUT = 500;
+
+    private final InetAddress loopback;
+    private final SvnEdgeServersRegistry registry;
+
+    public SvnEdgeServersEventStreamsTest() throws IOException {
+        this.loopback = InetAddress.getByName("127.0.0.1");
+        this.registry = new SvnEdgeServersRegistry();
+    }
+
+    /**
+     * Adds the given number of servers to the registry, with long urls so
+     * that the reset frame fills the buffers of a client not reading it.
+     */
+    private void addServers(int count) {
+        StringBuilder path = new StringBuilder("/csvn/");
+        while (path.length() < 400) {
+            path.append("repositories/");
+        }
+        for (int i = 0; i < count; i++) {
+            registry.apply(SvnEdgeTests.newServer("server-" + i, loopback,
+                    "http://server-" + i + path, 18080));
+        }
+    }
+
+    /**
+     * Serves the given streams on an ephemeral port of the loopback
+     * interface.
+     */
+    private HttpServer serve(final SvnEdgeServersEventStreams streams)
+            throws IOException {
+        HttpServer server = HttpServer.create(
+                new InetSocketAddress(loopback, 0), 0);
+        server.createContext("/events", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                streams.open(exchange, null, -1);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    /**
+     * @return a client that requested the stream of the given server.
+     */
+    private static Socket connect(HttpServer server, int receiveBuffer)
+            throws IOException {
+        Socket client = new Socket();
+        client.setReceiveBufferSize(receiveBuffer);
+        client.connect(server.getAddress());
+        OutputStream out = client.getOutputStream();
+        out.write("GET /events HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                .getBytes("US-ASCII"));
+        out.flush();
+        return client;
+    }
+
+    /**
+     * Reads the stream of the given client until a line starting with the
+     * given prefix.
+     */
+    private static void readUntil(BufferedReader in, String prefix)
+            throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith(prefix)) {
+                return;
+            }
+        }
+        throw new AssertionError("The stream ended before " + prefix);
+    }
+
+    public void testStreamsTheResetAndTheChanges() throws Exception {
+        addServers(2);
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        ScheduledExecutorService timer =
+                Executors.newSingleThreadScheduledExecutor();
+        final SvnEdgeServersEventStreams streams =
+                new SvnEdgeServersEventStreams(registry, executor, timer, 10,
+                        WRITE_TIMEOUT);
+        HttpServer server = serve(streams);
+        Socket client = connect(server, 65536);
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    client.getInputStream(), "UTF-8"));
+            readUntil(in, "event: reset");
+            await("The stream is not open", new SvnEdgeTests.Condition() {
+                public boolean holds() {
+                    return streams.getStreamCount() == 1;
+                }
+            });
+            registry.apply(SvnEdgeTests.newServer("server-new", loopback,
+                    "http://server-new/csvn", 18080));
+            streams.changed();
+            readUntil(in, "event: changes");
+            await("The frames are not counted", new SvnEdgeTests.Condition() {
+                public boolean holds() {
+                    return streams.getFramesSent() == 2;
+                }
+            });
+            assertEquals("Streams closed", 0, streams.getSlowCount());
+
+        } finally {
+            client.close();
+            streams.close();
+            server.stop(0);
+            timer.shutdownNow();
+            executor.shutdownNow();
+        }
+    }
+
+    public void testClosesTheStreamOfAClientNotReading() throws Exception {
+        addServers(20000);
+        // a single writer, held by the client not reading.
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        ScheduledExecutorService timer =
+                Executors.newSingleThreadScheduledExecutor();
+        final SvnEdgeServersEventStreams streams =
+                new SvnEdgeServersEventStreams(registry, executor, timer, 10,
+                        WRITE_TIMEOUT);
+        HttpServer server = serve(streams);
+        Socket stuck = connect(server, 1024);
+        Socket reader = null;
+        try {
+            await("The stream of the client not reading is not closed",
+                    new SvnEdgeTests.Condition() {
+                public boolean holds() {
+                    return streams.getSlowCount() == 1;
+                }
+            });
+            // the writer is free again for the other clients, which get a
+            // small reset.
+            registry.removeAll(SvnEdgeServiceType.CSVN);
+            reader = connect(server, 65536);
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    reader.getInputStream(), "UTF-8"));
+            readUntil(in, "event: reset");
+            await("The stream of the reader is not open",
+                    new SvnEdgeTests.Condition() {
+                public boolean holds() {
+                    return streams.getStreamCount() == 1;
+                }
+            });
+            await("The reset of the reader is not counted",
+                    new SvnEdgeTests.Condition() {
+                public boolean holds() {
+                    return streams.getFramesSent() == 1;
+                }
+            });
+            assertEquals("Streams closed", 1, streams.getSlowCount());
+
+        } finally {
+            stuck.close();
+            if (reader != null) {
+                reader.close();
+            }
+            streams.close();
+            server.stop(0);
+            timer.shutdownNow();
+            executor.shutdownNow();
+        }
+    }
+
+    public void testStreamsToAClientWhileOthersAreNotReading()
+            throws Exception {
+        addServers(20000);
+        // more clients not reading than the threads of a small pool.
+        ExecutorService executor = SvnEdgeVirtualThreads.newTaskExecutor(
+                "SvnEdge-Test-Stream-");
+        ScheduledExecutorService timer =
+                Executors.newSingleThreadScheduledExecutor();
+        final SvnEdgeServersEventStreams streams =
+                new SvnEdgeServersEventStreams(registry, executor, timer, 10);
+        HttpServer server = serve(streams);
+        Socket[] stuck = new Socket[5];
+        Socket reader = null;
+        try {
+            for (int i = 0; i < stuck.length; i++) {
+                stuck[i] = connect(server, 1024);
+            }
+            await("The streams of the clients not reading are not open",
+                    new SvnEdgeTests.Condition() {
+                public boolean holds() {
+                    return streams.getStreamCount() == 5;
+                }
+            });
+            reader = connect(server, 65536);
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    reader.getInputStream(), "UTF-8"));
+            readUntil(in, "event: reset");
+            readUntil(in, "data: ");
+            // long before the write timeout of the clients not reading.
+            assertEquals("Streams closed", 0, streams.getSlowCount());
+
+        } finally {
+            for (Socket client : stuck) {
+                if (client != null) {
+                    client.close();
+                }
+            }
+            if (reader != null) {
+                reader.close();
+            }
+            streams.close();
+            server.stop(0);
+            timer.shutdownNow();
+            executor.shutdownNow();
+        }
+    }
+
+    public static void main(String[] args) throws Throwable {
+        SvnEdgeTests.runAll(SvnEdgeServersEventStreamsTest.class);
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import static com.collabnet.svnedge.discovery.SvnEdgeTests.assertEquals;
+import static com.collabnet.svnedge.discovery.SvnEdgeTests.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServerEvent;
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceType;
+
+/**
+ * The tests of the {@link SvnEdgeServersPublisher} and its
+ * {@link SvnEdgeServersSubscription}s: the demand, the conflation, the
+ * buffer, the cancellation and the completion. The events are offered to
+ * the subscriptions directly, and delivered by the thread offering or
+ * requesting them, with a client browsing the domain of an
+ * {@link SvnEdgeDnsStandInServer} on the loopback interface.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public final class SvnEdgeServersPublisherTest {
+
+    /**
+     * The interval between the polls of the client, in milliseconds.
+     */
+    private static final long POLL_INTERVAL = 1000;
+
+    private final InetAddress loopback;
+    private final SvnEdgeDnsStandInServer server;
+    private final SvnEdgeBonjourClient client;
+
+    public SvnEdgeServersPublisherTest() throws IOException {
+        this.loopback = InetAddress.getByName("127.0.0.1");
+        this.server = new SvnEdgeDnsStandInServer("svnedge.test", loopback);
+        this.client = SvnEdgeBonjourClient.makeInstance(loopback,
+                SvnEdgeServiceType.CSVN, server.getDomain(POLL_INTERVAL));
+        this.client.setEventExecutor(new Executor() {
+            public void execute(Runnable delivery) {
+                delivery.run();
+            }
+        });
+    }
+
+    /**
+     * Records the signals of a subscription, requesting nothing by itself.
+     */
+    private static final class Recorder implements
+            Flow.Subscriber<SvnEdgeServerInfo> {
+        private final List<SvnEdgeServerInfo> events =
+                new CopyOnWriteArrayList<SvnEdgeServerInfo>();
+        private volatile SvnEdgeServersSubscription subscription;
+        private volatile boolean completed;
+        private volatile Throwable error;
+
+        public void onSubscribe(Flow.Subscription newSubscription) {
+            this.subscription = (SvnEdgeServersSubscription) newSubscription;
+        }
+
+        public void onNext(SvnEdgeServerInfo serverInfo) {
+            events.add(serverInfo);
+        }
+
+        public void onError(Throwable throwable) {
+            this.error = throwable;
+        }
+
+        public void onComplete() {
+            this.completed = true;
+        }
+
+        private SvnEdgeServerEvent lastEvent() {
+            return events.get(events.size() - 1).getEvent();
+        }
+    }
+
+    private Recorder subscribe(SvnEdgeServersPublisher publisher) {
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+        return recorder;
+    }
+
+    private void close() throws IOException {
+        try {
+            client.stop();
+        } finally {
+            server.close();
+        }
+    }
+
+    private SvnEdgeServerInfo running(String name, String path) {
+        return SvnEdgeTests.newServer(name, loopback, "http://" + name + path,
+                18080);
+    }
+
+    private SvnEdgeServerInfo shutdown(String name) {
+        return running(name, "/csvn").withEvent(
+                SvnEdgeServerEvent.SERVER_SHUTDOWN);
+    }
+
+    public void testDeliversOnlyTheRequestedEvents() throws Exception {
+        try {
+            Recorder recorder = subscribe(client.getServersPublisher()
+                    .withoutReplay());
+            for (int i = 0; i < 3; i++) {
+                recorder.subscription.offer(running("server-" + i, "/csvn"));
+            }
+            assertEquals("events before any request", 0,
+                    recorder.events.size());
+            assertEquals("pending", 3,
+                    recorder.subscription.getPendingCount());
+
+            recorder.subscription.request(2);
+            assertEquals("events", 2, recorder.events.size());
+            assertEquals("first event", "server-0",
+                    recorder.events.get(0).getServiceName());
+            assertEquals("demand", 0, recorder.subscription.getDemand());
+
+            recorder.subscription.request(5);
+            assertEquals("events", 3, recorder.events.size());
+            assertEquals("demand left", 4, recorder.subscription.getDemand());
+            recorder.subscription.offer(running("server-3", "/csvn"));
+            assertEquals("events delivered on demand", 4,
+                    recorder.events.size());
+            assertEquals("delivered", 4,
+                    recorder.subscription.getDeliveredCount());
+        } finally {
+            close();
+        }
+    }
+
+    public void testDropsTheOldestChangesWhenTheBufferIsFull()
+            throws Exception {
+        try {
+            Recorder recorder = subscribe(client.getServersPublisher()
+                    .withoutReplay().withCapacity(2));
+            for (int i = 0; i < 3; i++) {
+                recorder.subscription.offer(running("server-" + i, "/csvn"));
+            }
+            assertEquals("dropped", 1, recorder.subscription.getDroppedCount());
+
+            recorder.subscription.request(Long.MAX_VALUE);
+            assertEquals("events", 2, recorder.events.size());
+            assertEquals("oldest event kept", "server-1",
+                    recorder.events.get(0).getServiceName());
+        } finally {
+            close();
+        }
+    }
+
+    public void testFiltersTheEventsBeforeBufferingThem() throws Exception {
+        try {
+            Recorder recorder = subscribe(client.getServersPublisher()
+                    .withoutReplay().filter(new SvnEdgeServerFilter() {
+                public boolean accepts(SvnEdgeServerInfo serverInfo) {
+                    return serverInfo.getServiceName().startsWith("a");
+                }
+            }));
+            recorder.subscription.offer(running("alpha", "/csvn"));
+            recorder.subscription.offer(running("beta", "/csvn"));
+            assertEquals("offered", 1, recorder.subscription.getOfferedCount());
+
+            recorder.subscription.request(2);
+            assertEquals("events", 1, recorder.events.size());
+            assertEquals("event", "alpha",
+                    recorder.events.get(0).getServiceName());
+        } finally {
+            close();
+        }
+    }
+
+    public void testConflatesTheEventsOfAServer() throws Exception {
+        try {
+            Recorder recorder = subscribe(client.getServersPublisher()
+                    .withoutReplay().conflate());
+            recorder.subscription.offer(running("alpha", "/csvn"));
+            recorder.subscription.offer(running("alpha", "/svn"));
+            recorder.subscription.offer(running("beta", "/csvn"));
+            assertEquals("pending", 2, recorder.subscription.getPendingCount());
+            assertEquals("conflated", 1,
+                    recorder.subscription.getConflatedCount());
+
+            recorder.subscription.request(Long.MAX_VALUE);
+            assertEquals("events", 2, recorder.events.size());
+            assertEquals("latest state", running("alpha", "/svn").getUrl(),
+                    recorder.events.get(0).getUrl());
+        } finally {
+            close();
+        }
+    }
+
+    public void testSkipsAServerNeverReceivedThatShutDown() throws Exception {
+        try {
+            Recorder recorder = subscribe(client.getServersPublisher()
+                    .withoutReplay().conflate());
+            recorder.subscription.offer(running("alpha", "/csvn"));
+            recorder.subscription.offer(shutdown("alpha"));
+            assertEquals("pending", 0, recorder.subscription.getPendingCount());
+
+            recorder.subscription.request(1);
+            assertEquals("events", 0, recorder.events.size());
+        } finally {
+            close();
+        }
+    }
+
+    public void testDeliversTheShutdownOfAServerReceivedRunning()
+            throws Exception {
+        try {
+            Recorder recorder = subscribe(client.getServersPublisher()
+                    .withoutReplay().conflate());
+            recorder.subscription.request(1);
+            recorder.subscription.offer(running("alpha", "/csvn"));
+            assertEquals("events", 1, recorder.events.size());
+
+            // the subscriber does not request more meanwhile.
+            recorder.subscription.offer(shutdown("alpha"));
+            recorder.subscription.offer(running("alpha", "/csvn"));
+            recorder.subscription.offer(shutdown("alpha"));
+
+            recorder.subscription.request(1);
+            assertEquals("events", 2, recorder.events.size());
+            assertEquals("event", SvnEdgeServerEvent.SERVER_SHUTDOWN,
+                    recorder.lastEvent());
+        } finally {
+            close();
+        }
+    }
+
+    public void testDeliversTheShutdownOfAServerUpdatedBack()
+            throws Exception {
+        try {
+            Recorder recorder = subscribe(client.getServersPublisher()
+                    .withoutReplay().conflate());
+            recorder.subscription.request(1);
+            SvnEdgeServerInfo original = running("alpha", "/csvn");
+            SvnEdgeServerInfo moved = running("alpha", "/svn");
+            recorder.subscription.offer(original);
+
+            // updated, then back to the values received: a running event.
+            recorder.subscription.offer(moved.asUpdateOf(original));
+            recorder.subscription.offer(original.asUpdateOf(moved));
+            recorder.subscription.offer(shutdown("alpha"));
+
+            recorder.subscription.request(1);
+            assertEquals("events", 2, recorder.events.size());
+            assertEquals("event", SvnEdgeServerEvent.SERVER_SHUTDOWN,
+                    recorder.lastEvent());
+
+            // shut down for the subscriber: a new server again.
+            recorder.subscription.offer(running("alpha", "/csvn"));
+            recorder.subscription.offer(shutdown("alpha"));
+            assertEquals("pending", 0, recorder.subscription.getPendingCount());
+        } finally {
+            close();
+        }
+    }
+
+    public void testReplaysTheRunningServersFirst() throws Exception {
+        try {
+            Recorder recorder = subscribe(client.getServersPublisher());
+            recorder.subscription.replay(running("alpha", "/csvn"));
+            recorder.subscription.offer(running("beta", "/csvn"));
+
+            recorder.subscription.request(2);
+            assertEquals("events", 2, recorder.events.size());
+            assertEquals("replayed first", "alpha",
+                    recorder.events.get(0).getServiceName());
+        } finally {
+            close();
+        }
+    }
+
+    public void testCancelDiscardsThePendingEvents() throws Exception {
+        try {
+            Recorder recorder = subscribe(client.getServersPublisher()
+                    .withoutReplay());
+            recorder.subscription.offer(running("alpha", "/csvn"));
+            recorder.subscription.cancel();
+            assertTrue("cancelled", recorder.subscription.isCancelled());
+            assertEquals("pending", 0, recorder.subscription.getPendingCount());
+
+            recorder.subscription.offer(running("beta", "/csvn"));
+            recorder.subscription.request(2);
+            assertEquals("events", 0, recorder.events.size());
+            assertTrue("completed", !recorder.completed);
+        } finally {
+            close();
+        }
+    }
+
+    public void testSignalsAnErrorForANonPositiveRequest() throws Exception {
+        try {
+            Recorder recorder = subscribe(client.getServersPublisher()
+                    .withoutReplay());
+            recorder.subscription.request(0);
+            assertTrue("error", recorder.error instanceof
+                    IllegalArgumentException);
+            assertTrue("cancelled", recorder.subscription.isCancelled());
+        } finally {
+            close();
+        }
+    }
+
+    public void testCompletesAfterThePendingEventsOnStop() throws Exception {
+        Recorder recorder;
+        try {
+            recorder = subscribe(client.getServersPublisher()
+                    .withoutReplay());
+            recorder.subscription.offer(running("alpha", "/csvn"));
+        } finally {
+            close();
+        }
+        assertTrue("completed with an event pending", !recorder.completed);
+
+        recorder.subscription.offer(running("beta", "/csvn"));
+        recorder.subscription.request(Long.MAX_VALUE);
+        assertEquals("events", 1, recorder.events.size());
+        assertTrue("completed", recorder.completed);
+
+        Recorder late = subscribe(client.getServersPublisher());
+        assertTrue("late subscriber completed", late.completed);
+    }
+
+    public static void main(String[] args) throws Throwable {
+        SvnEdgeTests.runAll(SvnEdgeServersPublisherTest.class);
+    }
+}
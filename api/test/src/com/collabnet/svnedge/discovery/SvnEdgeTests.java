@@ -0,0 +1,148 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServerEvent;
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceKey;
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceType;
+
+/**
+ * The assertions and fixtures shared by the tests of the api. The tests are
+ * plain classes whose main method runs their test methods with
+ * {@link #runAll(Class)}, throwing the first failure, so that the test
+ * target of the build fails without any test framework on its classpath.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+final class SvnEdgeTests {
+
+    /**
+     * The time waited for an asynchronous condition, in milliseconds.
+     */
+    static final long AWAIT_TIMEOUT = 10000;
+
+    /**
+     * A condition verified while waiting.
+     */
+    interface Condition {
+        /**
+         * @return whether the condition holds.
+         */
+        boolean holds() throws Exception;
+    }
+
+    private SvnEdgeTests() {
+    }
+
+    static void assertTrue(String message, boolean condition) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    static void assertEquals(String message, Object expected, Object actual) {
+        if (expected == null ? actual != null : !expected.equals(actual)) {
+            throw new AssertionError(message + ": expected <" + expected +
+                    "> but was <" + actual + ">");
+        }
+    }
+
+    static void assertEquals(String message, long expected, long actual) {
+        if (expected != actual) {
+            throw new AssertionError(message + ": expected <" + expected +
+                    "> but was <" + actual + ">");
+        }
+    }
+
+    /**
+     * Waits until the given condition holds.
+     * @param message is the message of the failure.
+     * @param condition is the condition.
+     * @throws AssertionError if the condition does not hold within the
+     * {@link #AWAIT_TIMEOUT}.
+     */
+    static void await(String message, Condition condition) throws Exception {
+        long deadline = System.currentTimeMillis() + AWAIT_TIMEOUT;
+        while (!condition.holds()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError(message);
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Runs each public method of the given class whose name starts with
+     * "test", on a new instance, printing the name of the tests passed.
+     * @param testClass is the class of the tests.
+     * @throws Throwable the failure of the first test that fails.
+     */
+    static void runAll(Class<?> testClass) throws Throwable {
+        Method[] methods = testClass.getDeclaredMethods();
+        Arrays.sort(methods, new Comparator<Method>() {
+            public int compare(Method m1, Method m2) {
+                return m1.getName().compareTo(m2.getName());
+            }
+        });
+        int passed = 0;
+        for (Method method : methods) {
+            if (!method.getName().startsWith("test") ||
+                    !Modifier.isPublic(method.getModifiers())) {
+                continue;
+            }
+            long start = System.currentTimeMillis();
+            try {
+                method.invoke(testClass.getDeclaredConstructor()
+                        .newInstance());
+            } catch (InvocationTargetException e) {
+                System.out.println("FAILED " + testClass.getSimpleName() +
+                        "." + method.getName());
+                throw e.getCause();
+            }
+            System.out.println("Passed " + testClass.getSimpleName() + "." +
+                    method.getName() + " in " +
+                    (System.currentTimeMillis() - start) + " ms");
+            passed++;
+        }
+        System.out.println(testClass.getSimpleName() + ": " + passed +
+                " tests passed");
+    }
+
+    /**
+     * @return a running CSVN server with the given name, address and url.
+     */
+    static SvnEdgeServerInfo newServer(String serviceName,
+            InetAddress ipAddress, String url, int port) {
+        Map<SvnEdgeServiceKey, String> keyValues =
+                new HashMap<SvnEdgeServiceKey, String>();
+        return SvnEdgeServerInfo.makeDecoded(serviceName,
+                SvnEdgeServiceType.CSVN, SvnEdgeServerEvent.SERVER_RUNNING,
+                ipAddress, ipAddress.getHostAddress(), url, port, keyValues,
+                true, System.currentTimeMillis(), null, null, null);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import static com.collabnet.svnedge.discovery.SvnEdgeTests.assertEquals;
+import static com.collabnet.svnedge.discovery.SvnEdgeTests.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The tests of the {@link SvnEdgeTimerWheel}, with ticks of a millisecond
+ * from the time 0: the timeouts scheduled across the boundaries of the
+ * wheels, cascaded down to the finest wheel, must expire on their tick.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public final class SvnEdgeTimerWheelTest {
+
+    /**
+     * The delays around the boundaries of the wheels of 64 slots, in ticks.
+     */
+    private static final long[] DELAYS = {
+        1, 2, 63, 64, 65, 127, 128, 129, 4095, 4096, 4097, 4160, 262143,
+        262144, 262145, 16777215, 16777216, 16777221
+    };
+
+    private final SvnEdgeTimerWheel<Long> wheel =
+            new SvnEdgeTimerWheel<Long>(1, 0);
+    private final List<Long> expired = new ArrayList<Long>();
+
+    /**
+     * Advances the wheel to the given tick, one tick at a time, checking
+     * that the items expire on the tick of their deadline.
+     */
+    private void advanceTo(long from, long to) {
+        for (long tick = from + 1; tick <= to; tick++) {
+            wheel.advance(tick, expired);
+            for (Long deadline : expired) {
+                assertEquals("Tick of the timeout due at " + deadline,
+                        deadline.longValue(), tick);
+            }
+            expired.clear();
+        }
+    }
+
+    /**
+     * Schedules the {@link #DELAYS} from the given tick, and checks that
+     * each one expires on its tick.
+     */
+    private void assertExpireOnTime(long from) {
+        advanceTo(0, from);
+        for (long delay : DELAYS) {
+            wheel.schedule(from + delay, from + delay);
+        }
+        assertEquals("Scheduled", DELAYS.length, wheel.size());
+        advanceTo(from, from + DELAYS[DELAYS.length - 1]);
+        assertEquals("Scheduled after the last deadline", 0, wheel.size());
+    }
+
+    public void testExpiresOnTimeFromTheFirstTick() {
+        assertExpireOnTime(0);
+    }
+
+    public void testExpiresOnTimeFromATickWithinASlot() {
+        assertExpireOnTime(37);
+    }
+
+    public void testExpiresOnTimeFromTheEndOfTheFinestWheel() {
+        assertExpireOnTime(4090);
+    }
+
+    public void testExpiresAtTheNextTickWhenAlreadyDue() {
+        advanceTo(0, 100);
+        wheel.schedule(50L, 50);
+        wheel.advance(101, expired);
+        assertEquals("Expired", 1, expired.size());
+    }
+
+    public void testCancelledTimeoutsNeverExpire() {
+        List<SvnEdgeTimerWheel.Timeout<Long>> timeouts =
+                new ArrayList<SvnEdgeTimerWheel.Timeout<Long>>();
+        for (long delay : DELAYS) {
+            timeouts.add(wheel.schedule(delay, delay));
+        }
+        // cancelling every other timeout, from each wheel.
+        int cancelled = 0;
+        for (int i = 0; i < timeouts.size(); i += 2) {
+            wheel.cancel(timeouts.get(i));
+            assertTrue("Scheduled after cancel",
+                    !timeouts.get(i).isScheduled());
+            cancelled++;
+        }
+        assertEquals("Scheduled", DELAYS.length - cancelled, wheel.size());
+        wheel.advance(DELAYS[DELAYS.length - 1], expired);
+        assertEquals("Expired", DELAYS.length - cancelled, expired.size());
+        for (int i = 1; i < timeouts.size(); i += 2) {
+            assertTrue("Expired timeout " + DELAYS[i],
+                    expired.contains(DELAYS[i]));
+            assertTrue("Scheduled after it expired",
+                    !timeouts.get(i).isScheduled());
+        }
+        // cancelling an expired timeout changes nothing.
+        wheel.cancel(timeouts.get(1));
+        assertEquals("Scheduled", 0, wheel.size());
+    }
+
+    public static void main(String[] args) throws Throwable {
+        SvnEdgeTests.runAll(SvnEdgeTimerWheelTest.class);
+    }
+}
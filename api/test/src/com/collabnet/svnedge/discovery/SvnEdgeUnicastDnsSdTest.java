@@ -0,0 +1,249 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import static com.collabnet.svnedge.discovery.SvnEdgeTests.assertEquals;
+import static com.collabnet.svnedge.discovery.SvnEdgeTests.assertTrue;
+import static com.collabnet.svnedge.discovery.SvnEdgeTests.await;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.jmdns.ServiceEvent;
+import javax.jmdns.ServiceInfo;
+import javax.jmdns.ServiceListener;
+import javax.jmdns.ServiceTypeListener;
+
+/**
+ * The tests of the {@link SvnEdgeUnicastDnsSd} engine, publishing and
+ * browsing the services of a domain served by an
+ * {@link SvnEdgeDnsStandInServer} on the loopback interface.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public final class SvnEdgeUnicastDnsSdTest {
+
+    private static final String TYPE = "_csvn._tcp.local.";
+    /**
+     * The interval between the polls of the tests, in milliseconds.
+     */
+    private static final long POLL_INTERVAL = 1000;
+    /**
+     * The time the tests list the instances of a type, in milliseconds.
+     */
+    private static final long LIST_TIMEOUT = 2000;
+
+    private final InetAddress loopback;
+    private final SvnEdgeDnsStandInServer server;
+    private final SvnEdgeWideAreaDomain domain;
+
+    public SvnEdgeUnicastDnsSdTest() throws IOException {
+        this.loopback = InetAddress.getByName("127.0.0.1");
+        this.server = new SvnEdgeDnsStandInServer("svnedge.test", loopback);
+        this.domain = server.getDomain(POLL_INTERVAL);
+    }
+
+    private SvnEdgeUnicastDnsSd newEngine(String hostname)
+            throws IOException {
+        return new SvnEdgeUnicastDnsSd(domain, loopback, hostname);
+    }
+
+    private static ServiceInfo newService(String name, int port) {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("path", "/csvn");
+        properties.put("version", "1.3.0");
+        return ServiceInfo.create(TYPE, name, port, 0, 0, properties);
+    }
+
+    /**
+     * Records the events of a browsed type.
+     */
+    private static final class Recorder implements ServiceListener {
+        private final List<String> events = new CopyOnWriteArrayList<String>();
+        private final List<ServiceInfo> resolved =
+                new CopyOnWriteArrayList<ServiceInfo>();
+
+        public void serviceAdded(ServiceEvent event) {
+            events.add("added " + event.getName());
+        }
+
+        public void serviceRemoved(ServiceEvent event) {
+            events.add("removed " + event.getName());
+        }
+
+        public void serviceResolved(ServiceEvent event) {
+            events.add("resolved " + event.getName());
+            resolved.add(event.getInfo());
+        }
+    }
+
+    public void testListsTheRegisteredServices() throws Exception {
+        SvnEdgeUnicastDnsSd register = newEngine("register");
+        SvnEdgeUnicastDnsSd browser = newEngine("browser");
+        try {
+            register.registerService(newService("alpha", 3343));
+            register.registerService(newService("beta", 4434));
+            assertEquals("updates", 2, server.getUpdatesApplied());
+
+            ServiceInfo[] infos = browser.list(TYPE, LIST_TIMEOUT);
+            assertEquals("instances", 2, infos.length);
+            for (ServiceInfo info : infos) {
+                ServiceInfo expected = info.getName().equals("alpha") ?
+                        newService("alpha", 3343) : newService("beta", 4434);
+                assertEquals("name", expected.getName(), info.getName());
+                assertEquals("type", TYPE, info.getType());
+                assertEquals("port", expected.getPort(), info.getPort());
+                assertEquals("address", loopback,
+                        info.getInet4Addresses()[0]);
+                assertEquals("path", "/csvn",
+                        info.getPropertyString("path"));
+                assertEquals("version", "1.3.0",
+                        info.getPropertyString("version"));
+            }
+        } finally {
+            browser.close();
+            register.close();
+            server.close();
+        }
+    }
+
+    public void testListStopsPollingTheType() throws Exception {
+        SvnEdgeUnicastDnsSd browser = newEngine("browser");
+        try {
+            browser.list(TYPE, LIST_TIMEOUT);
+            // the collector is removed right after the instances are read.
+            Thread.sleep(POLL_INTERVAL / 2);
+            long queries = server.getQueries();
+            Thread.sleep(3 * POLL_INTERVAL);
+            assertEquals("queries after the list", queries,
+                    server.getQueries());
+        } finally {
+            browser.close();
+            server.close();
+        }
+    }
+
+    public void testBrowsesTheChangesOfTheDomain() throws Exception {
+        final SvnEdgeUnicastDnsSd register = newEngine("register");
+        SvnEdgeUnicastDnsSd browser = newEngine("browser");
+        final Recorder recorder = new Recorder();
+        try {
+            browser.addServiceListener(TYPE, recorder);
+            ServiceInfo alpha = newService("alpha", 3343);
+            register.registerService(alpha);
+            await("alpha was never resolved", new SvnEdgeTests.Condition() {
+                public boolean holds() {
+                    return recorder.events.contains("resolved alpha");
+                }
+            });
+            assertEquals("first event", "added alpha",
+                    recorder.events.get(0));
+            assertEquals("port", 3343, recorder.resolved.get(0).getPort());
+
+            register.unregisterService(alpha);
+            await("alpha was never removed", new SvnEdgeTests.Condition() {
+                public boolean holds() {
+                    return recorder.events.contains("removed alpha");
+                }
+            });
+            browser.removeServiceListener(TYPE, recorder);
+        } finally {
+            browser.close();
+            register.close();
+            server.close();
+        }
+    }
+
+    public void testTakenNamesGetTheNextFreeName() throws Exception {
+        SvnEdgeUnicastDnsSd first = newEngine("first");
+        SvnEdgeUnicastDnsSd second = newEngine("second");
+        SvnEdgeUnicastDnsSd browser = newEngine("browser");
+        try {
+            first.registerService(newService("alpha", 3343));
+            second.registerService(newService("alpha", 3344));
+            assertTrue("rejected the taken name",
+                    server.getUpdatesRejected() > 0);
+
+            Set<String> names = new HashSet<String>();
+            for (ServiceInfo info : browser.list(TYPE, LIST_TIMEOUT)) {
+                names.add(info.getName() + ":" + info.getPort());
+            }
+            assertTrue("both published: " + names,
+                    names.contains("alpha:3343") &&
+                    names.contains("alpha (2):3344"));
+        } finally {
+            browser.close();
+            second.close();
+            first.close();
+            server.close();
+        }
+    }
+
+    public void testTruncatedAnswersAreAskedOverTcp() throws Exception {
+        SvnEdgeUnicastDnsSd register = newEngine("register");
+        SvnEdgeUnicastDnsSd browser = newEngine("browser");
+        // more pointers than the 9000 bytes of a datagram of the engine.
+        int services = 400;
+        try {
+            for (int i = 0; i < services; i++) {
+                register.registerService(newService("server-" + i,
+                        20000 + i));
+            }
+            ServiceInfo[] infos = browser.list(TYPE, 2 * LIST_TIMEOUT);
+            assertEquals("instances", services, infos.length);
+            assertTrue("truncated answers",
+                    server.getTruncatedResponses() > 0);
+        } finally {
+            browser.close();
+            register.close();
+            server.close();
+        }
+    }
+
+    public void testServiceTypesAreNotEnumerated() throws Exception {
+        SvnEdgeUnicastDnsSd browser = newEngine("browser");
+        try {
+            browser.addServiceTypeListener(new ServiceTypeListener() {
+                public void serviceTypeAdded(ServiceEvent event) {
+                }
+
+                public void subTypeForServiceTypeAdded(ServiceEvent event) {
+                }
+            });
+            throw new AssertionError("the service types were enumerated");
+
+        } catch (UnsupportedOperationException e) {
+            // the documented behavior.
+
+        } finally {
+            browser.close();
+            server.close();
+        }
+    }
+
+    public static void main(String[] args) throws Throwable {
+        SvnEdgeTests.runAll(SvnEdgeUnicastDnsSdTest.class);
+    }
+}
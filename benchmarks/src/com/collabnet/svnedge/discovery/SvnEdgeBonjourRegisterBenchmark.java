@@ -0,0 +1,94 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeCsvnServiceKey;
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeHttpServiceKey;
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceKey;
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceType;
+
+/**
+ * Measures the validation of the parameters of a registration and the lookup
+ * of the service types, which runs for every jmDNS event.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SvnEdgeBonjourRegisterBenchmark {
+
+    private Map<SvnEdgeServiceKey, String> csvnParams;
+    private Map<SvnEdgeServiceKey, String> httpParams;
+
+    @Setup
+    public void setUp() {
+        csvnParams = new HashMap<SvnEdgeServiceKey, String>();
+        csvnParams.put(SvnEdgeCsvnServiceKey.CONTEXT_PATH, "/csvn");
+        csvnParams.put(SvnEdgeCsvnServiceKey.TEAMFORGE_PATH,
+                "/admin/setupTeamForge/ctfInfo");
+        httpParams = new HashMap<SvnEdgeServiceKey, String>();
+        httpParams.put(SvnEdgeHttpServiceKey.PATH, "/csvn");
+    }
+
+    @Benchmark
+    public Map<String, String> validParamsCsvn() {
+        return SvnEdgeBonjourRegister.getValidParams(SvnEdgeServiceType.CSVN,
+                csvnParams);
+    }
+
+    @Benchmark
+    public Map<String, String> validParamsHttp() {
+        return SvnEdgeBonjourRegister.getValidParams(SvnEdgeServiceType.HTTP,
+                httpParams);
+    }
+
+    @Benchmark
+    public SvnEdgeServiceType retrieveByTypeFirst() {
+        return SvnEdgeServiceType.retrieveByType("_csvn._tcp.local.");
+    }
+
+    @Benchmark
+    public SvnEdgeServiceType retrieveByTypeLast() {
+        return SvnEdgeServiceType.retrieveByType("_http._tcp.local.");
+    }
+
+    @Benchmark
+    public SvnEdgeServiceType retrieveByTypeUnknown() {
+        return SvnEdgeServiceType.retrieveByType("_ssh._tcp.local.");
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.jmdns.impl.DNSIncoming;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the reading of the mDNS responses received on a busy network,
+ * where most of the packets are the chatter of other devices: jmDNS decodes
+ * every record of every packet, while the {@link SvnEdgeDnsReader} of the
+ * NIO engine only decodes the records of the observed type. Run with
+ * "-prof gc" to compare the allocations per packet.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SvnEdgeDnsReaderBenchmark {
+
+    private static final int PACKETS = 256;
+    private static final String OBSERVED_TYPE = "_csvn._tcp.local.";
+    private static final String[] CHATTER_TYPES = {
+        "_printer._tcp.local.", "_airplay._tcp.local.", "_raop._tcp.local.",
+        "_googlecast._tcp.local."
+    };
+
+    /**
+     * The percentage of the packets announcing an instance of the observed
+     * type, the others announcing instances of other types.
+     */
+    @Param({"0", "10", "100"})
+    public int observedPercent;
+
+    private byte[][] packets;
+    /**
+     * The same packets, wrapped once, as the engine reuses its buffer.
+     */
+    private ByteBuffer[] buffers;
+    private final SvnEdgeDnsReader reader = new SvnEdgeDnsReader();
+    private final byte[] observedKey = SvnEdgeDnsReader.keyOf(OBSERVED_TYPE);
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(observedPercent);
+        SvnEdgeDnsWriter writer = new SvnEdgeDnsWriter(1472);
+        packets = new byte[PACKETS][];
+        buffers = new ByteBuffer[PACKETS];
+        for (int i = 0; i < PACKETS; i++) {
+            String type = random.nextInt(100) < observedPercent ?
+                    OBSERVED_TYPE : CHATTER_TYPES[i % CHATTER_TYPES.length];
+            String instance = "device-" + i + "." + type;
+            String host = "host-" + i + ".local.";
+            byte[] text = ("path=/csvn-" + i).getBytes("UTF-8");
+            byte[] txt = new byte[text.length + 1];
+            txt[0] = (byte) text.length;
+            System.arraycopy(text, 0, txt, 1, text.length);
+            // an announcement, as sent by jmDNS and the NIO engine.
+            writer.reset(0, SvnEdgeDnsReader.FLAG_RESPONSE |
+                    SvnEdgeDnsReader.FLAG_AUTHORITATIVE);
+            writer.addRecord(SvnEdgeDnsWriter.ANSWER,
+                    SvnEdgeDnsRecord.pointer(type, 4500, instance));
+            writer.addRecord(SvnEdgeDnsWriter.ANSWER, SvnEdgeDnsRecord.service(
+                    instance, 120, 0, 0, 8000 + i, host));
+            writer.addRecord(SvnEdgeDnsWriter.ANSWER,
+                    SvnEdgeDnsRecord.text(instance, 4500, txt));
+            writer.addRecord(SvnEdgeDnsWriter.ADDITIONAL,
+                    SvnEdgeDnsRecord.address(host, 120, InetAddress.getByAddress(
+                            new byte[] {10, 0, (byte) (i >> 8), (byte) i})));
+            ByteBuffer packet = writer.finish();
+            packets[i] = new byte[packet.remaining()];
+            packet.get(packets[i]);
+            buffers[i] = ByteBuffer.wrap(packets[i]);
+        }
+    }
+
+    @Benchmark
+    public void jmdnsIncoming(Blackhole blackhole) throws IOException {
+        for (byte[] packet : packets) {
+            blackhole.consume(new DNSIncoming(new DatagramPacket(packet,
+                    packet.length)));
+        }
+    }
+
+    /**
+     * Decodes the records of the observed type only, as the NIO engine.
+     */
+    @Benchmark
+    public void readerFiltered(Blackhole blackhole) {
+        for (ByteBuffer packet : buffers) {
+            reader.reset(packet);
+            while (reader.next()) {
+                if (reader.nameEquals(observedKey) ||
+                        reader.nameEndsWith(observedKey)) {
+                    blackhole.consume(reader.toRecord());
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes every record, as jmDNS does.
+     */
+    @Benchmark
+    public void readerDecodeAll(Blackhole blackhole) {
+        for (ByteBuffer packet : buffers) {
+            reader.reset(packet);
+            while (reader.next()) {
+                blackhole.consume(reader.toRecord());
+            }
+        }
+    }
+}
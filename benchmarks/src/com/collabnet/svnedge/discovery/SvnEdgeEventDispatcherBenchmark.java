@@ -0,0 +1,155 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServerEvent;
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceType;
+
+/**
+ * Measures the fan-out of the events of the servers to the listeners of a
+ * client: the registry update and the dispatch to the queue of each listener,
+ * as done by {@link SvnEdgeBonjourClient} for each resolved service. The
+ * listeners are registered in a {@link SvnEdgeListenerRegistry}, so that the
+ * events go through the dispatch of its copy-on-write array of queues, as in
+ * the client. The events are delivered in the calling thread, so that the
+ * numbers do not depend on the scheduling of the dispatcher's threads.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SvnEdgeEventDispatcherBenchmark {
+
+    /**
+     * The number of servers on the network.
+     */
+    @Param({"10", "100", "1000", "10000"})
+    public int servers;
+    /**
+     * The number of listeners of the client.
+     */
+    @Param({"1", "8", "64"})
+    public int listeners;
+    /**
+     * The policy of the queues of the listeners.
+     */
+    @Param({"COALESCE_LATEST", "DROP_OLDEST"})
+    public SvnEdgeOverflowPolicy policy;
+
+    private SvnEdgeEventDispatcher dispatcher;
+    private SvnEdgeListenerRegistry observers;
+    private SvnEdgeServerInfo[] running;
+    private SvnEdgeServerInfo[] stopped;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        dispatcher = new SvnEdgeEventDispatcher(new Executor() {
+            public void execute(Runnable delivery) {
+                delivery.run();
+            }
+        });
+        observers = new SvnEdgeListenerRegistry(dispatcher);
+        for (int i = 0; i < listeners; i++) {
+            observers.add(new SvnEdgeServerUpdatesListener() {
+                public void csvnServerIsRunning(SvnEdgeServerInfo serverInfo) {
+                    blackhole.consume(serverInfo);
+                }
+
+                public void csvnServerStopped(SvnEdgeServerInfo serverInfo) {
+                    blackhole.consume(serverInfo);
+                }
+
+                public void csvnServerUpdated(SvnEdgeServerInfo serverInfo) {
+                    blackhole.consume(serverInfo);
+                }
+            }, SvnEdgeServiceType.CSVN, SvnEdgeListenerQueue.DEFAULT_CAPACITY,
+                    policy, false);
+        }
+        running = new SvnEdgeServerInfo[servers];
+        stopped = new SvnEdgeServerInfo[servers];
+        for (int i = 0; i < servers; i++) {
+            SyntheticServiceInfo service = SyntheticServiceInfo.makeNew(
+                    SvnEdgeServiceType.CSVN, i);
+            running[i] = SvnEdgeServerInfo.makeNew(service,
+                    SvnEdgeServerEvent.SERVER_RUNNING);
+            stopped[i] = SvnEdgeServerInfo.makeNew(service,
+                    SvnEdgeServerEvent.SERVER_SHUTDOWN);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        observers.clear();
+    }
+
+    /**
+     * All the servers start and stop, going through the registry.
+     */
+    @Benchmark
+    public SvnEdgeServersRegistry startAndStopAll() {
+        SvnEdgeServersRegistry registry = new SvnEdgeServersRegistry();
+        for (SvnEdgeServerInfo serverInfo : running) {
+            publish(registry, serverInfo);
+        }
+        for (SvnEdgeServerInfo serverInfo : stopped) {
+            publish(registry, serverInfo);
+        }
+        return registry;
+    }
+
+    /**
+     * The events dispatched to the listeners, without the registry of the
+     * servers.
+     */
+    @Benchmark
+    public void dispatchAll() {
+        for (SvnEdgeServerInfo serverInfo : running) {
+            observers.dispatch(serverInfo);
+        }
+    }
+
+    private void publish(SvnEdgeServersRegistry registry,
+            SvnEdgeServerInfo serverInfo) {
+        SvnEdgeServerInfo change = registry.apply(serverInfo);
+        if (change != null) {
+            observers.dispatch(change);
+        }
+    }
+}
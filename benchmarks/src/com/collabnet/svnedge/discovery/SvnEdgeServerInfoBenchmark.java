@@ -0,0 +1,175 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServerEvent;
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceType;
+
+/**
+ * Measures the creation of the server information from the resolved jmDNS
+ * services, and the operations the clients run on each event: equality,
+ * hashing, ordering and the TeamForge registration url.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SvnEdgeServerInfoBenchmark {
+
+    /**
+     * The number of servers on the network.
+     */
+    @Param({"10", "100", "1000", "10000"})
+    public int servers;
+
+    private SyntheticServiceInfo[] services;
+    private SvnEdgeServerInfo[] infos;
+    /**
+     * The same servers, created again, so that equals compares different
+     * instances.
+     */
+    private SvnEdgeServerInfo[] copies;
+    /**
+     * The servers in the order of their announcements.
+     */
+    private SvnEdgeServerInfo[] shuffled;
+    /**
+     * The servers not managed by TeamForge, and the managed ones.
+     */
+    private SvnEdgeServerInfo unmanaged;
+    private SvnEdgeServerInfo managed;
+
+    @Setup
+    public void setUp() {
+        services = new SyntheticServiceInfo[servers];
+        infos = new SvnEdgeServerInfo[servers];
+        copies = new SvnEdgeServerInfo[servers];
+        for (int i = 0; i < servers; i++) {
+            services[i] = SyntheticServiceInfo.makeNew(SvnEdgeServiceType.CSVN,
+                    i);
+            infos[i] = SvnEdgeServerInfo.makeNew(services[i],
+                    SvnEdgeServerEvent.SERVER_RUNNING);
+            copies[i] = SvnEdgeServerInfo.makeNew(services[i],
+                    SvnEdgeServerEvent.SERVER_RUNNING);
+        }
+        // the announcements arrive in any order.
+        shuffled = infos.clone();
+        Collections.shuffle(Arrays.asList(shuffled), new Random(servers));
+        unmanaged = infos[0];
+        managed = SvnEdgeServerInfo.makeNew(SyntheticServiceInfo.makeNew(
+                SvnEdgeServiceType.CSVN, servers, 8080, ""),
+                SvnEdgeServerEvent.SERVER_RUNNING);
+    }
+
+    @Benchmark
+    public void makeNewRunning(Blackhole blackhole) {
+        for (SyntheticServiceInfo service : services) {
+            blackhole.consume(SvnEdgeServerInfo.makeNew(service,
+                    SvnEdgeServerEvent.SERVER_RUNNING));
+        }
+    }
+
+    @Benchmark
+    public void makeNewShutdown(Blackhole blackhole) {
+        for (SyntheticServiceInfo service : services) {
+            blackhole.consume(SvnEdgeServerInfo.makeNew(service,
+                    SvnEdgeServerEvent.SERVER_SHUTDOWN));
+        }
+    }
+
+    @Benchmark
+    public int equalsAll() {
+        int equal = 0;
+        for (int i = 0; i < servers; i++) {
+            if (infos[i].equals(copies[i])) {
+                equal++;
+            }
+        }
+        return equal;
+    }
+
+    @Benchmark
+    public int hashCodeAll() {
+        int hash = 0;
+        for (SvnEdgeServerInfo info : infos) {
+            hash += info.hashCode();
+        }
+        return hash;
+    }
+
+    /**
+     * Building the set of the servers, as the listeners do to find the
+     * servers already shown.
+     */
+    @Benchmark
+    public Set<SvnEdgeServerInfo> hashSetOfServers() {
+        return new HashSet<SvnEdgeServerInfo>(Arrays.asList(infos));
+    }
+
+    /**
+     * Sorting the servers with compareTo, as the snapshots do.
+     */
+    @Benchmark
+    public SvnEdgeServerInfo[] sortServers() {
+        SvnEdgeServerInfo[] sorted = shuffled.clone();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    @Benchmark
+    public String teamForgeRegistrationUrl() {
+        return unmanaged.getTeamForgeRegistrationUrl(
+                "https://teamforge.example.com/sf");
+    }
+
+    @Benchmark
+    public String teamForgeRegistrationUrlManaged() {
+        return managed.getTeamForgeRegistrationUrl(
+                "https://teamforge.example.com/sf");
+    }
+
+    @Benchmark
+    public String teamForgeRegistrationPath() {
+        return unmanaged.getTeamForgeRegistrationUrl();
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServerEvent;
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceKey;
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceType;
+
+/**
+ * Measures the throughput of the {@link SvnEdgeServerInfoCodec}, in servers
+ * per millisecond, encoding and decoding the records of the discovered
+ * servers in a direct buffer, against the same values written with a
+ * DataOutputStream. Run with "-prof gc" to compare the allocations per
+ * server.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SvnEdgeServerInfoCodecBenchmark {
+
+    private static final int SERVERS = 1000;
+
+    /**
+     * Whether the hostnames of the servers are resolved, instead of their
+     * IP addresses used in the urls.
+     */
+    @Param({"false", "true"})
+    public boolean resolved;
+
+    private SvnEdgeServerInfo[] infos;
+    private SvnEdgeServerInfoCodec codec;
+    private ByteBuffer buffer;
+    /**
+     * The records of all the servers.
+     */
+    private ByteBuffer records;
+
+    @Setup
+    public void setUp() {
+        infos = new SvnEdgeServerInfo[SERVERS];
+        for (int i = 0; i < SERVERS; i++) {
+            infos[i] = SvnEdgeServerInfo.makeNew(SyntheticServiceInfo.makeNew(
+                    SvnEdgeServiceType.CSVN, i),
+                    SvnEdgeServerEvent.SERVER_RUNNING);
+            if (resolved) {
+                infos[i] = infos[i].withDomainName("svn" + i +
+                        ".example.com");
+            }
+        }
+        codec = new SvnEdgeServerInfoCodec();
+        buffer = ByteBuffer.allocateDirect(
+                SvnEdgeServerInfoCodec.MAX_RECORD_SIZE);
+        records = ByteBuffer.allocateDirect(SERVERS * 128);
+        for (SvnEdgeServerInfo info : infos) {
+            codec.encode(info, records);
+        }
+        records.flip();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SERVERS)
+    public int encode() {
+        int bytes = 0;
+        for (SvnEdgeServerInfo info : infos) {
+            buffer.clear();
+            codec.encode(info, buffer);
+            bytes += buffer.position();
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SERVERS)
+    public void decode(Blackhole blackhole) {
+        records.rewind();
+        while (records.hasRemaining()) {
+            blackhole.consume(codec.decode(records));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SERVERS)
+    public void roundTrip(Blackhole blackhole) {
+        for (SvnEdgeServerInfo info : infos) {
+            buffer.clear();
+            codec.encode(info, buffer);
+            buffer.flip();
+            blackhole.consume(codec.decode(buffer));
+        }
+    }
+
+    /**
+     * The baseline: the values of the server written with a
+     * DataOutputStream into a byte array.
+     */
+    @Benchmark
+    @OperationsPerInvocation(SERVERS)
+    public int encodeDataOutput() throws IOException {
+        int bytes = 0;
+        for (SvnEdgeServerInfo info : infos) {
+            ByteArrayOutputStream array = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(array);
+            out.writeUTF(info.getServiceType().getType());
+            out.writeUTF(info.getServiceName());
+            out.writeLong(info.getCapturedAt());
+            byte[] address = info.getInetAddress().getAddress();
+            out.writeByte(address.length);
+            out.write(address);
+            out.writeInt(info.getPort());
+            out.writeUTF(info.getDomainName());
+            out.writeUTF(info.getUrl());
+            Map<SvnEdgeServiceKey, String> properties = info.getProperties();
+            out.writeByte(properties.size());
+            for (Map.Entry<SvnEdgeServiceKey, String> property :
+                    properties.entrySet()) {
+                out.writeUTF(property.getKey().toString());
+                out.writeBoolean(property.getValue() != null);
+                if (property.getValue() != null) {
+                    out.writeUTF(property.getValue());
+                }
+            }
+            out.close();
+            bytes += array.toByteArray().length;
+        }
+        return bytes;
+    }
+}
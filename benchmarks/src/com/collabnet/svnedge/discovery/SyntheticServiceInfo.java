@@ -0,0 +1,295 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jmdns.ServiceInfo;
+
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceKey;
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceType;
+
+/**
+ * A resolved jmDNS service built in memory, so that the benchmarks exercise
+ * the discovery API without any network. Each index gets its own name and
+ * private address.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+public final class SyntheticServiceInfo extends ServiceInfo {
+
+    private final String type;
+    private final String name;
+    private final Inet4Address address;
+    private final int port;
+    /**
+     * The properties of the TXT record.
+     */
+    private final Map<String, String> properties;
+
+    private SyntheticServiceInfo(String type, String name,
+            Inet4Address address, int port, Map<String, String> properties) {
+        this.type = type;
+        this.name = name;
+        this.address = address;
+        this.port = port;
+        this.properties = properties;
+    }
+
+    /**
+     * @param type is the service type of the service.
+     * @param index is the index of the service, from 0 to 2^24.
+     * @return a new resolved service with all the keys required by the type.
+     */
+    public static SyntheticServiceInfo makeNew(SvnEdgeServiceType type,
+            int index) {
+        return makeNew(type, index, 8080 + index % 100,
+                "/setupTeamForge/ctfInfo");
+    }
+
+    /**
+     * @param type is the service type of the service.
+     * @param index is the index of the service, from 0 to 2^24.
+     * @param port is the port of the service.
+     * @param teamForgePath is the value of the TeamForge path, empty for a
+     * server managed by TeamForge.
+     * @return a new resolved service with all the keys required by the type.
+     */
+    public static SyntheticServiceInfo makeNew(SvnEdgeServiceType type,
+            int index, int port, String teamForgePath) {
+        Map<String, String> properties = new HashMap<String, String>();
+        for (SvnEdgeServiceKey key : type.getRequiredKeys()) {
+            properties.put(key.toString(), "/csvn");
+        }
+        properties.put("tfpath", teamForgePath);
+        String name = SvnEdgeBonjourRegister.SERVICE_NAME +
+                (index == 0 ? "" : " (" + (index + 1) + ")");
+        try {
+            Inet4Address address = (Inet4Address) InetAddress.getByAddress(
+                    new byte[] {10, (byte) (index >>> 16), (byte) (index >>> 8),
+                            (byte) index});
+            return new SyntheticServiceInfo(type.getType(), name, address,
+                    port, properties);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean hasData() {
+        return true;
+    }
+
+    @Override
+    public String getType() {
+        return this.type;
+    }
+
+    @Override
+    public String getTypeWithSubtype() {
+        return this.type;
+    }
+
+    @Override
+    public String getName() {
+        return this.name;
+    }
+
+    @Override
+    public String getKey() {
+        return this.name.toLowerCase();
+    }
+
+    @Override
+    public String getQualifiedName() {
+        return this.name + "." + this.type;
+    }
+
+    @Override
+    public String getServer() {
+        return this.address.getHostAddress() + ".local.";
+    }
+
+    @Override
+    public String getHostAddress() {
+        return this.address.getHostAddress();
+    }
+
+    @Override
+    public String[] getHostAddresses() {
+        return new String[] {getHostAddress()};
+    }
+
+    @Override
+    public InetAddress getAddress() {
+        return this.address;
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return this.address;
+    }
+
+    @Override
+    public Inet4Address getInet4Address() {
+        return this.address;
+    }
+
+    @Override
+    public Inet6Address getInet6Address() {
+        return null;
+    }
+
+    @Override
+    public InetAddress[] getInetAddresses() {
+        return new InetAddress[] {this.address};
+    }
+
+    @Override
+    public Inet4Address[] getInet4Addresses() {
+        return new Inet4Address[] {this.address};
+    }
+
+    @Override
+    public Inet6Address[] getInet6Addresses() {
+        return new Inet6Address[0];
+    }
+
+    @Override
+    public int getPort() {
+        return this.port;
+    }
+
+    @Override
+    public int getPriority() {
+        return 0;
+    }
+
+    @Override
+    public int getWeight() {
+        return 0;
+    }
+
+    @Override
+    public byte[] getTextBytes() {
+        return new byte[0];
+    }
+
+    @Override
+    public String getTextString() {
+        return null;
+    }
+
+    @Override
+    public String getURL() {
+        return getURL("http");
+    }
+
+    @Override
+    public String[] getURLs() {
+        return getURLs("http");
+    }
+
+    @Override
+    public String getURL(String protocol) {
+        String path = this.properties.get("path");
+        return protocol + "://" + getHostAddress() + ":" + this.port +
+                (path != null ? path : "");
+    }
+
+    @Override
+    public String[] getURLs(String protocol) {
+        return new String[] {getURL(protocol)};
+    }
+
+    @Override
+    public byte[] getPropertyBytes(String propertyName) {
+        String value = this.properties.get(propertyName);
+        return value != null ? value.getBytes() : null;
+    }
+
+    @Override
+    public String getPropertyString(String propertyName) {
+        return this.properties.get(propertyName);
+    }
+
+    @Override
+    public Enumeration<String> getPropertyNames() {
+        return Collections.enumeration(this.properties.keySet());
+    }
+
+    @Override
+    public String getNiceTextString() {
+        return this.properties.toString();
+    }
+
+    @Override
+    public void setText(byte[] text) {
+        throw new IllegalStateException("The synthetic services are resolved");
+    }
+
+    @Override
+    public void setText(Map<String, ?> props) {
+        throw new IllegalStateException("The synthetic services are resolved");
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return false;
+    }
+
+    @Override
+    public String getDomain() {
+        return "local";
+    }
+
+    @Override
+    public String getProtocol() {
+        return "tcp";
+    }
+
+    @Override
+    public String getApplication() {
+        return this.type.substring(1, this.type.indexOf('.'));
+    }
+
+    @Override
+    public String getSubtype() {
+        return "";
+    }
+
+    @Override
+    public Map<Fields, String> getQualifiedNameMap() {
+        Map<Fields, String> map = new EnumMap<Fields, String>(Fields.class);
+        map.put(Fields.Domain, getDomain());
+        map.put(Fields.Protocol, getProtocol());
+        map.put(Fields.Application, getApplication());
+        map.put(Fields.Instance, this.name);
+        map.put(Fields.Subtype, "");
+        return map;
+    }
+}
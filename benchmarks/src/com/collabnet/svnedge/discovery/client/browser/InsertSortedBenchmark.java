@@ -0,0 +1,101 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery.client.browser;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.DefaultListModel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.collabnet.svnedge.discovery.SvnEdgeServerInfo;
+import com.collabnet.svnedge.discovery.SyntheticServiceInfo;
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServerEvent;
+import com.collabnet.svnedge.discovery.mdns.SvnEdgeServiceType;
+
+/**
+ * Measures filling the list of services of the browsers, one sorted insertion
+ * per discovered server, in the order of the announcements.
+ *
+ * @author Marcello de Sales (mdesales@collab.net)
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Benchmark)
+public class InsertSortedBenchmark {
+
+    /**
+     * The number of servers on the network.
+     */
+    @Param({"10", "100", "1000", "10000"})
+    public int servers;
+
+    private ServiceDescriptor[] descriptors;
+    private String[] names;
+
+    @Setup
+    public void setUp() {
+        descriptors = new ServiceDescriptor[servers];
+        names = new String[servers];
+        for (int i = 0; i < servers; i++) {
+            SvnEdgeServerInfo serverInfo = SvnEdgeServerInfo.makeNew(
+                    SyntheticServiceInfo.makeNew(SvnEdgeServiceType.CSVN, i),
+                    SvnEdgeServerEvent.SERVER_RUNNING);
+            descriptors[i] = ServiceDescriptor.makeNew(serverInfo);
+            names[i] = serverInfo.getServiceName();
+        }
+        Random random = new Random(servers);
+        Collections.shuffle(Arrays.asList(descriptors), random);
+        Collections.shuffle(Arrays.asList(names), random);
+    }
+
+    @Benchmark
+    public DefaultListModel insertServices() {
+        DefaultListModel model = new DefaultListModel();
+        for (ServiceDescriptor descriptor : descriptors) {
+            ServiceListModels.insertSorted(model, descriptor);
+        }
+        return model;
+    }
+
+    @Benchmark
+    public DefaultListModel insertNames() {
+        DefaultListModel model = new DefaultListModel();
+        for (String name : names) {
+            ServiceListModels.insertSorted(model, name);
+        }
+        return model;
+    }
+}
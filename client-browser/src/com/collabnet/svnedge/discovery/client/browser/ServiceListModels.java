@@ -0,0 +1,61 @@
+/*
+ * CollabNet Subversion Edge
+ * Copyright (C) 2010, CollabNet Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.collabnet.svnedge.discovery.client.browser;
+
+import javax.swing.DefaultListModel;
+
+/**
+ * Utility methods to keep the list models of the browsers sorted, shared by
+ * the standalone browser and the applet.
+ */
+public final class ServiceListModels {
+
+    private ServiceListModels() {
+    }
+
+    /**
+     * Inserts the given value keeping the model sorted, ignoring the case.
+     * @param model is a model of strings.
+     * @param value is the value to be inserted.
+     */
+    public static void insertSorted(DefaultListModel model, String value) {
+        for (int i = 0, n = model.getSize(); i < n; i++) {
+            if (value.compareToIgnoreCase((String) model.elementAt(i)) < 0) {
+                model.insertElementAt(value, i);
+                return;
+            }
+        }
+        model.addElement(value);
+    }
+
+    /**
+     * Inserts the given service keeping the model sorted.
+     * @param model is a model of service descriptors.
+     * @param value is the service to be inserted.
+     */
+    public static void insertSorted(DefaultListModel model,
+            ServiceDescriptor value) {
+        for (int i = 0, n = model.getSize(); i < n; i++) {
+            if (value.compareTo(model.elementAt(i)) < 0) {
+                model.insertElementAt(value, i);
+                return;
+            }
+        }
+        model.addElement(value);
+    }
+}